@@ -7,4 +7,6 @@ description = "The supporting library for the Agent."
 dependencies {
     implementation(project(":logging"))
     implementation(project(":util"))
+
+    testImplementation(project(":testUtil"))
 }
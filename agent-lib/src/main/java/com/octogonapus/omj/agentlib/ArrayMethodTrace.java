@@ -0,0 +1,56 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+/**
+ * The container for methods with too many primitive arguments to widen each one into its own
+ * {@code long} parameter of a generated container's constructor, which can have at most 255
+ * parameter slots. The arguments are passed in arrays instead, which costs two more allocations
+ * per call but works for every method.
+ */
+public final class ArrayMethodTrace extends ErasedMethodTrace {
+
+  private final long[] primitives;
+  private final Object[] references;
+
+  /**
+   * @param argumentTypes The descriptor character of each argument's declared type in order,
+   *     including the receiver if applicable. References and arrays are {@code L}.
+   * @param isStatic Whether the method is static.
+   * @param primitives Every primitive argument widened to a {@code long} in order.
+   * @param references The receiver, if applicable, and then every reference argument in order.
+   */
+  public ArrayMethodTrace(
+      final String argumentTypes,
+      final boolean isStatic,
+      final long[] primitives,
+      final Object[] references) {
+    super(argumentTypes, isStatic);
+    this.primitives = primitives;
+    this.references = references;
+  }
+
+  @Override
+  protected long getPrimitive(final int slot) {
+    return primitives[slot];
+  }
+
+  @Override
+  protected Object getReference(final int slot) {
+    return references[slot];
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Spins, then yields, then sleeps for exponentially longer times up to a maximum. This uses little
+ * CPU when the application is idle, but picking up a trace can take up to the maximum sleep time
+ * after a long idle period.
+ */
+final class BackoffWaitStrategy implements WaitStrategy {
+
+  private static final int spinTries = 100;
+  private static final int yieldTries = 100;
+  private static final long minSleepNanos = 1_000;
+  private final long maxSleepNanos;
+
+  /** @param maxSleepNanos The longest time to sleep for at once. */
+  BackoffWaitStrategy(final long maxSleepNanos) {
+    this.maxSleepNanos = maxSleepNanos;
+  }
+
+  @Override
+  public void waitForTraces(final int idleCount, final BooleanSupplier shouldWake) {
+    if (idleCount < spinTries) {
+      Thread.onSpinWait();
+    } else if (idleCount < spinTries + yieldTries) {
+      Thread.yield();
+    } else {
+      // Double the sleep time on every call. Capping the shift keeps it from overflowing.
+      final int doublings = Math.min(idleCount - spinTries - yieldTries, 30);
+      LockSupport.parkNanos(Math.min(minSleepNanos << doublings, maxSleepNanos));
+    }
+  }
+
+  @Override
+  public void signal() {}
+}
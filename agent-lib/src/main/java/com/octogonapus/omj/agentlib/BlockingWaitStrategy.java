@@ -0,0 +1,59 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Parks the trace processor thread until an application thread signals that it recorded a trace.
+ * This uses no CPU while the application is idle. The cost is that every recorded trace has to
+ * check whether the trace processor thread is parked, and has to wake it up if it is.
+ */
+final class BlockingWaitStrategy implements WaitStrategy {
+
+  /** An upper bound on how long to park for, in case the thread is never signalled. */
+  private static final long maxParkNanos = 100_000_000;
+
+  private volatile Thread waitingThread = null;
+
+  @Override
+  public void waitForTraces(final int idleCount, final BooleanSupplier shouldWake) {
+    waitingThread = Thread.currentThread();
+
+    // Check again now that producers can see we are waiting. A producer that recorded a trace
+    // before this check will be seen by it, and one that records a trace after this check will see
+    // waitingThread and unpark us.
+    if (!shouldWake.getAsBoolean()) {
+      LockSupport.parkNanos(this, maxParkNanos);
+    }
+
+    waitingThread = null;
+  }
+
+  @Override
+  public void signal() {
+    // The trace must be visible before we check whether the trace processor thread is waiting,
+    // otherwise it could check for traces, miss this one, and park after we checked.
+    VarHandle.fullFence();
+    final Thread thread = waitingThread;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+}
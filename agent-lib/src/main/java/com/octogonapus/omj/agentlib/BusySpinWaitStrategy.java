@@ -0,0 +1,34 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Spins without giving up the CPU. This has the lowest latency but keeps one core busy for as long
+ * as the application runs.
+ */
+final class BusySpinWaitStrategy implements WaitStrategy {
+
+  @Override
+  public void waitForTraces(final int idleCount, final BooleanSupplier shouldWake) {
+    Thread.onSpinWait();
+  }
+
+  @Override
+  public void signal() {}
+}
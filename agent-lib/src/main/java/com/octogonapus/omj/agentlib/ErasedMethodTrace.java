@@ -0,0 +1,147 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import com.octogonapus.omj.util.SimpleTypeUtil;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A method trace that keeps its arguments in primitive and reference slots instead of in fields of
+ * their declared types, so that every method with the same number of primitive and reference
+ * arguments shares one generated container class. Primitives are widened to a {@code long}, with
+ * floats and doubles kept as their raw bits. The declared type of each argument is kept in a string
+ * of descriptor characters, which says which slot each argument is in and how to write it.
+ */
+public abstract class ErasedMethodTrace extends MethodTrace {
+
+  private final String argumentTypes;
+
+  /**
+   * @param argumentTypes The descriptor character of each argument's declared type in order,
+   *     including the receiver if applicable. References and arrays are {@code L}.
+   * @param isStatic Whether the method is static.
+   */
+  protected ErasedMethodTrace(final String argumentTypes, final boolean isStatic) {
+    super(isStatic);
+    this.argumentTypes = argumentTypes;
+  }
+
+  /**
+   * @param slot The index of the primitive slot.
+   * @return The primitive in the slot.
+   */
+  protected abstract long getPrimitive(int slot);
+
+  /**
+   * @param slot The index of the reference slot.
+   * @return The reference in the slot.
+   */
+  protected abstract Object getReference(int slot);
+
+  @Override
+  public void serialize(final OutputStream outputStream) throws IOException {
+    // The index is filled in when the record is committed
+    writeLittleEndian(outputStream, 0, 8);
+
+    // Method trace identifier
+    outputStream.write(0x2);
+
+    // Call site, which gives the caller's class name and line number and the method name
+    writeVarInt(outputStream, siteId);
+
+    outputStream.write(isStatic ? 1 : 0);
+
+    final int numberOfArguments = argumentTypes.length();
+    outputStream.write(numberOfArguments);
+
+    // Type and value for each method argument. The slots are filled in the order of the arguments.
+    int primitiveSlot = 0;
+    int referenceSlot = 0;
+    for (int i = 0; i < numberOfArguments; i++) {
+      final char type = argumentTypes.charAt(i);
+      outputStream.write(type);
+      switch (type) {
+        case 'Z':
+        case 'B':
+          writeLittleEndian(outputStream, getPrimitive(primitiveSlot++), 1);
+          break;
+        case 'C':
+        case 'S':
+          writeLittleEndian(outputStream, getPrimitive(primitiveSlot++), 2);
+          break;
+        case 'I':
+        case 'F':
+          writeLittleEndian(outputStream, getPrimitive(primitiveSlot++), 4);
+          break;
+        case 'J':
+        case 'D':
+          writeLittleEndian(outputStream, getPrimitive(primitiveSlot++), 8);
+          break;
+        case 'L':
+          writeReference(outputStream, getReference(referenceSlot++));
+          break;
+        default:
+          throw new IllegalStateException("Unknown argument type: " + type);
+      }
+    }
+  }
+
+  private static void writeReference(final OutputStream outputStream, final Object value)
+      throws IOException {
+    if (outputStream instanceof TraceBuffer) {
+      // Traces are recorded into a trace buffer, which encodes strings without allocating
+      ((TraceBuffer) outputStream).writeObject(value);
+      return;
+    }
+
+    if (value == null) {
+      writeStringId(outputStream, SimpleTypeUtil.nullClassName);
+      return;
+    }
+
+    writeStringId(outputStream, value.getClass().getName());
+
+    // The trace reader decides how to read the value from the class name it reads, so use the
+    // runtime class instead of the declared type
+    if (value instanceof String) {
+      // For strings, the value is the length of the string and its UTF-8 bytes
+      final byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+      writeLittleEndian(outputStream, bytes.length, 4);
+      outputStream.write(bytes);
+    } else {
+      // For objects, the value is the hashcode
+      writeLittleEndian(outputStream, System.identityHashCode(value), 4);
+    }
+  }
+
+  /**
+   * Writes the low bytes of a value in little-endian format.
+   *
+   * @param outputStream The stream to write to.
+   * @param value The value to write.
+   * @param bytes The number of bytes to write.
+   * @throws IOException From writing to the stream.
+   */
+  private static void writeLittleEndian(
+      final OutputStream outputStream, final long value, final int bytes) throws IOException {
+    for (int i = 0; i < bytes; i++) {
+      outputStream.write((int) (value >> (i * 8)));
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a trace file through memory-mapped segments of the file. Writes are copied into the
+ * currently mapped segment. When a segment fills up, the next segment of the file is mapped and
+ * writing continues there. Closing the stream forces the bytes written out to the storage device
+ * and truncates the file to the number of bytes written, because the last segment is usually only partially filled.
+ */
+final class MappedTraceOutputStream extends OutputStream {
+
+  private final FileChannel channel;
+  private final int segmentSize;
+
+  /** The position in the file where the current segment starts. */
+  private long segmentStart = 0;
+
+  private MappedByteBuffer segment;
+  private boolean closed = false;
+
+  /**
+   * @param file The file to write to. It is created if it does not exist and overwritten if it
+   *     does.
+   * @param segmentSize The number of bytes to map at a time.
+   * @throws IOException If the file could not be opened or mapped.
+   */
+  MappedTraceOutputStream(final Path file, final int segmentSize) throws IOException {
+    if (segmentSize <= 0) {
+      throw new IllegalArgumentException("segmentSize must be positive, got: " + segmentSize);
+    }
+
+    this.segmentSize = segmentSize;
+    channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, segmentSize);
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    if (!segment.hasRemaining()) {
+      rollSegment();
+    }
+    segment.put((byte) b);
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    int offset = off;
+    int remaining = len;
+    while (remaining > 0) {
+      if (!segment.hasRemaining()) {
+        rollSegment();
+      }
+
+      final int length = Math.min(remaining, segment.remaining());
+      segment.put(b, offset, length);
+      offset += length;
+      remaining -= length;
+    }
+  }
+
+  /**
+   * Does nothing. The bytes written so far are already in the file's pages, so other readers of
+   * the file see them without flushing. Forcing them out to the storage device on every flush
+   * would stall the trace processor thread on disk I/O, so that is only done when the stream is
+   * closed, which includes when the trace file is rotated.
+   */
+  @Override
+  public void flush() {}
+
+  /** Forces the bytes written out to the storage device and truncates the file to them. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    try {
+      segment.force();
+      channel.truncate(segmentStart + segment.position());
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    // No need to force the old segment; the OS writes its dirty pages back like any other file
+    // page.
+    segmentStart += segmentSize;
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, segmentSize);
+  }
+}
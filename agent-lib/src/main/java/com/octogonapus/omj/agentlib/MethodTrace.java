@@ -16,55 +16,51 @@
  */
 package com.octogonapus.omj.agentlib;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A method call the agent recorded. The trace is written as a record that starts with a placeholder
+ * for its index, which the {@link TraceBuffer} fills in when the record is committed. See {@link
+ * ErasedMethodTrace} for the rest of the record.
+ */
 @SuppressWarnings("unused")
 public abstract class MethodTrace implements Trace {
 
   protected final boolean isStatic;
-  protected long index;
-  protected String className;
-  protected int lineNumber;
-  protected String methodName;
+  protected int siteId;
 
   public MethodTrace(final boolean isStatic) {
     this.isStatic = isStatic;
   }
 
-  public void setIndex(final long index) {
-    this.index = index;
-  }
-
-  @Override
-  public long getIndex() {
-    return index;
+  /** @param siteId The ID of the site the method was called from. See {@link SiteTable}. */
+  public void setSiteId(final int siteId) {
+    this.siteId = siteId;
   }
 
-  public void setClassName(final String className) {
-    this.className = className;
+  /**
+   * Writes the ID the trace's string dictionary gives a name. Used to write type names when a
+   * trace is serialized into a stream other than a {@link TraceBuffer}, which writes them itself.
+   *
+   * @param outputStream The stream to write to.
+   * @param string The name.
+   * @throws IOException From writing to the stream.
+   */
+  protected static void writeStringId(final OutputStream outputStream, final String string)
+      throws IOException {
+    StringDictionary.writeVarInt(outputStream, OMJAgentLib.stringDictionary.idOf(string));
   }
 
-  public void setLineNumber(final int lineNumber) {
-    this.lineNumber = lineNumber;
+  /**
+   * Writes an unsigned LEB128 varint. Used to write the site ID.
+   *
+   * @param outputStream The stream to write to.
+   * @param value The value to write. Treated as unsigned.
+   * @throws IOException From writing to the stream.
+   */
+  protected static void writeVarInt(final OutputStream outputStream, final int value)
+      throws IOException {
+    StringDictionary.writeVarInt(outputStream, value);
   }
-
-  public void setMethodName(final String methodName) {
-    this.methodName = methodName;
-  }
-
-  public void set_argument_boolean(final boolean value) {}
-
-  public void set_argument_char(final char value) {}
-
-  public void set_argument_byte(final byte value) {}
-
-  public void set_argument_short(final short value) {}
-
-  public void set_argument_int(final int value) {}
-
-  public void set_argument_float(final float value) {}
-
-  public void set_argument_long(final long value) {}
-
-  public void set_argument_double(final double value) {}
-
-  public void set_argument_Object(final Object value) {}
 }
@@ -21,10 +21,15 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
-import java.util.Objects;
-import java.util.PriorityQueue;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,18 +40,45 @@ public final class OMJAgentLib {
   private static final Logger logger = LoggerFactory.getLogger(OMJAgentLib.class);
   private static final long initialTraceCounterValue = 0;
   private static final AtomicLong traceCounter = new AtomicLong(initialTraceCounterValue);
-  private static final ThreadLocal<MethodTrace> currentMethodTrace = new ThreadLocal<>();
-  private static final ThreadLocal<String> currentClassName = ThreadLocal.withInitial(() -> "");
-  private static final ThreadLocal<Integer> currentLineNumber = ThreadLocal.withInitial(() -> 0);
-  private static final ThreadLocal<String> currentMethodName = ThreadLocal.withInitial(() -> "");
-  private static final ConcurrentLinkedQueue<Trace> traceQueue = new ConcurrentLinkedQueue<>();
+  private static final SiteTable siteTable = SiteTable.getInstance();
+  static final StringDictionary stringDictionary = siteTable.getStringDictionary();
+  private static final WaitStrategy waitStrategy = createWaitStrategy();
+  private static final int traceRingSegmentCapacity =
+      Integer.getInteger("agent-lib.trace-ring-capacity", 1 << 20);
+  private static final OverflowPolicy overflowPolicy = createOverflowPolicy();
+  private static final int sampleRate = Integer.getInteger("agent-lib.sample-rate", 10);
+  private static final List<TraceRing> traceRings = new CopyOnWriteArrayList<>();
+
+  /** False once the trace processor thread has stopped draining the {@link #traceRings}. */
+  private static volatile boolean isTraceProcessorRunning = true;
+
+  private static final ThreadLocal<RecordingContext> recordingContext =
+      ThreadLocal.withInitial(
+          () -> {
+            final var ring = new TraceRing(Thread.currentThread(), traceRingSegmentCapacity);
+            traceRings.add(ring);
+            return new RecordingContext(
+                new TraceBuffer(
+                    ring,
+                    waitStrategy,
+                    traceCounter,
+                    stringDictionary,
+                    overflowPolicy,
+                    sampleRate,
+                    () -> isTraceProcessorRunning));
+          });
+  private static final String traceWriter = System.getProperty("agent-lib.trace-writer", "stream");
+  private static final int traceSegmentSize =
+      Integer.getInteger("agent-lib.trace-segment-size", 64 << 20);
+  private static final int reorderWindowSize =
+      Integer.getInteger("agent-lib.reorder-window-size", 1 << 16);
+  private static final Queue<TraceFileRequest> traceFileRequests = new ConcurrentLinkedQueue<>();
   private static Semaphore traceProcessorThreadStarted = new Semaphore(0);
   private static volatile boolean finishProcessingTraces = false;
+  private static volatile Path traceFile = newTraceFile();
 
   static {
     final Semaphore traceProcessorRunning = new Semaphore(1);
-    final var traceFile =
-        Util.getTraceDir().resolve("trace_" + System.currentTimeMillis() + ".trace");
 
     final var traceProcessorThread =
         new Thread(
@@ -54,29 +86,19 @@ public final class OMJAgentLib {
               traceProcessorThreadStarted.release();
               traceProcessorRunning.acquireUninterruptibly();
 
-              logger.debug("Opening trace file {}", traceFile.toString());
-
               try {
-                //noinspection ResultOfMethodCallIgnored
-                traceFile.toFile().createNewFile();
-              } catch (IOException e) {
-                logger.error("Failed to create trace file.", e);
-              }
-
-              // TODO: This should probably use a memory-mapped file
-              try (final var os = new BufferedOutputStream(Files.newOutputStream(traceFile))) {
-                loopWriteTraces(os);
-                logger.debug(
-                    "Number of traces left in the queue when flushing: {}", traceQueue.size());
-                os.flush();
+                writeTraceFiles();
               } catch (IOException e) {
                 e.printStackTrace();
                 logger.error("Failed to write traces.", e);
 
                 // Need to release this here because System.exit does not return, so this is our
                 // only chance to release the semaphore for the shutdown hook that will run later.
+                isTraceProcessorRunning = false;
                 traceProcessorRunning.release();
                 System.exit(1);
+              } finally {
+                isTraceProcessorRunning = false;
               }
 
               traceProcessorRunning.release();
@@ -98,6 +120,7 @@ public final class OMJAgentLib {
                   }
 
                   finishProcessingTraces = true;
+                  waitStrategy.signal();
 
                   // Wait for the trace processor to finish so data is flushed out
                   traceProcessorRunning.acquireUninterruptibly();
@@ -106,220 +129,443 @@ public final class OMJAgentLib {
                 }));
 
     traceProcessorThread.start();
+
+    if (Boolean.parseBoolean(System.getProperty("agent-lib.jmx", "true"))) {
+      RecordingControl.register();
+    }
+  }
+
+  /** @return The trace file traces are currently written to. */
+  static Path getTraceFile() {
+    return traceFile;
   }
 
   /**
-   * Serializes traces in a loop until {@link #finishProcessingTraces} is set to true.
+   * Asks the trace processor to write every trace recorded so far to the trace file and flush it.
+   * Traces that are still waiting for an earlier trace are written once it arrives.
    *
-   * @param os The output stream.
+   * @return A future that completes with the trace file once it is flushed.
    */
-  private static void loopWriteTraces(final OutputStream os) {
-    final var localTraceQueue =
-        new PriorityQueue<Trace>((trace1, trace2) -> (int) (trace1.getIndex() - trace2.getIndex()));
-    long lastTraceIndex = initialTraceCounterValue - 1;
+  static Future<Path> requestFlush() {
+    return requestTraceFileChange(false);
+  }
+
+  /**
+   * Asks the trace processor to flush the trace file like {@link #requestFlush()}, then close it
+   * and write the following traces to a new trace file.
+   *
+   * @return A future that completes with the new trace file once it is open.
+   */
+  static Future<Path> requestRotate() {
+    return requestTraceFileChange(true);
+  }
+
+  private static Future<Path> requestTraceFileChange(final boolean rotate) {
+    final var request = new TraceFileRequest(rotate);
+    traceFileRequests.add(request);
+    waitStrategy.signal();
+    return request.done;
+  }
 
+  /**
+   * Picks a path for a new trace file that does not exist yet.
+   *
+   * @return The path.
+   */
+  private static Path newTraceFile() {
+    final var traceDir = Util.getTraceDir();
+    final long time = System.currentTimeMillis();
+    var path = traceDir.resolve("trace_" + time + ".trace");
+    for (int i = 1; Files.exists(path); i++) {
+      path = traceDir.resolve("trace_" + time + "_" + i + ".trace");
+    }
+    return path;
+  }
+
+  /**
+   * Creates the trace file and opens it with {@link #openTraceFile(Path)}.
+   *
+   * @param traceFile The trace file.
+   * @return The output stream to write traces to.
+   * @throws IOException If the trace file could not be opened.
+   */
+  private static OutputStream createTraceFile(final Path traceFile) throws IOException {
+    logger.debug("Opening trace file {}", traceFile.toString());
+
+    try {
+      //noinspection ResultOfMethodCallIgnored
+      traceFile.toFile().createNewFile();
+    } catch (IOException e) {
+      logger.error("Failed to create trace file.", e);
+    }
+
+    return openTraceFile(traceFile);
+  }
+
+  /**
+   * Opens the trace file using the writer selected by the `agent-lib.trace-writer` property. The
+   * default writer, `stream`, buffers writes to a regular file stream. The `mapped` writer maps
+   * segments of `agent-lib.trace-segment-size` bytes of the file into memory and copies traces into
+   * them.
+   *
+   * @param traceFile The trace file.
+   * @return The output stream to write traces to.
+   * @throws IOException If the trace file could not be opened.
+   */
+  private static OutputStream openTraceFile(final Path traceFile) throws IOException {
+    switch (traceWriter) {
+      case "mapped":
+        return new MappedTraceOutputStream(traceFile, traceSegmentSize);
+
+      case "stream":
+        return new BufferedOutputStream(Files.newOutputStream(traceFile));
+
+      default:
+        logger.warn("Unknown trace writer {}. Falling back to the stream writer.", traceWriter);
+        return new BufferedOutputStream(Files.newOutputStream(traceFile));
+    }
+  }
+
+  /**
+   * Serializes traces into the {@link #traceFile} in a loop until {@link #finishProcessingTraces}
+   * is set to true. Handles the {@link #traceFileRequests} between iterations.
+   *
+   * @throws IOException If the trace file could not be opened or written to.
+   */
+  private static void writeTraceFiles() throws IOException {
+    var os = createTraceFile(traceFile);
+    try {
+      final var serializer =
+          new TraceSerializer(os, siteTable, initialTraceCounterValue, reorderWindowSize);
+      os = loopWriteTraces(serializer, os);
+      os.flush();
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * @param serializer The serializer.
+   * @param os The output stream the serializer writes to.
+   * @return The output stream the serializer writes to at the end, which is different if the trace
+   *     file was rotated.
+   */
+  private static OutputStream loopWriteTraces(final TraceSerializer serializer, OutputStream os) {
     // Must do at least one iteration of serializing traces
+    int idleCount = 0;
     do {
-      lastTraceIndex = serializeTraces(os, localTraceQueue, lastTraceIndex);
+      final int drainedTraces = drainTraceRings(serializer);
+      serializer.serializePendingTraces();
+      os = handleTraceFileRequests(serializer, os);
 
-      if (traceQueue.isEmpty()) {
+      if (drainedTraces == 0) {
         // Only wait if there are no more traces to process
-        // TODO: Don't busy-wait here
-        try {
-          Thread.sleep(1);
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
+        waitStrategy.waitForTraces(
+            idleCount++,
+            () -> finishProcessingTraces || !areTraceRingsEmpty() || !traceFileRequests.isEmpty());
+      } else {
+        idleCount = 0;
       }
     } while (!finishProcessingTraces);
 
+    drainTraceRings(serializer);
+    reportDroppedTraces(serializer);
+
     int finalLoopCount = 0;
-    while (localTraceQueue.size() != 0) {
-      serializeTraces(os, localTraceQueue, lastTraceIndex);
+    while (drainTraceRings(serializer) != 0 || serializer.getNumberOfPendingTraces() != 0) {
+      serializer.serializePendingTraces();
 
       if (finalLoopCount++ > 10) {
-        final Trace top = localTraceQueue.peek();
         logger.error(
-            "Got stuck in the final localTraceQueue loop! localTraceQueue.size()={}, "
-                + "lastTraceIndex={}, top of localTraceQueue = {}",
-            localTraceQueue.size(),
-            lastTraceIndex,
-            top != null ? top.getIndex() : null);
+            "Got stuck in the final trace serialization loop! pendingTraces={}, "
+                + "lastTraceIndex={}, first pending trace = {}",
+            serializer.getNumberOfPendingTraces(),
+            serializer.getLastTraceIndex(),
+            serializer.getFirstPendingTraceIndex());
         break;
       }
     }
+
+    logger.debug(
+        "Number of traces left in the queue when flushing: {}",
+        serializer.getNumberOfPendingTraces());
+
+    TraceFileRequest request;
+    while ((request = traceFileRequests.poll()) != null) {
+      request.done.completeExceptionally(new IOException("The trace file was closed."));
+    }
+
+    return os;
   }
 
   /**
-   * Serializes 0 or 1 traces from the {@link #traceQueue} and greedily serializes as many traces as
-   * possible from the `localTraceQueue`.
+   * Flushes or rotates the trace file for each of the {@link #traceFileRequests}. A request that
+   * fails leaves the current trace file open.
    *
-   * @param os The output stream.
-   * @param localTraceQueue The `localTraceQueue`.
-   * @param lastTraceIndex The `lastTraceIndex`.
-   * @return The new `lastTraceIndex`.
+   * @param serializer The serializer.
+   * @param os The output stream the serializer writes to.
+   * @return The output stream the serializer writes to now.
    */
-  private static long serializeTraces(
-      final OutputStream os,
-      final PriorityQueue<Trace> localTraceQueue,
-      final long lastTraceIndex) {
-    long newLastTraceIndex = lastTraceIndex;
-
-    final var trace = traceQueue.poll();
-    if (trace != null) {
-      logger.debug("Polled trace with index: {}", trace.getIndex());
-      // Check if the trace's index is the next index we are looking for. If it is, serialize the
-      // trace immediately instead of enqueueing it to save time.
-      if (trace.getIndex() == lastTraceIndex + 1) {
-        newLastTraceIndex = serializeTrace(os, trace);
-      } else {
-        // Enqueue the trace because it's not the next one we need.
-        localTraceQueue.add(trace);
+  private static OutputStream handleTraceFileRequests(
+      final TraceSerializer serializer, OutputStream os) {
+    TraceFileRequest request;
+    while ((request = traceFileRequests.poll()) != null) {
+      drainTraceRings(serializer);
+      if (request.rotate) {
+        reportDroppedTraces(serializer);
+      }
+      serializer.serializePendingTraces();
+
+      try {
+        os.flush();
+
+        if (request.rotate) {
+          final var newTraceFile = newTraceFile();
+          final var newOs = createTraceFile(newTraceFile);
+          final var oldOs = os;
+          serializer.setOutputStream(newOs);
+          os = newOs;
+          traceFile = newTraceFile;
+          oldOs.close();
+        }
+
+        request.done.complete(traceFile);
+      } catch (IOException e) {
+        logger.error("Failed to flush or rotate the trace file.", e);
+        request.done.completeExceptionally(e);
       }
     }
+    return os;
+  }
 
-    // Serialize everything in the local queue we can
-    var topTrace = localTraceQueue.peek();
-    while (topTrace != null && topTrace.getIndex() == lastTraceIndex + 1) {
-      final Trace traceToWrite = Objects.requireNonNull(localTraceQueue.poll());
-      newLastTraceIndex = serializeTrace(os, traceToWrite);
-      topTrace = localTraceQueue.peek();
+  /**
+   * Creates the wait strategy selected by the `agent-lib.wait-strategy` property:
+   *
+   * <ul>
+   *   <li>`backoff` (the default): spin, yield, then sleep for up to
+   *       `agent-lib.wait-strategy.max-sleep-micros` (default 1000) at a time.
+   *   <li>`blocking`: park until an application thread records a trace. Lowest CPU use.
+   *   <li>`yielding`: spin, then yield.
+   *   <li>`busy-spin`: spin. Lowest latency, but keeps a core busy.
+   * </ul>
+   *
+   * @return The wait strategy.
+   */
+  private static WaitStrategy createWaitStrategy() {
+    final String name = System.getProperty("agent-lib.wait-strategy", "backoff");
+    switch (name) {
+      case "blocking":
+        return new BlockingWaitStrategy();
+
+      case "yielding":
+        return new YieldingWaitStrategy(100);
+
+      case "busy-spin":
+        return new BusySpinWaitStrategy();
+
+      case "backoff":
+        return createBackoffWaitStrategy();
+
+      default:
+        logger.warn("Unknown wait strategy {}. Falling back to the backoff strategy.", name);
+        return createBackoffWaitStrategy();
     }
+  }
 
-    return newLastTraceIndex;
+  private static WaitStrategy createBackoffWaitStrategy() {
+    final long maxSleepMicros = Long.getLong("agent-lib.wait-strategy.max-sleep-micros", 1000);
+    return new BackoffWaitStrategy(TimeUnit.MICROSECONDS.toNanos(maxSleepMicros));
   }
 
   /**
-   * Serializes a single trace.
+   * Reads the overflow policy selected by the `agent-lib.overflow-policy` property:
+   *
+   * <ul>
+   *   <li>`unbounded` (the default): each thread's ring grows as needed. Never loses traces.
+   *   <li>`block`: each thread's ring holds `agent-lib.trace-ring-capacity` bytes. A thread waits
+   *       for room when its ring is full.
+   *   <li>`drop-newest`: like `block`, but the trace being recorded is dropped instead.
+   *   <li>`drop-oldest`: like `block`, but the oldest traces in the ring are dropped instead.
+   *   <li>`sample`: like `drop-newest`, but once a ring is more than half full only one in every
+   *       `agent-lib.sample-rate` (default 10) traces is recorded.
+   * </ul>
    *
-   * @param os The output stream.
-   * @param trace The trace.
-   * @return The new `lastTraceIndex`.
+   * <p>Dropped traces are reported with gap records in the trace file.
+   *
+   * @return The overflow policy.
    */
-  private static long serializeTrace(final OutputStream os, final Trace trace) {
-    final long lastTraceIndex;
-    try {
-      trace.serialize(os);
-      logger.debug("Serialized trace with index: {}", trace.getIndex());
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  private static OverflowPolicy createOverflowPolicy() {
+    final String name = System.getProperty("agent-lib.overflow-policy", "unbounded");
+    switch (name) {
+      case "unbounded":
+        return OverflowPolicy.UNBOUNDED;
+
+      case "block":
+        return OverflowPolicy.BLOCK;
+
+      case "drop-newest":
+        return OverflowPolicy.DROP_NEWEST;
 
-    lastTraceIndex = trace.getIndex();
-    return lastTraceIndex;
+      case "drop-oldest":
+        return OverflowPolicy.DROP_OLDEST;
+
+      case "sample":
+        return OverflowPolicy.SAMPLE;
+
+      default:
+        logger.warn("Unknown overflow policy {}. Falling back to the unbounded policy.", name);
+        return OverflowPolicy.UNBOUNDED;
+    }
   }
 
-  public static void className(final String className) {
-    currentClassName.set(className);
+  /** @return True if none of the {@link #traceRings} have any records in them. */
+  private static boolean areTraceRingsEmpty() {
+    for (final TraceRing ring : traceRings) {
+      if (!ring.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
   }
 
-  public static void lineNumber(final int lineNumber) {
-    currentLineNumber.set(lineNumber);
+  /**
+   * Gives every record currently in the {@link #traceRings} to the `serializer`. Rings whose
+   * threads have terminated are removed once they have been drained.
+   *
+   * @param serializer The serializer.
+   * @return The number of records drained.
+   */
+  private static int drainTraceRings(final TraceSerializer serializer) {
+    int drainedTraces = 0;
+    for (final TraceRing ring : traceRings) {
+      // Check this before draining so that nothing can be added to the ring after it is drained
+      final boolean ownerTerminated = ring.isOwnerTerminated();
+
+      drainedTraces += ring.drain(serializer);
+
+      if (ownerTerminated) {
+        traceRings.remove(ring);
+        reportDroppedTraces(serializer, ring);
+      }
+    }
+    return drainedTraces;
   }
 
-  public static void methodName(final String methodName) {
-    currentMethodName.set(methodName);
+  /**
+   * Gives the `serializer` a gap record for the traces each of the {@link #traceRings} dropped
+   * since its thread last committed a record. Threads only write gap records before the records
+   * they commit, so these would not be in the trace file if the thread committed no more records
+   * before the trace file is rotated or closed.
+   *
+   * @param serializer The serializer.
+   */
+  private static void reportDroppedTraces(final TraceSerializer serializer) {
+    for (final TraceRing ring : traceRings) {
+      reportDroppedTraces(serializer, ring);
+    }
   }
 
-  public static void methodCall_start(final MethodTrace methodTrace) {
-    methodTrace.setIndex(traceCounter.getAndIncrement());
-    methodTrace.setClassName(currentClassName.get());
-    methodTrace.setLineNumber(currentLineNumber.get());
-    methodTrace.setMethodName(currentMethodName.get());
-    currentMethodTrace.set(methodTrace);
+  private static void reportDroppedTraces(final TraceSerializer serializer, final TraceRing ring) {
+    final long droppedTraces = ring.takeDroppedTraces();
+    if (droppedTraces != 0) {
+      serializer.acceptDropped(new long[] {traceCounter.getAndIncrement()}, droppedTraces);
+    }
   }
 
-  public static void methodCall_end() {
-    final MethodTrace trace = currentMethodTrace.get();
-    currentMethodTrace.remove();
-    traceQueue.add(trace);
+  /**
+   * Instrumented methods call this once when they are entered and pass the context to the call
+   * sites, method calls, and stores they record.
+   *
+   * @return The current thread's recording context.
+   */
+  public static RecordingContext getRecordingContext() {
+    return recordingContext.get();
   }
 
-  public static void store(
-      final boolean value,
-      final String className,
-      final int lineNumber,
-      final String variableName) {
-    final var trace =
-        new StoreTrace_boolean(
-            traceCounter.getAndIncrement(), className, lineNumber, variableName, value);
-    traceQueue.add(trace);
+  public static void store(final boolean value, final int siteId, final RecordingContext context) {
+    final var buffer = context.getTraceBuffer();
+    buffer.writeStoreTraceHeader(siteId);
+    buffer.write('Z');
+    buffer.write(value ? 1 : 0);
+    buffer.commit();
   }
 
-  public static void store(
-      final char value, final String className, final int lineNumber, final String variableName) {
-    final var trace =
-        new StoreTrace_char(
-            traceCounter.getAndIncrement(), className, lineNumber, variableName, value);
-    traceQueue.add(trace);
+  public static void store(final char value, final int siteId, final RecordingContext context) {
+    final var buffer = context.getTraceBuffer();
+    buffer.writeStoreTraceHeader(siteId);
+    buffer.write('C');
+    buffer.write(value & 0xFF);
+    buffer.write((value >> 8) & 0xFF);
+    buffer.commit();
   }
 
-  public static void store(
-      final byte value, final String className, final int lineNumber, final String variableName) {
-    final var trace =
-        new StoreTrace_byte(
-            traceCounter.getAndIncrement(), className, lineNumber, variableName, value);
-    traceQueue.add(trace);
+  public static void store(final byte value, final int siteId, final RecordingContext context) {
+    final var buffer = context.getTraceBuffer();
+    buffer.writeStoreTraceHeader(siteId);
+    buffer.write('B');
+    buffer.write(value);
+    buffer.commit();
   }
 
-  public static void store(
-      final short value, final String className, final int lineNumber, final String variableName) {
-    final var trace =
-        new StoreTrace_short(
-            traceCounter.getAndIncrement(), className, lineNumber, variableName, value);
-    traceQueue.add(trace);
+  public static void store(final short value, final int siteId, final RecordingContext context) {
+    final var buffer = context.getTraceBuffer();
+    buffer.writeStoreTraceHeader(siteId);
+    buffer.write('S');
+    buffer.write(value & 0xFF);
+    buffer.write((value >> 8) & 0xFF);
+    buffer.commit();
   }
 
-  public static void store(
-      final int value, final String className, final int lineNumber, final String variableName) {
-    final var trace =
-        new StoreTrace_int(
-            traceCounter.getAndIncrement(), className, lineNumber, variableName, value);
-    traceQueue.add(trace);
+  public static void store(final int value, final int siteId, final RecordingContext context) {
+    final var buffer = context.getTraceBuffer();
+    buffer.writeStoreTraceHeader(siteId);
+    buffer.write('I');
+    buffer.write4Bytes(value);
+    buffer.commit();
   }
 
-  public static void store(
-      final float value, final String className, final int lineNumber, final String variableName) {
-    final var trace =
-        new StoreTrace_float(
-            traceCounter.getAndIncrement(), className, lineNumber, variableName, value);
-    traceQueue.add(trace);
+  public static void store(final float value, final int siteId, final RecordingContext context) {
+    final var buffer = context.getTraceBuffer();
+    buffer.writeStoreTraceHeader(siteId);
+    buffer.write('F');
+    buffer.write4Bytes(Float.floatToRawIntBits(value));
+    buffer.commit();
   }
 
-  public static void store(
-      final long value, final String className, final int lineNumber, final String variableName) {
-    final var trace =
-        new StoreTrace_long(
-            traceCounter.getAndIncrement(), className, lineNumber, variableName, value);
-    traceQueue.add(trace);
+  public static void store(final long value, final int siteId, final RecordingContext context) {
+    final var buffer = context.getTraceBuffer();
+    buffer.writeStoreTraceHeader(siteId);
+    buffer.write('J');
+    buffer.write8Bytes(value);
+    buffer.commit();
   }
 
-  public static void store(
-      final double value, final String className, final int lineNumber, final String variableName) {
-    final var trace =
-        new StoreTrace_double(
-            traceCounter.getAndIncrement(), className, lineNumber, variableName, value);
-    traceQueue.add(trace);
+  public static void store(final double value, final int siteId, final RecordingContext context) {
+    final var buffer = context.getTraceBuffer();
+    buffer.writeStoreTraceHeader(siteId);
+    buffer.write('D');
+    buffer.write8Bytes(Double.doubleToRawLongBits(value));
+    buffer.commit();
   }
 
-  public static void store(
-      final Object value, final String className, final int lineNumber, final String variableName) {
-    final var trace =
-        new StoreTrace_Object(
-            traceCounter.getAndIncrement(), className, lineNumber, variableName, value);
-    traceQueue.add(trace);
+  public static void store(final Object value, final int siteId, final RecordingContext context) {
+    final var buffer = context.getTraceBuffer();
+    buffer.writeStoreTraceHeader(siteId);
+    buffer.write('L');
+    buffer.writeObject(value);
+    buffer.commit();
   }
 
   public static void storeBooleanOrByteArray(
       final Object array,
       final int arrayIndex,
       final byte value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     if (array instanceof boolean[]) {
-      store((boolean[]) array, arrayIndex, value == 1, className, lineNumber);
+      store((boolean[]) array, arrayIndex, value == 1, siteId, context);
     } else {
-      store((byte[]) array, arrayIndex, value, className, lineNumber);
+      store((byte[]) array, arrayIndex, value, siteId, context);
     }
   }
 
@@ -327,152 +573,138 @@ public final class OMJAgentLib {
       final boolean[] array,
       final int arrayIndex,
       final boolean value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     array[arrayIndex] = value;
-    final var trace =
-        new StoreTrace_array_boolean(
-            traceCounter.getAndIncrement(), array, arrayIndex, value, className, lineNumber);
-    traceQueue.add(trace);
+    final var buffer = context.getTraceBuffer();
+    buffer.writeArrayStoreTraceHeader(siteId, array, arrayIndex);
+    buffer.write('Z');
+    buffer.write(value ? 1 : 0);
+    buffer.commit();
   }
 
   public static void store(
       final char[] array,
       final int arrayIndex,
       final char value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     array[arrayIndex] = value;
-    final var trace =
-        new StoreTrace_array_char(
-            traceCounter.getAndIncrement(), array, arrayIndex, value, className, lineNumber);
-    traceQueue.add(trace);
+    final var buffer = context.getTraceBuffer();
+    buffer.writeArrayStoreTraceHeader(siteId, array, arrayIndex);
+    buffer.write('C');
+    buffer.write(value & 0xFF);
+    buffer.write((value >> 8) & 0xFF);
+    buffer.commit();
   }
 
   public static void store(
       final byte[] array,
       final int arrayIndex,
       final byte value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     array[arrayIndex] = value;
-    final var trace =
-        new StoreTrace_array_byte(
-            traceCounter.getAndIncrement(), array, arrayIndex, value, className, lineNumber);
-    traceQueue.add(trace);
+    final var buffer = context.getTraceBuffer();
+    buffer.writeArrayStoreTraceHeader(siteId, array, arrayIndex);
+    buffer.write('B');
+    buffer.write(value);
+    buffer.commit();
   }
 
   public static void store(
       final short[] array,
       final int arrayIndex,
       final short value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     array[arrayIndex] = value;
-    final var trace =
-        new StoreTrace_array_short(
-            traceCounter.getAndIncrement(), array, arrayIndex, value, className, lineNumber);
-    traceQueue.add(trace);
+    final var buffer = context.getTraceBuffer();
+    buffer.writeArrayStoreTraceHeader(siteId, array, arrayIndex);
+    buffer.write('S');
+    buffer.write(value & 0xFF);
+    buffer.write((value >> 8) & 0xFF);
+    buffer.commit();
   }
 
   public static void store(
       final int[] array,
       final int arrayIndex,
       final int value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     array[arrayIndex] = value;
-    final var trace =
-        new StoreTrace_array_int(
-            traceCounter.getAndIncrement(), array, arrayIndex, value, className, lineNumber);
-    traceQueue.add(trace);
+    final var buffer = context.getTraceBuffer();
+    buffer.writeArrayStoreTraceHeader(siteId, array, arrayIndex);
+    buffer.write('I');
+    buffer.write4Bytes(value);
+    buffer.commit();
   }
 
   public static void store(
       final float[] array,
       final int arrayIndex,
       final float value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     array[arrayIndex] = value;
-    final var trace =
-        new StoreTrace_array_float(
-            traceCounter.getAndIncrement(), array, arrayIndex, value, className, lineNumber);
-    traceQueue.add(trace);
+    final var buffer = context.getTraceBuffer();
+    buffer.writeArrayStoreTraceHeader(siteId, array, arrayIndex);
+    buffer.write('F');
+    buffer.write4Bytes(Float.floatToRawIntBits(value));
+    buffer.commit();
   }
 
   public static void store(
       final long[] array,
       final int arrayIndex,
       final long value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     array[arrayIndex] = value;
-    final var trace =
-        new StoreTrace_array_long(
-            traceCounter.getAndIncrement(), array, arrayIndex, value, className, lineNumber);
-    traceQueue.add(trace);
+    final var buffer = context.getTraceBuffer();
+    buffer.writeArrayStoreTraceHeader(siteId, array, arrayIndex);
+    buffer.write('J');
+    buffer.write8Bytes(value);
+    buffer.commit();
   }
 
   public static void store(
       final double[] array,
       final int arrayIndex,
       final double value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     array[arrayIndex] = value;
-    final var trace =
-        new StoreTrace_array_double(
-            traceCounter.getAndIncrement(), array, arrayIndex, value, className, lineNumber);
-    traceQueue.add(trace);
+    final var buffer = context.getTraceBuffer();
+    buffer.writeArrayStoreTraceHeader(siteId, array, arrayIndex);
+    buffer.write('D');
+    buffer.write8Bytes(Double.doubleToRawLongBits(value));
+    buffer.commit();
   }
 
   public static void store(
       final Object[] array,
       final int arrayIndex,
       final Object value,
-      final String className,
-      final int lineNumber) {
+      final int siteId,
+      final RecordingContext context) {
     array[arrayIndex] = value;
-    final var trace =
-        new StoreTrace_array_Object(
-            traceCounter.getAndIncrement(), array, arrayIndex, value, className, lineNumber);
-    traceQueue.add(trace);
+    final var buffer = context.getTraceBuffer();
+    buffer.writeArrayStoreTraceHeader(siteId, array, arrayIndex);
+    buffer.write('L');
+    buffer.writeObject(value);
+    buffer.commit();
   }
 
-  public static void methodCall_argument_boolean(boolean value) {
-    currentMethodTrace.get().set_argument_boolean(value);
-  }
-
-  public static void methodCall_argument_char(char value) {
-    currentMethodTrace.get().set_argument_char(value);
-  }
-
-  public static void methodCall_argument_byte(byte value) {
-    currentMethodTrace.get().set_argument_byte(value);
-  }
-
-  public static void methodCall_argument_short(short value) {
-    currentMethodTrace.get().set_argument_short(value);
-  }
+  /** A request for the trace processor to flush or rotate the trace file. */
+  private static final class TraceFileRequest {
 
-  public static void methodCall_argument_int(int value) {
-    currentMethodTrace.get().set_argument_int(value);
-  }
+    private final boolean rotate;
+    private final CompletableFuture<Path> done = new CompletableFuture<>();
 
-  public static void methodCall_argument_float(float value) {
-    currentMethodTrace.get().set_argument_float(value);
-  }
-
-  public static void methodCall_argument_long(long value) {
-    currentMethodTrace.get().set_argument_long(value);
-  }
-
-  public static void methodCall_argument_double(double value) {
-    currentMethodTrace.get().set_argument_double(value);
-  }
-
-  public static void methodCall_argument_Object(Object value) {
-    currentMethodTrace.get().set_argument_Object(value);
+    private TraceFileRequest(final boolean rotate) {
+      this.rotate = rotate;
+    }
   }
 }
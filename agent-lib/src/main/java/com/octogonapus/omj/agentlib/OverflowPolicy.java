@@ -0,0 +1,47 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+/**
+ * What an application thread does with a trace when its {@link TraceRing} is full. Every policy
+ * except {@link #UNBOUNDED} keeps each ring to a single segment. Traces that are not recorded are
+ * counted, and the count is written as a gap record before the next trace the thread records, or
+ * when the trace file is rotated or closed if the thread records no more traces before then.
+ */
+enum OverflowPolicy {
+
+  /** Grow the ring. Never loses traces, but memory use is unbounded if the writer falls behind. */
+  UNBOUNDED,
+
+  /**
+   * Wait for the trace processor thread to make room. Drop the trace being recorded if the trace
+   * processor thread has stopped.
+   */
+  BLOCK,
+
+  /** Drop the trace being recorded. */
+  DROP_NEWEST,
+
+  /** Drop the oldest traces in the ring to make room for the trace being recorded. */
+  DROP_OLDEST,
+
+  /**
+   * Once the ring is more than half full, only record one in every N traces until it drains below
+   * half full. Drop the trace being recorded if the ring is still full.
+   */
+  SAMPLE
+}
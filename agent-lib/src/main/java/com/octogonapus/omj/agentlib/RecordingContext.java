@@ -0,0 +1,71 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.io.IOException;
+
+/**
+ * The per-thread state instrumented code records method calls and stores with. An instrumented
+ * method gets its thread's context from {@link OMJAgentLib#getRecordingContext()} once when it is
+ * entered, keeps it in a local variable, and passes it to every call site, method call, and store
+ * it records after that, so those recording calls do not have to look up any thread-locals.
+ *
+ * <p>A context is only ever used by the thread it belongs to, so none of its state is synchronized.
+ */
+public final class RecordingContext {
+
+  private final TraceBuffer traceBuffer;
+
+  /** The site of the last method call made on this thread. See {@link SiteTable}. */
+  private int siteId = SiteTable.unknownSite;
+
+  /** @param traceBuffer The buffer to encode the thread's traces into. */
+  RecordingContext(final TraceBuffer traceBuffer) {
+    this.traceBuffer = traceBuffer;
+  }
+
+  /** @return The buffer to encode the thread's traces into. */
+  TraceBuffer getTraceBuffer() {
+    return traceBuffer;
+  }
+
+  /**
+   * Records the site of a method call so that the trace of the method it calls can refer to it.
+   *
+   * @param siteId The ID of the call site.
+   */
+  public void callSite(final int siteId) {
+    this.siteId = siteId;
+  }
+
+  /**
+   * Records a method call. The trace refers to the site of the last call recorded by {@link
+   * #callSite(int)}.
+   *
+   * @param methodTrace The trace of the method being entered, which holds all its arguments.
+   */
+  public void methodCall(final MethodTrace methodTrace) {
+    methodTrace.setSiteId(siteId);
+    try {
+      methodTrace.serialize(traceBuffer);
+      traceBuffer.commit();
+    } catch (IOException e) {
+      traceBuffer.reset();
+      e.printStackTrace();
+    }
+  }
+}
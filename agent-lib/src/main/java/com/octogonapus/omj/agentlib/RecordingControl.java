@@ -0,0 +1,99 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link RecordingControlMBean} the agent lib registers when it starts, unless the
+ * `agent-lib.jmx` property is false. Pausing and resuming toggle {@link RecordingSites}. Flushing
+ * and rotating are done by the trace processor, so they wait for it for up to
+ * `agent-lib.jmx.timeout-millis` (default 10000).
+ */
+public final class RecordingControl implements RecordingControlMBean {
+
+  /** The object name the MBean is registered under. */
+  public static final String objectName = "com.octogonapus.omj.agentlib:type=RecordingControl";
+
+  private static final Logger logger = LoggerFactory.getLogger(RecordingControl.class);
+  private static final long timeoutMillis = Long.getLong("agent-lib.jmx.timeout-millis", 10_000);
+
+  private RecordingControl() {}
+
+  /** Registers the MBean with the platform MBean server. */
+  static void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(new RecordingControl(), new ObjectName(objectName));
+    } catch (JMException e) {
+      logger.warn("Failed to register the recording control MBean.", e);
+    }
+  }
+
+  @Override
+  public boolean isRecording() {
+    return RecordingSites.isEnabled();
+  }
+
+  @Override
+  public String getTraceFile() {
+    return OMJAgentLib.getTraceFile().toString();
+  }
+
+  @Override
+  public void pause() {
+    RecordingSites.setEnabled(false);
+  }
+
+  @Override
+  public void resume() {
+    RecordingSites.setEnabled(true);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    await(OMJAgentLib.requestFlush());
+  }
+
+  @Override
+  public String rotate() throws IOException {
+    return await(OMJAgentLib.requestRotate()).toString();
+  }
+
+  private static Path await(final Future<Path> request) throws IOException {
+    try {
+      return request.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for the trace processor.", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the trace processor.", e);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.io.IOException;
+
+/**
+ * Controls recording at runtime over JMX. Registered with the platform MBean server under {@link
+ * RecordingControl#objectName}.
+ */
+public interface RecordingControlMBean {
+
+  /** @return True if traces are being recorded. */
+  boolean isRecording();
+
+  /** @return The path of the trace file traces are currently written to. */
+  String getTraceFile();
+
+  /** Stops recording traces until {@link #resume()} is called. */
+  void pause();
+
+  /** Starts recording traces again after {@link #pause()}. */
+  void resume();
+
+  /**
+   * Writes every trace recorded so far to the trace file and flushes it.
+   *
+   * @throws IOException If the trace file could not be flushed.
+   */
+  void flush() throws IOException;
+
+  /**
+   * Flushes and closes the trace file, then writes the following traces to a new trace file.
+   *
+   * @return The path of the new trace file.
+   * @throws IOException If the trace file could not be rotated.
+   */
+  String rotate() throws IOException;
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Links the {@code invokedynamic} recording sites the agent emits when it is configured to emit
+ * switchable sites. Each site calls the {@link OMJAgentLib} or {@link RecordingContext} method with
+ * the site's name while recording is enabled. While recording is disabled, each site is linked to a
+ * no-op instead, which the JIT compiles away along with the arguments computed for it, except that
+ * array stores still store into the array.
+ *
+ * <p>Sites with the same name and type do the same thing, so they share one {@link
+ * MutableCallSite}. Enabling or disabling recording relinks every shared call site. Classes
+ * instrumented without switchable sites call the agent lib directly, so while recording is disabled
+ * their traces are discarded when they are committed to the {@link TraceBuffer} instead.
+ */
+public final class RecordingSites {
+
+  private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+  private static final Map<String, Site> sites = new HashMap<>();
+  private static volatile boolean enabled =
+      Boolean.parseBoolean(System.getProperty("agent-lib.recording-enabled", "true"));
+
+  private RecordingSites() {}
+
+  /**
+   * The bootstrap method of the recording sites.
+   *
+   * @param callerLookup The lookup of the instrumented class. The targets are public, so it is not
+   *     used.
+   * @param name The name of the {@link OMJAgentLib} or {@link RecordingContext} method to call.
+   * @param type The type of the site. The first parameter of sites that call a {@link
+   *     RecordingContext} method is the context. The last parameter of sites that record a store is
+   *     the context.
+   * @return The call site.
+   */
+  public static synchronized CallSite bootstrap(
+      final MethodHandles.Lookup callerLookup, final String name, final MethodType type)
+      throws NoSuchMethodException, IllegalAccessException {
+    final var key = name + type.toMethodDescriptorString();
+    var site = sites.get(key);
+    if (site == null) {
+      site = new Site(enabledTarget(name, type), disabledTarget(name, type));
+      site.callSite.setTarget(enabled ? site.enabledTarget : site.disabledTarget);
+      sites.put(key, site);
+    }
+    return site.callSite;
+  }
+
+  /** @return True if recording is enabled. */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Enables or disables recording. Methods with switchable sites that were entered while recording
+   * was disabled do not record until they are entered again.
+   *
+   * @param enabled True to record.
+   */
+  public static synchronized void setEnabled(final boolean enabled) {
+    if (RecordingSites.enabled == enabled) {
+      return;
+    }
+
+    RecordingSites.enabled = enabled;
+    final var callSites = new MutableCallSite[sites.size()];
+    var index = 0;
+    for (final var site : sites.values()) {
+      site.callSite.setTarget(enabled ? site.enabledTarget : site.disabledTarget);
+      callSites[index++] = site.callSite;
+    }
+    MutableCallSite.syncAll(callSites);
+  }
+
+  private static MethodHandle enabledTarget(final String name, final MethodType type)
+      throws NoSuchMethodException, IllegalAccessException {
+    final int lastParameter = type.parameterCount() - 1;
+    if (lastParameter >= 0 && type.parameterType(lastParameter) == RecordingContext.class) {
+      // The context is null if the method was entered while recording was disabled, in which case
+      // the store is not recorded
+      final var isNull =
+          MethodHandles.dropArguments(
+              lookup.findStatic(
+                  RecordingSites.class,
+                  "isNull",
+                  MethodType.methodType(boolean.class, RecordingContext.class)),
+              0,
+              type.dropParameterTypes(lastParameter, lastParameter + 1).parameterList());
+      return MethodHandles.guardWithTest(
+          isNull, disabledTarget(name, type), lookup.findStatic(OMJAgentLib.class, name, type));
+    }
+
+    if (type.parameterCount() == 0 || type.parameterType(0) != RecordingContext.class) {
+      return lookup.findStatic(OMJAgentLib.class, name, type);
+    }
+
+    // The context is null if the method was entered while recording was disabled
+    final var isNull =
+        MethodHandles.dropArguments(
+            lookup.findStatic(
+                RecordingSites.class,
+                "isNull",
+                MethodType.methodType(boolean.class, RecordingContext.class)),
+            1,
+            type.dropParameterTypes(0, 1).parameterList());
+    return MethodHandles.guardWithTest(
+        isNull,
+        MethodHandles.empty(type),
+        lookup.findVirtual(RecordingContext.class, name, type.dropParameterTypes(0, 1)));
+  }
+
+  private static MethodHandle disabledTarget(final String name, final MethodType type)
+      throws NoSuchMethodException, IllegalAccessException {
+    if (type.returnType() == RecordingContext.class) {
+      // The call sites and method calls of methods entered while recording is disabled are not
+      // recorded even if recording is enabled before they return
+      return MethodHandles.constant(RecordingContext.class, null);
+    } else if (name.equals("storeBooleanOrByteArray")) {
+      // Array stores are replaced by the recording site, so they still have to store
+      return MethodHandles.dropArguments(
+          lookup.findStatic(
+              RecordingSites.class, "storeBooleanOrByteArray", type.dropParameterTypes(3, 5)),
+          3,
+          int.class,
+          RecordingContext.class);
+    } else if (type.parameterCount() == 5 && type.parameterType(0).isArray()) {
+      return MethodHandles.dropArguments(
+          MethodHandles.arrayElementSetter(type.parameterType(0)),
+          3,
+          int.class,
+          RecordingContext.class);
+    } else {
+      return MethodHandles.empty(type);
+    }
+  }
+
+  private static boolean isNull(final RecordingContext context) {
+    return context == null;
+  }
+
+  private static void storeBooleanOrByteArray(
+      final Object array, final int arrayIndex, final byte value) {
+    if (array instanceof boolean[]) {
+      ((boolean[]) array)[arrayIndex] = value == 1;
+    } else {
+      ((byte[]) array)[arrayIndex] = value;
+    }
+  }
+
+  private static final class Site {
+    private final MutableCallSite callSite;
+    private final MethodHandle enabledTarget;
+    private final MethodHandle disabledTarget;
+
+    private Site(final MethodHandle enabledTarget, final MethodHandle disabledTarget) {
+      this.callSite = new MutableCallSite(enabledTarget.type());
+      this.enabledTarget = enabledTarget;
+      this.disabledTarget = disabledTarget;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.util.Arrays;
+
+/**
+ * Gives each recording site (a store, an array store, or a method call that instrumented code
+ * records) an integer ID when the site's class is instrumented, so that instrumented code only has
+ * to pass the site's ID to the agent lib instead of its class name, line number, and name. The
+ * trace processor thread writes a definition for each new site into the trace file before the first
+ * trace that could refer to it.
+ *
+ * <p>In the table shared by the agent and the agent lib, site {@link #unknownSite} is reserved for
+ * method calls whose call site was not instrumented.
+ */
+public final class SiteTable {
+
+  /** The site of a method call from code that was not instrumented. */
+  static final int unknownSite = 0;
+
+  private static final SiteTable instance = create();
+
+  private final StringDictionary stringDictionary;
+
+  /** The string ID of each site's class name. Only written while holding this table's lock. */
+  private volatile int[] classNameIds = new int[64];
+
+  /** Each site's line number. Only written while holding this table's lock. */
+  private volatile int[] lineNumbers = new int[64];
+
+  /**
+   * The string ID of each site's name: the variable stored into, the method called, or the empty
+   * string for array stores. Only written while holding this table's lock.
+   */
+  private volatile int[] nameIds = new int[64];
+
+  /** The number of IDs given out. Only written while holding this table's lock. */
+  private volatile int size = 0;
+
+  /** @param stringDictionary The dictionary to give the sites' strings IDs from. */
+  SiteTable(final StringDictionary stringDictionary) {
+    this.stringDictionary = stringDictionary;
+  }
+
+  /** @return The site table shared by the agent and the agent lib. */
+  public static SiteTable getInstance() {
+    return instance;
+  }
+
+  /**
+   * @return A new site table that is not shared with the agent lib, for registering the sites of
+   *     classes that are not loaded into this JVM.
+   */
+  public static SiteTable create() {
+    final var siteTable = new SiteTable(new StringDictionary());
+    siteTable.registerSite("", 0, "");
+    return siteTable;
+  }
+
+  /**
+   * Gives a recording site the next ID.
+   *
+   * @param className The name of the class the site is in.
+   * @param lineNumber The closest line number of the site.
+   * @param name The name of the variable stored into or of the method called, or the empty string
+   *     for array stores.
+   * @return The site's ID.
+   */
+  public synchronized int registerSite(
+      final String className, final int lineNumber, final String name) {
+    // Give the strings their IDs before publishing the site so that a thread that sees the site
+    // also sees the strings
+    final int classNameId = stringDictionary.idOf(className);
+    final int nameId = stringDictionary.idOf(name);
+
+    final int id = size;
+    if (id == classNameIds.length) {
+      classNameIds = Arrays.copyOf(classNameIds, id * 2);
+      lineNumbers = Arrays.copyOf(lineNumbers, id * 2);
+      nameIds = Arrays.copyOf(nameIds, id * 2);
+    }
+    classNameIds[id] = classNameId;
+    lineNumbers[id] = lineNumber;
+    nameIds[id] = nameId;
+    size = id + 1;
+    return id;
+  }
+
+  /**
+   * Every site with an ID less than the size can be read. Instrumented code can only run once its
+   * class has been instrumented, so a thread that sees a record containing a site ID also sees a
+   * size that includes it.
+   *
+   * @return The number of IDs given out.
+   */
+  int size() {
+    return size;
+  }
+
+  /** @return The dictionary the sites' strings are given IDs from. */
+  StringDictionary getStringDictionary() {
+    return stringDictionary;
+  }
+
+  /**
+   * @param id The ID of a site. Must be less than {@link #size()}.
+   * @return The string ID of the site's class name.
+   */
+  int getClassNameId(final int id) {
+    return classNameIds[id];
+  }
+
+  /**
+   * @param id The ID of a site. Must be less than {@link #size()}.
+   * @return The site's line number.
+   */
+  int getLineNumber(final int id) {
+    return lineNumbers[id];
+  }
+
+  /**
+   * @param id The ID of a site. Must be less than {@link #size()}.
+   * @return The string ID of the site's name.
+   */
+  int getNameId(final int id) {
+    return nameIds[id];
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives each distinct string written into a trace (class, method, variable, and type names) a
+ * small integer ID so that traces can refer to the string by its ID instead of repeating it. IDs
+ * are given out in order starting from zero.
+ *
+ * <p>Application threads look up IDs while recording traces. Looking up a string that already has
+ * an ID does not lock or allocate. The trace processor thread writes a definition for each new ID
+ * into the trace file before the first trace that could refer to it.
+ */
+final class StringDictionary {
+
+  private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+  /** The string with each ID. Only written while holding this dictionary's lock. */
+  private volatile String[] strings = new String[64];
+
+  /** The number of IDs given out. Only written while holding this dictionary's lock. */
+  private volatile int size = 0;
+
+  /**
+   * @param string The string.
+   * @return The ID of the string. The string is given the next ID if it does not have one yet.
+   */
+  int idOf(final String string) {
+    final Integer id = ids.get(string);
+    if (id != null) {
+      return id;
+    }
+    return define(string);
+  }
+
+  /**
+   * The string with every ID less than the size can be read with {@link #get(int)}. The size is
+   * published before an ID is, so a thread that sees a record containing an ID also sees a size
+   * that includes it.
+   *
+   * @return The number of IDs given out.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param id The ID of a string. Must be less than {@link #size()}.
+   * @return The string with that ID.
+   */
+  String get(final int id) {
+    return strings[id];
+  }
+
+  private synchronized int define(final String string) {
+    final Integer existingId = ids.get(string);
+    if (existingId != null) {
+      return existingId;
+    }
+
+    final int id = size;
+    if (id == strings.length) {
+      strings = Arrays.copyOf(strings, id * 2);
+    }
+    strings[id] = string;
+    size = id + 1;
+    ids.put(string, id);
+    return id;
+  }
+
+  /**
+   * Writes an unsigned LEB128 varint: seven bits at a time starting from the least significant
+   * bits, with the high bit of each byte set if more bytes follow.
+   *
+   * @param outputStream The stream to write to.
+   * @param value The value to write. Treated as unsigned.
+   * @throws IOException From writing to the stream.
+   */
+  static void writeVarInt(final OutputStream outputStream, final int value) throws IOException {
+    int remaining = value;
+    while ((remaining & ~0x7F) != 0) {
+      outputStream.write((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    outputStream.write(remaining);
+  }
+}
@@ -21,7 +21,5 @@ import java.io.OutputStream;
 
 public interface Trace {
 
-  long getIndex();
-
   void serialize(final OutputStream outputStream) throws IOException;
 }
@@ -0,0 +1,385 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import com.octogonapus.omj.util.SimpleTypeUtil;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A reusable, per-thread buffer that a single trace record is encoded into before it is committed
+ * to the thread's {@link TraceRing}. The buffer only grows, so once it is large enough for the
+ * biggest record a thread records, encoding a record allocates nothing.
+ *
+ * <p>This is also an {@link OutputStream} so that traces which serialize themselves (i.e., {@link
+ * MethodTrace}) can be written into it.
+ *
+ * <p>Records get their index when they are committed, so that a record the {@link OverflowPolicy}
+ * drops never takes an index. Every record starts with an 8-byte placeholder for the index.
+ *
+ * <p>When records are dropped, the next record committed is preceded by a gap record that says how
+ * many were dropped. The ring keeps the count so that the trace processor can report records
+ * dropped after the last record a thread commits (see {@link TraceRing#takeDroppedTraces()}).
+ *
+ * <p>Records committed while recording is disabled (see {@link RecordingSites#isEnabled()}) are
+ * discarded without taking an index.
+ *
+ * <p>Type names are written as the varint ID the {@link StringDictionary} gives them instead of as
+ * strings. The class, line number, and name of the site a trace was recorded at are written as the
+ * varint ID the {@link SiteTable} gives the site.
+ */
+final class TraceBuffer extends OutputStream {
+
+  /** The type of a gap record: the index, this type, then the number of dropped traces. */
+  static final byte gapRecordType = 0x4;
+
+  static final int gapRecordLength = Long.BYTES + 1 + Long.BYTES;
+  private static final int blockSpinTries = 100;
+  private static final int blockYieldTries = 100;
+  private static final long blockSleepNanos = 10_000;
+  private final TraceRing ring;
+  private final WaitStrategy waitStrategy;
+  private final AtomicLong traceCounter;
+  private final StringDictionary stringDictionary;
+  private final OverflowPolicy overflowPolicy;
+  private final int sampleRate;
+  private final BooleanSupplier isProcessorRunning;
+  private final byte[] gapRecord = new byte[gapRecordLength];
+  private byte[] buffer = new byte[256];
+  private int count = 0;
+
+  /**
+   * True if traces were dropped since the last record was committed. The ring keeps the number of
+   * them.
+   */
+  private boolean hasDroppedTraces = false;
+
+  private int sampleCount = 0;
+
+  /**
+   * Creates a buffer whose ring is drained for as long as the buffer is used.
+   *
+   * @param ring The ring to commit records to.
+   * @param waitStrategy The strategy to signal when a record is committed.
+   * @param traceCounter The counter to take each committed record's index from.
+   * @param stringDictionary The dictionary to look up the IDs of names in.
+   * @param overflowPolicy What to do with a record when the ring is full.
+   * @param sampleRate Keep one in this many records when sampling with {@link
+   *     OverflowPolicy#SAMPLE}.
+   */
+  TraceBuffer(
+      final TraceRing ring,
+      final WaitStrategy waitStrategy,
+      final AtomicLong traceCounter,
+      final StringDictionary stringDictionary,
+      final OverflowPolicy overflowPolicy,
+      final int sampleRate) {
+    this(
+        ring, waitStrategy, traceCounter, stringDictionary, overflowPolicy, sampleRate, () -> true);
+  }
+
+  /**
+   * @param ring The ring to commit records to.
+   * @param waitStrategy The strategy to signal when a record is committed.
+   * @param traceCounter The counter to take each committed record's index from.
+   * @param stringDictionary The dictionary to look up the IDs of names in.
+   * @param overflowPolicy What to do with a record when the ring is full.
+   * @param sampleRate Keep one in this many records when sampling with {@link
+   *     OverflowPolicy#SAMPLE}.
+   * @param isProcessorRunning False once nothing will drain the ring anymore.
+   */
+  TraceBuffer(
+      final TraceRing ring,
+      final WaitStrategy waitStrategy,
+      final AtomicLong traceCounter,
+      final StringDictionary stringDictionary,
+      final OverflowPolicy overflowPolicy,
+      final int sampleRate,
+      final BooleanSupplier isProcessorRunning) {
+    if (sampleRate <= 0) {
+      throw new IllegalArgumentException("sampleRate must be positive, got: " + sampleRate);
+    }
+
+    this.ring = ring;
+    this.waitStrategy = waitStrategy;
+    this.traceCounter = traceCounter;
+    this.stringDictionary = stringDictionary;
+    this.overflowPolicy = overflowPolicy;
+    this.sampleRate = sampleRate;
+    this.isProcessorRunning = isProcessorRunning;
+    gapRecord[Long.BYTES] = gapRecordType;
+  }
+
+  @Override
+  public void write(final int b) {
+    ensureCapacity(count + 1);
+    buffer[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) {
+    ensureCapacity(count + len);
+    System.arraycopy(b, off, buffer, count, len);
+    count += len;
+  }
+
+  /**
+   * Gives the record written so far the next index and copies it into the ring, unless recording
+   * is disabled or the overflow policy drops it. Resets this buffer for the next record either way.
+   */
+  void commit() {
+    if (!RecordingSites.isEnabled()) {
+      // Discarded rather than dropped, so no gap record is written for it
+      count = 0;
+      return;
+    }
+
+    if (overflowPolicy == OverflowPolicy.UNBOUNDED) {
+      publish(buffer, count);
+      waitStrategy.signal();
+    } else if (shouldSample() && makeRoom()) {
+      if (hasDroppedTraces) {
+        hasDroppedTraces = false;
+
+        // The trace processor may have reported them already
+        final long droppedTraces = ring.takeDroppedTraces();
+        if (droppedTraces != 0) {
+          writeLong(gapRecord, Long.BYTES + 1, droppedTraces);
+          publish(gapRecord, gapRecordLength);
+        }
+      }
+
+      publish(buffer, count);
+      waitStrategy.signal();
+    } else {
+      ring.countDroppedTrace();
+      hasDroppedTraces = true;
+    }
+
+    count = 0;
+  }
+
+  /** Discards the record written so far. */
+  void reset() {
+    count = 0;
+  }
+
+  void writeStoreTraceHeader(final int siteId) {
+    // The index is filled in by commit
+    write8Bytes(0);
+
+    write(0x1);
+
+    writeVarInt(siteId);
+  }
+
+  void writeArrayStoreTraceHeader(final int siteId, final Object array, final int arrayIndex) {
+    // The index is filled in by commit
+    write8Bytes(0);
+
+    write(0x3);
+
+    writeVarInt(siteId);
+    write4Bytes(System.identityHashCode(array));
+    write4Bytes(arrayIndex);
+  }
+
+  void write4Bytes(final int value) {
+    ensureCapacity(count + 4);
+    buffer[count++] = (byte) (value & 0xFF);
+    buffer[count++] = (byte) ((value >> 8) & 0xFF);
+    buffer[count++] = (byte) ((value >> 16) & 0xFF);
+    buffer[count++] = (byte) ((value >> 24) & 0xFF);
+  }
+
+  void write8Bytes(final long value) {
+    ensureCapacity(count + 8);
+    buffer[count++] = (byte) (value & 0xFF);
+    buffer[count++] = (byte) ((value >> 8) & 0xFF);
+    buffer[count++] = (byte) ((value >> 16) & 0xFF);
+    buffer[count++] = (byte) ((value >> 24) & 0xFF);
+    buffer[count++] = (byte) ((value >> 32) & 0xFF);
+    buffer[count++] = (byte) ((value >> 40) & 0xFF);
+    buffer[count++] = (byte) ((value >> 48) & 0xFF);
+    buffer[count++] = (byte) ((value >> 56) & 0xFF);
+  }
+
+  /**
+   * Writes the ID of a string.
+   *
+   * @param string The string.
+   */
+  void writeStringId(final String string) {
+    writeVarInt(stringDictionary.idOf(string));
+  }
+
+  /**
+   * Writes an unsigned LEB128 varint. See {@link StringDictionary#writeVarInt(OutputStream, int)}.
+   *
+   * @param value The value to write. Treated as unsigned.
+   */
+  void writeVarInt(final int value) {
+    int remaining = value;
+    ensureCapacity(count + 5);
+    while ((remaining & ~0x7F) != 0) {
+      buffer[count++] = (byte) ((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    buffer[count++] = (byte) remaining;
+  }
+
+  void writeObject(final Object value) {
+    if (value == null) {
+      writeStringId(SimpleTypeUtil.nullClassName);
+      return;
+    }
+
+    writeStringId(value.getClass().getName());
+    if (value instanceof String) {
+      // Reserve the length, encode the string, then fill in the length. This avoids
+      // String#getBytes, which allocates.
+      final int lengthPosition = count;
+      write4Bytes(0);
+      writeUtf8((String) value);
+      final int length = count - lengthPosition - 4;
+      buffer[lengthPosition] = (byte) (length & 0xFF);
+      buffer[lengthPosition + 1] = (byte) ((length >> 8) & 0xFF);
+      buffer[lengthPosition + 2] = (byte) ((length >> 16) & 0xFF);
+      buffer[lengthPosition + 3] = (byte) ((length >> 24) & 0xFF);
+    } else {
+      write4Bytes(System.identityHashCode(value));
+    }
+  }
+
+  /**
+   * @return False if the record should be dropped because the ring is filling up and this is not
+   *     one of the records that {@link OverflowPolicy#SAMPLE} keeps.
+   */
+  private boolean shouldSample() {
+    if (overflowPolicy != OverflowPolicy.SAMPLE || !ring.isMoreThanHalfFull()) {
+      return true;
+    }
+    return ++sampleCount % sampleRate == 0;
+  }
+
+  /**
+   * Makes room in the ring for the record and the gap record that has to come before it, if any.
+   *
+   * @return False if the record should be dropped.
+   */
+  private boolean makeRoom() {
+    final int length = hasDroppedTraces ? count + TraceRing.frameLength(gapRecordLength) : count;
+    if (!ring.canHold(length)) {
+      return false;
+    }
+
+    switch (overflowPolicy) {
+      case BLOCK:
+        // The trace processor thread does not wait while there are records in the ring, so there
+        // is no need to signal it
+        for (int tries = 0; !ring.hasRoomFor(length); tries++) {
+          if (tries < blockSpinTries) {
+            Thread.onSpinWait();
+          } else if (!isProcessorRunning.getAsBoolean()) {
+            // Nothing will make room anymore, so waiting would block this thread forever
+            return false;
+          } else if (tries < blockSpinTries + blockYieldTries) {
+            Thread.yield();
+          } else {
+            LockSupport.parkNanos(blockSleepNanos);
+          }
+        }
+        return true;
+
+      case DROP_OLDEST:
+        ring.dropOldestRecords(length);
+        return true;
+
+      default:
+        return ring.hasRoomFor(length);
+    }
+  }
+
+  /**
+   * Gives a record the next index and adds it to the ring.
+   *
+   * <p>This is the only place that threads contend when recording, but the index has to come from
+   * a counter shared by every thread. The index is the order of the records across threads, which
+   * a per-thread sequence can't give without a merge key the trace format does not have. Handing
+   * each thread a block of indices would break that order, and the {@link TraceSerializer} writes
+   * records in index order, so it would wait forever on the unused indices of a thread that stops
+   * recording. Taking the index here rather than when the record is started at least keeps dropped
+   * and discarded records from contending on it.
+   *
+   * @param record The buffer holding the record, which starts with the placeholder for its index.
+   * @param length The length of the record.
+   */
+  private void publish(final byte[] record, final int length) {
+    writeLong(record, 0, traceCounter.getAndIncrement());
+    ring.add(record, 0, length);
+  }
+
+  private static void writeLong(final byte[] buffer, final int offset, final long value) {
+    for (int i = 0; i < Long.BYTES; i++) {
+      buffer[offset + i] = (byte) (value >> (i * 8));
+    }
+  }
+
+  /**
+   * Encodes a string as UTF-8 without allocating.
+   *
+   * @param string The string to encode.
+   */
+  private void writeUtf8(final String string) {
+    final int length = string.length();
+    // Every char takes at most 3 bytes (a surrogate pair takes 4 bytes for 2 chars)
+    ensureCapacity(count + length * 3);
+    for (int i = 0; i < length; i++) {
+      final char c = string.charAt(i);
+      if (c < 0x80) {
+        buffer[count++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[count++] = (byte) (0xC0 | (c >> 6));
+        buffer[count++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < length
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+        buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        // Unpaired surrogates are replaced the same way String#getBytes replaces them
+        buffer[count++] = '?';
+      } else {
+        buffer[count++] = (byte) (0xE0 | (c >> 12));
+        buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buffer[count++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  private void ensureCapacity(final int capacity) {
+    if (capacity > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+  }
+}
@@ -0,0 +1,454 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An unbounded, lock-free, single-producer single-consumer queue of serialized trace records. Each
+ * application thread records into its own ring so that recording a trace never contends with other
+ * application threads. The trace processor thread is the only consumer.
+ *
+ * <p>The ring is made of circular byte segments. Each record is stored as a 4-byte length followed
+ * by the record's bytes, padded to a multiple of 4 bytes. A record never wraps around the end of a
+ * segment; if it does not fit in the space left before the end, the producer writes a skip marker
+ * and continues at the start. When a segment is full, the producer links a new segment and
+ * continues in that one. The consumer follows the link once it has drained everything the producer
+ * wrote into the old segment. While the consumer keeps up, adding a record allocates nothing.
+ *
+ * <p>The ring can also be used as a bounded queue by checking {@link #hasRoomFor(int)} (or making
+ * room with {@link #dropOldestRecords(int)}) before each {@link #add(byte[], int, int)}. A ring
+ * used that way never grows past its first segment.
+ */
+final class TraceRing {
+
+  /** Receives the records drained from a ring. */
+  interface RecordConsumer {
+
+    /**
+     * Accepts one record. The bytes are only valid until this method returns.
+     *
+     * @param buffer The buffer holding the record.
+     * @param offset The offset of the first byte of the record.
+     * @param length The length of the record.
+     */
+    void accept(byte[] buffer, int offset, int length);
+
+    /**
+     * Accepts the indices of records the producer dropped from the ring before they were drained.
+     *
+     * @param indices The indices of the dropped records, in the order they were added.
+     * @param droppedTraces The number of traces the dropped records stood for. This is more than
+     *     the number of indices if some of the dropped records were gap records.
+     */
+    void acceptDropped(long[] indices, long droppedTraces);
+  }
+
+  private static final int skipMarker = -1;
+
+  private final Thread owner;
+  private final int segmentCapacity;
+
+  /** Records dropped by {@link #dropOldestRecords(int)} that the consumer has not seen yet. */
+  private final Queue<DroppedRecords> droppedRecords = new ConcurrentLinkedQueue<>();
+
+  /**
+   * The number of traces the producer dropped instead of adding that no gap record has been added
+   * for yet. Either the producer adds one before its next record or the consumer reports them.
+   */
+  private final AtomicLong unreportedDroppedTraces = new AtomicLong();
+
+  /** The segment the producer is writing into. Only accessed by the producer. */
+  private Segment producerSegment;
+
+  /** The segment the consumer is reading from. Only accessed by the consumer. */
+  private Segment consumerSegment;
+
+  /**
+   * @param owner The thread that will produce into this ring.
+   * @param segmentCapacity The number of bytes each segment can hold. Rounded up to a power of two.
+   */
+  TraceRing(final Thread owner, final int segmentCapacity) {
+    this.owner = owner;
+    this.segmentCapacity = roundUpToPowerOfTwo(Math.max(segmentCapacity, 8));
+    producerSegment = new Segment(this.segmentCapacity);
+    consumerSegment = producerSegment;
+  }
+
+  /**
+   * Copies a record into the ring. Must only be called by the producer.
+   *
+   * @param record The buffer holding the record.
+   * @param offset The offset of the first byte of the record.
+   * @param length The length of the record.
+   */
+  void add(final byte[] record, final int offset, final int length) {
+    // This only fails if the caller did not make room first, so a bounded ring never grows
+    if (!producerSegment.offer(record, offset, length)) {
+      // Make sure a record larger than a whole segment still fits in the next one
+      final var nextSegment =
+          new Segment(Math.max(segmentCapacity, roundUpToPowerOfTwo(frameLength(length))));
+      nextSegment.offer(record, offset, length);
+
+      // Publishing the next segment happens-after every write into the current segment, so the
+      // consumer will see all of them once it sees the link.
+      producerSegment.next = nextSegment;
+      producerSegment = nextSegment;
+    }
+  }
+
+  /**
+   * Must only be called by the producer.
+   *
+   * @param length The length of a record.
+   * @return True if the record can be added without growing the ring.
+   */
+  boolean hasRoomFor(final int length) {
+    return producerSegment.hasRoomFor(length);
+  }
+
+  /**
+   * @param length The length of a record.
+   * @return True if the record could ever be added without growing the ring. Records longer than
+   *     half a segment cannot, because they might need to skip the rest of the segment first.
+   */
+  boolean canHold(final int length) {
+    return frameLength(length) <= segmentCapacity / 2;
+  }
+
+  /**
+   * Must only be called by the producer.
+   *
+   * @return True if more than half of the ring is used.
+   */
+  boolean isMoreThanHalfFull() {
+    return producerSegment.isMoreThanHalfFull();
+  }
+
+  /**
+   * Drops the oldest records that the consumer has not claimed yet until there is room for a
+   * record. The indices of the dropped records are given to the consumer on its next {@link
+   * #drain(RecordConsumer)}. If the consumer is in the middle of draining the records that are in
+   * the way, this waits for it to finish instead of dropping anything. Must only be called by the
+   * producer.
+   *
+   * @param length The length of the record to make room for. Must fit according to {@link
+   *     #canHold(int)}.
+   */
+  void dropOldestRecords(final int length) {
+    final var dropped = producerSegment.dropOldestRecords(length);
+    if (dropped != null) {
+      droppedRecords.add(dropped);
+    }
+  }
+
+  /** Counts a trace that the producer dropped instead of adding. */
+  void countDroppedTrace() {
+    unreportedDroppedTraces.incrementAndGet();
+  }
+
+  /**
+   * Takes the count of the traces the producer dropped instead of adding, so that they are reported
+   * once by whoever takes them. The producer takes them to add a gap record before its next record.
+   * The consumer takes them to report them when that record might never come.
+   *
+   * @return The number of traces dropped since the count was last taken.
+   */
+  long takeDroppedTraces() {
+    return unreportedDroppedTraces.getAndSet(0);
+  }
+
+  /**
+   * Removes every record that is currently visible in the ring. Must only be called by the
+   * consumer.
+   *
+   * @param consumer Given each record in the order it was added, then any records that were
+   *     dropped.
+   * @return The number of records drained plus the number of times records were dropped.
+   */
+  int drain(final RecordConsumer consumer) {
+    int drained = drainSegments(consumer);
+
+    DroppedRecords dropped;
+    while ((dropped = droppedRecords.poll()) != null) {
+      consumer.acceptDropped(dropped.indices, dropped.droppedTraces);
+      drained++;
+    }
+
+    return drained;
+  }
+
+  private int drainSegments(final RecordConsumer consumer) {
+    int drained = 0;
+    while (true) {
+      drained += consumerSegment.drain(consumer);
+
+      final Segment nextSegment = consumerSegment.next;
+      if (nextSegment == null) {
+        return drained;
+      }
+
+      // The producer never writes into a segment after linking the next one, so whatever is left
+      // in this segment is all that will ever be in it.
+      drained += consumerSegment.drain(consumer);
+      consumerSegment = nextSegment;
+    }
+  }
+
+  /**
+   * Must only be called by the consumer.
+   *
+   * @return True if there are no records in the ring that the consumer can see.
+   */
+  boolean isEmpty() {
+    return consumerSegment.isEmpty() && consumerSegment.next == null && droppedRecords.isEmpty();
+  }
+
+  /** @return True if the thread producing into this ring has terminated. */
+  boolean isOwnerTerminated() {
+    return owner.getState() == Thread.State.TERMINATED;
+  }
+
+  /**
+   * @param length The length of a record.
+   * @return The number of bytes the record takes up in a segment.
+   */
+  static int frameLength(final int length) {
+    return (Integer.BYTES + length + 3) & ~3;
+  }
+
+  private static int roundUpToPowerOfTwo(final int value) {
+    if (value <= 1) {
+      return 1;
+    }
+    return Integer.highestOneBit(value - 1) << 1;
+  }
+
+  private static int readInt(final byte[] buffer, final int offset) {
+    return (buffer[offset] & 0xFF)
+        | (buffer[offset + 1] & 0xFF) << 8
+        | (buffer[offset + 2] & 0xFF) << 16
+        | (buffer[offset + 3] & 0xFF) << 24;
+  }
+
+  private static void writeInt(final byte[] buffer, final int offset, final int value) {
+    buffer[offset] = (byte) value;
+    buffer[offset + 1] = (byte) (value >> 8);
+    buffer[offset + 2] = (byte) (value >> 16);
+    buffer[offset + 3] = (byte) (value >> 24);
+  }
+
+  private static long readLong(final byte[] buffer, final int offset) {
+    return (readInt(buffer, offset) & 0xFFFFFFFFL) | (long) readInt(buffer, offset + 4) << 32;
+  }
+
+  private static final class DroppedRecords {
+
+    private final long[] indices;
+    private final long droppedTraces;
+
+    private DroppedRecords(final long[] indices, final long droppedTraces) {
+      this.indices = indices;
+      this.droppedTraces = droppedTraces;
+    }
+  }
+
+  private static final class Segment {
+
+    private final byte[] buffer;
+    private final int mask;
+
+    /**
+     * The next position that has not been claimed. The consumer claims records to drain them and
+     * the producer claims records to drop them, so both advance this with a CAS.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Everything before this position has been drained or dropped, so the producer may overwrite
+     * it. Trails {@link #head} while the consumer is draining the records it claimed.
+     */
+    private final AtomicLong released = new AtomicLong();
+
+    /** The next position the producer will write. Written by the producer. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** The producer's own copy of {@link #tail}. */
+    private long producerIndex = 0;
+
+    /**
+     * The producer's last read of {@link #released}. Lets the producer skip most volatile reads.
+     */
+    private long cachedReleased = 0;
+
+    private volatile Segment next = null;
+
+    private Segment(final int capacity) {
+      buffer = new byte[capacity];
+      mask = capacity - 1;
+    }
+
+    private boolean offer(final byte[] record, final int offset, final int length) {
+      if (!hasRoomFor(length)) {
+        return false;
+      }
+
+      final int position = (int) producerIndex & mask;
+      final int requiredLength = requiredLength(length);
+
+      int writePosition = position;
+      if (requiredLength != frameLength(length)) {
+        writeInt(buffer, position, skipMarker);
+        writePosition = 0;
+      }
+
+      writeInt(buffer, writePosition, length);
+      System.arraycopy(record, offset, buffer, writePosition + Integer.BYTES, length);
+
+      producerIndex += requiredLength;
+      tail.lazySet(producerIndex);
+      return true;
+    }
+
+    /**
+     * @param length The length of a record.
+     * @return The number of bytes the producer's next write of the record would take up, including
+     *     skipping the rest of the buffer if the record does not fit before the end.
+     */
+    private int requiredLength(final int length) {
+      // Frames are 4-byte aligned, so there is always either no room at all or room for the skip
+      // marker before the end of the buffer.
+      final int frameLength = frameLength(length);
+      final int spaceBeforeEnd = buffer.length - ((int) producerIndex & mask);
+      return frameLength > spaceBeforeEnd ? spaceBeforeEnd + frameLength : frameLength;
+    }
+
+    private boolean hasRoomFor(final int length) {
+      final int requiredLength = requiredLength(length);
+      if (buffer.length - (producerIndex - cachedReleased) < requiredLength) {
+        cachedReleased = released.get();
+        return buffer.length - (producerIndex - cachedReleased) >= requiredLength;
+      }
+      return true;
+    }
+
+    private boolean isMoreThanHalfFull() {
+      if (producerIndex - cachedReleased > buffer.length / 2) {
+        cachedReleased = released.get();
+        return producerIndex - cachedReleased > buffer.length / 2;
+      }
+      return false;
+    }
+
+    private DroppedRecords dropOldestRecords(final int length) {
+      final int requiredLength = requiredLength(length);
+
+      long[] indices = null;
+      int numberOfIndices = 0;
+      long droppedTraces = 0;
+      long claimedHead;
+      long newHead;
+      while (true) {
+        claimedHead = head.get();
+        newHead = claimedHead;
+        numberOfIndices = 0;
+        droppedTraces = 0;
+
+        // Everything the producer wrote is published, so the records up to producerIndex are all
+        // visible to the consumer and can be claimed.
+        while (buffer.length - (producerIndex - newHead) < requiredLength) {
+          final int position = (int) newHead & mask;
+          final int recordLength = readInt(buffer, position);
+          if (recordLength == skipMarker) {
+            newHead += buffer.length - position;
+            continue;
+          }
+
+          if (indices == null) {
+            indices = new long[8];
+          } else if (numberOfIndices == indices.length) {
+            indices = Arrays.copyOf(indices, indices.length * 2);
+          }
+
+          final int recordPosition = position + Integer.BYTES;
+          indices[numberOfIndices++] = readLong(buffer, recordPosition);
+          droppedTraces +=
+              buffer[recordPosition + Long.BYTES] == TraceBuffer.gapRecordType
+                  ? readLong(buffer, recordPosition + Long.BYTES + 1)
+                  : 1;
+          newHead += frameLength(recordLength);
+        }
+
+        if (newHead == claimedHead || head.compareAndSet(claimedHead, newHead)) {
+          break;
+        }
+
+        // The consumer claimed some records in the meantime, so the records to drop changed
+      }
+
+      // The consumer may still be draining the records before the ones claimed here (or the ones
+      // in the way, if nothing was claimed). Their space cannot be reused until it is done.
+      while (released.get() < claimedHead) {
+        Thread.onSpinWait();
+      }
+      cachedReleased = released.accumulateAndGet(newHead, Math::max);
+
+      if (numberOfIndices == 0) {
+        return null;
+      }
+      return new DroppedRecords(Arrays.copyOf(indices, numberOfIndices), droppedTraces);
+    }
+
+    private boolean isEmpty() {
+      return head.get() == tail.get();
+    }
+
+    private int drain(final RecordConsumer consumer) {
+      long currentHead;
+      long currentTail;
+      do {
+        currentHead = head.get();
+        currentTail = tail.get();
+        if (currentHead == currentTail) {
+          return 0;
+        }
+      } while (!head.compareAndSet(currentHead, currentTail));
+
+      int drained = 0;
+      long index = currentHead;
+      while (index < currentTail) {
+        final int position = (int) index & mask;
+        final int length = readInt(buffer, position);
+        if (length == skipMarker) {
+          index += buffer.length - position;
+        } else {
+          consumer.accept(buffer, position + Integer.BYTES, length);
+          index += frameLength(length);
+          drained++;
+        }
+      }
+
+      // The producer only claims records after this claim once this is released, so this never
+      // moves released backwards
+      released.lazySet(currentTail);
+      return drained;
+    }
+  }
+}
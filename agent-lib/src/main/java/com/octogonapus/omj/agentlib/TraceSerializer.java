@@ -0,0 +1,302 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the records drained from the {@link TraceRing}s to the trace file in index order. Records
+ * that arrive in order are written straight from the ring. Records that arrive early are copied and
+ * held until every record before them has been written.
+ *
+ * <p>Early records are held in a sliding window of slots. The record with index {@code i} is held
+ * in slot {@code i % windowSize}, so holding a record and releasing the next one are both constant
+ * time, and the slots' buffers are reused. Records too far ahead to fit in the window (i.e.,
+ * because one thread has fallen far behind the others) overflow into a map until the window reaches
+ * them.
+ *
+ * <p>Records the producer dropped from a ring still took an index. The first index of each run of
+ * dropped records is used for a gap record, and the others are skipped.
+ *
+ * <p>Before each record, a string definition record is written for every ID the {@link
+ * StringDictionary} has given out since the last record, followed by a site definition record for
+ * every ID the {@link SiteTable} has given out. A record can only contain IDs that were given out
+ * before it was drained, so every ID is defined before the first record that uses it.
+ *
+ * <p>The output stream can be switched to a new trace file with {@link #setOutputStream}. Every ID
+ * is defined again in the new file, so each trace file can be read on its own.
+ */
+final class TraceSerializer implements TraceRing.RecordConsumer {
+
+  /**
+   * The type of a string definition record: the index of the record that follows it, this type, the
+   * ID as a varint, then the null-terminated UTF-8 bytes of the string.
+   */
+  static final byte stringDefinitionRecordType = 0x5;
+
+  /**
+   * The type of a site definition record: the index of the record that follows it, this type, the
+   * site ID as a varint, the string ID of the class name as a varint, the line number, then the
+   * string ID of the name as a varint.
+   */
+  static final byte siteDefinitionRecordType = 0x6;
+
+  private static final Logger logger = LoggerFactory.getLogger(TraceSerializer.class);
+  private static final int emptySlot = -1;
+
+  /** The length held in the slot of an index that was dropped and should be skipped. */
+  private static final int skippedSlot = -2;
+
+  /** Held in {@link #overflow} for an index that was dropped and should be skipped. */
+  private static final byte[] skippedRecord = new byte[0];
+
+  private final SiteTable siteTable;
+  private final StringDictionary stringDictionary;
+  private final int windowMask;
+  private final byte[][] slotBuffers;
+
+  /** The length of the record held in each slot, {@link #emptySlot}, or {@link #skippedSlot}. */
+  private final int[] slotLengths;
+
+  private final Map<Long, byte[]> overflow = new HashMap<>();
+  private final byte[] gapRecord = new byte[TraceBuffer.gapRecordLength];
+  private OutputStream os;
+  private int numberOfPendingTraces = 0;
+  private long nextTraceIndex;
+
+  /** The number of strings in the {@link #stringDictionary} that have been defined. */
+  private int numberOfDefinedStrings = 0;
+
+  /** The number of sites in the {@link #siteTable} that have been defined. */
+  private int numberOfDefinedSites = 0;
+
+  /**
+   * @param os The output stream.
+   * @param siteTable The table the records' site IDs come from. The records' string IDs come from
+   *     its dictionary.
+   * @param firstTraceIndex The index of the first trace that will be recorded.
+   * @param windowSize The number of early records that can be held before they overflow. Rounded up
+   *     to a power of two.
+   */
+  TraceSerializer(
+      final OutputStream os,
+      final SiteTable siteTable,
+      final long firstTraceIndex,
+      final int windowSize) {
+    this.os = os;
+    this.siteTable = siteTable;
+    stringDictionary = siteTable.getStringDictionary();
+    nextTraceIndex = firstTraceIndex;
+
+    final int capacity = windowSize <= 1 ? 1 : Integer.highestOneBit(windowSize - 1) << 1;
+    windowMask = capacity - 1;
+    slotBuffers = new byte[capacity][];
+    slotLengths = new int[capacity];
+    Arrays.fill(slotLengths, emptySlot);
+  }
+
+  @Override
+  public void accept(final byte[] buffer, final int offset, final int length) {
+    final long index = readIndex(buffer, offset);
+    if (index == nextTraceIndex) {
+      serializeTrace(buffer, offset, length);
+      serializePendingTraces();
+    } else if (index - nextTraceIndex <= windowMask) {
+      hold(index, buffer, offset, length);
+    } else {
+      overflow.put(index, Arrays.copyOfRange(buffer, offset, offset + length));
+      numberOfPendingTraces++;
+    }
+  }
+
+  @Override
+  public void acceptDropped(final long[] indices, final long droppedTraces) {
+    writeLong(gapRecord, 0, indices[0]);
+    gapRecord[Long.BYTES] = TraceBuffer.gapRecordType;
+    writeLong(gapRecord, Long.BYTES + 1, droppedTraces);
+    accept(gapRecord, 0, gapRecord.length);
+
+    for (int i = 1; i < indices.length; i++) {
+      skip(indices[i]);
+    }
+  }
+
+  /**
+   * Writes the following traces to another output stream. The strings and sites used by those
+   * traces are defined again in it. The old output stream is not flushed or closed.
+   *
+   * @param os The new output stream.
+   */
+  void setOutputStream(final OutputStream os) {
+    this.os = os;
+    numberOfDefinedStrings = 0;
+    numberOfDefinedSites = 0;
+  }
+
+  /** Serializes the run of pending traces that directly follows the last serialized trace. */
+  void serializePendingTraces() {
+    while (numberOfPendingTraces != 0) {
+      final int slot = (int) nextTraceIndex & windowMask;
+      final int length = slotLengths[slot];
+      if (length == skippedSlot) {
+        slotLengths[slot] = emptySlot;
+        numberOfPendingTraces--;
+        nextTraceIndex++;
+      } else if (length != emptySlot) {
+        slotLengths[slot] = emptySlot;
+        numberOfPendingTraces--;
+        serializeTrace(slotBuffers[slot], 0, length);
+      } else if (!overflow.isEmpty()) {
+        final byte[] record = overflow.remove(nextTraceIndex);
+        if (record == null) {
+          return;
+        }
+
+        numberOfPendingTraces--;
+        if (record == skippedRecord) {
+          nextTraceIndex++;
+        } else {
+          serializeTrace(record, 0, record.length);
+        }
+      } else {
+        return;
+      }
+    }
+  }
+
+  /** @return The number of traces waiting for an earlier trace to be serialized. */
+  int getNumberOfPendingTraces() {
+    return numberOfPendingTraces;
+  }
+
+  /** @return The index of the first pending trace, or null if there are no pending traces. */
+  Long getFirstPendingTraceIndex() {
+    for (long index = nextTraceIndex; index <= nextTraceIndex + windowMask; index++) {
+      if (slotLengths[(int) index & windowMask] != emptySlot) {
+        return index;
+      }
+    }
+    return overflow.keySet().stream().min(Long::compare).orElse(null);
+  }
+
+  /** @return The index of the last trace that was serialized. */
+  long getLastTraceIndex() {
+    return nextTraceIndex - 1;
+  }
+
+  private void hold(final long index, final byte[] buffer, final int offset, final int length) {
+    final int slot = (int) index & windowMask;
+    byte[] slotBuffer = slotBuffers[slot];
+    if (slotBuffer == null || slotBuffer.length < length) {
+      slotBuffer = new byte[length];
+      slotBuffers[slot] = slotBuffer;
+    }
+
+    System.arraycopy(buffer, offset, slotBuffer, 0, length);
+    slotLengths[slot] = length;
+    numberOfPendingTraces++;
+  }
+
+  private void skip(final long index) {
+    if (index == nextTraceIndex) {
+      nextTraceIndex++;
+      serializePendingTraces();
+    } else if (index - nextTraceIndex <= windowMask) {
+      slotLengths[(int) index & windowMask] = skippedSlot;
+      numberOfPendingTraces++;
+    } else {
+      overflow.put(index, skippedRecord);
+      numberOfPendingTraces++;
+    }
+  }
+
+  private void serializeTrace(final byte[] buffer, final int offset, final int length) {
+    try {
+      serializeDefinitions();
+      os.write(buffer, offset, length);
+      logger.debug("Serialized trace with index: {}", nextTraceIndex);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    nextTraceIndex++;
+  }
+
+  /**
+   * Writes a definition record for each string in the {@link #stringDictionary} and each site in
+   * the {@link #siteTable} that has not been defined yet.
+   *
+   * @throws IOException From writing to the output stream.
+   */
+  private void serializeDefinitions() throws IOException {
+    // A site's strings get their IDs before the site does, so reading the number of sites first
+    // makes sure every string those sites use is defined before them
+    final int numberOfSites = siteTable.size();
+    final int numberOfStrings = stringDictionary.size();
+
+    while (numberOfDefinedStrings < numberOfStrings) {
+      final int id = numberOfDefinedStrings;
+      writeDefinitionHeader(stringDefinitionRecordType, id);
+      os.write(stringDictionary.get(id).getBytes(StandardCharsets.UTF_8));
+      os.write(0);
+
+      numberOfDefinedStrings++;
+    }
+
+    while (numberOfDefinedSites < numberOfSites) {
+      final int id = numberOfDefinedSites;
+      writeDefinitionHeader(siteDefinitionRecordType, id);
+      StringDictionary.writeVarInt(os, siteTable.getClassNameId(id));
+      final int lineNumber = siteTable.getLineNumber(id);
+      for (int i = 0; i < Integer.BYTES; i++) {
+        os.write((byte) (lineNumber >> (i * 8)));
+      }
+      StringDictionary.writeVarInt(os, siteTable.getNameId(id));
+
+      numberOfDefinedSites++;
+    }
+  }
+
+  private void writeDefinitionHeader(final byte type, final int id) throws IOException {
+    for (int i = 0; i < Long.BYTES; i++) {
+      os.write((byte) (nextTraceIndex >> (i * 8)));
+    }
+    os.write(type);
+    StringDictionary.writeVarInt(os, id);
+  }
+
+  private static long readIndex(final byte[] buffer, final int offset) {
+    long index = 0;
+    for (int i = 7; i >= 0; i--) {
+      index = (index << 8) | (buffer[offset + i] & 0xFF);
+    }
+    return index;
+  }
+
+  private static void writeLong(final byte[] buffer, final int offset, final long value) {
+    for (int i = 0; i < Long.BYTES; i++) {
+      buffer[offset + i] = (byte) (value >> (i * 8));
+    }
+  }
+}
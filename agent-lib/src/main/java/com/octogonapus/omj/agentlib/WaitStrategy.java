@@ -0,0 +1,39 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Decides what the trace processor thread does when it finds no traces to process. Strategies trade
+ * latency (how quickly new traces are picked up) against CPU use while the application is idle.
+ */
+interface WaitStrategy {
+
+  /**
+   * Called by the trace processor thread when it drained no traces.
+   *
+   * @param idleCount The number of times in a row this has been called without any traces being
+   *     drained in between, starting at 0.
+   * @param shouldWake Returns true if the trace processor thread has work to do. Strategies that
+   *     block must check this after announcing that they are about to block.
+   */
+  void waitForTraces(int idleCount, BooleanSupplier shouldWake);
+
+  /** Called by an application thread after it records a trace. */
+  void signal();
+}
@@ -0,0 +1,45 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Spins for a while and then yields the CPU to other threads. This keeps latency low without
+ * starving the application of CPU, but still keeps a core busy when nothing else wants to run.
+ */
+final class YieldingWaitStrategy implements WaitStrategy {
+
+  private final int spinTries;
+
+  /** @param spinTries The number of idle calls to spin for before yielding. */
+  YieldingWaitStrategy(final int spinTries) {
+    this.spinTries = spinTries;
+  }
+
+  @Override
+  public void waitForTraces(final int idleCount, final BooleanSupplier shouldWake) {
+    if (idleCount < spinTries) {
+      Thread.onSpinWait();
+    } else {
+      Thread.yield();
+    }
+  }
+
+  @Override
+  public void signal() {}
+}
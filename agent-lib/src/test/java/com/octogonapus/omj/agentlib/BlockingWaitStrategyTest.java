@@ -0,0 +1,59 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class BlockingWaitStrategyTest {
+
+  @Test
+  void signalWakesWaitingThread() throws InterruptedException {
+    final var waitStrategy = new BlockingWaitStrategy();
+    final var hasWork = new AtomicBoolean(false);
+    final var consumer =
+        new Thread(
+            () -> {
+              int idleCount = 0;
+              while (!hasWork.get()) {
+                waitStrategy.waitForTraces(idleCount++, hasWork::get);
+              }
+            });
+    consumer.start();
+
+    // Wait for the consumer to park
+    while (consumer.getState() != Thread.State.TIMED_WAITING) {
+      Thread.onSpinWait();
+    }
+
+    hasWork.set(true);
+    waitStrategy.signal();
+
+    // Much less than the strategy's park timeout, so the thread must have been woken by the signal
+    assertTimeoutPreemptively(Duration.ofMillis(50), () -> consumer.join());
+  }
+
+  @Test
+  void doNotParkIfThereIsWork() {
+    final var waitStrategy = new BlockingWaitStrategy();
+    assertTimeoutPreemptively(
+        Duration.ofMillis(50), () -> waitStrategy.waitForTraces(0, () -> true));
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedTraceOutputStreamTest {
+
+  @Test
+  void writeAcrossSegments(@TempDir final Path tempDir) throws IOException {
+    final var file = tempDir.resolve("test.trace");
+    final var expected = new ByteArrayOutputStream();
+
+    try (final var os = new MappedTraceOutputStream(file, 16)) {
+      for (int i = 0; i < 100; i++) {
+        // Mix single bytes and records that do not line up with the segment boundaries
+        final var record = new byte[i % 23];
+        for (int j = 0; j < record.length; j++) {
+          record[j] = (byte) (i + j);
+        }
+
+        os.write(i);
+        os.write(record);
+        expected.write(i);
+        expected.write(record);
+      }
+    }
+
+    // The file is truncated to what was written instead of ending with the rest of the segment
+    assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file));
+  }
+
+  @Test
+  void overwriteExistingFile(@TempDir final Path tempDir) throws IOException {
+    final var file = tempDir.resolve("test.trace");
+    Files.write(file, new byte[100]);
+
+    try (final var os = new MappedTraceOutputStream(file, 64)) {
+      os.write(new byte[] {1, 2, 3});
+    }
+
+    assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(file));
+  }
+
+  @Test
+  void flushedBytesAreVisibleBeforeClose(@TempDir final Path tempDir) throws IOException {
+    final var file = tempDir.resolve("test.trace");
+
+    try (final var os = new MappedTraceOutputStream(file, 64)) {
+      os.write(new byte[] {1, 2, 3});
+      os.flush();
+
+      // The file is not truncated until the stream is closed
+      assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(Files.readAllBytes(file), 3));
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.octogonapus.omj.util.SimpleTypeUtil;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+class RecordingContextTest {
+
+  private static final TraceRing.RecordConsumer discard =
+      new TraceRing.RecordConsumer() {
+        @Override
+        public void accept(final byte[] buffer, final int offset, final int length) {}
+
+        @Override
+        public void acceptDropped(final long[] indices, final long droppedTraces) {}
+      };
+
+  private final TraceRing ring = new TraceRing(Thread.currentThread(), 1 << 16);
+  private final StringDictionary stringDictionary = new StringDictionary();
+  private final RecordingContext context =
+      new RecordingContext(newTraceBuffer(ring, stringDictionary));
+
+  @Test
+  void methodTraceHasTheSiteOfTheLastCall() {
+    context.callSite(3);
+    recordMethodCall(context, 1, 2, 300);
+
+    assertArrayEquals(
+        new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0x2, 3, 3, 1, 0, 0, 0, 2, 0, 0, 0, 44, 1, 0, 0},
+        drainOneRecord());
+  }
+
+  @Test
+  void methodTraceWithNoCallSiteHasTheUnknownSite() {
+    recordMethodCall(context, 1, 2, 3);
+
+    assertEquals(SiteTable.unknownSite, drainOneRecord()[9]);
+  }
+
+  @Test
+  void methodTraceWithNullArgument() {
+    context.callSite(3);
+    context.methodCall(new OneReferenceMethodTrace(null));
+
+    // Nothing follows the class name of a null reference
+    final byte nullClassNameId = (byte) stringDictionary.idOf(SimpleTypeUtil.nullClassName);
+    assertArrayEquals(
+        new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0x2, 3, 1, 1, 'L', nullClassNameId}, drainOneRecord());
+  }
+
+  @Test
+  void methodTraceWithStringArgumentIsUtf8() {
+    context.callSite(3);
+    context.methodCall(new OneReferenceMethodTrace("h\u00e9\u20ac"));
+
+    // The length is the number of bytes, not chars
+    final byte stringClassNameId = (byte) stringDictionary.idOf("java.lang.String");
+    assertArrayEquals(
+        new byte[] {
+          0, 0, 0, 0, 0, 0, 0, 0, 0x2, 3, 1, 1, 'L', stringClassNameId, 6, 0, 0, 0, 'h', (byte) 0xC3,
+          (byte) 0xA9, (byte) 0xE2, (byte) 0x82, (byte) 0xAC
+        },
+        drainOneRecord());
+  }
+
+  /**
+   * Compares recording the arguments of a method call one recording call at a time (the old design,
+   * which kept the partially filled method trace in the recording context) against constructing the
+   * method trace with all of its arguments at once, like instrumented code does.
+   */
+  @Test
+  @Tag("performance")
+  void compareArgumentCallsWithSingleConstruction() {
+    final int numCalls = 10_000_000;
+
+    for (int round = 0; round < 3; round++) {
+      final long argumentCallsNanos = timeArgumentCalls(numCalls);
+      final long constructionNanos = timeSingleConstruction(numCalls);
+      System.out.printf(
+          "calls=%d: argument calls %.1f ms, single construction %.1f ms%n",
+          numCalls, argumentCallsNanos / 1e6, constructionNanos / 1e6);
+    }
+  }
+
+  private static long timeArgumentCalls(final int numCalls) {
+    final var ring = new TraceRing(Thread.currentThread(), 1 << 16);
+    final var context = new RecordingContext(newTraceBuffer(ring, new StringDictionary()));
+
+    final long startTime = System.nanoTime();
+    for (int i = 0; i < numCalls; i++) {
+      context.callSite(i & 0xFFFF);
+
+      final var methodTrace = new ThreeIntArgumentByArgumentMethodTrace();
+      methodTrace.set_argument_int(i);
+      methodTrace.set_argument_int(i + 1);
+      methodTrace.set_argument_int(i + 2);
+
+      context.methodCall(methodTrace);
+      ring.drain(discard);
+    }
+    return System.nanoTime() - startTime;
+  }
+
+  private static long timeSingleConstruction(final int numCalls) {
+    final var ring = new TraceRing(Thread.currentThread(), 1 << 16);
+    final var context = new RecordingContext(newTraceBuffer(ring, new StringDictionary()));
+
+    final long startTime = System.nanoTime();
+    for (int i = 0; i < numCalls; i++) {
+      context.callSite(i & 0xFFFF);
+      recordMethodCall(context, i, i + 1, i + 2);
+      ring.drain(discard);
+    }
+    return System.nanoTime() - startTime;
+  }
+
+  private static TraceBuffer newTraceBuffer(
+      final TraceRing ring, final StringDictionary stringDictionary) {
+    return new TraceBuffer(
+        ring,
+        new BusySpinWaitStrategy(),
+        new AtomicLong(),
+        stringDictionary,
+        OverflowPolicy.UNBOUNDED,
+        1);
+  }
+
+  /** Records a call to a static method with three int arguments, like instrumented code does. */
+  private static void recordMethodCall(
+      final RecordingContext context, final int arg0, final int arg1, final int arg2) {
+    context.methodCall(new ThreeIntMethodTrace(arg0, arg1, arg2));
+  }
+
+  private byte[] drainOneRecord() {
+    final List<byte[]> records = new ArrayList<>();
+    ring.drain(
+        new TraceRing.RecordConsumer() {
+          @Override
+          public void accept(final byte[] buffer, final int offset, final int length) {
+            records.add(Arrays.copyOfRange(buffer, offset, offset + length));
+          }
+
+          @Override
+          public void acceptDropped(final long[] indices, final long droppedTraces) {}
+        });
+    assertEquals(1, records.size());
+    return records.get(0);
+  }
+
+  /** A method trace like the ones the agent generates for static methods with one reference. */
+  private static final class OneReferenceMethodTrace extends ErasedMethodTrace {
+
+    private final Object reference;
+
+    OneReferenceMethodTrace(final Object reference) {
+      super("L", true);
+      this.reference = reference;
+    }
+
+    @Override
+    protected long getPrimitive(final int slot) {
+      throw new IndexOutOfBoundsException(slot);
+    }
+
+    @Override
+    protected Object getReference(final int slot) {
+      return reference;
+    }
+  }
+
+  /**
+   * A method trace like the ones the agent generates for static methods with three int arguments,
+   * except that the arguments are written without their type.
+   */
+  private static final class ThreeIntMethodTrace extends MethodTrace {
+
+    private final int[] arguments;
+
+    ThreeIntMethodTrace(final int arg0, final int arg1, final int arg2) {
+      super(true);
+      arguments = new int[] {arg0, arg1, arg2};
+    }
+
+    @Override
+    public void serialize(final OutputStream outputStream) throws IOException {
+      writeRecord(outputStream, siteId, arguments);
+    }
+  }
+
+  private static void writeRecord(
+      final OutputStream outputStream, final int siteId, final int[] arguments) throws IOException {
+    // The index is filled in when the record is committed
+    outputStream.write(new byte[8]);
+    outputStream.write(0x2);
+    MethodTrace.writeVarInt(outputStream, siteId);
+    outputStream.write(arguments.length);
+    for (final int argument : arguments) {
+      for (int i = 0; i < 4; i++) {
+        outputStream.write((argument >> (i * 8)) & 0xFF);
+      }
+    }
+  }
+
+  /**
+   * A method trace like the ones the agent used to generate, whose arguments are set one at a time
+   * after it is constructed.
+   */
+  private static final class ThreeIntArgumentByArgumentMethodTrace extends MethodTrace {
+
+    private int int_0;
+    private int int_1;
+    private int int_2;
+    private int intCounter = 0;
+
+    ThreeIntArgumentByArgumentMethodTrace() {
+      super(true);
+    }
+
+    void set_argument_int(final int value) {
+      switch (intCounter) {
+        case 0:
+          int_0 = value;
+          break;
+        case 1:
+          int_1 = value;
+          break;
+        case 2:
+          int_2 = value;
+          break;
+      }
+      intCounter++;
+    }
+
+    @Override
+    public void serialize(final OutputStream outputStream) throws IOException {
+      writeRecord(outputStream, siteId, new int[] {int_0, int_1, int_2});
+    }
+  }
+}
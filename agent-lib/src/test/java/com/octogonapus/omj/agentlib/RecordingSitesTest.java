@@ -0,0 +1,147 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class RecordingSitesTest {
+
+  @AfterEach
+  void enableRecording() {
+    RecordingSites.setEnabled(true);
+  }
+
+  @Test
+  void disabledArrayStoreStillStores() throws Throwable {
+    RecordingSites.setEnabled(false);
+    final var site =
+        bootstrap(
+            "store",
+            MethodType.methodType(
+                void.class,
+                int[].class,
+                int.class,
+                int.class,
+                int.class,
+                RecordingContext.class));
+
+    final var array = new int[2];
+    site.dynamicInvoker().invoke(array, 1, 42, 7, (RecordingContext) null);
+
+    assertArrayEquals(new int[] {0, 42}, array);
+  }
+
+  @Test
+  void disabledBooleanOrByteArrayStoreStillStores() throws Throwable {
+    RecordingSites.setEnabled(false);
+    final var site =
+        bootstrap(
+            "storeBooleanOrByteArray",
+            MethodType.methodType(
+                void.class,
+                Object.class,
+                int.class,
+                byte.class,
+                int.class,
+                RecordingContext.class));
+
+    final var booleans = new boolean[2];
+    final var bytes = new byte[2];
+    site.dynamicInvoker().invoke((Object) booleans, 0, (byte) 1, 7, (RecordingContext) null);
+    site.dynamicInvoker().invoke((Object) bytes, 1, (byte) 5, 7, (RecordingContext) null);
+
+    assertArrayEquals(new boolean[] {true, false}, booleans);
+    assertArrayEquals(new byte[] {0, 5}, bytes);
+  }
+
+  @Test
+  void disabledGetRecordingContextReturnsNull() throws Throwable {
+    RecordingSites.setEnabled(false);
+    final var site =
+        bootstrap("getRecordingContext", MethodType.methodType(RecordingContext.class));
+
+    assertNull(site.dynamicInvoker().invoke());
+  }
+
+  @Test
+  void enabledContextSiteIgnoresNullContext() throws Throwable {
+    final var site =
+        bootstrap("callSite", MethodType.methodType(void.class, RecordingContext.class, int.class));
+
+    // Does not throw
+    site.dynamicInvoker().invoke((RecordingContext) null, 3);
+  }
+
+  @Test
+  void enabledArrayStoreWithNullContextStillStores() throws Throwable {
+    final var site =
+        bootstrap(
+            "store",
+            MethodType.methodType(
+                void.class,
+                long[].class,
+                int.class,
+                long.class,
+                int.class,
+                RecordingContext.class));
+
+    final var array = new long[2];
+    site.dynamicInvoker().invoke(array, 0, 9L, 7, (RecordingContext) null);
+
+    assertArrayEquals(new long[] {9L, 0L}, array);
+  }
+
+  @Test
+  void sitesWithTheSameNameAndTypeAreShared() throws Throwable {
+    final var type =
+        MethodType.methodType(void.class, long.class, int.class, RecordingContext.class);
+
+    assertSame(bootstrap("store", type), bootstrap("store", type));
+  }
+
+  @Test
+  void togglingRecordingRelinksExistingSites() throws Throwable {
+    final var site =
+        bootstrap(
+            "store",
+            MethodType.methodType(void.class, double.class, int.class, RecordingContext.class));
+    final var enabledTarget = site.getTarget();
+
+    RecordingSites.setEnabled(false);
+    assertFalse(RecordingSites.isEnabled());
+    assertNotSame(enabledTarget, site.getTarget());
+
+    RecordingSites.setEnabled(true);
+    assertTrue(RecordingSites.isEnabled());
+    assertSame(enabledTarget, site.getTarget());
+  }
+
+  private static CallSite bootstrap(final String name, final MethodType type) throws Throwable {
+    return RecordingSites.bootstrap(MethodHandles.lookup(), name, type);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StoreAllocationTest {
+
+  private static final int numStores = 500;
+  private static final ThreadMXBean threadMXBean =
+      (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private final int[] intArray = new int[1];
+  private final Object[] objectArray = new Object[1];
+  private final String stringValue = "a string value";
+  private final int[] siteIds = new int[6];
+
+  @BeforeAll
+  static void setUp(@TempDir final Path traceDir) {
+    // Keep the trace file the agent lib opens out of the real trace dir
+    System.setProperty("agent-lib.trace-dir", traceDir.toString());
+  }
+
+  @BeforeEach
+  void registerSites() {
+    final var siteTable = SiteTable.getInstance();
+    siteIds[0] = siteTable.registerSite("com.example.Main", 1, "i");
+    siteIds[1] = siteTable.registerSite("com.example.Main", 2, "l");
+    siteIds[2] = siteTable.registerSite("com.example.Main", 3, "d");
+    siteIds[3] = siteTable.registerSite("com.example.Main", 4, "s");
+    siteIds[4] = siteTable.registerSite("com.example.Main", 5, "");
+    siteIds[5] = siteTable.registerSite("com.example.Main", 6, "");
+  }
+
+  @Test
+  void storesDoNotAllocate() {
+    // Warm up so the thread's buffer and ring exist and the buffer has grown to its final size
+    recordStores();
+
+    // Measure the measurement itself so it can be subtracted out
+    final long threadId = Thread.currentThread().getId();
+    final long overheadStart = threadMXBean.getThreadAllocatedBytes(threadId);
+    final long overheadEnd = threadMXBean.getThreadAllocatedBytes(threadId);
+    final long overhead = overheadEnd - overheadStart;
+
+    final long start = threadMXBean.getThreadAllocatedBytes(threadId);
+    recordStores();
+    final long end = threadMXBean.getThreadAllocatedBytes(threadId);
+
+    assertEquals(0, end - start - overhead);
+  }
+
+  /**
+   * Records a mix of stores. All of them together fit in one ring segment, so the ring never needs
+   * to grow even if the trace processor thread does not drain it in the meantime.
+   */
+  private void recordStores() {
+    final var context = OMJAgentLib.getRecordingContext();
+    for (int i = 0; i < numStores; i++) {
+      OMJAgentLib.store(i, siteIds[0], context);
+      OMJAgentLib.store((long) i, siteIds[1], context);
+      OMJAgentLib.store((double) i, siteIds[2], context);
+      OMJAgentLib.store(stringValue, siteIds[3], context);
+      OMJAgentLib.store(intArray, 0, i, siteIds[4], context);
+      OMJAgentLib.store(objectArray, 0, stringValue, siteIds[5], context);
+    }
+  }
+}
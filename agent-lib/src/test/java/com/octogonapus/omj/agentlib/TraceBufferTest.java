@@ -0,0 +1,290 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.octogonapus.omj.util.SimpleTypeUtil;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class TraceBufferTest {
+
+  private final WaitStrategy waitStrategy = new BusySpinWaitStrategy();
+  private final AtomicLong traceCounter = new AtomicLong();
+  private final StringDictionary stringDictionary = new StringDictionary();
+
+  @Test
+  void dropNewestWritesGapRecordBeforeNextRecord() {
+    // Ten 12-byte frames fill all but the last 8 bytes of the ring
+    final var ring = new TraceRing(Thread.currentThread(), 128);
+    final var buffer =
+        new TraceBuffer(
+            ring, waitStrategy, traceCounter, stringDictionary, OverflowPolicy.DROP_NEWEST, 1);
+    for (int i = 0; i < 12; i++) {
+      commitRecord(buffer);
+    }
+
+    final var collector = new RecordCollector();
+    ring.drain(collector);
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      expected.add(String.valueOf(i));
+    }
+    assertEquals(expected, collector.records);
+
+    // The two dropped records never took an index
+    commitRecord(buffer);
+    ring.drain(collector);
+    expected.addAll(List.of("10 gap 2", "11"));
+    assertEquals(expected, collector.records);
+  }
+
+  @Test
+  void dropOldestKeepsNewestRecords() {
+    final var ring = new TraceRing(Thread.currentThread(), 64);
+    final var buffer =
+        new TraceBuffer(
+            ring, waitStrategy, traceCounter, stringDictionary, OverflowPolicy.DROP_OLDEST, 1);
+    for (int i = 0; i < 8; i++) {
+      commitRecord(buffer);
+    }
+
+    final var collector = new RecordCollector();
+    ring.drain(collector);
+    assertEquals(
+        List.of("3", "4", "5", "6", "7", "0 dropped 1", "1 dropped 1", "2 dropped 1"),
+        collector.records);
+  }
+
+  @Test
+  void sampleOnceMoreThanHalfFull() {
+    // Eleven 12-byte frames fill more than half of the ring
+    final var ring = new TraceRing(Thread.currentThread(), 256);
+    final var buffer =
+        new TraceBuffer(
+            ring, waitStrategy, traceCounter, stringDictionary, OverflowPolicy.SAMPLE, 2);
+    for (int i = 0; i < 15; i++) {
+      commitRecord(buffer);
+    }
+
+    final var collector = new RecordCollector();
+    ring.drain(collector);
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 11; i++) {
+      expected.add(String.valueOf(i));
+    }
+    expected.addAll(List.of("11 gap 1", "12", "13 gap 1", "14"));
+    assertEquals(expected, collector.records);
+  }
+
+  @Test
+  void blockWaitsForRoom() throws InterruptedException {
+    final int numTraces = 10_000;
+    final var ring = new TraceRing(Thread.currentThread(), 256);
+    final var buffer =
+        new TraceBuffer(
+            ring, waitStrategy, traceCounter, stringDictionary, OverflowPolicy.BLOCK, 1);
+    final var collector = new RecordCollector();
+    final var consumer =
+        new Thread(
+            () -> {
+              while (collector.records.size() < numTraces) {
+                ring.drain(collector);
+              }
+            });
+    consumer.start();
+
+    for (int i = 0; i < numTraces; i++) {
+      commitRecord(buffer);
+    }
+
+    consumer.join();
+    for (int i = 0; i < numTraces; i++) {
+      assertEquals(String.valueOf(i), collector.records.get(i));
+    }
+  }
+
+  @Test
+  void blockDropsOnceTheProcessorStops() {
+    // Ten 12-byte frames fill all but the last 8 bytes of the ring
+    final var ring = new TraceRing(Thread.currentThread(), 128);
+    final var buffer =
+        new TraceBuffer(
+            ring,
+            waitStrategy,
+            traceCounter,
+            stringDictionary,
+            OverflowPolicy.BLOCK,
+            1,
+            () -> false);
+    for (int i = 0; i < 12; i++) {
+      commitRecord(buffer);
+    }
+
+    final var collector = new RecordCollector();
+    ring.drain(collector);
+    assertEquals(10, collector.records.size());
+    assertEquals(2, ring.takeDroppedTraces());
+  }
+
+  @Test
+  void droppedTracesTakenByTheConsumerAreNotReportedAgain() {
+    final var ring = new TraceRing(Thread.currentThread(), 128);
+    final var buffer =
+        new TraceBuffer(
+            ring, waitStrategy, traceCounter, stringDictionary, OverflowPolicy.DROP_NEWEST, 1);
+    for (int i = 0; i < 12; i++) {
+      commitRecord(buffer);
+    }
+
+    // The trace processor reports the dropped traces itself when the trace file is rotated
+    assertEquals(2, ring.takeDroppedTraces());
+    assertEquals(0, ring.takeDroppedTraces());
+
+    final var collector = new RecordCollector();
+    ring.drain(collector);
+    commitRecord(buffer);
+    ring.drain(collector);
+    assertEquals("10", collector.records.get(collector.records.size() - 1));
+    assertEquals(11, collector.records.size());
+  }
+
+  /** Commits a record that is only the placeholder for its index. */
+  @Test
+  void discardRecordsWhileRecordingIsDisabled() {
+    final var ring = new TraceRing(Thread.currentThread(), 128);
+    final var buffer =
+        new TraceBuffer(
+            ring, waitStrategy, traceCounter, stringDictionary, OverflowPolicy.UNBOUNDED, 1);
+
+    RecordingSites.setEnabled(false);
+    try {
+      commitRecord(buffer);
+    } finally {
+      RecordingSites.setEnabled(true);
+    }
+    commitRecord(buffer);
+
+    final var collector = new RecordCollector();
+    ring.drain(collector);
+    // The discarded record did not take an index or leave a gap
+    assertEquals(List.of("0"), collector.records);
+  }
+
+  @Test
+  void writeNullStore() {
+    final var ring = new TraceRing(Thread.currentThread(), 128);
+    final var buffer =
+        new TraceBuffer(
+            ring, waitStrategy, traceCounter, stringDictionary, OverflowPolicy.UNBOUNDED, 1);
+
+    buffer.writeStoreTraceHeader(3);
+    buffer.write('L');
+    buffer.writeObject(null);
+    buffer.commit();
+
+    // Nothing follows the class name of a null reference
+    final byte nullClassNameId = (byte) stringDictionary.idOf(SimpleTypeUtil.nullClassName);
+    assertArrayEquals(
+        new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0x1, 3, 'L', nullClassNameId}, drainOneRecord(ring));
+  }
+
+  @Test
+  void writeNullArrayElementStore() {
+    final var ring = new TraceRing(Thread.currentThread(), 128);
+    final var buffer =
+        new TraceBuffer(
+            ring, waitStrategy, traceCounter, stringDictionary, OverflowPolicy.UNBOUNDED, 1);
+    final var array = new Object[2];
+
+    buffer.writeArrayStoreTraceHeader(3, array, 1);
+    buffer.write('L');
+    buffer.writeObject(null);
+    buffer.commit();
+
+    final var record = drainOneRecord(ring);
+    final byte nullClassNameId = (byte) stringDictionary.idOf(SimpleTypeUtil.nullClassName);
+    assertEquals(20, record.length);
+    assertEquals(System.identityHashCode(array), readInt(record, 10));
+    assertEquals(1, readInt(record, 14));
+    assertArrayEquals(new byte[] {'L', nullClassNameId}, Arrays.copyOfRange(record, 18, 20));
+  }
+
+  private static void commitRecord(final TraceBuffer buffer) {
+    buffer.write8Bytes(0);
+    buffer.commit();
+  }
+
+  private static byte[] drainOneRecord(final TraceRing ring) {
+    final List<byte[]> records = new ArrayList<>();
+    ring.drain(
+        new TraceRing.RecordConsumer() {
+          @Override
+          public void accept(final byte[] buffer, final int offset, final int length) {
+            records.add(Arrays.copyOfRange(buffer, offset, offset + length));
+          }
+
+          @Override
+          public void acceptDropped(final long[] indices, final long droppedTraces) {}
+        });
+    assertEquals(1, records.size());
+    return records.get(0);
+  }
+
+  private static int readInt(final byte[] buffer, final int offset) {
+    return ByteBuffer.wrap(buffer, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+  }
+
+  private static long readLong(final byte[] buffer, final int offset) {
+    return ByteBuffer.wrap(buffer, offset, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  }
+
+  /**
+   * Describes each record drained from a ring as its index, followed by the number of dropped
+   * traces if it is a gap record. Describes each dropped record as its index and the number of
+   * traces it stood for.
+   */
+  private static final class RecordCollector implements TraceRing.RecordConsumer {
+
+    private final List<String> records = new ArrayList<>();
+
+    @Override
+    public void accept(final byte[] buffer, final int offset, final int length) {
+      final long index = readLong(buffer, offset);
+      if (length == TraceBuffer.gapRecordLength) {
+        assertEquals(TraceBuffer.gapRecordType, buffer[offset + 8]);
+        records.add(index + " gap " + readLong(buffer, offset + 9));
+      } else {
+        records.add(String.valueOf(index));
+      }
+    }
+
+    @Override
+    public void acceptDropped(final long[] indices, final long droppedTraces) {
+      for (final long index : indices) {
+        records.add(index + " dropped " + droppedTraces / indices.length);
+      }
+    }
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+class TraceRingTest {
+
+  private static final TraceRing.RecordConsumer discard =
+      new TraceRing.RecordConsumer() {
+        @Override
+        public void accept(final byte[] buffer, final int offset, final int length) {}
+
+        @Override
+        public void acceptDropped(final long[] indices, final long droppedTraces) {}
+      };
+
+  @Test
+  void drainAcrossSegmentsInOrder() {
+    final var ring = new TraceRing(Thread.currentThread(), 64);
+    for (int i = 0; i < 100; i++) {
+      // Vary the length so that records wrap around the end of a segment at different positions
+      addRecord(ring, i, i % 13);
+    }
+
+    final var collector = new IndexCollector();
+    assertEquals(100, ring.drain(collector));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, collector.indices.get(i));
+    }
+
+    assertEquals(0, ring.drain(collector));
+  }
+
+  @Test
+  void addRecordLargerThanSegment() {
+    final var ring = new TraceRing(Thread.currentThread(), 16);
+    addRecord(ring, 0, 1);
+    addRecord(ring, 1, 100);
+    addRecord(ring, 2, 1);
+
+    final var collector = new IndexCollector();
+    assertEquals(3, ring.drain(collector));
+    assertEquals(List.of(0L, 1L, 2L), collector.indices);
+  }
+
+  @Test
+  void drainWhileProducing() throws InterruptedException {
+    final int numTraces = 1_000_000;
+    final List<TraceRing> rings = new CopyOnWriteArrayList<>();
+    final var producer =
+        new Thread(
+            () -> {
+              final var ring = new TraceRing(Thread.currentThread(), 256);
+              rings.add(ring);
+              for (int i = 0; i < numTraces; i++) {
+                addRecord(ring, i, i % 7);
+              }
+            });
+    producer.start();
+
+    final var collector = new IndexCollector();
+    while (collector.indices.size() < numTraces) {
+      for (final TraceRing ring : rings) {
+        ring.drain(collector);
+      }
+    }
+
+    producer.join();
+    assertEquals(numTraces, collector.indices.size());
+    for (int i = 0; i < numTraces; i++) {
+      assertEquals(i, collector.indices.get(i));
+    }
+  }
+
+  @Test
+  void dropOldestRecordsToMakeRoom() {
+    // Five 12-byte frames fill all but the last 4 bytes of the segment
+    final var ring = new TraceRing(Thread.currentThread(), 64);
+    for (int i = 0; i < 5; i++) {
+      addRecord(ring, i, 0);
+    }
+    assertFalse(ring.hasRoomFor(8));
+
+    // The next frame has to skip the last 4 bytes, so dropping the oldest record makes enough room
+    ring.dropOldestRecords(8);
+    assertTrue(ring.hasRoomFor(8));
+    addRecord(ring, 5, 0);
+
+    final var collector = new IndexCollector();
+    assertEquals(6, ring.drain(collector));
+    assertEquals(List.of(1L, 2L, 3L, 4L, 5L), collector.indices);
+    assertEquals(List.of(0L), collector.droppedIndices);
+    assertEquals(1, collector.droppedTraces);
+  }
+
+  @Test
+  void dropOldestRecordsCountsTheTracesInGapRecords() {
+    final var ring = new TraceRing(Thread.currentThread(), 64);
+    final var gapRecord = new byte[TraceBuffer.gapRecordLength];
+    writeIndex(gapRecord, 0);
+    gapRecord[8] = TraceBuffer.gapRecordType;
+    ByteBuffer.wrap(gapRecord, 9, 8).order(ByteOrder.LITTLE_ENDIAN).putLong(3);
+    ring.add(gapRecord, 0, gapRecord.length);
+    addRecord(ring, 1, 0);
+    addRecord(ring, 2, 0);
+
+    // Skipping the last 16 bytes and fitting a 32-byte frame needs the space of the gap record and
+    // the record after it
+    ring.dropOldestRecords(28);
+
+    final var collector = new IndexCollector();
+    ring.drain(collector);
+    assertEquals(List.of(2L), collector.indices);
+    assertEquals(List.of(0L, 1L), collector.droppedIndices);
+    assertEquals(4, collector.droppedTraces);
+  }
+
+  @Test
+  void doNotDropRecordsIfThereIsRoom() {
+    final var ring = new TraceRing(Thread.currentThread(), 64);
+    addRecord(ring, 0, 0);
+    ring.dropOldestRecords(8);
+
+    final var collector = new IndexCollector();
+    assertEquals(1, ring.drain(collector));
+    assertEquals(List.of(0L), collector.indices);
+    assertEquals(List.of(), collector.droppedIndices);
+  }
+
+  /**
+   * Compares recording trace objects into one shared {@link ConcurrentLinkedQueue} (the old design)
+   * against recording serialized traces into one {@link TraceRing} per thread, with one thread
+   * draining concurrently.
+   */
+  @Test
+  @Tag("performance")
+  void compareSharedQueueWithPerThreadRings() throws InterruptedException {
+    final int numThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+    final int tracesPerThread = 2_000_000;
+
+    for (int round = 0; round < 3; round++) {
+      final long queueNanos = timeSharedQueue(numThreads, tracesPerThread);
+      final long ringNanos = timePerThreadRings(numThreads, tracesPerThread);
+      System.out.printf(
+          "threads=%d, traces/thread=%d: shared queue %.1f ms, per-thread rings %.1f ms%n",
+          numThreads, tracesPerThread, queueNanos / 1e6, ringNanos / 1e6);
+    }
+  }
+
+  private static long timeSharedQueue(final int numThreads, final int tracesPerThread)
+      throws InterruptedException {
+    final var queue = new ConcurrentLinkedQueue<Trace>();
+    final var counter = new AtomicLong();
+    final var done = new AtomicBoolean(false);
+    final var consumer =
+        new Thread(
+            () -> {
+              while (!done.get() || !queue.isEmpty()) {
+                queue.poll();
+              }
+            });
+
+    return timeProducers(
+        numThreads,
+        consumer,
+        done,
+        () -> {
+          for (int i = 0; i < tracesPerThread; i++) {
+            queue.add(new IndexTrace(counter.getAndIncrement()));
+          }
+        });
+  }
+
+  private static long timePerThreadRings(final int numThreads, final int tracesPerThread)
+      throws InterruptedException {
+    final var rings = new CopyOnWriteArrayList<TraceRing>();
+    final var counter = new AtomicLong();
+    final var done = new AtomicBoolean(false);
+    final var consumer =
+        new Thread(
+            () -> {
+              int drained = 1;
+              while (!done.get() || drained != 0) {
+                drained = 0;
+                for (final TraceRing ring : rings) {
+                  drained += ring.drain(discard);
+                }
+              }
+            });
+
+    return timeProducers(
+        numThreads,
+        consumer,
+        done,
+        () -> {
+          final var ring = new TraceRing(Thread.currentThread(), 1 << 16);
+          final var record = new byte[8];
+          rings.add(ring);
+          for (int i = 0; i < tracesPerThread; i++) {
+            writeIndex(record, counter.getAndIncrement());
+            ring.add(record, 0, record.length);
+          }
+        });
+  }
+
+  private static long timeProducers(
+      final int numThreads,
+      final Thread consumer,
+      final AtomicBoolean done,
+      final Runnable producer)
+      throws InterruptedException {
+    final var start = new CountDownLatch(1);
+    final var producers = new ArrayList<Thread>();
+    for (int i = 0; i < numThreads; i++) {
+      final var thread =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  throw new IllegalStateException(e);
+                }
+                producer.run();
+              });
+      producers.add(thread);
+      thread.start();
+    }
+
+    consumer.start();
+    final long startTime = System.nanoTime();
+    start.countDown();
+    for (final Thread thread : producers) {
+      thread.join();
+    }
+    done.set(true);
+    consumer.join();
+    return System.nanoTime() - startTime;
+  }
+
+  /**
+   * Adds a record made of an 8-byte index followed by some padding bytes.
+   *
+   * @param ring The ring to add to.
+   * @param index The index to write at the start of the record.
+   * @param padding The number of padding bytes after the index.
+   */
+  private static void addRecord(final TraceRing ring, final long index, final int padding) {
+    final var record = new byte[8 + padding];
+    writeIndex(record, index);
+    Arrays.fill(record, 8, record.length, (byte) padding);
+    ring.add(record, 0, record.length);
+  }
+
+  private static long readRecord(final byte[] buffer, final int offset, final int length) {
+    for (int i = offset + 8; i < offset + length; i++) {
+      assertEquals(length - 8, buffer[i]);
+    }
+    return ByteBuffer.wrap(buffer, offset, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  }
+
+  private static void writeIndex(final byte[] record, final long index) {
+    ByteBuffer.wrap(record, 0, 8).order(ByteOrder.LITTLE_ENDIAN).putLong(index);
+  }
+
+  /** Collects the indices of the records drained from a ring and of the records dropped from it. */
+  private static final class IndexCollector implements TraceRing.RecordConsumer {
+
+    private final List<Long> indices = new ArrayList<>();
+    private final List<Long> droppedIndices = new ArrayList<>();
+    private long droppedTraces = 0;
+
+    @Override
+    public void accept(final byte[] buffer, final int offset, final int length) {
+      if (length == TraceBuffer.gapRecordLength
+          && buffer[offset + 8] == TraceBuffer.gapRecordType) {
+        indices.add(ByteBuffer.wrap(buffer, offset, 8).order(ByteOrder.LITTLE_ENDIAN).getLong());
+      } else {
+        indices.add(readRecord(buffer, offset, length));
+      }
+    }
+
+    @Override
+    public void acceptDropped(final long[] indices, final long droppedTraces) {
+      for (final long index : indices) {
+        droppedIndices.add(index);
+      }
+      this.droppedTraces += droppedTraces;
+    }
+  }
+
+  private static final class IndexTrace implements Trace {
+
+    private final long index;
+
+    private IndexTrace(final long index) {
+      this.index = index;
+    }
+
+    public long getIndex() {
+      return index;
+    }
+
+    @Override
+    public void serialize(final OutputStream outputStream) {}
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agentlib;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class TraceSerializerTest {
+
+  @Test
+  void serializeOutOfOrderRecordsInOrder() {
+    final var os = new ByteArrayOutputStream();
+    // A small window so that some records overflow it
+    final var serializer = new TraceSerializer(os, new SiteTable(new StringDictionary()), 0, 8);
+
+    final List<Long> indices = new ArrayList<>();
+    for (long i = 0; i < 1000; i++) {
+      indices.add(i);
+    }
+    Collections.shuffle(indices, new Random(42));
+
+    for (final long index : indices) {
+      final var record = record(index);
+      serializer.accept(record, 0, record.length);
+    }
+    serializer.serializePendingTraces();
+
+    assertEquals(0, serializer.getNumberOfPendingTraces());
+    assertEquals(999, serializer.getLastTraceIndex());
+
+    final var expected = new ByteArrayOutputStream();
+    for (long i = 0; i < 1000; i++) {
+      expected.writeBytes(record(i));
+    }
+    assertArrayEquals(expected.toByteArray(), os.toByteArray());
+  }
+
+  @Test
+  void holdRecordsUntilTheGapIsFilled() {
+    final var os = new ByteArrayOutputStream();
+    final var serializer = new TraceSerializer(os, new SiteTable(new StringDictionary()), 0, 4);
+
+    for (final long index : new long[] {1, 2, 10}) {
+      final var record = record(index);
+      serializer.accept(record, 0, record.length);
+    }
+
+    assertEquals(3, serializer.getNumberOfPendingTraces());
+    assertEquals(1, serializer.getFirstPendingTraceIndex());
+    assertEquals(0, os.size());
+
+    final var record = record(0);
+    serializer.accept(record, 0, record.length);
+
+    assertEquals(1, serializer.getNumberOfPendingTraces());
+    assertEquals(10, serializer.getFirstPendingTraceIndex());
+    assertEquals(2, serializer.getLastTraceIndex());
+  }
+
+  @Test
+  void writeGapRecordForDroppedRecords() {
+    final var os = new ByteArrayOutputStream();
+    // A small window so that some of the dropped indices overflow it
+    final var serializer = new TraceSerializer(os, new SiteTable(new StringDictionary()), 0, 2);
+
+    for (final long index : new long[] {0, 6}) {
+      final var record = record(index);
+      serializer.accept(record, 0, record.length);
+    }
+    serializer.acceptDropped(new long[] {1, 2, 3, 4, 5}, 7);
+
+    assertEquals(0, serializer.getNumberOfPendingTraces());
+    assertEquals(6, serializer.getLastTraceIndex());
+
+    final var expected = new ByteArrayOutputStream();
+    expected.writeBytes(record(0));
+    expected.writeBytes(
+        ByteBuffer.allocate(TraceBuffer.gapRecordLength)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .putLong(1)
+            .put(TraceBuffer.gapRecordType)
+            .putLong(7)
+            .array());
+    expected.writeBytes(record(6));
+    assertArrayEquals(expected.toByteArray(), os.toByteArray());
+  }
+
+  @Test
+  void defineStringsAndSitesBeforeTheRecordThatUsesThem() {
+    final var os = new ByteArrayOutputStream();
+    final var siteTable = new SiteTable(new StringDictionary());
+    final var stringDictionary = siteTable.getStringDictionary();
+    final var serializer = new TraceSerializer(os, siteTable, 0, 4);
+
+    assertEquals(0, siteTable.registerSite("com.example.Main", 7, "x"));
+    final var record0 = record(0);
+    serializer.accept(record0, 0, record0.length);
+
+    // Enough strings that the later IDs take two bytes
+    for (int i = 2; i <= 130; i++) {
+      assertEquals(i, stringDictionary.idOf("variable" + i));
+    }
+    assertEquals(1, stringDictionary.idOf("x"));
+    final var record1 = record(1);
+    serializer.accept(record1, 0, record1.length);
+
+    final var expected = new ByteArrayOutputStream();
+    // The site's strings are defined before the site
+    expected.writeBytes(stringDefinition(0, 0, "com.example.Main"));
+    expected.writeBytes(stringDefinition(0, 1, "x"));
+    expected.writeBytes(siteDefinition(0, 0, 0, 7, 1));
+    expected.writeBytes(record0);
+    for (int i = 2; i <= 130; i++) {
+      expected.writeBytes(stringDefinition(1, i, "variable" + i));
+    }
+    expected.writeBytes(record1);
+    assertArrayEquals(expected.toByteArray(), os.toByteArray());
+  }
+
+  @Test
+  void defineStringsAndSitesAgainAfterSwitchingOutputStreams() {
+    final var firstOs = new ByteArrayOutputStream();
+    final var siteTable = new SiteTable(new StringDictionary());
+    final var serializer = new TraceSerializer(firstOs, siteTable, 0, 4);
+
+    assertEquals(0, siteTable.registerSite("com.example.Main", 7, "x"));
+    final var record0 = record(0);
+    serializer.accept(record0, 0, record0.length);
+
+    final var secondOs = new ByteArrayOutputStream();
+    serializer.setOutputStream(secondOs);
+    final var record1 = record(1);
+    serializer.accept(record1, 0, record1.length);
+
+    final var expected = new ByteArrayOutputStream();
+    expected.writeBytes(stringDefinition(1, 0, "com.example.Main"));
+    expected.writeBytes(stringDefinition(1, 1, "x"));
+    expected.writeBytes(siteDefinition(1, 0, 0, 7, 1));
+    expected.writeBytes(record1);
+    assertArrayEquals(expected.toByteArray(), secondOs.toByteArray());
+  }
+
+  /** Makes a string definition record that precedes the record with the index. */
+  private static byte[] stringDefinition(final long index, final int id, final String string) {
+    final var definition = new ByteArrayOutputStream();
+    definition.writeBytes(definitionHeader(index, TraceSerializer.stringDefinitionRecordType, id));
+    definition.writeBytes(string.getBytes(StandardCharsets.UTF_8));
+    definition.write(0);
+    return definition.toByteArray();
+  }
+
+  /** Makes a site definition record that precedes the record with the index. */
+  private static byte[] siteDefinition(
+      final long index,
+      final int id,
+      final int classNameId,
+      final int lineNumber,
+      final int nameId) {
+    final var definition = new ByteArrayOutputStream();
+    definition.writeBytes(definitionHeader(index, TraceSerializer.siteDefinitionRecordType, id));
+    definition.writeBytes(varInt(classNameId));
+    definition.writeBytes(
+        ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(lineNumber).array());
+    definition.writeBytes(varInt(nameId));
+    return definition.toByteArray();
+  }
+
+  private static byte[] definitionHeader(final long index, final byte type, final int id) {
+    final var header = new ByteArrayOutputStream();
+    header.writeBytes(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(index).array());
+    header.write(type);
+    header.writeBytes(varInt(id));
+    return header.toByteArray();
+  }
+
+  /** Encodes a varint of at most two bytes. */
+  private static byte[] varInt(final int value) {
+    if (value < 0x80) {
+      return new byte[] {(byte) value};
+    }
+    return new byte[] {(byte) ((value & 0x7F) | 0x80), (byte) (value >> 7)};
+  }
+
+  /**
+   * Makes a record that starts with its index, like every trace does, followed by a payload whose
+   * length depends on the index.
+   */
+  private static byte[] record(final long index) {
+    final var record = new byte[8 + (int) (index % 5)];
+    ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN).putLong(index);
+    return record;
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.agenttest.dynamicAttach;
+
+import com.sun.tools.attach.VirtualMachine;
+
+public class Main {
+
+  public static void main(String[] args) throws Exception {
+    Foo.store(1);
+    attachAgent("instrument");
+    Foo.store(2);
+    attachAgent("restore");
+    Foo.store(3);
+  }
+
+  private static void attachAgent(String command) throws Exception {
+    VirtualMachine virtualMachine =
+        VirtualMachine.attach(String.valueOf(ProcessHandle.current().pid()));
+    virtualMachine.loadAgent(System.getProperty("agent.jar"), command);
+    virtualMachine.detach();
+  }
+}
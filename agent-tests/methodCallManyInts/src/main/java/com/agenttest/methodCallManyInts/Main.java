@@ -0,0 +1,541 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.agenttest.methodCallManyInts;
+
+public class Main {
+
+  public static void main(String[] args) {
+    // Each int takes two slots of the constructor of a container class, so these have too many
+    // arguments to be recorded in one
+    callMe(
+        0,
+        1,
+        2,
+        3,
+        4,
+        5,
+        6,
+        7,
+        8,
+        9,
+        10,
+        11,
+        12,
+        13,
+        14,
+        15,
+        16,
+        17,
+        18,
+        19,
+        20,
+        21,
+        22,
+        23,
+        24,
+        25,
+        26,
+        27,
+        28,
+        29,
+        30,
+        31,
+        32,
+        33,
+        34,
+        35,
+        36,
+        37,
+        38,
+        39,
+        40,
+        41,
+        42,
+        43,
+        44,
+        45,
+        46,
+        47,
+        48,
+        49,
+        50,
+        51,
+        52,
+        53,
+        54,
+        55,
+        56,
+        57,
+        58,
+        59,
+        60,
+        61,
+        62,
+        63,
+        64,
+        65,
+        66,
+        67,
+        68,
+        69,
+        70,
+        71,
+        72,
+        73,
+        74,
+        75,
+        76,
+        77,
+        78,
+        79,
+        80,
+        81,
+        82,
+        83,
+        84,
+        85,
+        86,
+        87,
+        88,
+        89,
+        90,
+        91,
+        92,
+        93,
+        94,
+        95,
+        96,
+        97,
+        98,
+        99,
+        100,
+        101,
+        102,
+        103,
+        104,
+        105,
+        106,
+        107,
+        108,
+        109,
+        110,
+        111,
+        112,
+        113,
+        114,
+        115,
+        116,
+        117,
+        118,
+        119,
+        120,
+        121,
+        122,
+        123,
+        124,
+        125,
+        126);
+    new Main().callMe(
+        0,
+        1,
+        2,
+        3,
+        4,
+        5,
+        6,
+        7,
+        8,
+        9,
+        10,
+        11,
+        12,
+        13,
+        14,
+        15,
+        16,
+        17,
+        18,
+        19,
+        20,
+        21,
+        22,
+        23,
+        24,
+        25,
+        26,
+        27,
+        28,
+        29,
+        30,
+        31,
+        32,
+        33,
+        34,
+        35,
+        36,
+        37,
+        38,
+        39,
+        40,
+        41,
+        42,
+        43,
+        44,
+        45,
+        46,
+        47,
+        48,
+        49,
+        50,
+        51,
+        52,
+        53,
+        54,
+        55,
+        56,
+        57,
+        58,
+        59,
+        60,
+        61,
+        62,
+        63,
+        64,
+        65,
+        66,
+        67,
+        68,
+        69,
+        70,
+        71,
+        72,
+        73,
+        74,
+        75,
+        76,
+        77,
+        78,
+        79,
+        80,
+        81,
+        82,
+        83,
+        84,
+        85,
+        86,
+        87,
+        88,
+        89,
+        90,
+        91,
+        92,
+        93,
+        94,
+        95,
+        96,
+        97,
+        98,
+        99,
+        100,
+        101,
+        102,
+        103,
+        104,
+        105,
+        106,
+        107,
+        108,
+        109,
+        110,
+        111,
+        112,
+        113,
+        114,
+        115,
+        116,
+        117,
+        118,
+        119,
+        120,
+        121,
+        122,
+        123,
+        124,
+        125,
+        126,
+        "a");
+  }
+
+  private static void callMe(
+      int i0,
+      int i1,
+      int i2,
+      int i3,
+      int i4,
+      int i5,
+      int i6,
+      int i7,
+      int i8,
+      int i9,
+      int i10,
+      int i11,
+      int i12,
+      int i13,
+      int i14,
+      int i15,
+      int i16,
+      int i17,
+      int i18,
+      int i19,
+      int i20,
+      int i21,
+      int i22,
+      int i23,
+      int i24,
+      int i25,
+      int i26,
+      int i27,
+      int i28,
+      int i29,
+      int i30,
+      int i31,
+      int i32,
+      int i33,
+      int i34,
+      int i35,
+      int i36,
+      int i37,
+      int i38,
+      int i39,
+      int i40,
+      int i41,
+      int i42,
+      int i43,
+      int i44,
+      int i45,
+      int i46,
+      int i47,
+      int i48,
+      int i49,
+      int i50,
+      int i51,
+      int i52,
+      int i53,
+      int i54,
+      int i55,
+      int i56,
+      int i57,
+      int i58,
+      int i59,
+      int i60,
+      int i61,
+      int i62,
+      int i63,
+      int i64,
+      int i65,
+      int i66,
+      int i67,
+      int i68,
+      int i69,
+      int i70,
+      int i71,
+      int i72,
+      int i73,
+      int i74,
+      int i75,
+      int i76,
+      int i77,
+      int i78,
+      int i79,
+      int i80,
+      int i81,
+      int i82,
+      int i83,
+      int i84,
+      int i85,
+      int i86,
+      int i87,
+      int i88,
+      int i89,
+      int i90,
+      int i91,
+      int i92,
+      int i93,
+      int i94,
+      int i95,
+      int i96,
+      int i97,
+      int i98,
+      int i99,
+      int i100,
+      int i101,
+      int i102,
+      int i103,
+      int i104,
+      int i105,
+      int i106,
+      int i107,
+      int i108,
+      int i109,
+      int i110,
+      int i111,
+      int i112,
+      int i113,
+      int i114,
+      int i115,
+      int i116,
+      int i117,
+      int i118,
+      int i119,
+      int i120,
+      int i121,
+      int i122,
+      int i123,
+      int i124,
+      int i125,
+      int i126) {}
+
+  private void callMe(
+      int i0,
+      int i1,
+      int i2,
+      int i3,
+      int i4,
+      int i5,
+      int i6,
+      int i7,
+      int i8,
+      int i9,
+      int i10,
+      int i11,
+      int i12,
+      int i13,
+      int i14,
+      int i15,
+      int i16,
+      int i17,
+      int i18,
+      int i19,
+      int i20,
+      int i21,
+      int i22,
+      int i23,
+      int i24,
+      int i25,
+      int i26,
+      int i27,
+      int i28,
+      int i29,
+      int i30,
+      int i31,
+      int i32,
+      int i33,
+      int i34,
+      int i35,
+      int i36,
+      int i37,
+      int i38,
+      int i39,
+      int i40,
+      int i41,
+      int i42,
+      int i43,
+      int i44,
+      int i45,
+      int i46,
+      int i47,
+      int i48,
+      int i49,
+      int i50,
+      int i51,
+      int i52,
+      int i53,
+      int i54,
+      int i55,
+      int i56,
+      int i57,
+      int i58,
+      int i59,
+      int i60,
+      int i61,
+      int i62,
+      int i63,
+      int i64,
+      int i65,
+      int i66,
+      int i67,
+      int i68,
+      int i69,
+      int i70,
+      int i71,
+      int i72,
+      int i73,
+      int i74,
+      int i75,
+      int i76,
+      int i77,
+      int i78,
+      int i79,
+      int i80,
+      int i81,
+      int i82,
+      int i83,
+      int i84,
+      int i85,
+      int i86,
+      int i87,
+      int i88,
+      int i89,
+      int i90,
+      int i91,
+      int i92,
+      int i93,
+      int i94,
+      int i95,
+      int i96,
+      int i97,
+      int i98,
+      int i99,
+      int i100,
+      int i101,
+      int i102,
+      int i103,
+      int i104,
+      int i105,
+      int i106,
+      int i107,
+      int i108,
+      int i109,
+      int i110,
+      int i111,
+      int i112,
+      int i113,
+      int i114,
+      int i115,
+      int i116,
+      int i117,
+      int i118,
+      int i119,
+      int i120,
+      int i121,
+      int i122,
+      int i123,
+      int i124,
+      int i125,
+      int i126,
+      String s) {}
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.agenttest.profileBenchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * A workload for comparing recording profiles. Each operation makes a method call, stores into
+ * local variables, a field, and an array element. The operations are run a few times to warm up and
+ * once more to be timed. The number of timed operations, the time they took, and the number of
+ * operations run in total are written to the file given by the system property {@code
+ * benchmark.result-file}.
+ */
+public class Main {
+
+  private static final int warmUpRuns = 5;
+
+  private int total;
+
+  public static void main(String[] args) throws IOException {
+    int operations = Integer.getInteger("benchmark.operations", 100_000);
+    Main main = new Main();
+    int[] values = new int[16];
+
+    main.warmUp(values, operations);
+
+    long startTime = System.nanoTime();
+    main.run(values, operations);
+    long nanos = System.nanoTime() - startTime;
+
+    String resultFile = System.getProperty("benchmark.result-file");
+    if (resultFile != null) {
+      Files.writeString(Paths.get(resultFile), operations + " " + nanos + " " + (warmUpRuns + 1) * operations);
+    }
+  }
+
+  /** Runs the operations enough times that linking and compiling are not timed. */
+  private void warmUp(int[] values, int operations) {
+    for (int run = 0; run < warmUpRuns; run++) {
+      run(values, operations);
+    }
+  }
+
+  private void run(int[] values, int operations) {
+    for (int i = 0; i < operations; i++) {
+      int value = add(i, 1);
+      total = value;
+      values[i & 15] = value;
+    }
+  }
+
+  private static int add(int a, int b) {
+    return a + b;
+  }
+}
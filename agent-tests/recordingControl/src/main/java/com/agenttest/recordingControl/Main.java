@@ -0,0 +1,46 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.agenttest.recordingControl;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class Main {
+
+  public static void main(String[] args) throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName control = new ObjectName("com.octogonapus.omj.agentlib:type=RecordingControl");
+
+    int recorded = 1;
+    server.invoke(control, "pause", null, null);
+    int paused = 2;
+    server.invoke(control, "resume", null, null);
+    int resumed = 3;
+
+    server.invoke(control, "flush", null, null);
+    String firstTraceFile = (String) server.getAttribute(control, "TraceFile");
+    if (Files.size(Paths.get(firstTraceFile)) == 0) {
+      throw new IllegalStateException("Flushing did not write the traces.");
+    }
+
+    String secondTraceFile = (String) server.invoke(control, "rotate", null, null);
+    int rotated = 4;
+  }
+}
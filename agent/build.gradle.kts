@@ -27,6 +27,8 @@ tasks.jar {
         attributes(
             mapOf(
                 "Premain-Class" to "com.octogonapus.omj.agent.Agent",
+                "Agent-Class" to "com.octogonapus.omj.agent.Agent",
+                "Main-Class" to "com.octogonapus.omj.agent.AheadOfTimeInstrumenter",
                 "Can-Redefine-Classes" to "true",
                 "Can-Retransform-Classes" to "true",
                 "Can-Set-Native-Method-Prefix" to "true"
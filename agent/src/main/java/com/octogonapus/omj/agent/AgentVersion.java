@@ -0,0 +1,85 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Identifies the build of the agent so that data cached on disk by one build is never used by
+ * another. The agent jar contains both the agent and the agent-lib, so the version is a hash of its
+ * contents. When the agent is not running from its jar, the agent and the agent-lib are loaded from
+ * directories that can change between runs, so there is no version and nothing should be cached.
+ */
+final class AgentVersion {
+
+  private static final Logger logger = LoggerFactory.getLogger(AgentVersion.class);
+  private static final String version = computeVersion();
+
+  private AgentVersion() {}
+
+  /**
+   * @return The version of the agent, which is safe to use as a file name, or null if the agent has
+   *     no version.
+   */
+  static String get() {
+    return version;
+  }
+
+  private static String computeVersion() {
+    final CodeSource codeSource = AgentVersion.class.getProtectionDomain().getCodeSource();
+    try {
+      final Path agentJar = Paths.get(codeSource.getLocation().toURI());
+      if (Files.isRegularFile(agentJar)) {
+        return hash(agentJar);
+      }
+    } catch (final IOException | URISyntaxException | RuntimeException e) {
+      logger.warn("Failed to hash the agent jar.", e);
+    }
+
+    // Not running from a jar (e.g., in tests), so there is nothing to hash
+    return null;
+  }
+
+  private static String hash(final Path file) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Every JVM must support SHA-256.", e);
+    }
+
+    try (final InputStream inputStream = Files.newInputStream(file)) {
+      final byte[] buffer = new byte[0xFFFF];
+      int readBytes;
+      while ((readBytes = inputStream.read(buffer)) != -1) {
+        digest.update(buffer, 0, readBytes);
+      }
+    }
+
+    return CacheFiles.toHex(digest.digest());
+  }
+}
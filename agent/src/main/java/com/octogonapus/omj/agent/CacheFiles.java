@@ -0,0 +1,66 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/** Helpers for the caches the agent keeps on disk between runs. */
+final class CacheFiles {
+
+  private CacheFiles() {}
+
+  /**
+   * Writes a file so that readers, including other JVMs, only ever see the old file or the complete
+   * new file. The bytes are written to a temporary file which is then atomically moved into place.
+   *
+   * @param file The file to write.
+   * @param bytes The contents of the file.
+   * @throws IOException From writing or moving the file.
+   */
+  static void writeAtomically(final Path file, final byte[] bytes) throws IOException {
+    final Path dir = file.getParent();
+    Files.createDirectories(dir);
+    final Path tempFile = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tempFile, bytes);
+      try {
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+      } catch (final AtomicMoveNotSupportedException e) {
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * @param bytes The bytes to convert.
+   * @return The bytes as a lower case hex string, which is safe to use as a file name.
+   */
+  static String toHex(final byte[] bytes) {
+    final var builder = new StringBuilder(bytes.length * 2);
+    for (final byte b : bytes) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+      builder.append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent;
+
+import static org.objectweb.asm.Opcodes.ASM8;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+
+/**
+ * An instrumented class kept in the {@link TransformCache}, along with what the instrumented code
+ * needs from the agent: the container classes it records method calls in and the sites it records
+ * from.
+ *
+ * <p>Site IDs are given out in the order sites are registered, so a later run of the agent can give
+ * the class's sites different IDs than the run that instrumented it. Each site remembers which
+ * {@code LDC} instruction loads its ID so that the ID can be replaced. Instructions are found by
+ * their position among the {@code LDC} instructions of their method instead of by their value
+ * because the instrumented code can load the same integer for its own purposes.
+ *
+ * <p>The frames of the instrumented class depend on the superclasses and interfaces of the other
+ * classes they were computed with, which are not part of the class's own bytecode. Those classes
+ * are kept too so that the cached class can be checked against the classes of a later run.
+ */
+final class CachedClass {
+
+  /** The bytecode of the instrumented class. */
+  final byte[] bytes;
+
+  /** The methods the instrumented class needs container classes for. */
+  final List<Container> containers;
+
+  /** The sites in the instrumented class, in the order they were registered. */
+  final List<Site> sites;
+
+  /**
+   * The other classes the frames of the instrumented class were computed with, keyed by their
+   * internal names. See {@link HierarchyClassWriter#getUsedClasses()}.
+   */
+  final Map<String, ClassHierarchy.ClassInfo> hierarchy;
+
+  CachedClass(
+      final byte[] bytes,
+      final List<Container> containers,
+      final List<Site> sites,
+      final Map<String, ClassHierarchy.ClassInfo> hierarchy) {
+    this.bytes = bytes;
+    this.containers = containers;
+    this.sites = sites;
+    this.hierarchy = hierarchy;
+  }
+
+  /**
+   * @param siteIds The ID each site has in this run of the agent, in the order of {@link #sites}.
+   * @return The bytecode of the instrumented class with each site's ID replaced.
+   */
+  byte[] relocateSites(final int[] siteIds) {
+    boolean unchanged = true;
+    for (int i = 0; i < siteIds.length; i++) {
+      unchanged &= sites.get(i).id == siteIds[i];
+    }
+
+    // Classes that are loaded in the same order as when they were cached get the same IDs
+    if (unchanged) {
+      return bytes;
+    }
+
+    // The new ID of each site, keyed by the index of the method and then of the LDC instruction
+    final Map<Integer, Map<Integer, Integer>> relocations = new HashMap<>();
+    for (int i = 0; i < siteIds.length; i++) {
+      final Site site = sites.get(i);
+      relocations
+          .computeIfAbsent(site.methodIndex, key -> new HashMap<>())
+          .put(site.ldcIndex, siteIds[i]);
+    }
+
+    final var classReader = new ClassReader(bytes);
+
+    // Only LDC instructions change, so the frames are still valid. Passing the reader lets the
+    // writer copy methods without sites as they are.
+    final var classWriter = new ClassWriter(classReader, 0);
+    classReader.accept(
+        new ClassVisitor(ASM8, classWriter) {
+          private int methodIndex = 0;
+
+          @Override
+          public MethodVisitor visitMethod(
+              final int access,
+              final String name,
+              final String descriptor,
+              final String signature,
+              final String[] exceptions) {
+            final MethodVisitor methodVisitor =
+                super.visitMethod(access, name, descriptor, signature, exceptions);
+            final Map<Integer, Integer> methodRelocations = relocations.get(methodIndex++);
+            if (methodRelocations == null) {
+              return methodVisitor;
+            }
+
+            return new MethodVisitor(ASM8, methodVisitor) {
+              private int ldcIndex = 0;
+
+              @Override
+              public void visitLdcInsn(final Object value) {
+                final Integer siteId = methodRelocations.get(ldcIndex++);
+                super.visitLdcInsn(siteId == null ? value : siteId);
+              }
+            };
+          }
+        },
+        0);
+    return classWriter.toByteArray();
+  }
+
+  /** A method whose calls are recorded in a container class. */
+  static final class Container {
+    final String methodDescriptor;
+    final boolean isStatic;
+
+    Container(final String methodDescriptor, final boolean isStatic) {
+      this.methodDescriptor = methodDescriptor;
+      this.isStatic = isStatic;
+    }
+  }
+
+  /**
+   * A site registered by the instrumented class. See {@link
+   * com.octogonapus.omj.agentlib.SiteTable#registerSite}.
+   */
+  static final class Site {
+    final String className;
+    final int lineNumber;
+    final String name;
+
+    /** The ID the site had when the class was cached. */
+    final int id;
+
+    /** The index of the method, in class file order, with the instruction that loads the ID. */
+    final int methodIndex;
+
+    /** The index of the instruction that loads the ID among its method's LDC instructions. */
+    final int ldcIndex;
+
+    Site(
+        final String className,
+        final int lineNumber,
+        final String name,
+        final int id,
+        final int methodIndex,
+        final int ldcIndex) {
+      this.className = className;
+      this.lineNumber = lineNumber;
+      this.name = name;
+      this.id = id;
+      this.methodIndex = methodIndex;
+      this.ldcIndex = ldcIndex;
+    }
+  }
+}
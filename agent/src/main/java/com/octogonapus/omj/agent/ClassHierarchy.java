@@ -0,0 +1,236 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * The superclass and interfaces of classes, read from their class files so that computing frames
+ * does not load any classes. Loading a class while another class is being transformed is slow and
+ * can transform classes recursively. Classes are remembered per class loader, so each class file
+ * is read at most once by each class loader that computes frames with it. This is safe to use from
+ * many threads.
+ */
+final class ClassHierarchy {
+
+  private static final String objectClassName = "java/lang/Object";
+  private static final ClassInfo missingClass = new ClassInfo(null, new String[0], false);
+
+  private final Map<ClassLoader, Map<String, ClassInfo>> classesByLoader =
+      Collections.synchronizedMap(new WeakHashMap<>());
+  private final Map<String, ClassInfo> bootstrapClasses = new ConcurrentHashMap<>();
+
+  /**
+   * Remembers a class that may not have a class file the class loader can find, e.g. the class
+   * being transformed.
+   *
+   * @param loader The class loader that defines the class, or null for the bootstrap loader.
+   * @param classReader The reader of the class file.
+   */
+  void register(final ClassLoader loader, final ClassReader classReader) {
+    classesOf(loader).put(classReader.getClassName(), ClassInfo.of(classReader));
+  }
+
+  /**
+   * Finds the common superclass of two classes like {@link
+   * org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)} does.
+   *
+   * @param loader The class loader to find the class files with, or null for the bootstrap loader.
+   * @param type1 The internal name of a class.
+   * @param type2 The internal name of another class.
+   * @return The internal name of the common superclass, or null if the class file of any class in
+   *     the hierarchies of the classes could not be found.
+   */
+  String getCommonSuperClass(final ClassLoader loader, final String type1, final String type2) {
+    return getCommonSuperClass(loader, type1, type2, new HashMap<>());
+  }
+
+  /**
+   * Finds the common superclass of two classes like {@link #getCommonSuperClass(ClassLoader,
+   * String, String)} does and remembers the classes it was found with.
+   *
+   * @param usedClasses The classes the common superclass was found with are put into this map,
+   *     keyed by their internal names.
+   */
+  String getCommonSuperClass(
+      final ClassLoader loader,
+      final String type1,
+      final String type2,
+      final Map<String, ClassInfo> usedClasses) {
+    final Map<String, ClassInfo> classes = classesOf(loader);
+    try {
+      if (isAssignableFrom(loader, classes, usedClasses, type1, type2)) {
+        return type1;
+      } else if (isAssignableFrom(loader, classes, usedClasses, type2, type1)) {
+        return type2;
+      } else if (get(loader, classes, usedClasses, type1).isInterface
+          || get(loader, classes, usedClasses, type2).isInterface) {
+        return objectClassName;
+      }
+
+      String type = type1;
+      do {
+        type = get(loader, classes, usedClasses, type).superName;
+      } while (!isAssignableFrom(loader, classes, usedClasses, type, type2));
+      return type;
+    } catch (final TypeNotPresentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param loader The class loader to find the class files with, or null for the bootstrap loader.
+   * @param classes The classes to check, keyed by their internal names.
+   * @return True if every class still has the same superclass and interfaces, which means that
+   *     common superclasses found with them are still the same.
+   */
+  boolean matches(final ClassLoader loader, final Map<String, ClassInfo> classes) {
+    final Map<String, ClassInfo> currentClasses = classesOf(loader);
+    final Map<String, ClassInfo> usedClasses = new HashMap<>();
+    try {
+      for (final Map.Entry<String, ClassInfo> entry : classes.entrySet()) {
+        if (!get(loader, currentClasses, usedClasses, entry.getKey()).equals(entry.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    } catch (final TypeNotPresentException e) {
+      return false;
+    }
+  }
+
+  /** @return True if a value of {@code type} can be assigned to {@code target}. */
+  private boolean isAssignableFrom(
+      final ClassLoader loader,
+      final Map<String, ClassInfo> classes,
+      final Map<String, ClassInfo> usedClasses,
+      final String target,
+      final String type) {
+    String superType = type;
+    while (superType != null) {
+      if (superType.equals(target)) {
+        return true;
+      }
+
+      final ClassInfo info = get(loader, classes, usedClasses, superType);
+      for (final String interfaceName : info.interfaces) {
+        if (isAssignableFrom(loader, classes, usedClasses, target, interfaceName)) {
+          return true;
+        }
+      }
+      superType = info.superName;
+    }
+    return false;
+  }
+
+  private ClassInfo get(
+      final ClassLoader loader,
+      final Map<String, ClassInfo> classes,
+      final Map<String, ClassInfo> usedClasses,
+      final String name) {
+    ClassInfo info = classes.get(name);
+    if (info == null) {
+      // Don't read the class file in computeIfAbsent because finding it can transform classes,
+      // which can use this map again
+      final ClassInfo readInfo = read(loader, name);
+      info = classes.putIfAbsent(name, readInfo);
+      if (info == null) {
+        info = readInfo;
+      }
+    }
+
+    if (info == missingClass) {
+      throw new TypeNotPresentException(name, null);
+    }
+    usedClasses.put(name, info);
+    return info;
+  }
+
+  private static ClassInfo read(final ClassLoader loader, final String name) {
+    final String resourceName = name + ".class";
+    final InputStream inputStream =
+        loader == null
+            ? ClassLoader.getSystemResourceAsStream(resourceName)
+            : loader.getResourceAsStream(resourceName);
+    if (inputStream == null) {
+      return missingClass;
+    }
+
+    try (inputStream) {
+      return ClassInfo.of(new ClassReader(inputStream));
+    } catch (final IOException | RuntimeException e) {
+      return missingClass;
+    }
+  }
+
+  private Map<String, ClassInfo> classesOf(final ClassLoader loader) {
+    if (loader == null) {
+      return bootstrapClasses;
+    } else {
+      return classesByLoader.computeIfAbsent(loader, key -> new ConcurrentHashMap<>());
+    }
+  }
+
+  /** The parts of a class file header that frames are computed with. */
+  static final class ClassInfo {
+
+    /** The internal name of the superclass, or null for {@code java/lang/Object}. */
+    final String superName;
+
+    final String[] interfaces;
+    final boolean isInterface;
+
+    ClassInfo(
+        final String superName, final String[] interfaces, final boolean isInterface) {
+      this.superName = superName;
+      this.interfaces = interfaces;
+      this.isInterface = isInterface;
+    }
+
+    static ClassInfo of(final ClassReader classReader) {
+      return new ClassInfo(
+          classReader.getSuperName(),
+          classReader.getInterfaces(),
+          (classReader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      final ClassInfo that = (ClassInfo) o;
+      return isInterface == that.isInterface
+          && Objects.equals(superName, that.superName)
+          && Arrays.equals(interfaces, that.interfaces);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Objects.hash(superName, isInterface) + Arrays.hashCode(interfaces);
+    }
+  }
+}
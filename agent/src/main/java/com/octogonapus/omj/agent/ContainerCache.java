@@ -0,0 +1,93 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import org.objectweb.asm.ClassReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the bytecode of generated container classes on disk so that later runs of the agent can
+ * define them without generating them again. The cache is versioned: each version of the agent gets
+ * its own directory, so a class generated by one version is never loaded by another.
+ *
+ * <p>Several instrumented JVMs can share a cache. Each class is written to a temporary file which
+ * is then atomically moved into place, so readers only ever see complete class files. Two JVMs
+ * that generate the same class at the same time write identical bytes, so it does not matter which
+ * one wins.
+ */
+final class ContainerCache {
+
+  private final Logger logger = LoggerFactory.getLogger(ContainerCache.class);
+  private final Path versionDir;
+
+  /**
+   * @param cacheDir The directory to keep the cache in.
+   * @param version The version of the agent. See {@link AgentVersion}.
+   */
+  ContainerCache(final Path cacheDir, final String version) {
+    versionDir = cacheDir.resolve(version);
+    logger.debug("Using container cache {}", versionDir);
+  }
+
+  /**
+   * @param className The internal name of the class.
+   * @return The bytecode of the class, or null if the class is not in the cache.
+   */
+  byte[] load(final String className) {
+    final Path file = fileFor(className);
+    try {
+      final byte[] bytes = Files.readAllBytes(file);
+
+      // Check that the file holds the class it should so that a damaged cache can't break the
+      // instrumented code
+      if (new ClassReader(bytes).getClassName().equals(className)) {
+        return bytes;
+      }
+      logger.warn("Ignoring cached class file {} which does not hold {}", file, className);
+    } catch (final NoSuchFileException e) {
+      // Not cached yet
+    } catch (final IOException | RuntimeException e) {
+      logger.warn("Ignoring unreadable cached class file " + file, e);
+    }
+    return null;
+  }
+
+  /**
+   * Puts a class into the cache. Failing to write the cache is not fatal because the class can
+   * always be generated again.
+   *
+   * @param className The internal name of the class.
+   * @param bytes The bytecode of the class.
+   */
+  void store(final String className, final byte[] bytes) {
+    final Path file = fileFor(className);
+    try {
+      CacheFiles.writeAtomically(file, bytes);
+    } catch (final IOException e) {
+      logger.warn("Failed to cache class " + className, e);
+    }
+  }
+
+  private Path fileFor(final String className) {
+    return versionDir.resolve(className.substring(className.lastIndexOf('/') + 1) + ".class");
+  }
+}
@@ -16,43 +16,91 @@
  */
 package com.octogonapus.omj.agent;
 
-import com.octogonapus.omj.util.SimpleTypeUtil;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.lang.instrument.Instrumentation;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.LCONST_0;
+import static org.objectweb.asm.Opcodes.LLOAD;
+import static org.objectweb.asm.Opcodes.LRETURN;
+import static org.objectweb.asm.Opcodes.PUTFIELD;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V11;
+
+import com.octogonapus.omj.agentlib.ArrayMethodTrace;
+import com.octogonapus.omj.agentlib.ErasedMethodTrace;
+import com.octogonapus.omj.agentlib.MethodTrace;
+import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
-import java.util.Set;
-import java.util.jar.JarFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Defines the container classes that instrumented methods record their calls in. Classes can be
+ * loaded by many threads at once, so this class is thread-safe: each container class is defined by
+ * the first thread that needs it, threads that need a container class which is still being defined
+ * wait for only that class, and different container classes are defined in parallel.
+ */
 public final class DynamicClassDefiner {
 
+  private static final String erasedMethodTraceClassName =
+      Type.getInternalName(ErasedMethodTrace.class);
+  private static final String arrayMethodTraceClassName =
+      Type.getInternalName(ArrayMethodTrace.class);
+  private static final String objectDescriptor = "Ljava/lang/Object;";
+  private static final String generatedClassPackage =
+      erasedMethodTraceClassName.substring(0, erasedMethodTraceClassName.lastIndexOf('/') + 1);
+
   private final Logger logger = LoggerFactory.getLogger(DynamicClassDefiner.class);
-  private static final Path javaBin = Paths.get(System.getProperty("java.home")).resolve("bin");
-  private final Set<String> namesOfDynamicClasses = new HashSet<>();
-  private final Instrumentation instrumentation;
-  private final Path cacheDir;
-
-  DynamicClassDefiner(final Instrumentation instrumentation, final Path cacheDir) {
-    this.instrumentation = instrumentation;
-    this.cacheDir = cacheDir;
-    logger.debug("Got cache dir {}", cacheDir);
+  private final ConcurrentMap<String, Definition> definitions = new ConcurrentHashMap<>();
+  private final MethodHandles.Lookup methodTraceLookup;
+  private final ContainerCache containerCache;
+
+  /** Creates a definer which generates every container class it needs. */
+  DynamicClassDefiner() {
+    this(null);
   }
 
-  private List<Type> getMethodSignatureTypes(
-      final String methodDescriptor, final boolean isStatic) {
+  /**
+   * @param containerCache The cache to load container classes from and to put newly generated
+   *     container classes into, or null to generate every container class.
+   */
+  DynamicClassDefiner(final ContainerCache containerCache) {
+    this.containerCache = containerCache;
+    try {
+      // Define the generated classes next to MethodTrace so that they are in the same class loader
+      // as agent-lib and instrumented code can see them
+      methodTraceLookup = MethodHandles.privateLookupIn(MethodTrace.class, MethodHandles.lookup());
+    } catch (final IllegalAccessException e) {
+      throw new IllegalStateException("Cannot define classes in the agent-lib package.", e);
+    }
+  }
+
+  /**
+   * @param methodDescriptor The method descriptor.
+   * @param isStatic Whether the method is static.
+   * @return The types of the method's arguments, starting with the receiver as an {@code Object} if
+   *     the method is virtual.
+   */
+  static List<Type> getMethodSignatureTypes(final String methodDescriptor, final boolean isStatic) {
     final var out = new ArrayList<Type>();
     if (!isStatic) {
       out.add(Type.getType(Object.class));
@@ -62,496 +110,352 @@ public final class DynamicClassDefiner {
   }
 
   /**
-   * Ensures that a container class exists for the method. This method is idempotent.
+   * @param argumentTypes The types of the arguments, including the receiver if applicable.
+   * @return True if the arguments fit into the constructor of a generated container class. The
+   *     others are recorded in an {@link ArrayMethodTrace}.
+   */
+  static boolean canPackArguments(final List<Type> argumentTypes) {
+    final int numberOfPrimitives = countPrimitives(argumentTypes);
+    final int numberOfReferences = argumentTypes.size() - numberOfPrimitives;
+
+    // Primitives take two parameter slots once they are widened, and the receiver of the
+    // constructor, the declared types, and the static flag take three more
+    return 3 + numberOfPrimitives * 2 + numberOfReferences <= 0xFF;
+  }
+
+  /**
+   * Ensures that a container class exists for the method. This method is idempotent. Methods with
+   * the same number of primitive and reference arguments share a container class. See {@link
+   * ErasedMethodTrace}.
    *
    * @param methodDescriptor The method descriptor to generate a class for.
    * @param isStatic Whether the method is static.
-   * @return The name of the generated class. It will be in the unnamed package.
+   * @return The internal name of the container class. It will be in the agent-lib package. Methods
+   *     whose arguments can't be packed (see {@link #canPackArguments(List)}) get {@link
+   *     ArrayMethodTrace}, which is not generated.
    */
   String defineClassForMethod(final String methodDescriptor, final boolean isStatic) {
     final List<Type> methodSignatureTypes = getMethodSignatureTypes(methodDescriptor, isStatic);
-    final String className = generateClassName(methodSignatureTypes, isStatic);
+    if (!canPackArguments(methodSignatureTypes)) {
+      return arrayMethodTraceClassName;
+    }
+
+    final String className = generateClassName(methodSignatureTypes);
 
     logger.debug("Method descriptor (isStatic = {}) {}", isStatic, methodDescriptor);
     logger.debug(
         "Parsed types {}",
         methodSignatureTypes.stream().map(Type::getClassName).collect(Collectors.joining(", ")));
 
-    // Check if the class has already been generated by checking if we saved its name
-    if (namesOfDynamicClasses.add(className)) {
-      final var dynamicClass = generateClassCodeForMethod(methodSignatureTypes, isStatic);
-      logger.debug("Generated dynamic class {}", dynamicClass.name);
-
-      try {
-        final File jarFile = writeToJarFile(dynamicClass);
-        logger.debug("Wrote to jar file: {}", jarFile.getAbsolutePath());
-        instrumentation.appendToSystemClassLoaderSearch(new JarFile(jarFile));
-      } catch (final IOException e) {
-        // This is a total system failure because the instrumented code needs this class
-        // to run.
-        logger.error("Failed to write jar file", e);
-        System.exit(1);
+    Definition definition = definitions.get(className);
+    if (definition == null) {
+      // Race the other threads to define the class. The thread whose definition is saved defines
+      // the class and the others wait for it.
+      final var newDefinition = new Definition(className, methodSignatureTypes);
+      definition = definitions.putIfAbsent(className, newDefinition);
+      if (definition == null) {
+        newDefinition.run();
+        definition = newDefinition;
       }
-
-      return dynamicClass.name;
     }
 
+    awaitDefinition(definition);
     return className;
   }
 
-  /**
-   * Compiles the generated class and puts it into a Jar file. Meant for internal use.
-   *
-   * @param dynamicClass The generated class to compile and put into a Jar file.
-   * @return The Jar file.
-   */
-  @SuppressWarnings("ResultOfMethodCallIgnored")
-  File writeToJarFile(final DynamicClass dynamicClass) throws IOException {
-    final var jarFile = cacheDir.resolve(dynamicClass.name + ".jar").toFile();
-    jarFile.deleteOnExit();
-    jarFile.delete();
-
-    logger.debug(
-        "Writing dynamic class {} to Jar file {}:\n{}",
-        dynamicClass.name,
-        jarFile.getAbsolutePath(),
-        dynamicClass.toString());
-
-    final var sourceFile = cacheDir.resolve(dynamicClass.name + ".java").toFile();
-    sourceFile.deleteOnExit();
-    sourceFile.delete();
-    sourceFile.createNewFile();
-
-    try (final var os = new FileOutputStream(sourceFile)) {
-      os.write(dynamicClass.body.getBytes());
+  private void defineClass(final String className, final List<Type> argumentTypes) {
+    // Jars instrumented ahead of time bundle the container classes they need, so the class can
+    // already be on the class path. Defining it again would clash with the bundled class.
+    final ClassLoader agentLibClassLoader = methodTraceLookup.lookupClass().getClassLoader();
+    if (agentLibClassLoader.getResource(className + ".class") != null) {
+      logger.debug("Using dynamic class {} from the class path", className);
+      return;
     }
 
-    final Process javac =
-        new ProcessBuilder(
-                javaBin.resolve("javac").toString(),
-                "-classpath",
-                AgentLibJarExtractor.extractJar().getAbsolutePath(),
-                sourceFile.getAbsolutePath())
-            .inheritIO()
-            .start();
-    try {
-      javac.waitFor();
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-    }
+    final byte[] bytes = loadOrGenerateClass(className, argumentTypes);
 
-    cacheDir.resolve(dynamicClass.name + ".class").toFile().deleteOnExit();
-
-    final Process jar =
-        new ProcessBuilder(
-                javaBin.resolve("jar").toString(),
-                "cf",
-                jarFile.getName(),
-                dynamicClass.name + ".class")
-            .directory(cacheDir.toFile())
-            .inheritIO()
-            .start();
     try {
-      jar.waitFor();
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+      methodTraceLookup.defineClass(bytes);
+    } catch (final IllegalAccessException | LinkageError e) {
+      // This is a total system failure because the instrumented code needs this class
+      // to run.
+      logger.error("Failed to define dynamic class " + className, e);
+      System.exit(1);
     }
-
-    return jarFile;
   }
 
-  /**
-   * Generates the code to define a container class for a method.
-   *
-   * @param argumentTypes The types of the arguments this class needs to keep track of, including
-   *     the receiver if applicable.
-   * @param isStatic Whether the method is static.
-   * @return The {@link DynamicClass} matching the method.
-   */
-  DynamicClass generateClassCodeForMethod(final List<Type> argumentTypes, final boolean isStatic) {
-    final StringBuilder classCodeBuilder = new StringBuilder();
-    final String className = generateClassName(argumentTypes, isStatic);
-
-    // Generate a snippet for each argument type. Keep track of the sorts of the types that have
-    // been processed already because we can only generate code for a sort once (because
-    // generateSetArgumentOverride must handle every instance of a sort at once).
-    final Set<Integer> processedSorts = new HashSet<>();
-    final var snippets =
-        argumentTypes.stream()
-            .map(
-                type -> {
-                  final int adaptedSort;
-                  if (type.getSort() == Type.ARRAY) {
-                    adaptedSort = Type.OBJECT;
-                  } else {
-                    adaptedSort = type.getSort();
-                  }
-
-                  // Only generate code if we haven't processed the sort yet
-                  if (processedSorts.add(adaptedSort)) {
-                    final List<Type> sameSortTypes =
-                        argumentTypes.stream()
-                            .filter(
-                                it -> {
-                                  if (it.getSort() == Type.ARRAY || it.getSort() == Type.OBJECT) {
-                                    return adaptedSort == Type.OBJECT;
-                                  } else {
-                                    return it.getSort() == adaptedSort;
-                                  }
-                                })
-                            .collect(Collectors.toList());
-
-                    logger.debug(
-                        "Generating set argument override for {} with sort {}",
-                        type.getClassName(),
-                        type.getSort());
-
-                    return generateSetArgumentOverride(sameSortTypes);
-                  } else {
-                    return null;
-                  }
-                })
-            .filter(Objects::nonNull)
-            .collect(Collectors.toList());
-
-    // Import the class we will extend
-    classCodeBuilder.append("import com.octogonapus.omj.agentlib.MethodTrace;\n");
-
-    // Needed for the serialize method override
-    classCodeBuilder.append("import java.io.IOException;\nimport java.io.OutputStream;\n");
-
-    // Declare the class
-    classCodeBuilder
-        .append("final public class ")
-        .append(className)
-        .append(" extends MethodTrace {\n");
-
-    // Append all the fields
-    snippets.forEach(
-        it ->
-            classCodeBuilder.append(
-                Stream.concat(it.utilityFields.stream(), it.argumentFields.stream())
-                    .map(field -> field.contents)
-                    .collect(Collectors.joining())));
-
-    // Declare a constructor that delegates to the superclass
-    classCodeBuilder
-        .append("public ")
-        .append(className)
-        .append("() {\n")
-        .append("super(")
-        .append(isStatic ? "true" : "false")
-        .append(");\n")
-        .append("}\n");
-
-    // Append all the methods
-    snippets.forEach(it -> classCodeBuilder.append(it.methods));
-
-    // Append the getIndex method override
-    classCodeBuilder
-        .append("@Override\n")
-        .append("public long getIndex() {\n")
-        .append("return index;\n")
-        .append("}\n");
-
-    // Append the serialize method override
-    classCodeBuilder.append(generateSerializeOverride(snippets));
-
-    // Close the class declaration
-    classCodeBuilder.append('}');
-
-    return new DynamicClass(className, classCodeBuilder.toString());
+  private static void awaitDefinition(final Definition definition) {
+    // Defining the class can load other classes, which can be transformed on this thread and need
+    // the same class. Waiting here would deadlock. The class is only resolved when the
+    // instrumented code first runs, which is after the definition has finished, so don't wait.
+    if (definition.definingThread == Thread.currentThread() && !definition.isDone()) {
+      return;
+    }
+
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          definition.get();
+          return;
+        } catch (final InterruptedException e) {
+          // Class loading can't be interrupted, so finish waiting and restore the interrupt after
+          interrupted = true;
+        } catch (final ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
   /**
-   * Generates a single {@link GeneratedSnippet} given the type of an argument and the number of
-   * times that type is used between all the method's arguments. Only one method is generated that
-   * overrides the appropriate {@link com.octogonapus.omj.agentlib.MethodTrace} method, but that
-   * method contains a switch that handles every expected invocation of the method. The number of
-   * expected invocations is the {@code count}.
+   * Loads a container class from the cache, or generates it and puts it into the cache if it is not
+   * there yet.
    *
-   * @param argumentTypes The types the arguments in the method being traced. They must all have the
-   *     same sort.
-   * @return A {@link GeneratedSnippet} that handles all arguments of the provided type.
+   * @param className The internal name of the container class.
+   * @param argumentTypes The types of the arguments, including the receiver if applicable.
+   * @return The bytecode of the container class.
    */
-  private GeneratedSnippet generateSetArgumentOverride(final List<Type> argumentTypes) {
-    final GeneratedSnippet snippet = new GeneratedSnippet();
-    final String generalClassName = TypeUtil.getAdaptedClassName(argumentTypes.get(0));
-
-    // Counter that keeps track of the number of times the set_argument_xxx method has been called
-    final var counterField = new Field();
-    counterField.name = generalClassName + "_counter";
-    counterField.contents = "private int " + counterField.name + " = 0;\n";
-    snippet.utilityFields.add(counterField);
-
-    // Generate a field for each expected invocation
-    for (int i = 0; i < argumentTypes.size(); i++) {
-      final var field = new Field();
-      field.type = argumentTypes.get(i);
-      field.name = generalClassName + '_' + i;
-      field.contents = "private " + generalClassName + ' ' + field.name + ";\n";
-      snippet.argumentFields.add(field);
+  private byte[] loadOrGenerateClass(final String className, final List<Type> argumentTypes) {
+    if (containerCache != null) {
+      final byte[] cachedBytes = containerCache.load(className);
+      if (cachedBytes != null) {
+        logger.debug("Loaded dynamic class {} from the cache", className);
+        return cachedBytes;
+      }
     }
 
-    // Override the appropriate method and generate a switch that handles every expected invocation
-    snippet
-        .methods
-        .append("@Override\n")
-        .append("public void set_argument_")
-        .append(generalClassName)
-        .append("(final ")
-        .append(generalClassName)
-        .append(" value) {\n")
-        .append("switch (")
-        .append(generalClassName)
-        .append("_counter) {\n");
-    for (int i = 0; i < argumentTypes.size(); i++) {
-      // Set the appropriate field based on the invocation number
-      snippet
-          .methods
-          .append("case ")
-          .append(i)
-          .append(": ")
-          .append(generalClassName)
-          .append('_')
-          .append(i)
-          .append(" = value;\n");
-    }
+    final var dynamicClass = generateClassForMethod(argumentTypes);
+    logger.debug("Generated dynamic class {}", dynamicClass.name);
 
-    // Increment the counter after the switch
-    snippet.methods.append("}\n").append(generalClassName).append("_counter++;\n").append("}\n");
+    if (containerCache != null) {
+      containerCache.store(dynamicClass.name, dynamicClass.bytes);
+    }
 
-    return snippet;
+    return dynamicClass.bytes;
   }
 
-  private StringBuilder generateSerializeOverride(final List<GeneratedSnippet> snippets) {
-    final var builder = new StringBuilder();
-
-    // Imports for OutputStream and IOException are added at a higher level
-    builder
-        .append("@Override\n")
-        .append("public void serialize(final OutputStream outputStream) throws IOException {\n");
-
-    // The index is given in the serialize method's parameters
-    appendNumericAsBytes(
-        "index", SimpleTypeUtil.getLengthOfTypeForTrace(SimpleTypeUtil.SimpleType.LONG), builder);
-
-    // Method trace identifier
-    builder.append("outputStream.write(0x2);\n");
-
-    // Class name
-    appendStringAsBytes("className", builder);
-
-    // Line number
-    appendNumericAsBytes(
-        "lineNumber",
-        SimpleTypeUtil.getLengthOfTypeForTrace(SimpleTypeUtil.SimpleType.INT),
-        builder);
-
-    // Method name
-    appendStringAsBytes("methodName", builder);
+  /**
+   * Generates the bytecode of a container class for a method. See {@link
+   * #getConstructorDescriptor(List)} for the constructor the class has.
+   *
+   * @param argumentTypes The types of the arguments this class needs to keep track of, including
+   *     the receiver if applicable. They must fit into the constructor. See {@link
+   *     #canPackArguments(List)}.
+   * @return The {@link DynamicClass} matching the method.
+   */
+  DynamicClass generateClassForMethod(final List<Type> argumentTypes) {
+    final String className = generateClassName(argumentTypes);
+    final int numberOfPrimitives = countPrimitives(argumentTypes);
+    final int numberOfReferences = argumentTypes.size() - numberOfPrimitives;
+
+    if (!canPackArguments(argumentTypes)) {
+      throw new IllegalArgumentException(
+          "Too many primitive arguments for a container constructor: " + numberOfPrimitives);
+    }
 
-    // Is static
-    appendBooleanAsByte("isStatic", builder);
+    // The slots of the class's methods are only ever merged with themselves, so computing frames
+    // never needs to load a class to find a common super class
+    final var classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+    classWriter.visit(
+        V11, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, erasedMethodTraceClassName, null);
 
-    // Number of arguments
-    final int numberOfArguments =
-        snippets.stream().mapToInt(snippet -> snippet.argumentFields.size()).sum();
-    if (numberOfArguments > 0xFF) {
-      throw new IllegalStateException(
-          "Too many arguments to pack into one byte: " + numberOfArguments);
+    // Declare all the slots
+    for (int i = 0; i < numberOfPrimitives; i++) {
+      classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "p" + i, "J", null, null).visitEnd();
     }
-    builder.append("outputStream.write(").append(numberOfArguments).append(");\n");
-
-    // Type and value for each method argument
-    for (final var snippet : snippets) {
-      for (final var field : snippet.argumentFields) {
-        appendField(field, builder);
-      }
+    for (int i = 0; i < numberOfReferences; i++) {
+      classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "r" + i, objectDescriptor, null, null)
+          .visitEnd();
     }
 
-    // End the serialize method
-    builder.append("}\n");
-
-    return builder;
+    generateConstructor(classWriter, className, argumentTypes, numberOfPrimitives);
+    generateSlotGetter(
+        classWriter, className, "getPrimitive", "J", "p", numberOfPrimitives, LCONST_0, LRETURN);
+    generateSlotGetter(
+        classWriter,
+        className,
+        "getReference",
+        objectDescriptor,
+        "r",
+        numberOfReferences,
+        ACONST_NULL,
+        ARETURN);
+
+    classWriter.visitEnd();
+    return new DynamicClass(className, classWriter.toByteArray());
   }
 
   /**
-   * Appends the type and value of the field.
+   * The constructor of a container class takes the descriptor character of every argument's
+   * declared type as a string, whether the method is static, every primitive argument widened to a
+   * {@code long} in order, and then every reference argument (including the receiver, if
+   * applicable) as an {@code Object} in order. See {@link ErasedMethodTrace}. The constructor of
+   * {@link ArrayMethodTrace} takes the primitives and references in arrays instead.
    *
-   * @param field The field to process.
-   * @param builder The builder to append to.
+   * @param argumentTypes The types of the arguments, including the receiver if applicable.
+   * @return The descriptor of the constructor of the container class for the arguments.
    */
-  private void appendField(final Field field, final StringBuilder builder) {
-    builder
-        .append("outputStream.write('")
-        .append(TypeUtil.getDescriptorChar(field.type))
-        .append("');\n");
-    appendFieldValue(field, builder);
+  static String getConstructorDescriptor(final List<Type> argumentTypes) {
+    if (!canPackArguments(argumentTypes)) {
+      return "(Ljava/lang/String;Z[J[Ljava/lang/Object;)V";
+    }
+
+    final int numberOfPrimitives = countPrimitives(argumentTypes);
+    return "(Ljava/lang/String;Z"
+        + "J".repeat(numberOfPrimitives)
+        + objectDescriptor.repeat(argumentTypes.size() - numberOfPrimitives)
+        + ")V";
   }
 
-  /**
-   * Appends code to write the value of this field into the serialize method's output stream.
-   *
-   * @param field The field to write the value of.
-   * @param builder The builder to append to.
-   */
-  private void appendFieldValue(final Field field, final StringBuilder builder) {
-    final SimpleTypeUtil.SimpleType type = TypeUtil.getSimpleType(field.type);
-    switch (type) {
-      case VOID:
-        throw new IllegalStateException("Somehow got a field with type void.");
-      case BOOLEAN:
-        appendBooleanAsByte(field.name, builder);
-        break;
-      case CHAR:
-      case LONG:
-      case INT:
-      case SHORT:
-      case BYTE:
-        appendNumericAsBytes(field.name, SimpleTypeUtil.getLengthOfTypeForTrace(type), builder);
-        break;
-      case DOUBLE:
-        builder
-            .append("final long ")
-            .append(field.name)
-            .append("_l = Double.doubleToRawLongBits(")
-            .append(field.name)
-            .append(");\n");
-        appendNumericAsBytes(field.name + "_l", 8, builder);
-        break;
-      case FLOAT:
-        builder
-            .append("final int ")
-            .append(field.name)
-            .append("_l = Float.floatToRawIntBits(")
-            .append(field.name)
-            .append(");\n");
-        appendNumericAsBytes(field.name + "_l", 4, builder);
-        break;
-      case REFERENCE:
-        if (field.type.getClassName().equals("java.lang.String")) {
-          // For strings, the value is the length of the string and the bytes
-          builder
-              .append("outputStream.write(")
-              .append(field.name)
-              .append(".getClass().getName().getBytes());\n");
-          builder.append("outputStream.write(0);\n");
-          builder
-              .append("final byte[] ")
-              .append(field.name)
-              .append("_string_bytes = ((String) ")
-              .append(field.name)
-              .append(").getBytes();\n");
-          appendNumericAsBytes(
-              field.name + "_string_bytes.length",
-              SimpleTypeUtil.getLengthOfTypeForTrace(SimpleTypeUtil.SimpleType.INT),
-              builder);
-          builder.append("outputStream.write(").append(field.name).append("_string_bytes);\n");
-        } else {
-          // For objects, the value is the hashcode
-          builder
-              .append("outputStream.write(")
-              .append(field.name)
-              .append(".getClass().getName().getBytes());\n");
-          builder.append("outputStream.write(0);\n");
-          builder
-              .append("final int ")
-              .append(field.name)
-              .append("_hashCode = System.identityHashCode(")
-              .append(field.name)
-              .append(");\n");
-          appendNumericAsBytes(
-              field.name + "_hashCode",
-              SimpleTypeUtil.getLengthOfTypeForTrace(SimpleTypeUtil.SimpleType.INT),
-              builder);
-        }
-        break;
+  private static void generateConstructor(
+      final ClassWriter classWriter,
+      final String className,
+      final List<Type> argumentTypes,
+      final int numberOfPrimitives) {
+    final MethodVisitor method =
+        classWriter.visitMethod(
+            ACC_PUBLIC, "<init>", getConstructorDescriptor(argumentTypes), null, null);
+    method.visitCode();
+
+    method.visitVarInsn(ALOAD, 0);
+    method.visitVarInsn(ALOAD, 1);
+    method.visitVarInsn(ILOAD, 2);
+    method.visitMethodInsn(
+        INVOKESPECIAL, erasedMethodTraceClassName, "<init>", "(Ljava/lang/String;Z)V", false);
+
+    int localIndex = 3;
+    for (int i = 0; i < numberOfPrimitives; i++) {
+      method.visitVarInsn(ALOAD, 0);
+      method.visitVarInsn(LLOAD, localIndex);
+      method.visitFieldInsn(PUTFIELD, className, "p" + i, "J");
+      localIndex += 2;
+    }
+    for (int i = 0; i < argumentTypes.size() - numberOfPrimitives; i++) {
+      method.visitVarInsn(ALOAD, 0);
+      method.visitVarInsn(ALOAD, localIndex);
+      method.visitFieldInsn(PUTFIELD, className, "r" + i, objectDescriptor);
+      localIndex++;
     }
+
+    method.visitInsn(RETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
   }
 
   /**
-   * Appends code to write the bytes of the variable to the serialize method's output stream. The
-   * bytes are written to the output stream in little-endian format.
+   * Generates a method that takes a slot index and returns the value in that slot. The last slot is
+   * the default case, so the method never throws.
    *
-   * @param varName The name of the variable whose bytes to write.
-   * @param bytes The number of bytes to write.
-   * @param builder The builder to append to.
+   * @param classWriter The class to add the method to.
+   * @param className The internal name of the class.
+   * @param methodName The name of the method.
+   * @param slotDescriptor The descriptor of the slots.
+   * @param slotPrefix The prefix of the names of the slot fields.
+   * @param numberOfSlots The number of slots.
+   * @param emptyOpcode The opcode that pushes a value to return when there are no slots.
+   * @param returnOpcode The opcode that returns a slot.
    */
-  private static void appendNumericAsBytes(
-      final String varName, final int bytes, final StringBuilder builder) {
-    for (int i = 0; i < bytes; i++) {
-      builder
-          .append("outputStream.write((byte) ((")
-          .append(varName)
-          .append(" >> ")
-          .append(i * 8)
-          .append(") & 0xFF));\n");
-    }
-  }
-
-  private static void appendStringAsBytes(final String varName, final StringBuilder builder) {
-    builder.append("outputStream.write(").append(varName).append(".getBytes());\n");
-    builder.append("outputStream.write(0);\n");
-  }
-
-  private static void appendBooleanAsByte(final String varName, final StringBuilder builder) {
-    builder.append("outputStream.write(").append(varName).append(" ? 1 : 0);\n");
-  }
-
-  private static String generateClassName(final List<Type> argumentTypes, final boolean isStatic) {
-    final StringBuilder classNameBuilder = new StringBuilder();
-
-    classNameBuilder.append("OMJ_Generated_");
-
-    final Iterator<Type> argumentIter = argumentTypes.iterator();
-    while (argumentIter.hasNext()) {
-      final Type type = argumentIter.next();
+  private static void generateSlotGetter(
+      final ClassWriter classWriter,
+      final String className,
+      final String methodName,
+      final String slotDescriptor,
+      final String slotPrefix,
+      final int numberOfSlots,
+      final int emptyOpcode,
+      final int returnOpcode) {
+    final MethodVisitor method =
+        classWriter.visitMethod(
+            ACC_PROTECTED | ACC_FINAL, methodName, "(I)" + slotDescriptor, null, null);
+    method.visitCode();
+
+    if (numberOfSlots == 0) {
+      method.visitInsn(emptyOpcode);
+      method.visitInsn(returnOpcode);
+    } else {
+      final var slotLabels = new Label[numberOfSlots];
+      for (int i = 0; i < numberOfSlots; i++) {
+        slotLabels[i] = new Label();
+      }
 
-      // String gets special treatment because we load its value into the trace directly, so we
-      // can't treat it like an Object because the serialization code is different.
-      if (type.getClassName().equals("java.lang.String")) {
-        classNameBuilder.append("String");
-      } else {
-        classNameBuilder.append(TypeUtil.getDescriptorChar(type));
+      if (numberOfSlots > 1) {
+        method.visitVarInsn(ILOAD, 1);
+        method.visitTableSwitchInsn(
+            0,
+            numberOfSlots - 2,
+            slotLabels[numberOfSlots - 1],
+            Arrays.copyOf(slotLabels, numberOfSlots - 1));
       }
 
-      if (argumentIter.hasNext()) {
-        classNameBuilder.append('_');
+      for (int i = 0; i < numberOfSlots; i++) {
+        method.visitLabel(slotLabels[i]);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, slotPrefix + i, slotDescriptor);
+        method.visitInsn(returnOpcode);
       }
     }
 
-    if (isStatic) {
-      classNameBuilder.append("_Static");
-    }
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+  }
+
+  private static int countPrimitives(final List<Type> argumentTypes) {
+    return (int) argumentTypes.stream().filter(type -> !isReference(type)).count();
+  }
 
-    return classNameBuilder.toString();
+  private static boolean isReference(final Type type) {
+    return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+  }
+
+  /**
+   * @param argumentTypes The types of the arguments, including the receiver if applicable.
+   * @return The internal name of the container class for the arguments.
+   */
+  static String generateClassName(final List<Type> argumentTypes) {
+    final int numberOfPrimitives = countPrimitives(argumentTypes);
+    return generatedClassPackage
+        + "OMJ_Generated_P"
+        + numberOfPrimitives
+        + "_R"
+        + (argumentTypes.size() - numberOfPrimitives);
   }
 
   static class DynamicClass {
     String name;
-    String body;
+    byte[] bytes;
 
-    private DynamicClass(final String name, final String body) {
+    private DynamicClass(final String name, final byte[] bytes) {
       this.name = name;
-      this.body = body;
+      this.bytes = bytes;
     }
 
     @Override
     public String toString() {
-      return "DynamicClass{" + "name='" + name + '\'' + ", body='" + body + '\'' + '}';
+      return "DynamicClass{" + "name='" + name + '\'' + ", bytes=" + bytes.length + '}';
     }
   }
 
-  private static class GeneratedSnippet {
-    final List<Field> utilityFields = new ArrayList<>();
-    final List<Field> argumentFields = new ArrayList<>();
-    final StringBuilder methods = new StringBuilder();
-  }
+  /** The definition of one container class, which is run by the thread that creates it. */
+  private final class Definition extends FutureTask<Void> {
+    private final Thread definingThread = Thread.currentThread();
 
-  private static class Field {
-    Type type;
-    String name;
-    String contents;
+    private Definition(final String className, final List<Type> argumentTypes) {
+      super(
+          () -> {
+            defineClass(className, argumentTypes);
+            return null;
+          });
+    }
   }
 }
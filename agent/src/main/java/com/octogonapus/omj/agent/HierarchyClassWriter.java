@@ -0,0 +1,87 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Computes frames with a {@link ClassHierarchy} instead of loading classes. The class writer is
+ * given the reader of the original class, so methods that are passed to it unchanged are copied
+ * as they are, frames included, and only the frames of the changed methods are computed.
+ */
+final class HierarchyClassWriter extends ClassWriter {
+
+  private final ClassHierarchy classHierarchy;
+  private final ClassLoader classLoader;
+  private final String className;
+  private final Map<String, ClassHierarchy.ClassInfo> usedClasses = new HashMap<>();
+  private boolean hasLoadedClasses = false;
+
+  /**
+   * @param classReader The reader of the original class.
+   * @param classHierarchy The class hierarchy to compute frames with.
+   * @param classLoader The class loader of the class, or null for the bootstrap loader.
+   */
+  HierarchyClassWriter(
+      final ClassReader classReader,
+      final ClassHierarchy classHierarchy,
+      final ClassLoader classLoader) {
+    super(classReader, COMPUTE_FRAMES);
+    this.classHierarchy = classHierarchy;
+    this.classLoader = classLoader;
+    className = classReader.getClassName();
+    classHierarchy.register(classLoader, classReader);
+  }
+
+  /**
+   * @return The other classes the frames were computed with, keyed by their internal names. The
+   *     class being written is left out because its header is part of its own class file.
+   */
+  Map<String, ClassHierarchy.ClassInfo> getUsedClasses() {
+    final Map<String, ClassHierarchy.ClassInfo> otherClasses = new HashMap<>(usedClasses);
+    otherClasses.remove(className);
+    return otherClasses;
+  }
+
+  /**
+   * @return True if some frames were computed by loading classes because their class files could
+   *     not be found. Those classes are not in {@link #getUsedClasses()}.
+   */
+  boolean hasLoadedClasses() {
+    return hasLoadedClasses;
+  }
+
+  @Override
+  protected String getCommonSuperClass(final String type1, final String type2) {
+    final String commonSuperClass =
+        classHierarchy.getCommonSuperClass(classLoader, type1, type2, usedClasses);
+    if (commonSuperClass == null) {
+      // Some class file could not be found, so fall back to loading the classes
+      hasLoadedClasses = true;
+      return super.getCommonSuperClass(type1, type2);
+    }
+    return commonSuperClass;
+  }
+
+  @Override
+  protected ClassLoader getClassLoader() {
+    return classLoader == null ? super.getClassLoader() : classLoader;
+  }
+}
@@ -0,0 +1,390 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * What {@link OMJClassTransformer} needs to know about the code of each method of a class before it
+ * visits the method's instructions. A class reader visits a method's local variables and maximum
+ * number of locals after its instructions, so they are read ahead of time straight from the {@code
+ * Code} attribute of each method in the class file. This only reads a few attributes, so it is much
+ * cheaper than visiting the class twice.
+ *
+ * <p>The index also records which of the instructions that {@link OMJClassTransformer} instruments
+ * each method has, so that methods with nothing to instrument can be copied as they are.
+ */
+final class MethodCodeIndex {
+
+  // Opcodes that ASM does not expose because a class reader never visits them
+  private static final int LDC_W = 19;
+  private static final int LDC2_W = 20;
+  private static final int WIDE = 196;
+  private static final int GOTO_W = 200;
+  private static final int JSR_W = 201;
+
+  private final MethodCode[] methods;
+
+  private MethodCodeIndex(final MethodCode[] methods) {
+    this.methods = methods;
+  }
+
+  /**
+   * @param methodIndex The index of the method in class file order.
+   * @return The code of the method, or null if the method has no code (i.e., it is abstract or
+   *     native).
+   */
+  MethodCode get(final int methodIndex) {
+    return methods[methodIndex];
+  }
+
+  /**
+   * Indexes the methods of a class file. See JVMS Section 4.7.3 for the layout of the {@code Code}
+   * attribute.
+   *
+   * @param classReader The reader of the class file.
+   * @return The index.
+   */
+  static MethodCodeIndex read(final ClassReader classReader) {
+    final char[] charBuffer = new char[classReader.getMaxStringLength()];
+
+    // Skip the access flags, this class, and the super class
+    int offset = classReader.header + 6;
+    offset += 2 + 2 * classReader.readUnsignedShort(offset);
+
+    // Skip the fields
+    int fieldsCount = classReader.readUnsignedShort(offset);
+    offset += 2;
+    while (fieldsCount-- > 0) {
+      offset = skipAttributes(classReader, offset + 6);
+    }
+
+    final MethodCode[] methods = new MethodCode[classReader.readUnsignedShort(offset)];
+    offset += 2;
+    for (int i = 0; i < methods.length; i++) {
+      int attributesCount = classReader.readUnsignedShort(offset + 6);
+      offset += 8;
+      while (attributesCount-- > 0) {
+        final int length = classReader.readInt(offset + 2);
+        if ("Code".equals(classReader.readUTF8(offset, charBuffer))) {
+          methods[i] = readCode(classReader, offset + 6, charBuffer);
+        }
+        offset += 6 + length;
+      }
+    }
+
+    return new MethodCodeIndex(methods);
+  }
+
+  /**
+   * Indexes the methods of a class tree.
+   *
+   * @param classNode The class.
+   * @return The index.
+   */
+  static MethodCodeIndex of(final ClassNode classNode) {
+    final MethodCode[] methods = new MethodCode[classNode.methods.size()];
+    for (int i = 0; i < methods.length; i++) {
+      final MethodNode methodNode = classNode.methods.get(i);
+      if (methodNode.instructions.size() > 0) {
+        methods[i] = codeOf(methodNode);
+      }
+    }
+    return new MethodCodeIndex(methods);
+  }
+
+  private static MethodCode readCode(
+      final ClassReader classReader, final int codeOffset, final char[] charBuffer) {
+    final var code = new MethodCode(classReader.readUnsignedShort(codeOffset + 2));
+
+    final int codeStart = codeOffset + 8;
+    final int codeEnd = codeStart + classReader.readInt(codeOffset + 4);
+    readInstructions(classReader, codeStart, codeEnd, code, charBuffer);
+
+    // Skip the exception table
+    int offset = codeEnd;
+    offset += 2 + 8 * classReader.readUnsignedShort(offset);
+
+    // The class reader visits the entries of each table in order, so they are indexed in order
+    int firstLineNumberStartPc = Integer.MAX_VALUE;
+    int attributesCount = classReader.readUnsignedShort(offset);
+    offset += 2;
+    while (attributesCount-- > 0) {
+      final String attributeName = classReader.readUTF8(offset, charBuffer);
+      final int length = classReader.readInt(offset + 2);
+      final int entriesCount = classReader.readUnsignedShort(offset + 6);
+      int entryOffset = offset + 8;
+      if ("LineNumberTable".equals(attributeName)) {
+        for (int i = 0; i < entriesCount; i++, entryOffset += 4) {
+          // The first line number is the one of the first instruction
+          final int startPc = classReader.readUnsignedShort(entryOffset);
+          if (startPc < firstLineNumberStartPc) {
+            firstLineNumberStartPc = startPc;
+            code.firstLineNumber = classReader.readUnsignedShort(entryOffset + 2);
+          }
+        }
+      } else if ("LocalVariableTable".equals(attributeName)) {
+        for (int i = 0; i < entriesCount; i++, entryOffset += 10) {
+          code.addLocalVariable(
+              classReader.readUnsignedShort(entryOffset + 8),
+              classReader.readUTF8(entryOffset + 4, charBuffer),
+              classReader.readUTF8(entryOffset + 6, charBuffer));
+        }
+      }
+      offset += 6 + length;
+    }
+
+    return code;
+  }
+
+  /**
+   * Looks for the instructions that are instrumented. See JVMS Section 6.5 for the layout of each
+   * instruction.
+   */
+  private static void readInstructions(
+      final ClassReader classReader,
+      final int codeStart,
+      final int codeEnd,
+      final MethodCode code,
+      final char[] charBuffer) {
+    int offset = codeStart;
+    while (offset < codeEnd) {
+      final int opcode = classReader.readByte(offset);
+      switch (opcode) {
+        case Opcodes.INVOKEVIRTUAL:
+        case Opcodes.INVOKESPECIAL:
+        case Opcodes.INVOKESTATIC:
+        case Opcodes.INVOKEINTERFACE:
+          // The owner is the class of the method reference
+          final int methodRefOffset =
+              classReader.getItem(classReader.readUnsignedShort(offset + 1));
+          code.addMethodInsnOwner(classReader.readClass(methodRefOffset, charBuffer));
+          offset += opcode == Opcodes.INVOKEINTERFACE ? 5 : 3;
+          break;
+        case Opcodes.INVOKEDYNAMIC:
+          code.invokesDynamic = true;
+          offset += 5;
+          break;
+        case Opcodes.TABLESWITCH:
+          // Skip the padding to the default, low, and high values, then the jump offsets
+          offset += 4 - ((offset - codeStart) & 3);
+          offset +=
+              12 + 4 * (classReader.readInt(offset + 8) - classReader.readInt(offset + 4) + 1);
+          break;
+        case Opcodes.LOOKUPSWITCH:
+          // Skip the padding to the default value and number of pairs, then the pairs
+          offset += 4 - ((offset - codeStart) & 3);
+          offset += 8 + 8 * classReader.readInt(offset + 4);
+          break;
+        case WIDE:
+          final int widenedOpcode = classReader.readByte(offset + 1);
+          code.storesValues |= isStore(widenedOpcode);
+          offset += widenedOpcode == Opcodes.IINC ? 6 : 4;
+          break;
+        default:
+          code.storesValues |= isStore(opcode);
+          offset += getInstructionLength(opcode);
+          break;
+      }
+    }
+  }
+
+  private static boolean isStore(final int opcode) {
+    return (opcode >= Opcodes.ISTORE && opcode <= Opcodes.SASTORE)
+        || opcode == Opcodes.IINC
+        || opcode == Opcodes.PUTSTATIC
+        || opcode == Opcodes.PUTFIELD;
+  }
+
+  /** @return The length of an instruction that is not a method call, switch, or wide. */
+  private static int getInstructionLength(final int opcode) {
+    switch (opcode) {
+      case Opcodes.BIPUSH:
+      case Opcodes.LDC:
+      case Opcodes.ILOAD:
+      case Opcodes.LLOAD:
+      case Opcodes.FLOAD:
+      case Opcodes.DLOAD:
+      case Opcodes.ALOAD:
+      case Opcodes.ISTORE:
+      case Opcodes.LSTORE:
+      case Opcodes.FSTORE:
+      case Opcodes.DSTORE:
+      case Opcodes.ASTORE:
+      case Opcodes.RET:
+      case Opcodes.NEWARRAY:
+        return 2;
+      case Opcodes.SIPUSH:
+      case LDC_W:
+      case LDC2_W:
+      case Opcodes.IINC:
+      case Opcodes.GETSTATIC:
+      case Opcodes.PUTSTATIC:
+      case Opcodes.GETFIELD:
+      case Opcodes.PUTFIELD:
+      case Opcodes.NEW:
+      case Opcodes.ANEWARRAY:
+      case Opcodes.CHECKCAST:
+      case Opcodes.INSTANCEOF:
+      case Opcodes.IFNULL:
+      case Opcodes.IFNONNULL:
+        return 3;
+      case Opcodes.MULTIANEWARRAY:
+        return 4;
+      case GOTO_W:
+      case JSR_W:
+        return 5;
+      default:
+        // The jumps from IFEQ to JSR take a two byte offset
+        return opcode >= Opcodes.IFEQ && opcode <= Opcodes.JSR ? 3 : 1;
+    }
+  }
+
+  private static MethodCode codeOf(final MethodNode methodNode) {
+    final var code = new MethodCode(methodNode.maxLocals);
+
+    boolean visitedLineNumber = false;
+    for (final AbstractInsnNode insnNode : methodNode.instructions) {
+      if (insnNode instanceof LineNumberNode) {
+        if (!visitedLineNumber) {
+          code.firstLineNumber = ((LineNumberNode) insnNode).line;
+          visitedLineNumber = true;
+        }
+      } else if (insnNode instanceof MethodInsnNode) {
+        code.addMethodInsnOwner(((MethodInsnNode) insnNode).owner);
+      } else if (insnNode instanceof InvokeDynamicInsnNode) {
+        code.invokesDynamic = true;
+      } else if (insnNode instanceof FieldInsnNode || insnNode instanceof IincInsnNode) {
+        code.storesValues |= isStore(insnNode.getOpcode());
+      } else {
+        code.storesValues |=
+            insnNode.getOpcode() >= Opcodes.ISTORE && insnNode.getOpcode() <= Opcodes.SASTORE;
+      }
+    }
+
+    final List<LocalVariableNode> localVariables = methodNode.localVariables;
+    if (localVariables != null) {
+      for (final LocalVariableNode localVariable : localVariables) {
+        code.addLocalVariable(localVariable.index, localVariable.name, localVariable.desc);
+      }
+    }
+
+    return code;
+  }
+
+  private static int skipAttributes(final ClassReader classReader, final int attributesOffset) {
+    int offset = attributesOffset + 2;
+    int attributesCount = classReader.readUnsignedShort(attributesOffset);
+    while (attributesCount-- > 0) {
+      offset += 6 + classReader.readInt(offset + 2);
+    }
+    return offset;
+  }
+
+  /** The parts of a method's code that are needed before its instructions are visited. */
+  static final class MethodCode {
+
+    /** The maximum number of local variables of the method. */
+    final int maxLocals;
+
+    /** The line number of the method's first instruction, or 0 if it has no line numbers. */
+    int firstLineNumber = 0;
+
+    /** Whether the method stores to a local variable, field, or array element. */
+    boolean storesValues = false;
+
+    /** Whether the method has an {@code INVOKEDYNAMIC} instruction. */
+    boolean invokesDynamic = false;
+
+    // The distinct owners of the method's method instructions in the order they first appear
+    private final List<String> methodInsnOwners = new ArrayList<>(4);
+
+    // The name and descriptor of the first entry of the local variable table for each index
+    private String[] localVariableNames;
+    private String[] localVariableDescriptors;
+
+    private MethodCode(final int maxLocals) {
+      this.maxLocals = maxLocals;
+      localVariableNames = new String[maxLocals];
+      localVariableDescriptors = new String[maxLocals];
+    }
+
+    /**
+     * @param index The index of the local variable.
+     * @return The name of the first local variable with the index.
+     * @throws IllegalStateException If there is no local variable with the index.
+     */
+    String getLocalVariableName(final int index) {
+      return localVariableNames[checkLocalVariable(index)];
+    }
+
+    /**
+     * @param index The index of the local variable.
+     * @return The descriptor of the first local variable with the index.
+     * @throws IllegalStateException If there is no local variable with the index.
+     */
+    String getLocalVariableDescriptor(final int index) {
+      return localVariableDescriptors[checkLocalVariable(index)];
+    }
+
+    /** @return The distinct owners of the method's method instructions. */
+    List<String> getMethodInsnOwners() {
+      return Collections.unmodifiableList(methodInsnOwners);
+    }
+
+    private int checkLocalVariable(final int index) {
+      if (index >= localVariableNames.length || localVariableNames[index] == null) {
+        throw new IllegalStateException(
+            "There is no local variable with index " + index + ". Compile with debug info (-g).");
+      }
+      return index;
+    }
+
+    private void addMethodInsnOwner(final String owner) {
+      if (!methodInsnOwners.contains(owner)) {
+        methodInsnOwners.add(owner);
+      }
+    }
+
+    private void addLocalVariable(final int index, final String name, final String descriptor) {
+      if (index >= localVariableNames.length) {
+        localVariableNames = Arrays.copyOf(localVariableNames, index + 1);
+        localVariableDescriptors = Arrays.copyOf(localVariableDescriptors, index + 1);
+      }
+
+      // A local variable can be declared several times with the same index, so keep the first
+      if (localVariableNames[index] == null) {
+        localVariableNames[index] = name;
+        localVariableDescriptors[index] = descriptor;
+      }
+    }
+  }
+}
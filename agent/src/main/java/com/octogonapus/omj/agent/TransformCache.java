@@ -0,0 +1,240 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent;
+
+import com.octogonapus.omj.util.Util;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps instrumented classes on disk so that later runs of the agent don't have to instrument them
+ * again. Each class is keyed by a hash of its original bytecode and of the configuration it was
+ * instrumented with. Like the {@link ContainerCache}, the cache is versioned and can be shared by
+ * several JVMs. If the agent has no version, the cache is disabled because it can't tell classes
+ * instrumented by this build of the agent from classes instrumented by another.
+ *
+ * <p>The key does not cover the other classes that the frames of the class were computed with, so
+ * each cached class keeps their superclasses and interfaces and the caller checks them before using
+ * the class. See {@link CachedClass#hierarchy}. Classes whose frames were computed by loading
+ * classes can't be checked and are not cached. If a cached class is still suspected to be stale,
+ * run with {@code -Dagent.transform-cache=false} to instrument every class again.
+ */
+final class TransformCache {
+
+  /** Changes whenever the layout of the cache files changes. */
+  private static final int formatVersion = 2;
+
+  private final Logger logger = LoggerFactory.getLogger(TransformCache.class);
+  private final Path versionDir;
+  private final boolean isEnabled;
+
+  /**
+   * @param cacheDir The directory to keep the cache in.
+   * @param version The version of the agent, or null if it has none. See {@link AgentVersion}.
+   */
+  TransformCache(final Path cacheDir, final String version) {
+    this(cacheDir, version, true);
+  }
+
+  /**
+   * @param cacheDir The directory to keep the cache in.
+   * @param version The version of the agent, or null if it has none. See {@link AgentVersion}.
+   * @param isEnabled False to never load or store classes.
+   */
+  TransformCache(final Path cacheDir, final String version, final boolean isEnabled) {
+    versionDir = version == null ? null : cacheDir.resolve(version);
+    this.isEnabled = isEnabled && version != null;
+    if (this.isEnabled) {
+      logger.debug("Using transform cache {}", versionDir);
+    } else if (version == null) {
+      logger.debug("The transform cache is disabled because the agent has no version");
+    } else {
+      logger.debug("The transform cache is disabled");
+    }
+  }
+
+  /**
+   * @param version The version of the agent, or null if it has none. See {@link AgentVersion}.
+   * @return A cache in the directory given by {@link Util#getTransformCacheDir()} that is disabled
+   *     if the {@code agent.transform-cache} property is false or the agent has no version.
+   */
+  static TransformCache createFromSystemProperties(final String version) {
+    return new TransformCache(
+        Util.getTransformCacheDir(),
+        version,
+        Boolean.parseBoolean(System.getProperty("agent.transform-cache", "true")));
+  }
+
+  /**
+   * @param configuration Everything besides the agent version that changes how classes are
+   *     instrumented.
+   * @param classBytes The original bytecode of the class.
+   * @return The key to keep the instrumented class under.
+   */
+  static String keyOf(final String configuration, final byte[] classBytes) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Every JVM must support SHA-256.", e);
+    }
+
+    digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(classBytes);
+    return CacheFiles.toHex(digest.digest());
+  }
+
+  /**
+   * @param key The key of the class. See {@link #keyOf(String, byte[])}.
+   * @return The instrumented class, or null if the class is not in the cache.
+   */
+  CachedClass load(final String key) {
+    if (!isEnabled) {
+      return null;
+    }
+
+    final Path file = fileFor(key);
+    try (final var inputStream = new DataInputStream(Files.newInputStream(file))) {
+      if (inputStream.readInt() != formatVersion) {
+        logger.warn("Ignoring cached class file {} with another format", file);
+        return null;
+      }
+
+      final byte[] bytes = new byte[inputStream.readInt()];
+      inputStream.readFully(bytes);
+
+      final int numberOfContainers = inputStream.readInt();
+      final List<CachedClass.Container> containers = new ArrayList<>(numberOfContainers);
+      for (int i = 0; i < numberOfContainers; i++) {
+        containers.add(
+            new CachedClass.Container(inputStream.readUTF(), inputStream.readBoolean()));
+      }
+
+      final int numberOfSites = inputStream.readInt();
+      final List<CachedClass.Site> sites = new ArrayList<>(numberOfSites);
+      for (int i = 0; i < numberOfSites; i++) {
+        sites.add(
+            new CachedClass.Site(
+                inputStream.readUTF(),
+                inputStream.readInt(),
+                inputStream.readUTF(),
+                inputStream.readInt(),
+                inputStream.readInt(),
+                inputStream.readInt()));
+      }
+
+      final int numberOfClasses = inputStream.readInt();
+      final Map<String, ClassHierarchy.ClassInfo> hierarchy = new HashMap<>(numberOfClasses);
+      for (int i = 0; i < numberOfClasses; i++) {
+        final String name = inputStream.readUTF();
+        final String superName = inputStream.readBoolean() ? inputStream.readUTF() : null;
+        final String[] interfaces = new String[inputStream.readInt()];
+        for (int j = 0; j < interfaces.length; j++) {
+          interfaces[j] = inputStream.readUTF();
+        }
+        hierarchy.put(
+            name, new ClassHierarchy.ClassInfo(superName, interfaces, inputStream.readBoolean()));
+      }
+
+      return new CachedClass(bytes, containers, sites, hierarchy);
+    } catch (final NoSuchFileException e) {
+      // Not cached yet
+    } catch (final IOException | RuntimeException e) {
+      logger.warn("Ignoring unreadable cached class file " + file, e);
+    }
+    return null;
+  }
+
+  /**
+   * Puts an instrumented class into the cache. Failing to write the cache is not fatal because the
+   * class can always be instrumented again.
+   *
+   * @param key The key of the class. See {@link #keyOf(String, byte[])}.
+   * @param cachedClass The instrumented class.
+   */
+  void store(final String key, final CachedClass cachedClass) {
+    if (!isEnabled) {
+      return;
+    }
+
+    try {
+      final var byteArrayOutputStream = new ByteArrayOutputStream(cachedClass.bytes.length + 256);
+      final var outputStream = new DataOutputStream(byteArrayOutputStream);
+      outputStream.writeInt(formatVersion);
+
+      outputStream.writeInt(cachedClass.bytes.length);
+      outputStream.write(cachedClass.bytes);
+
+      outputStream.writeInt(cachedClass.containers.size());
+      for (final CachedClass.Container container : cachedClass.containers) {
+        outputStream.writeUTF(container.methodDescriptor);
+        outputStream.writeBoolean(container.isStatic);
+      }
+
+      outputStream.writeInt(cachedClass.sites.size());
+      for (final CachedClass.Site site : cachedClass.sites) {
+        outputStream.writeUTF(site.className);
+        outputStream.writeInt(site.lineNumber);
+        outputStream.writeUTF(site.name);
+        outputStream.writeInt(site.id);
+        outputStream.writeInt(site.methodIndex);
+        outputStream.writeInt(site.ldcIndex);
+      }
+
+      outputStream.writeInt(cachedClass.hierarchy.size());
+      for (final Map.Entry<String, ClassHierarchy.ClassInfo> entry :
+          cachedClass.hierarchy.entrySet()) {
+        final ClassHierarchy.ClassInfo info = entry.getValue();
+        outputStream.writeUTF(entry.getKey());
+        outputStream.writeBoolean(info.superName != null);
+        if (info.superName != null) {
+          outputStream.writeUTF(info.superName);
+        }
+        outputStream.writeInt(info.interfaces.length);
+        for (final String interfaceName : info.interfaces) {
+          outputStream.writeUTF(interfaceName);
+        }
+        outputStream.writeBoolean(info.isInterface);
+      }
+
+      outputStream.flush();
+      CacheFiles.writeAtomically(fileFor(key), byteArrayOutputStream.toByteArray());
+    } catch (final IOException e) {
+      logger.warn("Failed to cache instrumented class " + key, e);
+    }
+  }
+
+  private Path fileFor(final String key) {
+    // Spread the files over subdirectories so that no directory gets too big
+    return versionDir.resolve(key.substring(0, 2)).resolve(key);
+  }
+}
@@ -16,9 +16,11 @@
  */
 package com.octogonapus.omj.agent
 
+import com.octogonapus.omj.agentlib.SiteTable
 import com.octogonapus.omj.di.OMJKoinContext
 import com.octogonapus.omj.util.Util
 import mu.KotlinLogging
+import org.koin.core.Koin
 import org.koin.dsl.koinApplication
 import org.koin.dsl.module
 import java.io.IOException
@@ -29,29 +31,194 @@ import kotlin.system.exitProcess
 @Suppress("unused")
 object Agent {
 
+    /**
+     * True if the agent was started with `-javaagent`, in which case it can't be attached too.
+     */
+    private var startedByPremain = false
+
+    /**
+     * True if the agent was attached before, in which case the agent lib is already loadable.
+     */
+    private var hasBeenAttached = false
+
+    /**
+     * The internal names of the classes that were instrumented ahead of time. Registered when the
+     * agent is first attached.
+     */
+    private var preInstrumentedClassNames = emptySet<String>()
+
+    /**
+     * The classes instrumented after the agent was attached, or null if they were restored.
+     */
+    private var attachment: Attachment? = null
+
     @JvmStatic
     fun premain(args: String?, instrumentation: Instrumentation) {
-        OMJKoinContext.koinApp = koinApplication {
-            modules(
-                module {
-                    single { DynamicClassDefiner(instrumentation, Util.cacheDir) }
-                    single { ClassFilter.createFromSystemProperties() }
-                }
-            )
+        startedByPremain = true
+        OMJKoinContext.koinApp = createKoinApp(null)
+
+        // Register the sites of the classes that were instrumented ahead of time before any class
+        // is transformed so that the sites get the IDs the classes load
+        val preInstrumentedClassNames = try {
+            registerPreInstrumentedClasses()
+        } catch (e: IOException) {
+            logger.error("Failed to read the manifests of the jars instrumented ahead of time.", e)
+            exitProcess(1)
+        } catch (e: IllegalStateException) {
+            logger.error(e) { e.message }
+            exitProcess(1)
         }
 
-        instrumentation.addTransformer(OMJClassFileTransformer())
+        if (preInstrumentedClassNames.isNotEmpty() && System.getProperty("agent.include-package") == null) {
+            // Only the classes that were instrumented ahead of time are recorded, so there is
+            // nothing to transform
+            logger.debug { "Using ${preInstrumentedClassNames.size} classes instrumented ahead of time" }
+        } else {
+            instrumentation.addTransformer(
+                OMJClassFileTransformer(
+                    OMJClassFileTransformer.Transformer(ClassTransformerOptions.createFromSystemProperties()),
+                    preInstrumentedClassNames
+                )
+            )
+        }
 
         try {
-            // Extract the agent-lib jar from our jar and let the instrumented jvm load from it
-            instrumentation.appendToSystemClassLoaderSearch(
-                JarFile(AgentLibJarExtractor.extractJar())
-            )
+            appendAgentLib(instrumentation)
         } catch (e: IOException) {
             logger.error("Failed to append the agent lib jar to the system class loader.", e)
             exitProcess(1)
         }
     }
 
+    /**
+     * Called when the agent is attached to a running JVM, e.g. with [AgentAttacher]. [args] is a
+     * command followed by `;`-separated arguments:
+     *
+     * - `instrument;agent.include-package=<pattern>;...` sets each `agent.` or `agent-lib.`
+     * property given after the command, then instruments the loaded classes that pass the
+     * [ClassFilter] by retransforming them. Classes loaded later are instrumented when they are
+     * loaded, like with `-javaagent`. The `agent-lib.` properties only take effect the first time.
+     * - `restore` retransforms the instrumented classes again without instrumenting them, which
+     * restores their original bytecode. Methods that are running keep running the instrumented
+     * code until they return.
+     *
+     * Errors are thrown to the attaching process instead of exiting, so that a mistake can't take
+     * down the JVM being attached to.
+     */
+    @JvmStatic
+    @Synchronized
+    fun agentmain(args: String?, instrumentation: Instrumentation) {
+        check(!startedByPremain) { "The agent was started with -javaagent, so it can't be attached." }
+        check(instrumentation.isRetransformClassesSupported) { "This JVM can't retransform classes." }
+
+        val arguments = args.orEmpty().split(';').filter { it.isNotEmpty() }
+        when (val command = arguments.firstOrNull() ?: "instrument") {
+            "instrument" -> instrumentLoadedClasses(instrumentation, arguments.drop(1))
+            "restore" -> restoreLoadedClasses()
+            else -> throw IllegalArgumentException("Unknown command $command. Expected instrument or restore.")
+        }
+    }
+
+    private fun instrumentLoadedClasses(instrumentation: Instrumentation, properties: List<String>) {
+        check(attachment == null) { "The classes are already instrumented. Restore them first." }
+
+        properties.forEach { property ->
+            val separator = property.indexOf('=')
+            require(separator > 0 && (property.startsWith("agent.") || property.startsWith("agent-lib."))) {
+                "Invalid property $property. Expected agent.<name>=<value> or agent-lib.<name>=<value>."
+            }
+            System.setProperty(property.substring(0, separator), property.substring(separator + 1))
+        }
+
+        OMJKoinContext.koinApp = createKoinApp(if (hasBeenAttached) OMJKoinContext.koinApp.koin else null)
+
+        if (!hasBeenAttached) {
+            preInstrumentedClassNames = registerPreInstrumentedClasses()
+
+            // The classes are instrumented to call the agent lib, so it has to be loadable first
+            appendAgentLib(instrumentation)
+            hasBeenAttached = true
+        }
+
+        attachment = Attachment(
+            instrumentation,
+            OMJClassFileTransformer(
+                OMJClassFileTransformer.Transformer(ClassTransformerOptions.createFromSystemProperties()),
+                preInstrumentedClassNames,
+                exitOnError = false
+            )
+        ).apply { instrument() }
+    }
+
+    private fun restoreLoadedClasses() {
+        val currentAttachment = checkNotNull(attachment) { "The classes are not instrumented." }
+        currentAttachment.restore()
+        attachment = null
+    }
+
+    /**
+     * @param previous The Koin of the previous attachment, if there was one. Its container classes,
+     * caches, and diagnostics are kept so that they outlive each attachment. The [ClassFilter] is
+     * always created again because its properties can change.
+     */
+    private fun createKoinApp(previous: Koin?) = koinApplication {
+        modules(
+            module {
+                single {
+                    // Without a version, classes cached by another build of the agent could be loaded
+                    previous?.get<DynamicClassDefiner>() ?: DynamicClassDefiner(
+                        AgentVersion.get()?.let { ContainerCache(Util.getContainerCacheDir(), it) }
+                    )
+                }
+                single { ClassFilter.createFromSystemProperties() }
+                single { SiteTable.getInstance() }
+                single {
+                    previous?.get<TransformCache>() ?: TransformCache.createFromSystemProperties(AgentVersion.get())
+                }
+                single { previous?.get<ClassHierarchy>() ?: ClassHierarchy() }
+                single { previous?.get<TransformDiagnostics>() ?: TransformDiagnostics.createFromSystemProperties() }
+            }
+        )
+    }
+
+    /**
+     * Extracts the agent-lib jar from our jar and lets the instrumented jvm load from it.
+     *
+     * @throws IOException If the jar could not be extracted.
+     */
+    private fun appendAgentLib(instrumentation: Instrumentation) {
+        instrumentation.appendToSystemClassLoaderSearch(JarFile(AgentLibJarExtractor.extractJar()))
+    }
+
+    /**
+     * Finds the jars on the class path that were instrumented by [AheadOfTimeInstrumenter] and
+     * registers their sites.
+     *
+     * @return The internal names of the classes that were instrumented ahead of time.
+     * @throws IOException If a manifest could not be read.
+     * @throws IllegalStateException If the jars were not instrumented in one run.
+     */
+    private fun registerPreInstrumentedClasses(): Set<String> {
+        val manifests = ClassLoader.getSystemResources(InstrumentedJarManifest.path).toList().map { url ->
+            url.openStream().use { InstrumentedJarManifest.read(it) }
+        }
+
+        if (manifests.isEmpty()) {
+            return emptySet()
+        }
+
+        check(manifests.distinctBy { it.runId }.size == 1) {
+            "The jars instrumented ahead of time must all be instrumented in one run."
+        }
+
+        val siteTable = OMJKoinContext.koinApp.koin.get<SiteTable>()
+        manifests.first().sites.forEachIndexed { index, site ->
+            val id = siteTable.registerSite(site.className, site.lineNumber, site.name)
+            check(id == index + 1) { "Site ${index + 1} of the jars instrumented ahead of time got ID $id." }
+        }
+
+        return manifests.flatMap { it.classNames }.toSet()
+    }
+
     private val logger = KotlinLogging.logger { }
 }
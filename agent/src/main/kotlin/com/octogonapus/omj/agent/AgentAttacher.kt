@@ -0,0 +1,47 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import com.sun.tools.attach.VirtualMachine
+import java.nio.file.Paths
+import kotlin.system.exitProcess
+
+/**
+ * Attaches the agent to a running JVM. See [Agent.agentmain] for the commands.
+ */
+object AgentAttacher {
+
+    private const val usage =
+        "Usage: java -cp agent.jar com.octogonapus.omj.agent.AgentAttacher <pid> " +
+            "[instrument[;agent.<name>=<value>]...|restore]"
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        if (args.size !in 1..2) {
+            System.err.println(usage)
+            exitProcess(2)
+        }
+
+        val agentJar = Paths.get(AgentAttacher::class.java.protectionDomain.codeSource.location.toURI())
+        val virtualMachine = VirtualMachine.attach(args[0])
+        try {
+            virtualMachine.loadAgent(agentJar.toString(), args.getOrElse(1) { "instrument" })
+        } finally {
+            virtualMachine.detach()
+        }
+    }
+}
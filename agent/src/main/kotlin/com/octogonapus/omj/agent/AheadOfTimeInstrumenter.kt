@@ -0,0 +1,314 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import com.octogonapus.omj.agentlib.SiteTable
+import com.octogonapus.omj.di.OMJKoinContext
+import org.koin.dsl.koinApplication
+import org.koin.dsl.module
+import java.io.File
+import java.net.URLClassLoader
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.UUID
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+import kotlin.system.exitProcess
+
+/**
+ * Instruments the classes in jars ahead of time so that an application does not pay for
+ * instrumenting them when it starts. The instrumented jars bundle the container classes their
+ * methods record calls in and an [InstrumentedJarManifest]. When the agent finds instrumented jars
+ * on the class path, it does not transform their classes again. If no include filter is given to
+ * the agent, it does not transform any classes at all.
+ *
+ * All the jars of an application must be instrumented by one run because their sites get IDs from
+ * one site table.
+ */
+object AheadOfTimeInstrumenter {
+
+    private const val usage =
+        "Usage: java -jar agent.jar --include <pattern> --exclude <pattern> --output <dir> " +
+            "[--classpath <path>] [--selection <file>] [--profile <name>] [--switchable-sites] <jar>..."
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val arguments = try {
+            Arguments.parse(args)
+        } catch (e: IllegalArgumentException) {
+            System.err.println(e.message)
+            System.err.println(usage)
+            exitProcess(2)
+        }
+
+        OMJKoinContext.koinApp = koinApplication {
+            modules(
+                module {
+                    single { DynamicClassDefiner() }
+                    single { ClassFilter.create(arguments.includeFilter, arguments.excludeFilter) }
+                    single { SiteTable.create() }
+                    single { ClassHierarchy() }
+                }
+            )
+        }
+
+        val startTime = System.nanoTime()
+        val numberOfInstrumentedClasses = instrumentJars(
+            arguments.jars,
+            arguments.outputDir,
+            arguments.classPath,
+            arguments.profile.options(arguments.selection).copy(switchableSites = arguments.switchableSites)
+        )
+        println(
+            "Instrumented $numberOfInstrumentedClasses classes in ${arguments.jars.size} jars in " +
+                "${(System.nanoTime() - startTime) / 1_000_000} ms."
+        )
+    }
+
+    /**
+     * Instruments jars. The classes are instrumented in parallel.
+     *
+     * @param jars The jars to instrument. They must have different file names. A class can be in
+     * more than one of them.
+     * @param outputDir The directory to write the instrumented jars into. Each instrumented jar has
+     * the same file name as its original.
+     * @param classPath The jars and directories the classes in [jars] need besides each other.
+     * These are only used to compute frames.
+     * @param options What is instrumented.
+     * @return The number of classes that were instrumented.
+     * @throws IllegalArgumentException If two jars have the same file name.
+     */
+    internal fun instrumentJars(
+        jars: List<Path>,
+        outputDir: Path,
+        classPath: List<Path>,
+        options: ClassTransformerOptions = ClassTransformerOptions()
+    ): Int {
+        jars.groupBy { it.fileName }.values.firstOrNull { it.size > 1 }?.let { sameName ->
+            throw IllegalArgumentException(
+                "The jars ${sameName.joinToString()} would be written to the same output jar."
+            )
+        }
+
+        val classFilter = OMJKoinContext.koinApp.koin.get<ClassFilter>()
+
+        // Computing frames needs to find the class files of the classes being instrumented, like
+        // the agent does at runtime
+        val classLoader = URLClassLoader(
+            (jars + classPath).map { it.toUri().toURL() }.toTypedArray(),
+            AheadOfTimeInstrumenter::class.java.classLoader
+        )
+        val transformer = OMJClassFileTransformer.Transformer(options)
+
+        val executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+        try {
+            val instrumentedJars = jars.map { jar ->
+                ZipFile(jar.toFile()).use { zipFile ->
+                    val entries = zipFile.entries().toList().map { entry ->
+                        val bytes = zipFile.getInputStream(entry).use { it.readBytes() }
+                        val className = entry.name.removeSuffix(".class")
+                        val instrumentedClass = if (isClass(entry) && classFilter.shouldTransform(className)) {
+                            executor.submit<CachedClass> { transformer.instrument(bytes, classLoader) }
+                        } else {
+                            null
+                        }
+                        JarEntry(entry, bytes, instrumentedClass)
+                    }
+                    InstrumentedJar(jar, entries)
+                }
+            }
+
+            // The instrumented classes of each jar, by entry name. Jars can contain the same class,
+            // so each jar keeps its own.
+            val instrumentedClasses = instrumentedJars.map { jar ->
+                jar.entries.mapNotNull { it.instrumentedClass?.let { future -> it.name to getResult(it, future) } }
+                    .toMap()
+            }
+
+            // Every site in this run gets an ID from one site table, so every jar needs all of
+            // them. Nothing else registers sites in the table, so the IDs start right after the
+            // reserved ones.
+            val sites = instrumentedClasses.flatMap { it.values }.flatMap { it.sites }.sortedBy { it.id }
+            sites.forEachIndexed { index, site ->
+                check(site.id == index + 1) { "Site ${site.id} was registered by another site table." }
+            }
+            val manifestSites = sites.map { InstrumentedJarManifest.Site(it.className, it.lineNumber, it.name) }
+            val runId = UUID.randomUUID().toString()
+
+            Files.createDirectories(outputDir)
+            instrumentedJars.forEachIndexed { index, jar ->
+                writeJar(
+                    jar,
+                    outputDir.resolve(jar.path.fileName),
+                    instrumentedClasses[index],
+                    InstrumentedJarManifest(
+                        runId,
+                        jar.entries.filter { it.instrumentedClass != null }.map { it.name.removeSuffix(".class") },
+                        manifestSites
+                    )
+                )
+            }
+
+            return instrumentedClasses.sumBy { it.size }
+        } finally {
+            executor.shutdownNow()
+            classLoader.close()
+        }
+    }
+
+    /**
+     * @param instrumentedClasses The instrumented classes of the [jar], by entry name.
+     */
+    private fun writeJar(
+        jar: InstrumentedJar,
+        outputJar: Path,
+        instrumentedClasses: Map<String, CachedClass>,
+        manifest: InstrumentedJarManifest
+    ) {
+        val dynamicClassDefiner = OMJKoinContext.koinApp.koin.get<DynamicClassDefiner>()
+        val hasInstrumentedClasses = manifest.classNames.isNotEmpty()
+
+        ZipOutputStream(Files.newOutputStream(outputJar)).use { zipOutputStream ->
+            jar.entries.forEach { entry ->
+                // Instrumenting the classes invalidates the jar's signature
+                if (!hasInstrumentedClasses || !isSignatureFile(entry.name)) {
+                    val newEntry = ZipEntry(entry.name)
+                    newEntry.time = entry.time
+                    zipOutputStream.putNextEntry(newEntry)
+                    zipOutputStream.write(instrumentedClasses[entry.name]?.bytes ?: entry.bytes)
+                    zipOutputStream.closeEntry()
+                }
+            }
+
+            if (hasInstrumentedClasses) {
+                // Bundle the container classes the jar's classes need so that the agent does not
+                // have to define them at runtime
+                jar.entries.mapNotNull { instrumentedClasses[it.name] }
+                    .flatMap { it.containers }
+                    .map {
+                        dynamicClassDefiner.generateClassForMethod(
+                            DynamicClassDefiner.getMethodSignatureTypes(it.methodDescriptor, it.isStatic)
+                        )
+                    }
+                    .distinctBy { it.name }
+                    .forEach {
+                        zipOutputStream.putNextEntry(ZipEntry("${it.name}.class"))
+                        zipOutputStream.write(it.bytes)
+                        zipOutputStream.closeEntry()
+                    }
+
+                zipOutputStream.putNextEntry(ZipEntry(InstrumentedJarManifest.path))
+                manifest.write(zipOutputStream)
+                zipOutputStream.closeEntry()
+            }
+        }
+    }
+
+    private fun getResult(entry: JarEntry, future: Future<CachedClass>) =
+        try {
+            future.get()
+        } catch (e: ExecutionException) {
+            throw IllegalStateException("Failed to instrument ${entry.name}", e.cause)
+        }
+
+    private fun isClass(entry: ZipEntry) =
+        !entry.isDirectory && entry.name.endsWith(".class") && !entry.name.endsWith("module-info.class") &&
+            // Skip the versioned classes of multi-release jars, which the filters can't match
+            !entry.name.startsWith("META-INF/")
+
+    private fun isSignatureFile(name: String) =
+        name.startsWith("META-INF/") && !name.substring("META-INF/".length).contains('/') &&
+            listOf(".SF", ".RSA", ".DSA", ".EC").any { name.endsWith(it, ignoreCase = true) }
+
+    private class InstrumentedJar(val path: Path, val entries: List<JarEntry>)
+
+    private class JarEntry(
+        entry: ZipEntry,
+        val bytes: ByteArray,
+        val instrumentedClass: Future<CachedClass>?
+    ) {
+        val name: String = entry.name
+        val time = entry.time
+    }
+
+    private class Arguments(
+        val includeFilter: String,
+        val excludeFilter: String,
+        val outputDir: Path,
+        val classPath: List<Path>,
+        val selection: InstrumentationSelection,
+        val profile: RecordingProfile,
+        val switchableSites: Boolean,
+        val jars: List<Path>
+    ) {
+
+        companion object {
+
+            fun parse(args: Array<String>): Arguments {
+                var includeFilter: String? = null
+                var excludeFilter: String? = null
+                var outputDir: Path? = null
+                var classPath = emptyList<Path>()
+                var selection = InstrumentationSelection.everything
+                var profile = RecordingProfile.FULL
+                var switchableSites = false
+                val jars = mutableListOf<Path>()
+
+                var index = 0
+                fun value(): String {
+                    require(index + 1 < args.size) { "Missing value for ${args[index]}." }
+                    return args[++index]
+                }
+
+                while (index < args.size) {
+                    when (val arg = args[index]) {
+                        "--include" -> includeFilter = value()
+                        "--exclude" -> excludeFilter = value()
+                        "--output" -> outputDir = Paths.get(value())
+                        "--classpath" -> classPath = value().split(File.pathSeparator).map { Paths.get(it) }
+                        "--selection" ->
+                            selection = InstrumentationSelection.parse(Files.readAllLines(Paths.get(value())))
+                        "--profile" -> profile = RecordingProfile.forName(value())
+                        "--switchable-sites" -> switchableSites = true
+                        else -> {
+                            require(!arg.startsWith("--")) { "Unknown option $arg." }
+                            jars.add(Paths.get(arg))
+                        }
+                    }
+                    index++
+                }
+
+                require(jars.isNotEmpty()) { "No jars to instrument." }
+                return Arguments(
+                    requireNotNull(includeFilter) { "An include filter must be specified with --include." },
+                    requireNotNull(excludeFilter) { "An exclude filter must be specified with --exclude." },
+                    requireNotNull(outputDir) { "An output directory must be specified with --output." },
+                    classPath,
+                    selection,
+                    profile,
+                    switchableSites,
+                    jars
+                )
+            }
+        }
+    }
+}
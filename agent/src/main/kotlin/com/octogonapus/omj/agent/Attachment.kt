@@ -0,0 +1,97 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import com.octogonapus.omj.di.OMJKoinComponent
+import mu.KotlinLogging
+import org.koin.core.inject
+import java.lang.instrument.Instrumentation
+
+/**
+ * Instruments the classes of a JVM the agent was attached to by retransforming them, and restores
+ * them later. Retransforming a class runs the retransformation capable transformers on its original
+ * bytecode, so adding the [transformer] and retransforming instruments the class, and removing the
+ * [transformer] and retransforming restores it.
+ *
+ * @param instrumentation The instrumentation the agent was attached with.
+ * @param transformer The transformer to instrument classes with.
+ */
+internal class Attachment(
+    private val instrumentation: Instrumentation,
+    private val transformer: OMJClassFileTransformer
+) : OMJKoinComponent {
+
+    private val classFilter by inject<ClassFilter>()
+
+    /**
+     * Instruments the loaded classes that pass the [ClassFilter], and any classes loaded later.
+     */
+    internal fun instrument() {
+        instrumentation.addTransformer(transformer, true)
+        val classes = retransform(findLoadedClasses())
+        logger.info { "Instrumented $classes loaded classes" }
+    }
+
+    /**
+     * Restores the original bytecode of every loaded class that passes the [ClassFilter]. Classes
+     * loaded later are not instrumented.
+     */
+    internal fun restore() {
+        instrumentation.removeTransformer(transformer)
+        val classes = retransform(findLoadedClasses())
+        logger.info { "Restored $classes loaded classes" }
+    }
+
+    private fun findLoadedClasses() = instrumentation.allLoadedClasses.filter {
+        instrumentation.isModifiableClass(it) && classFilter.shouldTransform(it.name.replace('.', '/'))
+    }
+
+    /**
+     * Retransforms the classes together. If that fails, e.g. because one of them fails
+     * verification, retransforms them one at a time so that one bad class does not stop the others
+     * from being retransformed.
+     *
+     * @return The number of classes that were retransformed.
+     */
+    @Suppress("TooGenericExceptionCaught", "SpreadOperator")
+    private fun retransform(classes: List<Class<*>>): Int {
+        if (classes.isEmpty()) {
+            return 0
+        }
+
+        try {
+            instrumentation.retransformClasses(*classes.toTypedArray())
+            return classes.size
+        } catch (ex: Throwable) {
+            logger.debug(ex) { "Failed to retransform the classes together" }
+        }
+
+        return classes.count { clazz ->
+            try {
+                instrumentation.retransformClasses(clazz)
+                true
+            } catch (ex: Throwable) {
+                logger.warn(ex) { "Failed to retransform ${clazz.name}" }
+                false
+            }
+        }
+    }
+
+    companion object {
+        private val logger = KotlinLogging.logger { }
+    }
+}
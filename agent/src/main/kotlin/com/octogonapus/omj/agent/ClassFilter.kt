@@ -17,24 +17,60 @@
 package com.octogonapus.omj.agent
 
 import mu.KotlinLogging
-import java.util.regex.Pattern
+import java.util.concurrent.ConcurrentHashMap
 
 internal class ClassFilter private constructor(
-    private val includeFilter: Pattern,
-    private val excludeFilter: Pattern
+    private val includeFilterString: String,
+    private val excludeFilterString: String
 ) {
 
+    private val includeFilter = ClassNameMatcher.compile(includeFilterString)
+    private val excludeFilter = ClassNameMatcher.compile(excludeFilterString)
+
+    /**
+     * The decision for each class name that was checked recently. The filter is checked for every
+     * class that is loaded and for the owner of every method call that is instrumented, so the
+     * same names are checked many times. The memo is cleared once it holds [maxDecisions] names so
+     * that it does not keep the name of every class the application ever referred to.
+     */
+    private val decisions = ConcurrentHashMap<String, Boolean>()
+
     /**
      * @return True if the class with name [className] should be transformed.
      */
-    internal fun shouldTransform(className: String) =
-        includeFilter.matcher(className).matches() &&
-            !excludeFilter.matcher(className).matches()
+    internal fun shouldTransform(className: String): Boolean {
+        val decision = decisions[className]
+        if (decision != null) {
+            return decision
+        }
+
+        val newDecision = includeFilter.matches(className) && !excludeFilter.matches(className)
+        if (decisions.size >= maxDecisions) {
+            decisions.clear()
+        }
+        decisions[className] = newDecision
+        return newDecision
+    }
+
+    /**
+     * @return The number of class names whose decision is memoized.
+     */
+    internal fun memoizedDecisions() = decisions.size
+
+    /**
+     * @return A string which is equal for two filters that transform the same classes.
+     */
+    internal fun configurationKey() = "include=$includeFilterString exclude=$excludeFilterString"
 
     companion object {
 
         private val logger = KotlinLogging.logger { }
 
+        /**
+         * The most class names [shouldTransform] memoizes decisions for.
+         */
+        internal const val maxDecisions = 4096
+
         /**
          * Creates a [ClassFilter] by loading the include and exclude filters from the system
          * properties `agent.include-package` and `agent.exclude-package`.
@@ -56,10 +92,16 @@ internal class ClassFilter private constructor(
                 "An exclude filter must be specified with agent.exclude-package"
             }
 
-            return ClassFilter(
-                Pattern.compile(includeFilterString),
-                Pattern.compile(excludeFilterString)
-            )
+            return create(includeFilterString, excludeFilterString)
         }
+
+        /**
+         * Creates a [ClassFilter] from include and exclude filters.
+         *
+         * @param includeFilterString The pattern of the classes to include.
+         * @param excludeFilterString The pattern of the included classes to exclude.
+         */
+        internal fun create(includeFilterString: String, excludeFilterString: String) =
+            ClassFilter(includeFilterString, excludeFilterString)
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import java.util.regex.Pattern
+
+/**
+ * Matches class names against a regex. See [compile].
+ */
+internal interface ClassNameMatcher {
+
+    /**
+     * @return True if the pattern matches the whole of [className].
+     */
+    fun matches(className: String): Boolean
+
+    /**
+     * Matches with a [Pattern]. This works for any pattern.
+     */
+    class PatternMatcher(private val pattern: Pattern) : ClassNameMatcher {
+        override fun matches(className: String) = pattern.matcher(className).matches()
+    }
+
+    /**
+     * Matches package patterns like `com/example/.*|org/other/[a-zA-Z0-9/]*` by walking a prefix
+     * trie of the literal part of each alternative and then checking the rest of the class name
+     * against the alternative's suffix. This is much cheaper than running a regex.
+     */
+    class PrefixTrie internal constructor(private val root: Node) : ClassNameMatcher {
+
+        override fun matches(className: String): Boolean {
+            var node: Node? = root
+            var index = 0
+            while (node != null) {
+                if (node.suffixes.any { it.matches(className, index) }) {
+                    return true
+                }
+                node = if (index < className.length) node.children[className[index]] else null
+                index++
+            }
+            return false
+        }
+    }
+
+    class Node {
+        internal val children = HashMap<Char, Node>()
+        internal val suffixes = mutableListOf<Suffix>()
+    }
+
+    /**
+     * What follows the literal prefix of an alternative.
+     *
+     * @param allowedChars The chars the rest of the class name may be made of, or null if it may
+     * be made of any char but a line terminator, like `.*`.
+     * @param repeated True if the suffix is repeated with `*`, false if the alternative ends after
+     * its prefix.
+     */
+    class Suffix internal constructor(private val allowedChars: CharArray?, private val repeated: Boolean) {
+
+        internal fun matches(className: String, start: Int): Boolean {
+            if (!repeated) {
+                return start == className.length
+            }
+
+            for (index in start until className.length) {
+                val char = className[index]
+                val allowed = if (allowedChars == null) char !in lineTerminators else char in allowedChars
+                if (!allowed) {
+                    return false
+                }
+            }
+            return true
+        }
+    }
+
+    companion object {
+
+        // The chars `.` does not match without the DOTALL flag
+        private val lineTerminators = charArrayOf('\n', '\r', '\u0085', '\u2028', '\u2029')
+
+        /**
+         * Compiles a regex into a [PrefixTrie] if every alternative of the regex is literal chars
+         * followed by nothing, `.*`, or a simple char class like `[a-zA-Z0-9/]*`. Any other regex is
+         * matched with a [PatternMatcher].
+         */
+        fun compile(regex: String): ClassNameMatcher =
+            compilePrefixTrie(regex) ?: PatternMatcher(Pattern.compile(regex))
+
+        private fun compilePrefixTrie(regex: String): PrefixTrie? {
+            val root = Node()
+            for (alternative in regex.split('|')) {
+                if (!addAlternative(root, alternative)) {
+                    return null
+                }
+            }
+            return PrefixTrie(root)
+        }
+
+        /**
+         * @return False if the alternative can't be put in a trie.
+         */
+        private fun addAlternative(root: Node, alternative: String): Boolean {
+            var node = root
+            var index = 0
+            while (index < alternative.length) {
+                val char = alternative[index]
+                val literal = when {
+                    char == '\\' && index + 1 < alternative.length && !alternative[index + 1].isLetterOrDigit() ->
+                        alternative[++index]
+                    char.isLetterOrDigit() || char == '/' || char == '_' || char == '-' -> char
+                    else -> break
+                }
+                node = node.children.getOrPut(literal) { Node() }
+                index++
+            }
+
+            val suffix = when (val rest = alternative.substring(index)) {
+                "" -> Suffix(null, repeated = false)
+                ".*" -> Suffix(null, repeated = true)
+                else -> parseCharClass(rest)?.let { Suffix(it, repeated = true) } ?: return false
+            }
+            node.suffixes.add(suffix)
+            return true
+        }
+
+        /**
+         * Parses a repeated char class of single chars and ranges, like `[a-zA-Z0-9/$]*`.
+         *
+         * @return The chars in the class, or null if [rest] is not such a char class.
+         */
+        private fun parseCharClass(rest: String): CharArray? {
+            if (rest.length < 4 || rest[0] != '[' || rest[1] == '^' || !rest.endsWith("]*")) {
+                return null
+            }
+
+            val body = rest.substring(1, rest.length - 2)
+            val chars = StringBuilder()
+            var index = 0
+            while (index < body.length) {
+                val char = body[index]
+                if (char == '[' || char == ']' || char == '\\' || char == '&') {
+                    return null
+                }
+
+                if (index + 2 < body.length && body[index + 1] == '-') {
+                    val end = body[index + 2]
+                    if (end < char || end == '[' || end == ']' || end == '\\') {
+                        return null
+                    }
+                    for (rangeChar in char..end) {
+                        chars.append(rangeChar)
+                    }
+                    index += 3
+                } else {
+                    chars.append(char)
+                    index++
+                }
+            }
+            return chars.toString().toCharArray()
+        }
+    }
+}
@@ -17,11 +17,42 @@
 package com.octogonapus.omj.agent
 
 /**
- * Configuration options for [OMJClassTransformer].
+ * Configuration options for [OMJClassTransformer]. See [RecordingProfile] for the usual
+ * combinations.
  *
  * @param recordMethodCall If true, then the body of methods will be instrumented to record
  * method calls.
+ * @param recordCallSites If true, then a preamble that records the caller's class and line is
+ * emitted before method calls and invokedynamic insns.
+ * @param recordLocalVariableStores If true, then stores into local variables, including `IINC`,
+ * will be recorded.
+ * @param recordFieldStores If true, then stores into fields will be recorded.
+ * @param recordArrayStores If true, then stores into array elements will be recorded.
+ * @param switchableSites If true, then the recording calls are emitted as invokedynamic sites that
+ * the agent lib can relink to no-ops when recording is disabled at runtime. Classes older than Java
+ * 7 always get plain calls.
+ * @param selection Which parts of the transformed classes are instrumented.
  */
 internal data class ClassTransformerOptions(
-    val recordMethodCall: Boolean = true
-)
+    val recordMethodCall: Boolean = true,
+    val recordCallSites: Boolean = true,
+    val recordLocalVariableStores: Boolean = true,
+    val recordFieldStores: Boolean = true,
+    val recordArrayStores: Boolean = true,
+    val switchableSites: Boolean = false,
+    val selection: InstrumentationSelection = InstrumentationSelection.everything
+) {
+
+    companion object {
+
+        /**
+         * Creates the options from the recording profile given by the system property
+         * `agent.profile`, the selection given by the system property `agent.selection-file`, and
+         * whether to emit switchable sites given by the system property `agent.switchable-sites`.
+         */
+        internal fun createFromSystemProperties() =
+            RecordingProfile.createFromSystemProperties()
+                .options(InstrumentationSelection.createFromSystemProperties())
+                .copy(switchableSites = java.lang.Boolean.getBoolean("agent.switchable-sites"))
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import java.nio.file.Files
+import java.nio.file.Paths
+
+/**
+ * Selects which parts of the classes that pass the [ClassFilter] are instrumented. A selection is
+ * read from a spec file with one entry per line. Class names are internal names. Blank lines and
+ * lines starting with `#` are ignored.
+ *
+ * ```
+ * # Only instrument these methods. The descriptor is optional.
+ * method com/example/Foo.bar
+ * method com/example/Foo.baz(I)V
+ * # Only record stores into these fields and local variables.
+ * field com/example/Foo.count
+ * variable com/example/Foo.bar index
+ * # Only instrument the code on these lines.
+ * lines com/example/Foo 10-20
+ * lines com/example/Foo 42
+ * ```
+ *
+ * Each kind of entry only restricts instrumentation if the spec has at least one entry of that
+ * kind. `field` and `variable` entries restrict stores together, and array stores are not recorded
+ * if there are any. A method's call is recorded only if the method's first line is selected. Code
+ * outside the selection is not instrumented at all.
+ */
+internal class InstrumentationSelection private constructor(
+    private val methods: Map<String, Set<String>>?,
+    private val fields: Map<String, Set<String>>?,
+    private val variables: Map<String, Map<String, Set<String>>>?,
+    private val lineRanges: Map<String, IntArray>?,
+    private val entries: List<String>
+) {
+
+    private val storesAreSelected = fields != null || variables != null
+
+    /**
+     * @param className The internal name of the class being transformed.
+     * @return What is selected in the class.
+     */
+    internal fun forClass(className: String) = ClassSelection(className)
+
+    /**
+     * Includes every entry so that two selections which select the same code are equal, which the
+     * [TransformCache] relies on.
+     */
+    override fun toString() = "InstrumentationSelection(${entries.joinToString(";")})"
+
+    override fun equals(other: Any?) = other is InstrumentationSelection && entries == other.entries
+
+    override fun hashCode() = entries.hashCode()
+
+    /**
+     * What is selected in one class. The lookups for the class are done once, when the class starts
+     * being transformed.
+     */
+    internal inner class ClassSelection(className: String) {
+
+        private val classMethods = methods?.get(className)
+        private val classVariables = variables?.get(className)
+        private val classLineRanges = lineRanges?.get(className)
+
+        /**
+         * True if every line of the class is selected, in which case [isLineSelected] is always
+         * true.
+         */
+        internal val selectsAllLines = lineRanges == null
+
+        /**
+         * True if stores into array elements are recorded.
+         */
+        internal val selectsArrayStores = !storesAreSelected
+
+        internal fun isMethodSelected(name: String, descriptor: String) =
+            methods == null || (classMethods != null && (name in classMethods || name + descriptor in classMethods))
+
+        internal fun isFieldSelected(owner: String, name: String) =
+            !storesAreSelected || fields?.get(owner)?.contains(name) == true
+
+        internal fun isVariableSelected(methodName: String, variableName: String) =
+            !storesAreSelected || classVariables?.get(methodName)?.contains(variableName) == true
+
+        internal fun isLineSelected(line: Int): Boolean {
+            if (lineRanges == null) {
+                return true
+            }
+
+            val ranges = classLineRanges ?: return false
+
+            // The ranges are sorted and do not overlap, so find the last range that starts at or
+            // before the line
+            var low = 0
+            var high = ranges.size / 2 - 1
+            while (low <= high) {
+                val middle = (low + high) ushr 1
+                when {
+                    ranges[middle * 2] > line -> high = middle - 1
+                    ranges[middle * 2 + 1] < line -> low = middle + 1
+                    else -> return true
+                }
+            }
+            return false
+        }
+    }
+
+    companion object {
+
+        /**
+         * Selects everything.
+         */
+        internal val everything = InstrumentationSelection(null, null, null, null, emptyList())
+
+        /**
+         * Reads the selection from the spec file given by the system property
+         * `agent.selection-file`. If there is no spec file, everything is selected.
+         */
+        internal fun createFromSystemProperties(): InstrumentationSelection {
+            val specFile = System.getProperty("agent.selection-file") ?: return everything
+            return parse(Files.readAllLines(Paths.get(specFile)))
+        }
+
+        /**
+         * Parses a spec. See [InstrumentationSelection] for the format.
+         *
+         * @param lines The lines of the spec.
+         * @throws IllegalArgumentException If a line is not a valid entry.
+         */
+        @Suppress("ComplexMethod")
+        internal fun parse(lines: List<String>): InstrumentationSelection {
+            var methods: MutableMap<String, MutableSet<String>>? = null
+            var fields: MutableMap<String, MutableSet<String>>? = null
+            var variables: MutableMap<String, MutableMap<String, MutableSet<String>>>? = null
+            var lineRanges: MutableMap<String, MutableList<IntRange>>? = null
+            val entries = mutableListOf<String>()
+
+            lines.forEachIndexed { index, rawLine ->
+                val line = rawLine.trim()
+                if (line.isEmpty() || line.startsWith("#")) {
+                    return@forEachIndexed
+                }
+
+                val parts = line.split(Regex("\\s+"))
+                fun invalid(): Nothing =
+                    throw IllegalArgumentException("Invalid selection on line ${index + 1}: $rawLine")
+
+                when (parts[0]) {
+                    "method" -> {
+                        if (parts.size != 2) invalid()
+                        val descriptorStart = parts[1].indexOf('(').let { if (it == -1) parts[1].length else it }
+                        val (className, memberName) = splitMember(parts[1].substring(0, descriptorStart)) ?: invalid()
+                        methods = (methods ?: mutableMapOf()).apply {
+                            getOrPut(className) { mutableSetOf() }.add(memberName + parts[1].substring(descriptorStart))
+                        }
+                    }
+
+                    "field" -> {
+                        if (parts.size != 2) invalid()
+                        val (className, fieldName) = splitMember(parts[1]) ?: invalid()
+                        fields = (fields ?: mutableMapOf()).apply {
+                            getOrPut(className) { mutableSetOf() }.add(fieldName)
+                        }
+                    }
+
+                    "variable" -> {
+                        if (parts.size != 3) invalid()
+                        val (className, methodName) = splitMember(parts[1]) ?: invalid()
+                        variables = (variables ?: mutableMapOf()).apply {
+                            getOrPut(className) { mutableMapOf() }.getOrPut(methodName) { mutableSetOf() }.add(parts[2])
+                        }
+                    }
+
+                    "lines" -> {
+                        if (parts.size != 3) invalid()
+                        val bounds = parts[2].split('-').map { it.toIntOrNull() ?: invalid() }
+                        val range = when (bounds.size) {
+                            1 -> bounds[0]..bounds[0]
+                            2 -> bounds[0]..bounds[1]
+                            else -> invalid()
+                        }
+                        if (range.isEmpty()) invalid()
+                        lineRanges = (lineRanges ?: mutableMapOf()).apply {
+                            getOrPut(parts[1]) { mutableListOf() }.add(range)
+                        }
+                    }
+
+                    else -> invalid()
+                }
+
+                entries.add(parts.joinToString(" "))
+            }
+
+            return InstrumentationSelection(
+                methods,
+                fields,
+                variables,
+                lineRanges?.mapValues { mergeRanges(it.value) },
+                entries.sorted()
+            )
+        }
+
+        /**
+         * Splits `com/example/Foo.bar` into the class name and the member name.
+         */
+        private fun splitMember(member: String): Pair<String, String>? {
+            val separator = member.lastIndexOf('.')
+            return if (separator <= 0 || separator == member.length - 1) {
+                null
+            } else {
+                member.substring(0, separator) to member.substring(separator + 1)
+            }
+        }
+
+        /**
+         * @return The sorted bounds of the ranges with overlapping and adjacent ranges merged, as
+         * pairs of first and last line.
+         */
+        private fun mergeRanges(ranges: List<IntRange>): IntArray {
+            val merged = mutableListOf<IntRange>()
+            ranges.sortedBy { it.first }.forEach { range ->
+                val last = merged.lastOrNull()
+                if (last != null && range.first <= last.last + 1) {
+                    merged[merged.size - 1] = last.first..maxOf(last.last, range.last)
+                } else {
+                    merged.add(range)
+                }
+            }
+            return merged.flatMap { listOf(it.first, it.last) }.toIntArray()
+        }
+    }
+}
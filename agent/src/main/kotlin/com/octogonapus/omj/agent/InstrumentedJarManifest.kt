@@ -0,0 +1,108 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * Describes the classes in a jar that [AheadOfTimeInstrumenter] instrumented.
+ *
+ * Instrumented classes load the IDs of their sites as constants, so the agent must give every site
+ * the ID it had when the class was instrumented. The manifest lists every site registered by the
+ * run that instrumented the jar, in the order of their IDs, and the agent registers them before it
+ * registers any other site. Every jar instrumented by one run has the same sites and run ID, so the
+ * agent can check that the jars of an application were instrumented together.
+ *
+ * @param runId Identifies the run that instrumented the jar.
+ * @param classNames The internal names of the classes in the jar that were instrumented.
+ * @param sites The sites registered by the run, in the order of their IDs starting from the first
+ * ID after the reserved ones.
+ */
+internal data class InstrumentedJarManifest(
+    val runId: String,
+    val classNames: List<String>,
+    val sites: List<Site>
+) {
+
+    /**
+     * A site registered by the run. See [com.octogonapus.omj.agentlib.SiteTable.registerSite].
+     */
+    internal data class Site(val className: String, val lineNumber: Int, val name: String)
+
+    /**
+     * Writes the manifest.
+     *
+     * @param outputStream The stream to write to. It is not closed.
+     */
+    internal fun write(outputStream: OutputStream) {
+        val dataOutputStream = DataOutputStream(outputStream)
+        dataOutputStream.writeInt(formatVersion)
+        dataOutputStream.writeUTF(runId)
+
+        dataOutputStream.writeInt(classNames.size)
+        classNames.forEach { dataOutputStream.writeUTF(it) }
+
+        dataOutputStream.writeInt(sites.size)
+        sites.forEach {
+            dataOutputStream.writeUTF(it.className)
+            dataOutputStream.writeInt(it.lineNumber)
+            dataOutputStream.writeUTF(it.name)
+        }
+
+        dataOutputStream.flush()
+    }
+
+    companion object {
+
+        /**
+         * The path of the manifest in an instrumented jar.
+         */
+        internal const val path = "META-INF/omj/instrumented"
+
+        /**
+         * Changes whenever the layout of the manifest changes.
+         */
+        private const val formatVersion = 1
+
+        /**
+         * Reads a manifest.
+         *
+         * @param inputStream The stream to read from. It is not closed.
+         */
+        internal fun read(inputStream: InputStream): InstrumentedJarManifest {
+            val dataInputStream = DataInputStream(inputStream)
+            val version = dataInputStream.readInt()
+            if (version != formatVersion) {
+                throw IOException(
+                    "Unsupported manifest version $version. Instrument the jar again with this version of the agent."
+                )
+            }
+
+            val runId = dataInputStream.readUTF()
+            val classNames = List(dataInputStream.readInt()) { dataInputStream.readUTF() }
+            val sites = List(dataInputStream.readInt()) {
+                Site(dataInputStream.readUTF(), dataInputStream.readInt(), dataInputStream.readUTF())
+            }
+
+            return InstrumentedJarManifest(runId, classNames, sites)
+        }
+    }
+}
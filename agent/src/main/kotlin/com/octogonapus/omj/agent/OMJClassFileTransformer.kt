@@ -16,21 +16,26 @@
  */
 package com.octogonapus.omj.agent
 
+import com.octogonapus.omj.agentlib.SiteTable
 import com.octogonapus.omj.di.OMJKoinComponent
 import mu.KotlinLogging
 import org.koin.core.inject
 import org.objectweb.asm.ClassReader
-import org.objectweb.asm.ClassWriter
-import org.objectweb.asm.Opcodes.ASM8
-import org.objectweb.asm.tree.ClassNode
-import org.objectweb.asm.util.TraceClassVisitor
-import java.io.PrintWriter
 import java.lang.instrument.ClassFileTransformer
 import java.security.ProtectionDomain
 import kotlin.system.exitProcess
 
+/**
+ * @param transformer The transformer to instrument classes with.
+ * @param preInstrumentedClassNames The internal names of the classes that were instrumented ahead
+ * of time. These are never transformed again. See [AheadOfTimeInstrumenter].
+ * @param exitOnError True to exit if a class can't be transformed. False to log the error and leave
+ * the class as it is, which is used when the agent is attached to a running JVM.
+ */
 internal class OMJClassFileTransformer(
-    private val transformer: Transformer = Transformer()
+    private val transformer: Transformer = Transformer(),
+    private val preInstrumentedClassNames: Set<String> = emptySet(),
+    private val exitOnError: Boolean = true
 ) : ClassFileTransformer, OMJKoinComponent {
 
     private val classFilter by inject<ClassFilter>()
@@ -45,15 +50,20 @@ internal class OMJClassFileTransformer(
         classfileBuffer: ByteArray
     ): ByteArray? {
         // Check the include and exclude class filters as to whether we should transform this
-        // class. We need to check this here so that we can return `null` to obey `transform`'s
-        // contract.
-        return if (classFilter.shouldTransform(className)) {
+        // class, skipping classes that were instrumented ahead of time. We need to check this here
+        // so that we can return `null` to obey `transform`'s contract.
+        return if (classFilter.shouldTransform(className) && className !in preInstrumentedClassNames) {
             try {
                 // If transformClassBytes throws an exception, then the class will silently not
                 // be transformed. This is very hard to debug, so catch anything it throws and
                 // explode.
-                transformer.transformClassBytes(classfileBuffer)
+                transformer.transformClassBytes(classfileBuffer, loader)
             } catch (ex: Throwable) {
+                if (!exitOnError) {
+                    logger.error(ex) { "Failed to transform $className. Leaving it as it is." }
+                    return null
+                }
+
                 logger.error(ex) {
                     """
                     Failed to transform class bytes.
@@ -71,27 +81,117 @@ internal class OMJClassFileTransformer(
     /**
      * Transforms the class byte array. This method is pulled into another class so that it can be
      * mocked for testing.
+     *
+     * @param options The options to instrument classes with.
      */
-    internal class Transformer {
+    internal class Transformer(
+        private val options: ClassTransformerOptions = ClassTransformerOptions()
+    ) : OMJKoinComponent {
+
+        private val classFilter by inject<ClassFilter>()
+        private val transformCache by inject<TransformCache>()
+        private val dynamicClassDefiner by inject<DynamicClassDefiner>()
+        private val siteTable by inject<SiteTable>()
+        private val classHierarchy by inject<ClassHierarchy>()
+        private val diagnostics by inject<TransformDiagnostics>()
+
+        /**
+         * Everything besides the agent version that changes how a class is instrumented.
+         */
+        private val configuration by lazy { "${classFilter.configurationKey()}\n$options" }
+
+        /**
+         * @param classfileBuffer The class to transform.
+         * @param loader The class loader that defines the class, or null for the bootstrap loader.
+         * @return The instrumented class.
+         */
+        internal fun transformClassBytes(classfileBuffer: ByteArray, loader: ClassLoader?): ByteArray {
+            val startTime = if (diagnostics.isEnabled) System.nanoTime() else 0L
+
+            val key = TransformCache.keyOf(configuration, classfileBuffer)
+            val cachedClass = transformCache.load(key)?.takeIf { isUpToDate(it, loader) }
+            val instrumentedClass: CachedClass
+            val instrumentedBytes: ByteArray
+            if (cachedClass != null) {
+                instrumentedClass = cachedClass
+                instrumentedBytes = restore(cachedClass)
+            } else {
+                val classReader = ClassReader(classfileBuffer)
+                val classWriter = HierarchyClassWriter(classReader, classHierarchy, loader)
+                instrumentedClass = instrument(classReader, classWriter)
+                instrumentedBytes = instrumentedClass.bytes
+
+                // Frames computed by loading classes can't be checked against a later run's classes
+                if (!classWriter.hasLoadedClasses()) {
+                    transformCache.store(key, instrumentedClass)
+                }
+            }
 
-        internal fun transformClassBytes(classfileBuffer: ByteArray): ByteArray {
+            if (diagnostics.isEnabled) {
+                diagnostics.record(
+                    ClassReader(classfileBuffer).className,
+                    classfileBuffer.size,
+                    instrumentedBytes,
+                    instrumentedClass.sites.size,
+                    System.nanoTime() - startTime,
+                    cached = cachedClass != null
+                )
+            }
+
+            return instrumentedBytes
+        }
+
+        /**
+         * Instruments a class without using the cache.
+         *
+         * @param classfileBuffer The class to instrument.
+         * @param loader The class loader to find the classes the class uses with when computing
+         * frames, or null for the bootstrap loader.
+         * @return The instrumented class and the container classes and sites it needs.
+         */
+        internal fun instrument(classfileBuffer: ByteArray, loader: ClassLoader?): CachedClass {
             val classReader = ClassReader(classfileBuffer)
+            return instrument(classReader, HierarchyClassWriter(classReader, classHierarchy, loader))
+        }
 
-            val classNode = ClassNode(ASM8)
-            classReader.accept(classNode, 0)
+        private fun instrument(classReader: ClassReader, classWriter: HierarchyClassWriter): CachedClass {
+            val transformer = OMJClassTransformer(classWriter, MethodCodeIndex.read(classReader), options)
+            classReader.accept(transformer, 0)
 
-            val transformer = OMJClassTransformer(classNode)
-            transformer.transform()
+            return CachedClass(
+                classWriter.toByteArray(),
+                transformer.containers,
+                transformer.sites,
+                classWriter.usedClasses
+            )
+        }
 
-            val classWriter = ClassWriter(ClassWriter.COMPUTE_FRAMES)
+        /**
+         * @return True if the other classes the cached class's frames were computed with still have
+         * the same superclasses and interfaces.
+         */
+        private fun isUpToDate(cachedClass: CachedClass, loader: ClassLoader?): Boolean {
+            val isUpToDate = classHierarchy.matches(loader, cachedClass.hierarchy)
+            if (!isUpToDate) {
+                logger.debug { "Instrumenting a cached class again because the classes it uses changed" }
+            }
+            return isUpToDate
+        }
 
-            // Add a `TraceClassVisitor` to print the generated bytecode to System.out for
-            // debugging.
-            val trace = TraceClassVisitor(classWriter, PrintWriter(System.out))
+        /**
+         * Gives an instrumented class from the cache the container classes and sites it needs.
+         */
+        private fun restore(cachedClass: CachedClass): ByteArray {
+            cachedClass.containers.forEach {
+                dynamicClassDefiner.defineClassForMethod(it.methodDescriptor, it.isStatic)
+            }
 
-            classNode.accept(trace)
+            val siteIds = IntArray(cachedClass.sites.size) {
+                val site = cachedClass.sites[it]
+                siteTable.registerSite(site.className, site.lineNumber, site.name)
+            }
 
-            return classWriter.toByteArray()
+            return cachedClass.relocateSites(siteIds)
         }
     }
 
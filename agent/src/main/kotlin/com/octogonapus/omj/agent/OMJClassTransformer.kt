@@ -16,14 +16,21 @@
  */
 package com.octogonapus.omj.agent
 
+import com.octogonapus.omj.agentlib.SiteTable
 import com.octogonapus.omj.di.OMJKoinComponent
 import mu.KotlinLogging
 import org.koin.core.inject
+import org.objectweb.asm.ClassVisitor
+import org.objectweb.asm.Handle
+import org.objectweb.asm.Label
+import org.objectweb.asm.MethodVisitor
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Opcodes.AASTORE
 import org.objectweb.asm.Opcodes.ACC_PUBLIC
 import org.objectweb.asm.Opcodes.ACC_STATIC
 import org.objectweb.asm.Opcodes.ALOAD
+import org.objectweb.asm.Opcodes.ANEWARRAY
+import org.objectweb.asm.Opcodes.ASM8
 import org.objectweb.asm.Opcodes.ASTORE
 import org.objectweb.asm.Opcodes.BASTORE
 import org.objectweb.asm.Opcodes.CASTORE
@@ -32,514 +39,623 @@ import org.objectweb.asm.Opcodes.DSTORE
 import org.objectweb.asm.Opcodes.DUP
 import org.objectweb.asm.Opcodes.FASTORE
 import org.objectweb.asm.Opcodes.FSTORE
+import org.objectweb.asm.Opcodes.H_INVOKESTATIC
+import org.objectweb.asm.Opcodes.I2L
 import org.objectweb.asm.Opcodes.IASTORE
+import org.objectweb.asm.Opcodes.ICONST_0
+import org.objectweb.asm.Opcodes.ICONST_1
+import org.objectweb.asm.Opcodes.IFNULL
 import org.objectweb.asm.Opcodes.ILOAD
 import org.objectweb.asm.Opcodes.INVOKESPECIAL
 import org.objectweb.asm.Opcodes.INVOKESTATIC
+import org.objectweb.asm.Opcodes.INVOKEVIRTUAL
 import org.objectweb.asm.Opcodes.ISTORE
 import org.objectweb.asm.Opcodes.LASTORE
 import org.objectweb.asm.Opcodes.LSTORE
 import org.objectweb.asm.Opcodes.NEW
+import org.objectweb.asm.Opcodes.NEWARRAY
 import org.objectweb.asm.Opcodes.PUTFIELD
 import org.objectweb.asm.Opcodes.PUTSTATIC
 import org.objectweb.asm.Opcodes.SASTORE
+import org.objectweb.asm.Opcodes.SIPUSH
+import org.objectweb.asm.Opcodes.T_LONG
+import org.objectweb.asm.Opcodes.V1_7
 import org.objectweb.asm.Type
-import org.objectweb.asm.tree.ClassNode
 import org.objectweb.asm.tree.FieldInsnNode
 import org.objectweb.asm.tree.IincInsnNode
-import org.objectweb.asm.tree.InsnList
 import org.objectweb.asm.tree.InsnNode
 import org.objectweb.asm.tree.InvokeDynamicInsnNode
-import org.objectweb.asm.tree.LabelNode
-import org.objectweb.asm.tree.LdcInsnNode
 import org.objectweb.asm.tree.LineNumberNode
-import org.objectweb.asm.tree.LocalVariableNode
 import org.objectweb.asm.tree.MethodInsnNode
 import org.objectweb.asm.tree.MethodNode
-import org.objectweb.asm.tree.TypeInsnNode
 import org.objectweb.asm.tree.VarInsnNode
 
 /**
- * Instruments a class.
+ * Instruments a class as it is visited, in one pass from a class reader to a class writer.
  *
- * @param classNode The class to instrument.
+ * @param classVisitor The visitor to pass the instrumented class to.
+ * @param methodCodeIndex The code of the class's methods. See [MethodCodeIndex].
  * @param options Various options to control what parts of the class get instrumented.
  */
 internal class OMJClassTransformer(
-    private val classNode: ClassNode,
+    classVisitor: ClassVisitor,
+    private val methodCodeIndex: MethodCodeIndex,
     private val options: ClassTransformerOptions = ClassTransformerOptions()
-) : OMJKoinComponent {
+) : ClassVisitor(ASM8, classVisitor), OMJKoinComponent {
 
     private val dynamicClassDefiner by inject<DynamicClassDefiner>()
     private val classFilter by inject<ClassFilter>()
-    private val fullyQualifiedClassName = convertPathTypeToPackageType(classNode.name)
+    private val siteTable by inject<SiteTable>()
+    private var fullyQualifiedClassName = ""
+    private var superName: String? = null
+    private var methodIndex = 0
+    private lateinit var classSelection: InstrumentationSelection.ClassSelection
+    private var emitsSwitchableSites = false
 
-    internal fun transform() {
-        // If superName is null, we are visiting the Object class, so there is nothing for us to
-        // instrument. Otherwise, instrument the class.
-        if (classNode.superName != null) {
-            instrumentClass(classNode)
-        }
+    /**
+     * The sites registered while instrumenting the class, in the order they were registered.
+     */
+    internal val sites = mutableListOf<CachedClass.Site>()
+
+    /**
+     * The methods that container classes were defined for while instrumenting the class.
+     */
+    internal val containers = mutableListOf<CachedClass.Container>()
+
+    override fun visit(
+        version: Int,
+        access: Int,
+        name: String,
+        signature: String?,
+        superName: String?,
+        interfaces: Array<out String>?
+    ) {
+        super.visit(version, access, name, signature, superName, interfaces)
+        fullyQualifiedClassName = convertPathTypeToPackageType(name)
+        this.superName = superName
+        classSelection = options.selection.forClass(name)
+
+        // invokedynamic needs class files from Java 7 or later
+        emitsSwitchableSites = options.switchableSites && (version and 0xFFFF) >= V1_7
     }
 
-    private fun instrumentClass(classNode: ClassNode) {
-        classNode.methods.forEach { methodNode ->
-            instrumentMethod(methodNode)
+    override fun visitMethod(
+        access: Int,
+        name: String,
+        descriptor: String,
+        signature: String?,
+        exceptions: Array<out String>?
+    ): MethodVisitor? {
+        val methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions)
+        val currentMethodIndex = methodIndex++
+        val methodCode = methodCodeIndex.get(currentMethodIndex)
+
+        // If superName is null, we are visiting the Object class, so there is nothing for us to
+        // instrument. Methods without code have nothing to instrument either, and methods that are
+        // not selected are not instrumented at all.
+        if (superName == null ||
+            methodVisitor == null ||
+            methodCode == null ||
+            !classSelection.isMethodSelected(name, descriptor)
+        ) {
+            return methodVisitor
         }
-    }
 
-    private fun instrumentMethod(methodNode: MethodNode) {
-        val insertions = when {
-            methodNode.isInstanceInitializationMethod() ->
-                instrumentInstanceInitializationMethod(methodNode)
+        // Class initialization methods are instrumented like normal methods
+        val kind = when {
+            isInstanceInitializationMethod(name, descriptor) -> MethodKind.INSTANCE_INITIALIZATION
+            isMainMethod(access, name, descriptor) -> MethodKind.MAIN
+            else -> MethodKind.NORMAL
+        }
 
-            methodNode.isClassInitializationMethod() ->
-                instrumentClassInitializationMethod(methodNode)
+        // The code emitted when the method is entered belongs to the method's first line
+        val isEntrySelected = classSelection.isLineSelected(methodCode.firstLineNumber)
+        val entryUsesRecordingContext = isEntrySelected &&
+            (options.recordMethodCall || (kind == MethodKind.MAIN && options.recordCallSites))
+
+        fun instrumenter(usesRecordingContext: Boolean) = MethodInstrumenter(
+            methodVisitor,
+            access,
+            name,
+            descriptor,
+            kind,
+            methodCode,
+            currentMethodIndex,
+            isEntrySelected,
+            usesRecordingContext
+        )
 
-            methodNode.isMainMethod() -> instrumentMainMethod(methodNode)
+        if (!classSelection.selectsAllLines) {
+            // Whether the method uses the recording context depends on the lines of the methods it
+            // calls, which the method code index does not have, so look at the whole method first
+            return object : MethodNode(ASM8, access, name, descriptor, signature, exceptions) {
+                override fun visitEnd() {
+                    accept(instrumenter(entryUsesRecordingContext || hasSelectedRecordedInsn()))
+                }
+            }
+        }
 
-            else -> instrumentNormalMethod(methodNode, options)
+        // Whether the method uses the recording context depends on the methods it calls and the
+        // values it stores, but the context has to be loaded before its first instruction, so look
+        // at the method's code first
+        val recordsCallSites = options.recordCallSites &&
+            (methodCode.invokesDynamic || methodCode.methodInsnOwners.any { classFilter.shouldTransform(it) })
+        val recordsStores = methodCode.storesValues &&
+            (options.recordLocalVariableStores || options.recordFieldStores || options.recordArrayStores)
+        val usesRecordingContext = entryUsesRecordingContext || recordsCallSites || recordsStores
+        if (!usesRecordingContext) {
+            // There is nothing to instrument in this method. Passing it on unchanged lets a class
+            // writer that was given the class reader copy it without computing its frames again.
+            return methodVisitor
         }
 
-        insertions.forEach { it.insert() }
+        return instrumenter(usesRecordingContext)
     }
 
-    private fun instrumentInstanceInitializationMethod(
-        methodNode: MethodNode
-    ): List<InsnListInsertion> {
-        // Ensure the superclass ctor is the first method insn
-        val methodInsns = methodNode.instructions.mapNotNull { it as? MethodInsnNode }
-        val firstMethodInsn = methodInsns.first()
-        check(
-            firstMethodInsn.let {
-                it.opcode == INVOKESPECIAL && it.name == "<init>" && it.owner == classNode.superName
+    /**
+     * @return True if a preamble or a store is recorded for any instruction of this method.
+     */
+    private fun MethodNode.hasSelectedRecordedInsn(): Boolean {
+        var lineNumber = 0
+        return instructions.any {
+            when (it) {
+                is LineNumberNode -> {
+                    lineNumber = it.line
+                    false
+                }
+                is MethodInsnNode -> options.recordCallSites && classFilter.shouldTransform(it.owner) &&
+                    classSelection.isLineSelected(lineNumber)
+                is InvokeDynamicInsnNode -> options.recordCallSites && classSelection.isLineSelected(lineNumber)
+                is VarInsnNode -> options.recordLocalVariableStores && it.opcode in ISTORE..ASTORE &&
+                    classSelection.isLineSelected(lineNumber)
+                is IincInsnNode -> options.recordLocalVariableStores && classSelection.isLineSelected(lineNumber)
+                is FieldInsnNode -> options.recordFieldStores && (it.opcode == PUTFIELD || it.opcode == PUTSTATIC) &&
+                    classSelection.isLineSelected(lineNumber)
+                is InsnNode -> options.recordArrayStores && classSelection.selectsArrayStores &&
+                    it.opcode in IASTORE..SASTORE && classSelection.isLineSelected(lineNumber)
+                else -> false
             }
-        ) {
-            "The first method insn was not the superclass instance initializer: $firstMethodInsn"
         }
+    }
 
-        // Record this method call after the superclass instance initialization method has been
-        // called, because before that, `this` is uninitialized.
-        return listOf(
-            methodNode.instructions.insertAfter(firstMethodInsn) {
-                recordMethodCall(methodNode)
-            }
-        ) + instrumentNormalMethod(
-            methodNode,
-            // Don't record the method call because we just did that in here
-            options.copy(recordMethodCall = false)
-        )
+    private enum class MethodKind {
+        INSTANCE_INITIALIZATION, MAIN, NORMAL
     }
 
-    private fun instrumentClassInitializationMethod(methodNode: MethodNode) =
-        instrumentNormalMethod(methodNode, options)
+    /**
+     * Instruments one method. Instructions emitted by the instrumentation are passed straight to
+     * the next visitor so that they are not instrumented themselves.
+     *
+     * @param kind What kind of method this is.
+     * @param methodCode The method's code.
+     * @param methodIndex The index of the method in class file order.
+     * @param isEntrySelected Whether the method's first line is selected, in which case the code
+     * that records entering the method is emitted.
+     * @param usesRecordingContext Whether any code emitted into the method loads the recording
+     * context, in which case the method must get the context when it is entered.
+     */
+    private inner class MethodInstrumenter(
+        methodVisitor: MethodVisitor,
+        private val access: Int,
+        private val name: String,
+        private val descriptor: String,
+        private val kind: MethodKind,
+        private val methodCode: MethodCodeIndex.MethodCode,
+        private val methodIndex: Int,
+        private val isEntrySelected: Boolean,
+        private val usesRecordingContext: Boolean
+    ) : MethodVisitor(ASM8, methodVisitor) {
+
+        /**
+         * The local variable the method keeps its thread's recording context in. It is after all
+         * of the method's own local variables.
+         */
+        private val recordingContextIndex = maxOf(
+            methodCode.maxLocals,
+            // The arguments size always includes `this`, even for static methods
+            (Type.getArgumentsAndReturnSizes(descriptor) shr 2) - if (isStatic()) 1 else 0
+        )
+
+        private var currentLineNumber = 0
+
+        /**
+         * The number of `LDC` instructions passed to the next visitor so far. See
+         * [CachedClass.Site.ldcIndex].
+         */
+        private var ldcCount = 0
+
+        private var visitedFirstMethodInsn = false
 
-    private fun instrumentMainMethod(methodNode: MethodNode): List<InsnListInsertion> {
-        val firstLineNumber = methodNode.instructions
-            .mapNotNull { it as? LineNumberNode }
-            .firstOrNull()
-            ?.line
-            ?: 0
+        override fun visitCode() {
+            super.visitCode()
 
-        return listOf(
-            methodNode.instructions.insertBefore(methodNode.instructions.first) {
-                emitPreamble(firstLineNumber, methodNode.name)
+            if (usesRecordingContext) {
+                // Get the recording context before anything else so that it is available to all
+                // the code emitted below, including code emitted before the superclass ctor is
+                // called.
+                invokeRecordingMethod(
+                    INVOKESTATIC,
+                    agentLibClassName,
+                    "getRecordingContext",
+                    "()L$recordingContextClassName;"
+                )
+                super.visitVarInsn(ASTORE, recordingContextIndex)
             }
-        ) + instrumentNormalMethod(methodNode, options)
-    }
 
-    private fun instrumentNormalMethod(
-        methodNode: MethodNode,
-        options: ClassTransformerOptions
-    ): List<InsnListInsertion> {
-        var currentLineNumber = LineNumberNode(0, LabelNode())
+            if (kind == MethodKind.MAIN && isEntrySelected && options.recordCallSites) {
+                // The main method is not called from any instrumented code, so emit its preamble
+                // here
+                emitPreamble(methodCode.firstLineNumber, name)
+            }
 
-        val insertions = methodNode.instructions.flatMap {
-            when (it) {
-                is LineNumberNode -> {
-                    currentLineNumber = it
-                    emptyList()
+            // The instance initialization method records its call after the superclass ctor
+            if (kind != MethodKind.INSTANCE_INITIALIZATION && options.recordMethodCall && isEntrySelected) {
+                recordMethodCall()
+            }
+        }
+
+        override fun visitLineNumber(line: Int, start: Label) {
+            currentLineNumber = line
+            super.visitLineNumber(line, start)
+        }
+
+        override fun visitMethodInsn(
+            opcode: Int,
+            owner: String,
+            name: String,
+            descriptor: String,
+            isInterface: Boolean
+        ) {
+            val isSuperclassInitialization = kind == MethodKind.INSTANCE_INITIALIZATION && !visitedFirstMethodInsn
+            if (isSuperclassInitialization) {
+                // Ensure the superclass ctor is the first method insn
+                check(opcode == INVOKESPECIAL && name == "<init>" && owner == superName) {
+                    "The first method insn was not the superclass instance initializer: " +
+                        "$owner.$name$descriptor"
                 }
+                visitedFirstMethodInsn = true
+            }
 
-                is MethodInsnNode -> if (classFilter.shouldTransform(it.owner)) {
-                    instrumentMethodInsn(methodNode, it, currentLineNumber.line)
-                } else emptyList()
+            if (options.recordCallSites && classFilter.shouldTransform(owner) && isCurrentLineSelected()) {
+                emitPreamble(currentLineNumber, name)
+            }
 
-                // Can't check for the owner because we have no idea at compile time
-                is InvokeDynamicInsnNode ->
-                    instrumentMethodInsn(methodNode, it, currentLineNumber.line)
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface)
 
-                is VarInsnNode -> when (it.opcode) {
-                    ISTORE, LSTORE, FSTORE, DSTORE, ASTORE ->
-                        instrumentVarInsn(methodNode, it, currentLineNumber.line)
-                    else -> emptyList()
-                }
+            if (isSuperclassInitialization && isEntrySelected && options.recordMethodCall) {
+                // Record this method call after the superclass instance initialization method has
+                // been called, because before that, `this` is uninitialized.
+                recordMethodCall()
+            }
+        }
 
-                is IincInsnNode -> instrumentIincInsn(methodNode, it, currentLineNumber.line)
+        override fun visitInvokeDynamicInsn(
+            name: String,
+            descriptor: String,
+            bootstrapMethodHandle: Handle,
+            vararg bootstrapMethodArguments: Any?
+        ) {
+            // Can't check for the owner because we have no idea at compile time
+            if (options.recordCallSites && isCurrentLineSelected()) {
+                emitPreamble(currentLineNumber, name)
+            }
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, *bootstrapMethodArguments)
+        }
 
-                is FieldInsnNode -> when (it.opcode) {
-                    PUTFIELD, PUTSTATIC -> instrumentPutInsn(methodNode, it, currentLineNumber.line)
-                    else -> emptyList()
+        override fun visitVarInsn(opcode: Int, index: Int) = when (opcode) {
+            ISTORE, LSTORE, FSTORE, DSTORE, ASTORE -> {
+                if (isVariableStoreSelected(index)) {
+                    val variableName = methodCode.getLocalVariableName(index)
+                    val variableDescriptor = methodCode.getLocalVariableDescriptor(index)
+                    super.visitInsn(OpcodeUtil.getDupOpcode(opcode))
+                    super.visitVarInsn(opcode, index)
+                    recordStore(variableName, variableDescriptor)
+                } else {
+                    super.visitVarInsn(opcode, index)
                 }
+            }
 
-                is InsnNode -> when (it.opcode) {
-                    IASTORE, LASTORE, FASTORE, DASTORE, AASTORE, CASTORE, SASTORE ->
-                        instrumentArrayStore(methodNode, it, currentLineNumber.line)
+            else -> super.visitVarInsn(opcode, index)
+        }
 
-                    BASTORE ->
-                        instrumentBASTORE(methodNode, it, currentLineNumber.line)
+        override fun visitIincInsn(index: Int, increment: Int) {
+            if (isVariableStoreSelected(index)) {
+                val variableName = methodCode.getLocalVariableName(index)
+                val variableDescriptor = methodCode.getLocalVariableDescriptor(index)
+                super.visitIincInsn(index, increment)
+                super.visitVarInsn(ILOAD, index)
+                recordStore(variableName, variableDescriptor)
+            } else {
+                super.visitIincInsn(index, increment)
+            }
+        }
 
-                    else -> emptyList()
+        override fun visitFieldInsn(opcode: Int, owner: String, name: String, descriptor: String) =
+            when (opcode) {
+                PUTFIELD, PUTSTATIC -> {
+                    if (options.recordFieldStores &&
+                        isCurrentLineSelected() &&
+                        classSelection.isFieldSelected(owner, name)
+                    ) {
+                        super.visitInsn(OpcodeUtil.getDupOpcode(opcode, descriptor))
+                        super.visitFieldInsn(opcode, owner, name, descriptor)
+                        recordStore(generateFullyQualifiedFieldVariableName(owner, name), descriptor)
+                    } else {
+                        super.visitFieldInsn(opcode, owner, name, descriptor)
+                    }
                 }
 
-                else -> emptyList()
+                else -> super.visitFieldInsn(opcode, owner, name, descriptor)
             }
+
+        override fun visitInsn(opcode: Int) = when (opcode) {
+            // Array stores are replaced by the agent lib, which does the store
+            IASTORE, LASTORE, FASTORE, DASTORE, AASTORE, CASTORE, SASTORE ->
+                if (isArrayStoreSelected()) {
+                    recordArrayStore(
+                        OpcodeUtil.getArrayDescriptor(opcode),
+                        OpcodeUtil.getArrayElementDescriptor(opcode)
+                    )
+                } else {
+                    super.visitInsn(opcode)
+                }
+
+            BASTORE -> if (isArrayStoreSelected()) recordBooleanOrByteArrayStore() else super.visitInsn(opcode)
+
+            else -> super.visitInsn(opcode)
         }
 
-        val bodyInstrumentation =
-            if (options.recordMethodCall) instrumentMethodBody(methodNode)
-            else emptyList()
+        override fun visitLdcInsn(value: Any) = ldc(value)
 
-        return bodyInstrumentation + insertions
-    }
+        override fun visitMaxs(maxStack: Int, maxLocals: Int) =
+            super.visitMaxs(maxStack, if (usesRecordingContext) recordingContextIndex + 1 else maxLocals)
 
-    private fun instrumentArrayStore(
-        methodNode: MethodNode,
-        insnNode: InsnNode,
-        lineNumber: Int
-    ): List<InsnListInsertion> {
-        val arrayDescriptor = OpcodeUtil.getArrayDescriptor(insnNode.opcode)
-        val elementDescriptor = OpcodeUtil.getArrayElementDescriptor(insnNode.opcode)
-
-        return listOf(
-            methodNode.instructions.replace(insnNode) {
-                recordArrayStore(lineNumber, arrayDescriptor, elementDescriptor)
+        override fun visitEnd() {
+            check(kind != MethodKind.INSTANCE_INITIALIZATION || visitedFirstMethodInsn) {
+                "The instance initializer $name$descriptor does not call the superclass instance initializer"
             }
-        )
-    }
-
-    private fun instrumentBASTORE(
-        methodNode: MethodNode,
-        insnNode: InsnNode,
-        lineNumber: Int
-    ) = listOf(
-        methodNode.instructions.replace(insnNode) {
-            recordBooleanOrByteArrayStore(lineNumber)
-        }
-    )
-
-    private fun instrumentPutInsn(
-        methodNode: MethodNode,
-        fieldInsnNode: FieldInsnNode,
-        lineNumber: Int
-    ) = listOf(
-        methodNode.instructions.insertBefore(fieldInsnNode) {
-            add(InsnNode(OpcodeUtil.getDupOpcode(fieldInsnNode.opcode, fieldInsnNode.desc)))
-        },
-        methodNode.instructions.insertAfter(fieldInsnNode) {
-            recordStore(lineNumber, fieldInsnNode)
+            super.visitEnd()
         }
-    )
 
-    private fun instrumentMethodBody(methodNode: MethodNode) = listOf(
-        methodNode.instructions.insertBefore(methodNode.instructions.first) {
-            recordMethodCall(methodNode)
-        }
-    )
-
-    private fun InsnList.recordMethodCall(methodNode: MethodNode) {
-        val isStatic = hasAccessFlag(methodNode.access, ACC_STATIC)
-        val dynamicClassName = dynamicClassDefiner.defineClassForMethod(methodNode.desc, isStatic)
-
-        // Generate a method trace container class and make a new instance of it.
-        // Contextual information about this method is passed to the agent lib earlier
-        // when method instructions are visited.
-        add(TypeInsnNode(NEW, dynamicClassName))
-        add(InsnNode(DUP))
-        add(MethodInsnNode(INVOKESPECIAL, dynamicClassName, "<init>", "()V", false))
-        add(
-            MethodInsnNode(
-                INVOKESTATIC,
-                agentLibClassName,
-                "methodCall_start",
-                "(Lcom/octogonapus/omj/agentlib/MethodTrace;)V",
-                false
-            )
-        )
+        private fun isStatic() = hasAccessFlag(access, ACC_STATIC)
 
-        // Compute the stack index of each argument type. We can't use the list index as the
-        // stack index because some types take up two indices. Start `stackIndex` at `0`
-        // even if the method is virtual because the virtual offset is handled later.
-        var stackIndex = 0
-        val argumentTypes = Type.getArgumentTypes(methodNode.desc).map { type ->
-            val oldStackIndex = stackIndex
-            stackIndex += TypeUtil.getStackSize(type)
-            type to oldStackIndex
-        }
+        private fun isCurrentLineSelected() = classSelection.isLineSelected(currentLineNumber)
 
-        logger.debug { "argumentTypes = ${argumentTypes.joinToString()}" }
+        private fun isVariableStoreSelected(index: Int) =
+            options.recordLocalVariableStores &&
+                isCurrentLineSelected() &&
+                classSelection.isVariableSelected(name, methodCode.getLocalVariableName(index))
 
-        val virtualOffset = if (isStatic) 0 else 1
-        if (!isStatic) {
-            add(VarInsnNode(ALOAD, 0))
-            add(
-                MethodInsnNode(
-                    INVOKESTATIC,
-                    agentLibClassName,
-                    "methodCall_argument_Object",
-                    "(Ljava/lang/Object;)V",
-                    false
-                )
-            )
+        private fun isArrayStoreSelected() =
+            options.recordArrayStores && classSelection.selectsArrayStores && isCurrentLineSelected()
+
+        private fun ldc(value: Any) {
+            ldcCount++
+            super.visitLdcInsn(value)
         }
 
-        argumentTypes.forEach { (argumentType, stackIndex) ->
-            val methodName = "methodCall_argument_" +
-                TypeUtil.getAdaptedClassName(argumentType)
-            val methodDesc = "(" + TypeUtil.getAdaptedDescriptor(argumentType) + ")V"
-
-            logger.debug {
-                """
-                Generated methodCall_argument_xxx override
-                methodName = $methodName
-                methodDescriptor = $methodDesc
-                """.trimIndent()
+        /**
+         * Loads the recording context of the method onto the stack.
+         */
+        private fun loadRecordingContext() = super.visitVarInsn(ALOAD, recordingContextIndex)
+
+        private fun recordMethodCall() {
+            val isStatic = isStatic()
+            val methodSignatureTypes = DynamicClassDefiner.getMethodSignatureTypes(descriptor, isStatic)
+            val packsArguments = DynamicClassDefiner.canPackArguments(methodSignatureTypes)
+            val dynamicClassName = dynamicClassDefiner.defineClassForMethod(descriptor, isStatic)
+            if (packsArguments) {
+                containers.add(CachedClass.Container(descriptor, isStatic))
             }
 
-            add(VarInsnNode(argumentType.getOpcode(ILOAD), stackIndex + virtualOffset))
-            add(
-                MethodInsnNode(
-                    INVOKESTATIC,
-                    agentLibClassName,
-                    methodName,
-                    methodDesc,
-                    false
-                )
-            )
-        }
+            // Compute the stack index of each argument type. We can't use the list index as the
+            // stack index because some types take up two indices. Start `stackIndex` at `1` if the
+            // method is virtual to skip the receiver.
+            var stackIndex = if (isStatic) 0 else 1
+            val argumentTypes = Type.getArgumentTypes(descriptor).map { type ->
+                val oldStackIndex = stackIndex
+                stackIndex += TypeUtil.getStackSize(type)
+                type to oldStackIndex
+            }
 
-        add(
-            MethodInsnNode(
-                INVOKESTATIC,
-                agentLibClassName,
-                "methodCall_end",
-                "()V",
-                false
-            )
-        )
-    }
+            logger.debug { "argumentTypes = ${argumentTypes.joinToString()}" }
 
-    private fun instrumentMethodInsn(
-        methodNode: MethodNode,
-        methodInsnNode: MethodInsnNode,
-        lineNumber: Int
-    ) = listOf(
-        methodNode.instructions.insertBefore(methodInsnNode) {
-            emitPreamble(lineNumber, methodInsnNode.name)
-        }
-    )
-
-    private fun instrumentMethodInsn(
-        methodNode: MethodNode,
-        methodInsnNode: InvokeDynamicInsnNode,
-        lineNumber: Int
-    ) = listOf(
-        methodNode.instructions.insertBefore(methodInsnNode) {
-            emitPreamble(lineNumber, methodInsnNode.name)
-        }
-    )
+            // Generate a method trace container class and make a new instance of it that holds all
+            // the arguments. Containers are shared between methods with the same number of
+            // primitive and reference arguments, so the declared types are passed along with the
+            // arguments. Contextual information about this method is passed to the agent lib
+            // earlier when method instructions are visited.
+            val declaredTypes = methodSignatureTypes.joinToString(separator = "") {
+                TypeUtil.getDescriptorChar(it).toString()
+            }
 
-    private fun InsnList.emitPreamble(lineNumber: Int, methodName: String) {
-        add(LdcInsnNode(fullyQualifiedClassName))
-        add(
-            MethodInsnNode(
-                INVOKESTATIC,
-                agentLibClassName,
-                "className",
-                "(Ljava/lang/String;)V",
-                false
-            )
-        )
+            // The recording context is null while switchable sites are disabled. Skip making the
+            // container then, because the JIT can't remove the allocation on its own.
+            val skipMethodCall = Label()
+            if (emitsSwitchableSites) {
+                loadRecordingContext()
+                super.visitJumpInsn(IFNULL, skipMethodCall)
+            }
 
-        add(LdcInsnNode(lineNumber))
-        add(
-            MethodInsnNode(
-                INVOKESTATIC,
-                agentLibClassName,
-                "lineNumber",
-                "(I)V",
-                false
-            )
-        )
+            loadRecordingContext()
+            super.visitTypeInsn(NEW, dynamicClassName)
+            super.visitInsn(DUP)
+            ldc(declaredTypes)
+            super.visitInsn(if (isStatic) ICONST_1 else ICONST_0)
+
+            // The container's constructor takes every primitive argument widened to a long and
+            // then the receiver, if there is one, and every reference argument.
+            val primitiveArguments = argumentTypes.filter { (argumentType, _) -> !argumentType.isReference() }
+            val referenceArguments = argumentTypes.filter { (argumentType, _) -> argumentType.isReference() }
+            if (packsArguments) {
+                primitiveArguments.forEach { (argumentType, stackIndex) ->
+                    super.visitVarInsn(argumentType.getOpcode(ILOAD), stackIndex)
+                    widenToLong(argumentType)
+                }
 
-        add(LdcInsnNode(methodName))
-        add(
-            MethodInsnNode(
-                INVOKESTATIC,
-                agentLibClassName,
-                "methodName",
-                "(Ljava/lang/String;)V",
-                false
-            )
-        )
-    }
+                if (!isStatic) {
+                    super.visitVarInsn(ALOAD, 0)
+                }
+
+                referenceArguments.forEach { (_, stackIndex) -> super.visitVarInsn(ALOAD, stackIndex) }
+            } else {
+                // Too many primitives to pass one by one, so pass the same values in arrays
+                super.visitIntInsn(SIPUSH, primitiveArguments.size)
+                super.visitIntInsn(NEWARRAY, T_LONG)
+                primitiveArguments.forEachIndexed { arrayIndex, (argumentType, stackIndex) ->
+                    super.visitInsn(DUP)
+                    super.visitIntInsn(SIPUSH, arrayIndex)
+                    super.visitVarInsn(argumentType.getOpcode(ILOAD), stackIndex)
+                    widenToLong(argumentType)
+                    super.visitInsn(LASTORE)
+                }
 
-    private fun instrumentVarInsn(
-        methodNode: MethodNode,
-        varInsnNode: VarInsnNode,
-        lineNumber: Int
-    ): List<InsnListInsertion> {
-        val localVariable = methodNode.localVariables.first { it.index == varInsnNode.`var` }
-
-        return listOf(
-            methodNode.instructions.insertBefore(varInsnNode) {
-                add(InsnNode(OpcodeUtil.getDupOpcode(varInsnNode.opcode)))
-            },
-            methodNode.instructions.insertAfter(varInsnNode) {
-                recordStore(lineNumber, localVariable)
+                val references = (if (isStatic) listOf() else listOf(0)) + referenceArguments.map { it.second }
+                super.visitIntInsn(SIPUSH, references.size)
+                super.visitTypeInsn(ANEWARRAY, "java/lang/Object")
+                references.forEachIndexed { arrayIndex, stackIndex ->
+                    super.visitInsn(DUP)
+                    super.visitIntInsn(SIPUSH, arrayIndex)
+                    super.visitVarInsn(ALOAD, stackIndex)
+                    super.visitInsn(AASTORE)
+                }
             }
-        )
-    }
 
-    private fun instrumentIincInsn(
-        methodNode: MethodNode,
-        iincInsnNode: IincInsnNode,
-        lineNumber: Int
-    ): List<InsnListInsertion> {
-        val localVariable = methodNode.localVariables.first { it.index == iincInsnNode.`var` }
-
-        return listOf(
-            methodNode.instructions.insertAfter(iincInsnNode) {
-                add(VarInsnNode(ILOAD, iincInsnNode.`var`))
-                recordStore(lineNumber, localVariable)
+            val constructorDesc = DynamicClassDefiner.getConstructorDescriptor(methodSignatureTypes)
+            super.visitMethodInsn(INVOKESPECIAL, dynamicClassName, "<init>", constructorDesc, false)
+            invokeRecordingMethod(
+                INVOKEVIRTUAL,
+                recordingContextClassName,
+                "methodCall",
+                "(Lcom/octogonapus/omj/agentlib/MethodTrace;)V"
+            )
+
+            if (emitsSwitchableSites) {
+                super.visitLabel(skipMethodCall)
             }
-        )
-    }
+        }
 
-    /**
-     * Records a store into a local variable.
-     *
-     * @param lineNumber The closest line number of the store.
-     * @param localVariable The local variable being stored into.
-     */
-    private fun InsnList.recordStore(lineNumber: Int, localVariable: LocalVariableNode) =
-        recordStore(
-            lineNumber,
-            localVariable.name,
-            TypeUtil.getAdaptedDescriptor(Type.getType(localVariable.desc))
-        )
+        /**
+         * Widens the primitive on top of the stack to a long. Floats and doubles are converted to
+         * their raw bits.
+         */
+        private fun widenToLong(type: Type) {
+            when (type.sort) {
+                Type.BOOLEAN, Type.BYTE, Type.CHAR, Type.SHORT, Type.INT -> super.visitInsn(I2L)
+                Type.FLOAT -> {
+                    super.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false)
+                    super.visitInsn(I2L)
+                }
+                Type.DOUBLE -> super.visitMethodInsn(
+                    INVOKESTATIC,
+                    "java/lang/Double",
+                    "doubleToRawLongBits",
+                    "(D)J",
+                    false
+                )
+                Type.LONG -> Unit
+                else -> error("Cannot widen $type to a long.")
+            }
+        }
 
-    /**
-     * Records a store into a field.
-     *
-     * @param lineNumber The closest line number of the store.
-     * @param field The field being stored into.
-     */
-    private fun InsnList.recordStore(lineNumber: Int, field: FieldInsnNode) =
-        recordStore(
-            lineNumber,
-            generateFullyQualifiedFieldVariableName(field.owner, field.name),
-            TypeUtil.getAdaptedDescriptor(Type.getType(field.desc))
-        )
+        /**
+         * Records the site of a method call so that the called method's trace can refer to it.
+         *
+         * @param lineNumber The closest line number of the call.
+         * @param methodName The name of the method being called.
+         */
+        private fun emitPreamble(lineNumber: Int, methodName: String) {
+            loadRecordingContext()
+            loadSiteId(lineNumber, methodName)
+            invokeRecordingMethod(INVOKEVIRTUAL, recordingContextClassName, "callSite", "(I)V")
+        }
 
-    /**
-     * Records a store into any type of variable.
-     *
-     * @param lineNumber The closest line number of the store.
-     * @param variableName The name of the variable being stored into.
-     * @param adaptedVariableDesc The "adapted" type descriptor of the variable. See
-     * [TypeUtil.getAdaptedDescriptor].
-     */
-    private fun InsnList.recordStore(
-        lineNumber: Int,
-        variableName: String,
-        adaptedVariableDesc: String
-    ) {
-        add(LdcInsnNode(fullyQualifiedClassName))
-        add(LdcInsnNode(lineNumber))
-        add(LdcInsnNode(variableName))
-        add(
-            MethodInsnNode(
+        /**
+         * Records a store into any type of variable.
+         *
+         * @param variableName The name of the variable being stored into.
+         * @param variableDescriptor The type descriptor of the variable.
+         */
+        private fun recordStore(variableName: String, variableDescriptor: String) {
+            val adaptedVariableDesc = TypeUtil.getAdaptedDescriptor(Type.getType(variableDescriptor))
+            loadSiteId(currentLineNumber, variableName)
+            loadRecordingContext()
+            invokeRecordingMethod(
                 INVOKESTATIC,
                 agentLibClassName,
                 "store",
-                "(${adaptedVariableDesc}Ljava/lang/String;ILjava/lang/String;)V",
-                false
+                "(${adaptedVariableDesc}IL$recordingContextClassName;)V"
             )
-        )
-    }
+        }
 
-    /**
-     * Records an array store into any type of array.
-     *
-     * @param lineNumber The closest line number of the store.
-     * @param arrayDescriptor The type descriptor of the array.
-     * @param elementDescriptor The type descriptor of the array elements.
-     */
-    private fun InsnList.recordArrayStore(
-        lineNumber: Int,
-        arrayDescriptor: String,
-        elementDescriptor: String
-    ) {
-        add(LdcInsnNode(fullyQualifiedClassName))
-        add(LdcInsnNode(lineNumber))
-        add(
-            MethodInsnNode(
+        /**
+         * Records an array store into any type of array.
+         *
+         * @param arrayDescriptor The type descriptor of the array.
+         * @param elementDescriptor The type descriptor of the array elements.
+         */
+        private fun recordArrayStore(arrayDescriptor: String, elementDescriptor: String) {
+            loadSiteId(currentLineNumber, "")
+            loadRecordingContext()
+            invokeRecordingMethod(
                 INVOKESTATIC,
                 agentLibClassName,
                 "store",
-                "(${arrayDescriptor}I${elementDescriptor}Ljava/lang/String;I)V",
-                false
+                "(${arrayDescriptor}I${elementDescriptor}IL$recordingContextClassName;)V"
             )
-        )
-    }
+        }
 
-    /**
-     * Records an array store into an array of booleans or bytes.
-     *
-     * @param lineNumber The closest line number of the store.
-     */
-    private fun InsnList.recordBooleanOrByteArrayStore(lineNumber: Int) {
-        add(LdcInsnNode(fullyQualifiedClassName))
-        add(LdcInsnNode(lineNumber))
-        add(
-            MethodInsnNode(
+        /**
+         * Records an array store into an array of booleans or bytes.
+         */
+        private fun recordBooleanOrByteArrayStore() {
+            loadSiteId(currentLineNumber, "")
+            loadRecordingContext()
+            invokeRecordingMethod(
                 INVOKESTATIC,
                 agentLibClassName,
                 "storeBooleanOrByteArray",
-                "(Ljava/lang/Object;IBLjava/lang/String;I)V",
-                false
+                "(Ljava/lang/Object;IBIL$recordingContextClassName;)V"
             )
-        )
+        }
+
+        /**
+         * Calls an agent lib method that records. If switchable sites are emitted, the method is
+         * called through an invokedynamic site linked by the agent lib's `RecordingSites` instead,
+         * which takes the receiver of a virtual method as its first argument.
+         */
+        private fun invokeRecordingMethod(opcode: Int, owner: String, name: String, descriptor: String) {
+            if (emitsSwitchableSites) {
+                val siteDescriptor = if (opcode == INVOKESTATIC) descriptor else "(L$owner;" + descriptor.substring(1)
+                super.visitInvokeDynamicInsn(name, siteDescriptor, recordingSiteBootstrap)
+            } else {
+                super.visitMethodInsn(opcode, owner, name, descriptor, false)
+            }
+        }
+
+        /**
+         * Registers a site and loads its ID.
+         *
+         * @param lineNumber The closest line number of the site.
+         * @param name The name of the site. See [SiteTable.registerSite].
+         */
+        private fun loadSiteId(lineNumber: Int, name: String) {
+            val siteId = siteTable.registerSite(fullyQualifiedClassName, lineNumber, name)
+            sites.add(CachedClass.Site(fullyQualifiedClassName, lineNumber, name, siteId, methodIndex, ldcCount))
+            ldc(siteId)
+        }
     }
 
+    private fun Type.isReference() = sort == Type.OBJECT || sort == Type.ARRAY
+
     /**
      * Determines whether the method is an instance initialization method according to JVMS Section
      * 2.9.1.
      *
      * @return True if the method is an instance initialization method.
      */
-    private fun MethodNode.isInstanceInitializationMethod(): Boolean =
-        name == "<init>" && Type.getReturnType(desc).sort == Type.VOID
-
-    /**
-     * Determines whether the method is an class initialization method according to JVMS Section
-     * 2.9.2.
-     *
-     * @return True if the method is an class initialization method.
-     */
-    private fun MethodNode.isClassInitializationMethod(): Boolean {
-        val majorVersion = classNode.version and 0xFFFF
-
-        val versionCheck = if (majorVersion >= 51) {
-            hasAccessFlag(access, ACC_STATIC) &&
-                Type.getArgumentTypes(desc).isEmpty()
-        } else true
-
-        return name == "<clinit>" &&
-            Type.getReturnType(desc).sort == Type.VOID &&
-            versionCheck
-    }
+    private fun isInstanceInitializationMethod(name: String, descriptor: String): Boolean =
+        name == "<init>" && Type.getReturnType(descriptor).sort == Type.VOID
 
     /**
      * Determines whether the method is the "main method" (entry point) according to JLS Section
@@ -547,12 +663,12 @@ internal class OMJClassTransformer(
      *
      * @return True if the method is the "main method".
      */
-    private fun MethodNode.isMainMethod(): Boolean {
-        val argumentTypes = Type.getArgumentTypes(desc)
+    private fun isMainMethod(access: Int, name: String, descriptor: String): Boolean {
+        val argumentTypes = Type.getArgumentTypes(descriptor)
         return name == "main" &&
             hasAccessFlag(access, ACC_PUBLIC) &&
             hasAccessFlag(access, ACC_STATIC) &&
-            Type.getReturnType(desc).sort == Type.VOID &&
+            Type.getReturnType(descriptor).sort == Type.VOID &&
             argumentTypes.size == 1 &&
             argumentTypes[0].descriptor == "[Ljava/lang/String;"
     }
@@ -561,6 +677,16 @@ internal class OMJClassTransformer(
 
         private val logger = KotlinLogging.logger { }
         const val agentLibClassName = "com/octogonapus/omj/agentlib/OMJAgentLib"
+        const val recordingContextClassName = "com/octogonapus/omj/agentlib/RecordingContext"
+
+        private val recordingSiteBootstrap = Handle(
+            H_INVOKESTATIC,
+            "com/octogonapus/omj/agentlib/RecordingSites",
+            "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles\$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)" +
+                "Ljava/lang/invoke/CallSite;",
+            false
+        )
 
         /**
          * Checks if an access flag is present. See [Opcodes] for the flags.
@@ -0,0 +1,75 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+/**
+ * A named set of [ClassTransformerOptions] toggles. Recording less makes the instrumented program
+ * run faster and write smaller traces.
+ *
+ * @param profileName The name the profile is selected by.
+ * @param recordsCalls Whether method calls and their call sites are recorded.
+ * @param recordsLocalVariableStores Whether stores into local variables are recorded.
+ * @param recordsFieldStores Whether stores into fields are recorded.
+ * @param recordsArrayStores Whether stores into array elements are recorded.
+ */
+internal enum class RecordingProfile(
+    internal val profileName: String,
+    private val recordsCalls: Boolean,
+    private val recordsLocalVariableStores: Boolean,
+    private val recordsFieldStores: Boolean,
+    private val recordsArrayStores: Boolean
+) {
+    FULL("full", true, true, true, true),
+    CALLS_ONLY("calls-only", true, false, false, false),
+    STORES_ONLY("stores-only", false, true, true, true),
+    FIELDS_ONLY("fields-only", false, false, true, false),
+    ARRAYS_OFF("arrays-off", true, true, true, false);
+
+    /**
+     * @param selection Which parts of the transformed classes are instrumented.
+     * @return The options that record what this profile records.
+     */
+    internal fun options(selection: InstrumentationSelection = InstrumentationSelection.everything) =
+        ClassTransformerOptions(
+            recordMethodCall = recordsCalls,
+            recordCallSites = recordsCalls,
+            recordLocalVariableStores = recordsLocalVariableStores,
+            recordFieldStores = recordsFieldStores,
+            recordArrayStores = recordsArrayStores,
+            selection = selection
+        )
+
+    companion object {
+
+        /**
+         * @param profileName The name of a profile.
+         * @return The profile with that name.
+         * @throws IllegalArgumentException If there is no profile with that name.
+         */
+        internal fun forName(profileName: String) =
+            values().firstOrNull { it.profileName == profileName } ?: throw IllegalArgumentException(
+                "Unknown recording profile $profileName. The profiles are " +
+                    values().joinToString { it.profileName } + "."
+            )
+
+        /**
+         * Reads the profile from the system property `agent.profile`. If the property is not set,
+         * the [FULL] profile is used.
+         */
+        internal fun createFromSystemProperties() = System.getProperty("agent.profile")?.let { forName(it) } ?: FULL
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import com.octogonapus.omj.util.Util
+import mu.KotlinLogging
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.util.TraceClassVisitor
+import java.io.BufferedWriter
+import java.io.IOException
+import java.io.PrintWriter
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.regex.Pattern
+
+/**
+ * Collects diagnostics about the classes the agent transforms: how long each class took to
+ * transform, how much its bytecode grew, and how many sites were instrumented in it. The
+ * disassembly of the instrumented classes that match a pattern can be written too. Diagnostics are
+ * written into a directory for each run on a background thread so that they slow transformation
+ * down as little as possible.
+ *
+ * @param runDir The directory to write this run's diagnostics into, or null if diagnostics are off.
+ * @param dumpFilter The pattern of the internal names of the classes to write the disassembly of,
+ * or null to write none.
+ */
+internal class TransformDiagnostics private constructor(
+    private val runDir: Path?,
+    private val dumpFilter: Pattern?
+) {
+
+    /**
+     * True if diagnostics are collected. Callers should check this before measuring anything.
+     */
+    internal val isEnabled = runDir != null
+
+    private val numberOfClasses = AtomicLong()
+    private val numberOfCachedClasses = AtomicLong()
+    private val totalNanos = AtomicLong()
+    private val totalOriginalBytes = AtomicLong()
+    private val totalInstrumentedBytes = AtomicLong()
+    private val totalSites = AtomicLong()
+
+    /**
+     * Writes the diagnostics, or null if diagnostics are off. Its thread is only started when the
+     * first class is recorded.
+     */
+    private val executor = if (runDir == null) null else {
+        Executors.newSingleThreadExecutor { Thread(it, "OMJ transform diagnostics").apply { isDaemon = true } }
+    }
+
+    // Only used by the executor's thread
+    private var classesWriter: BufferedWriter? = null
+
+    /**
+     * True once [close] has started. Classes keep being loaded while the shutdown hooks run, so
+     * [record] can be called after [close].
+     */
+    @Volatile
+    private var isClosed = false
+
+    /**
+     * Records the transformation of a class. Does nothing once the diagnostics are closed.
+     *
+     * @param className The internal name of the class.
+     * @param originalSize The size of the original class file in bytes.
+     * @param instrumentedBytes The instrumented class file.
+     * @param numberOfSites The number of sites instrumented in the class.
+     * @param nanos How long transforming the class took.
+     * @param cached True if the instrumented class was loaded from the [TransformCache].
+     */
+    @Suppress("LongParameterList")
+    internal fun record(
+        className: String,
+        originalSize: Int,
+        instrumentedBytes: ByteArray,
+        numberOfSites: Int,
+        nanos: Long,
+        cached: Boolean
+    ) {
+        if (runDir == null || executor == null || isClosed) {
+            return
+        }
+
+        numberOfClasses.incrementAndGet()
+        if (cached) {
+            numberOfCachedClasses.incrementAndGet()
+        }
+        totalNanos.addAndGet(nanos)
+        totalOriginalBytes.addAndGet(originalSize.toLong())
+        totalInstrumentedBytes.addAndGet(instrumentedBytes.size.toLong())
+        totalSites.addAndGet(numberOfSites.toLong())
+
+        try {
+            executor.execute {
+                try {
+                    val writer = classesWriter ?: openClassesWriter(runDir).also { classesWriter = it }
+                    writer.write(
+                        "$className\t$nanos\t$originalSize\t${instrumentedBytes.size}\t$numberOfSites\t$cached\n"
+                    )
+                    writer.flush()
+
+                    if (dumpFilter != null && dumpFilter.matcher(className).matches()) {
+                        dump(runDir, className, instrumentedBytes)
+                    }
+                } catch (ex: IOException) {
+                    logger.warn(ex) { "Failed to write diagnostics for $className" }
+                }
+            }
+        } catch (ex: RejectedExecutionException) {
+            // The diagnostics were closed after the check above
+            logger.debug(ex) { "Diagnostics for $className were recorded after closing" }
+        }
+    }
+
+    /**
+     * Writes everything recorded so far and a summary of the run. Anything recorded afterwards is
+     * ignored.
+     */
+    internal fun close() {
+        if (runDir == null || executor == null) {
+            return
+        }
+
+        isClosed = true
+
+        executor.shutdown()
+        executor.awaitTermination(closeTimeoutSeconds, TimeUnit.SECONDS)
+
+        val summary = """
+            classes: ${numberOfClasses.get()}
+            classes from the transform cache: ${numberOfCachedClasses.get()}
+            transform time: ${totalNanos.get() / 1_000_000} ms
+            original bytes: ${totalOriginalBytes.get()}
+            instrumented bytes: ${totalInstrumentedBytes.get()}
+            sites: ${totalSites.get()}
+        """.trimIndent()
+        logger.info { "Transform diagnostics in $runDir:\n$summary" }
+
+        try {
+            classesWriter?.close()
+            Files.createDirectories(runDir)
+            Files.write(runDir.resolve("summary.txt"), (summary + "\n").toByteArray())
+        } catch (ex: IOException) {
+            logger.warn(ex) { "Failed to write the diagnostics summary" }
+        }
+    }
+
+    private fun openClassesWriter(runDir: Path): BufferedWriter {
+        Files.createDirectories(runDir)
+        val writer = Files.newBufferedWriter(runDir.resolve("classes.tsv"))
+        writer.write("class\tnanos\toriginal bytes\tinstrumented bytes\tsites\tcached\n")
+        return writer
+    }
+
+    private fun dump(runDir: Path, className: String, instrumentedBytes: ByteArray) {
+        val dumpDir = runDir.resolve("dumps")
+        Files.createDirectories(dumpDir)
+        PrintWriter(Files.newBufferedWriter(dumpDir.resolve("${className.replace('/', '.')}.txt"))).use {
+            ClassReader(instrumentedBytes).accept(TraceClassVisitor(it), 0)
+        }
+    }
+
+    companion object {
+
+        private val logger = KotlinLogging.logger { }
+
+        private const val closeTimeoutSeconds = 10L
+
+        /**
+         * Creates [TransformDiagnostics] from the system properties `agent.diagnostics`, which
+         * turns diagnostics on if it is `true`, `agent.diagnostics-dump`, the pattern of the
+         * internal names of the classes to write the disassembly of, and `agent.diagnostics-dir`.
+         * If diagnostics are on, they are written when the JVM shuts down.
+         */
+        internal fun createFromSystemProperties(): TransformDiagnostics {
+            if (!java.lang.Boolean.getBoolean("agent.diagnostics")) {
+                return create(null, null)
+            }
+
+            // Several JVMs can share the diagnostics directory, so each run gets its own
+            val runDir = Util.getDiagnosticsDir()
+                .resolve("${System.currentTimeMillis()}-${ProcessHandle.current().pid()}")
+            val diagnostics = create(runDir, System.getProperty("agent.diagnostics-dump"))
+            Runtime.getRuntime().addShutdownHook(Thread(diagnostics::close))
+            return diagnostics
+        }
+
+        /**
+         * @param runDir The directory to write diagnostics into, or null to turn diagnostics off.
+         * @param dumpFilterString The pattern of the internal names of the classes to write the
+         * disassembly of, or null to write none.
+         */
+        internal fun create(runDir: Path?, dumpFilterString: String?) =
+            TransformDiagnostics(runDir, dumpFilterString?.let { Pattern.compile(it) })
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import com.octogonapus.omj.agentlib.SiteTable
+import com.octogonapus.omj.testutil.KoinTestFixture
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.koin.dsl.module
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes.ACC_PUBLIC
+import org.objectweb.asm.Opcodes.ACC_STATIC
+import org.objectweb.asm.Opcodes.ICONST_1
+import org.objectweb.asm.Opcodes.ISTORE
+import org.objectweb.asm.Opcodes.RETURN
+import org.objectweb.asm.Opcodes.V11
+import org.objectweb.asm.tree.ClassNode
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+
+internal class AheadOfTimeInstrumenterTest : KoinTestFixture() {
+
+    @BeforeEach
+    fun beforeEach() {
+        testKoin(
+            module {
+                single { dynamicClassDefiner }
+                single { ClassFilter.create("com/agenttest/.*", "") }
+                // The IDs of the sites in a run start right after the reserved ones
+                single { SiteTable.create() }
+                single { ClassHierarchy() }
+            }
+        )
+    }
+
+    @Test
+    fun `a class in two jars is instrumented in each jar`(@TempDir tempDir: File) {
+        val firstJar = writeJar(tempDir.resolve("a.jar"), mapOf(classEntry to generateClass("first")))
+        val secondJar = writeJar(tempDir.resolve("b.jar"), mapOf(classEntry to generateClass("second")))
+        val outputDir = tempDir.resolve("out").toPath()
+
+        assertEquals(2, AheadOfTimeInstrumenter.instrumentJars(listOf(firstJar, secondJar), outputDir, listOf()))
+
+        // Each jar keeps its own version of the class
+        assertEquals(listOf("first"), readVariableNames(outputDir.resolve("a.jar")))
+        assertEquals(listOf("second"), readVariableNames(outputDir.resolve("b.jar")))
+
+        // Every jar has the sites of both versions
+        listOf("a.jar", "b.jar").forEach { jarName ->
+            val manifest = readManifest(outputDir.resolve(jarName))
+            assertEquals(listOf(className), manifest.classNames)
+            assertTrue(manifest.sites.any { it.name == "first" })
+            assertTrue(manifest.sites.any { it.name == "second" })
+        }
+    }
+
+    @Test
+    fun `jars with the same file name are rejected`(@TempDir tempDir: File) {
+        val firstJar = writeJar(tempDir.resolve("first/a.jar"), mapOf(classEntry to generateClass("first")))
+        val secondJar = writeJar(tempDir.resolve("second/a.jar"), mapOf(classEntry to generateClass("second")))
+
+        val outputDir = tempDir.resolve("out").toPath()
+
+        assertThrows(IllegalArgumentException::class.java) {
+            AheadOfTimeInstrumenter.instrumentJars(listOf(firstJar, secondJar), outputDir, listOf())
+        }
+    }
+
+    @Test
+    fun `signature files are only removed from jars with instrumented classes`(@TempDir tempDir: File) {
+        val signatureFiles = mapOf(
+            "META-INF/MANIFEST.MF" to "Manifest-Version: 1.0\n".toByteArray(),
+            "META-INF/SIGNER.SF" to byteArrayOf(1),
+            "META-INF/SIGNER.RSA" to byteArrayOf(2),
+            "META-INF/maven/NOT_A_SIGNATURE.SF" to byteArrayOf(3)
+        )
+        val instrumentedJar = writeJar(
+            tempDir.resolve("instrumented.jar"),
+            signatureFiles + (classEntry to generateClass("first"))
+        )
+        val excludedJar = writeJar(
+            tempDir.resolve("excluded.jar"),
+            signatureFiles + ("org/other/Bar.class" to generateClass("first"))
+        )
+        val outputDir = tempDir.resolve("out").toPath()
+
+        AheadOfTimeInstrumenter.instrumentJars(listOf(instrumentedJar, excludedJar), outputDir, listOf())
+
+        val instrumentedEntries = readEntryNames(outputDir.resolve("instrumented.jar"))
+        assertEquals(
+            listOf(
+                "META-INF/MANIFEST.MF",
+                "META-INF/maven/NOT_A_SIGNATURE.SF",
+                classEntry,
+                InstrumentedJarManifest.path
+            ),
+            instrumentedEntries.filter { !it.startsWith("com/octogonapus/omj/agentlib/") }
+        )
+        // The container classes the instrumented class records method calls in are bundled
+        assertTrue(instrumentedEntries.any { it.startsWith("com/octogonapus/omj/agentlib/") })
+
+        assertEquals(
+            signatureFiles.keys + "org/other/Bar.class",
+            readEntryNames(outputDir.resolve("excluded.jar")).toSet()
+        )
+    }
+
+    private fun writeJar(file: File, entries: Map<String, ByteArray>): Path {
+        file.parentFile.mkdirs()
+        ZipOutputStream(Files.newOutputStream(file.toPath())).use { zipOutputStream ->
+            entries.forEach { (name, bytes) ->
+                zipOutputStream.putNextEntry(ZipEntry(name))
+                zipOutputStream.write(bytes)
+                zipOutputStream.closeEntry()
+            }
+        }
+        return file.toPath()
+    }
+
+    private fun readEntryNames(jar: Path) = ZipFile(jar.toFile()).use { zipFile ->
+        zipFile.entries().toList().map { it.name }
+    }
+
+    private fun readManifest(jar: Path) = ZipFile(jar.toFile()).use { zipFile ->
+        zipFile.getInputStream(zipFile.getEntry(InstrumentedJarManifest.path)).use { InstrumentedJarManifest.read(it) }
+    }
+
+    private fun readVariableNames(jar: Path): List<String> {
+        val bytes = ZipFile(jar.toFile()).use { zipFile ->
+            zipFile.getInputStream(zipFile.getEntry(classEntry)).use { it.readBytes() }
+        }
+        val classNode = ClassNode().also { ClassReader(bytes).accept(it, 0) }
+        return classNode.methods.single { it.name == "store" }.localVariables.map { it.name }
+    }
+
+    companion object {
+
+        private const val className = "com/agenttest/Foo"
+        private const val classEntry = "$className.class"
+
+        // Container classes are defined in this JVM, which can only be done once per class, so
+        // the tests share the definer and use a method descriptor no other test uses
+        private val dynamicClassDefiner = DynamicClassDefiner()
+        private const val methodDescriptor = "(JJJJJJJJJJJ)V"
+        private const val variableIndex = 22
+
+        /**
+         * Generates a class with a method that stores into a local variable after its arguments.
+         *
+         * @param variableName The name of the local variable, which tells the versions of the class
+         * apart.
+         */
+        private fun generateClass(variableName: String): ByteArray {
+            val classWriter = ClassWriter(ClassWriter.COMPUTE_MAXS)
+            classWriter.visit(V11, ACC_PUBLIC, className, null, "java/lang/Object", null)
+
+            classWriter.visitMethod(ACC_PUBLIC or ACC_STATIC, "store", methodDescriptor, null, null).apply {
+                val start = Label()
+                val end = Label()
+                visitCode()
+                visitLabel(start)
+                visitLineNumber(1, start)
+                visitInsn(ICONST_1)
+                visitVarInsn(ISTORE, variableIndex)
+                visitInsn(RETURN)
+                visitLabel(end)
+                visitLocalVariable(variableName, "I", null, start, end, variableIndex)
+                visitMaxs(0, 0)
+                visitEnd()
+            }
+
+            classWriter.visitEnd()
+            return classWriter.toByteArray()
+        }
+    }
+}
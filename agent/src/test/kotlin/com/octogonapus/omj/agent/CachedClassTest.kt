@@ -0,0 +1,94 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Opcodes.ACC_PUBLIC
+import org.objectweb.asm.Opcodes.ACC_STATIC
+import org.objectweb.asm.Opcodes.ALOAD
+import org.objectweb.asm.Opcodes.IADD
+import org.objectweb.asm.Opcodes.INVOKESPECIAL
+import org.objectweb.asm.Opcodes.IRETURN
+import org.objectweb.asm.Opcodes.RETURN
+import org.objectweb.asm.Opcodes.V11
+
+internal class CachedClassTest {
+
+    @Test
+    fun `sites with the same IDs keep the same bytes`() {
+        val cachedClass = CachedClass(generateClass(), listOf(), listOf(site(70000)), mapOf())
+        assertSame(cachedClass.bytes, cachedClass.relocateSites(intArrayOf(70000)))
+    }
+
+    @Test
+    fun `relocate a site without changing a constant with the same value`() {
+        val cachedClass = CachedClass(generateClass(), listOf(), listOf(site(70000)), mapOf())
+
+        val relocatedClass = TestClassLoader().define(cachedClass.relocateSites(intArrayOf(80000)))
+
+        // The method adds its own constant to the site's ID
+        assertEquals(150000, relocatedClass.getMethod("sum").invoke(null))
+    }
+
+    private class TestClassLoader : ClassLoader(CachedClassTest::class.java.classLoader) {
+        fun define(bytes: ByteArray): Class<*> = defineClass(null, bytes, 0, bytes.size)
+    }
+
+    companion object {
+
+        private const val className = "com/octogonapus/omj/agent/Relocated"
+
+        /**
+         * A site whose ID is loaded by the second LDC instruction of the second method.
+         */
+        private fun site(id: Int) = CachedClass.Site("Relocated", 1, "sum", id, 1, 1)
+
+        /**
+         * Generates a class with a constructor and a method which adds a constant to a site ID that
+         * has the same value.
+         */
+        private fun generateClass(): ByteArray {
+            val classWriter = ClassWriter(ClassWriter.COMPUTE_MAXS)
+            classWriter.visit(V11, ACC_PUBLIC, className, null, "java/lang/Object", null)
+
+            classWriter.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null).apply {
+                visitCode()
+                visitVarInsn(ALOAD, 0)
+                visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false)
+                visitInsn(RETURN)
+                visitMaxs(0, 0)
+                visitEnd()
+            }
+
+            classWriter.visitMethod(ACC_PUBLIC or ACC_STATIC, "sum", "()I", null, null).apply {
+                visitCode()
+                visitLdcInsn(70000)
+                visitLdcInsn(70000)
+                visitInsn(IADD)
+                visitInsn(IRETURN)
+                visitMaxs(0, 0)
+                visitEnd()
+            }
+
+            classWriter.visitEnd()
+            return classWriter.toByteArray()
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.regex.Pattern
+
+internal class ClassFilterTest {
+
+    @Test
+    fun `transform included classes that are not excluded`() {
+        val classFilter = ClassFilter.create("com/example/.*", "com/example/internal/.*")
+
+        assertTrue(classFilter.shouldTransform("com/example/Foo"))
+        assertTrue(classFilter.shouldTransform("com/example/Foo"))
+        assertFalse(classFilter.shouldTransform("com/example/internal/Foo"))
+        assertFalse(classFilter.shouldTransform("com/other/Foo"))
+    }
+
+    @Test
+    fun `the decision memo is bounded`() {
+        val classFilter = ClassFilter.create("com/example/.*", "")
+
+        repeat(ClassFilter.maxDecisions * 3) {
+            assertTrue(classFilter.shouldTransform("com/example/Foo$it"))
+            assertTrue(classFilter.memoizedDecisions() <= ClassFilter.maxDecisions)
+        }
+
+        // Decisions are still right after the memo is cleared
+        assertTrue(classFilter.shouldTransform("com/example/Foo0"))
+        assertFalse(classFilter.shouldTransform("com/other/Foo0"))
+    }
+
+    @Test
+    fun `package patterns are compiled into a prefix trie`() {
+        listOf(
+            "",
+            ".*",
+            "com/agenttest/[a-zA-Z0-9/]*",
+            "com/example/.*|org/example/.*",
+            "com/example/Foo\\$1|com/example/Bar"
+        ).forEach {
+            assertTrue(ClassNameMatcher.compile(it) is ClassNameMatcher.PrefixTrie, it)
+        }
+    }
+
+    @Test
+    fun `other patterns are compiled into a regex`() {
+        listOf("com.example.*", "(com|org)/example/.*", "com/[^/]*/Foo", "com/example/.+", "(?i)com/.*").forEach {
+            assertTrue(ClassNameMatcher.compile(it) is ClassNameMatcher.PatternMatcher, it)
+        }
+    }
+
+    @Test
+    fun `matchers match like the regex`() {
+        val patterns = listOf(
+            "",
+            ".*",
+            "com/agenttest/[a-zA-Z0-9/]*",
+            "com/agenttest/[a-zA-Z0-9/\$_]*",
+            "com/example/.*|com/example/internal/.*|org/.*",
+            "com/example|com/example/.*",
+            "com/example/Foo\\$1",
+            "com/ex-ample/[-a]*",
+            "com.example.*",
+            "(com|org)/example/.*"
+        )
+        val classNames = listOf(
+            "",
+            "com",
+            "com/",
+            "com/example",
+            "com/example/",
+            "com/example/Foo",
+            "com/example/Foo\$1",
+            "com/example/internal/Foo",
+            "com/agenttest/Foo",
+            "com/agenttest/Foo\$Bar",
+            "com/agenttest/foo_bar/Baz",
+            "com/ex-ample/a-a",
+            "com/ex-ample/ab",
+            "comXexample/Foo",
+            "org/Foo",
+            "org/example/Foo",
+            "com/example/Foo\nBar"
+        )
+
+        patterns.forEach { pattern ->
+            val matcher = ClassNameMatcher.compile(pattern)
+            val regex = Pattern.compile(pattern)
+            classNames.forEach { className ->
+                assertEquals(regex.matcher(className).matches(), matcher.matches(className), "$pattern $className")
+            }
+        }
+    }
+}
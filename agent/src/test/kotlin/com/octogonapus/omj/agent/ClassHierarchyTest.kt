@@ -0,0 +1,149 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Opcodes.ACC_PUBLIC
+import org.objectweb.asm.Opcodes.V1_8
+
+internal class ClassHierarchyTest {
+
+    private val classLoader = javaClass.classLoader
+
+    @Test
+    fun `common superclass of classes`() {
+        val classHierarchy = ClassHierarchy()
+
+        assertEquals(
+            "java/lang/Number",
+            classHierarchy.getCommonSuperClass(classLoader, "java/lang/Integer", "java/lang/Long")
+        )
+        assertEquals(
+            "java/lang/Object",
+            classHierarchy.getCommonSuperClass(classLoader, "java/lang/Integer", "java/lang/String")
+        )
+        assertEquals(
+            "java/lang/Number",
+            classHierarchy.getCommonSuperClass(classLoader, "java/lang/Number", "java/lang/Long")
+        )
+    }
+
+    @Test
+    fun `common superclass of a class and an interface it implements`() {
+        assertEquals(
+            "java/lang/Comparable",
+            ClassHierarchy().getCommonSuperClass(classLoader, "java/lang/Comparable", "java/lang/Integer")
+        )
+    }
+
+    @Test
+    fun `common superclass of interfaces`() {
+        assertEquals(
+            "java/lang/Object",
+            ClassHierarchy().getCommonSuperClass(classLoader, "java/lang/Runnable", "java/lang/Comparable")
+        )
+    }
+
+    @Test
+    fun `common superclass of classes in the bootstrap loader`() {
+        assertEquals(
+            "java/util/AbstractList",
+            ClassHierarchy().getCommonSuperClass(null, "java/util/ArrayList", "java/util/LinkedList")
+        )
+    }
+
+    @Test
+    fun `registered classes do not need class files`() {
+        val classHierarchy = ClassHierarchy()
+        classHierarchy.register(classLoader, makeClass("Unloadable1", "java/lang/Number"))
+        classHierarchy.register(classLoader, makeClass("Unloadable2", "Unloadable1"))
+
+        assertEquals(
+            "java/lang/Number",
+            classHierarchy.getCommonSuperClass(classLoader, "Unloadable2", "java/lang/Integer")
+        )
+        assertEquals(
+            "Unloadable1",
+            classHierarchy.getCommonSuperClass(classLoader, "Unloadable1", "Unloadable2")
+        )
+    }
+
+    @Test
+    fun `classes without class files have no common superclass`() {
+        assertNull(ClassHierarchy().getCommonSuperClass(classLoader, "Missing", "java/lang/Integer"))
+    }
+
+    @Test
+    fun `classes are remembered per class loader`() {
+        val classHierarchy = ClassHierarchy()
+        classHierarchy.register(classLoader, makeClass("Unloadable1", "java/lang/Number"))
+
+        assertNull(classHierarchy.getCommonSuperClass(null, "Unloadable1", "java/lang/Integer"))
+    }
+
+    @Test
+    fun `remember the classes the common superclass was found with`() {
+        val classHierarchy = ClassHierarchy()
+        classHierarchy.register(classLoader, makeClass("Unloadable1", "java/lang/Number"))
+        val usedClasses = mutableMapOf<String, ClassHierarchy.ClassInfo>()
+
+        classHierarchy.getCommonSuperClass(classLoader, "Unloadable1", "java/lang/Integer", usedClasses)
+
+        assertEquals(
+            setOf(
+                "Unloadable1",
+                "java/lang/Number",
+                "java/lang/Integer",
+                "java/lang/Object",
+                "java/io/Serializable",
+                "java/lang/Comparable"
+            ),
+            usedClasses.keys.filter { !it.startsWith("java/lang/constant/") }.toSet()
+        )
+        assertEquals("java/lang/Number", usedClasses.getValue("Unloadable1").superName)
+    }
+
+    @Test
+    fun `classes match while their superclasses and interfaces are the same`() {
+        val usedClasses = mutableMapOf<String, ClassHierarchy.ClassInfo>()
+        ClassHierarchy().getCommonSuperClass(classLoader, "java/lang/Integer", "java/lang/Long", usedClasses)
+
+        // A new class hierarchy is like a later run of the agent
+        assertTrue(ClassHierarchy().matches(classLoader, usedClasses))
+
+        val changedHierarchy = ClassHierarchy()
+        changedHierarchy.register(classLoader, makeClass("java/lang/Long", "java/lang/Object"))
+        assertFalse(changedHierarchy.matches(classLoader, usedClasses))
+
+        assertFalse(
+            ClassHierarchy().matches(classLoader, mapOf("Missing" to ClassHierarchy.ClassInfo(null, arrayOf(), false)))
+        )
+    }
+
+    private fun makeClass(name: String, superName: String): ClassReader {
+        val classWriter = ClassWriter(0)
+        classWriter.visit(V1_8, ACC_PUBLIC, name, null, superName, null)
+        classWriter.visitEnd()
+        return ClassReader(classWriter.toByteArray())
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.objectweb.asm.Type
+import java.io.File
+
+internal class ContainerCacheTest {
+
+    @Test
+    fun `load a stored class`(@TempDir tempDir: File) {
+        val dynamicClass = generateContainer()
+
+        ContainerCache(tempDir.toPath(), "1").store(dynamicClass.name, dynamicClass.bytes)
+
+        // A new cache in the same directory is like a later run of the agent
+        assertArrayEquals(
+            dynamicClass.bytes,
+            ContainerCache(tempDir.toPath(), "1").load(dynamicClass.name)
+        )
+    }
+
+    @Test
+    fun `a class that was never stored is not loaded`(@TempDir tempDir: File) {
+        assertNull(ContainerCache(tempDir.toPath(), "1").load(generateContainer().name))
+    }
+
+    @Test
+    fun `a class stored by another version is not loaded`(@TempDir tempDir: File) {
+        val dynamicClass = generateContainer()
+
+        ContainerCache(tempDir.toPath(), "1").store(dynamicClass.name, dynamicClass.bytes)
+
+        assertNull(ContainerCache(tempDir.toPath(), "2").load(dynamicClass.name))
+    }
+
+    @Test
+    fun `a damaged class file is not loaded`(@TempDir tempDir: File) {
+        val dynamicClass = generateContainer()
+        val cache = ContainerCache(tempDir.toPath(), "1")
+        cache.store(dynamicClass.name, dynamicClass.bytes)
+
+        tempDir.resolve("1").listFiles()!!.single().writeBytes(byteArrayOf(1, 2, 3))
+
+        assertNull(cache.load(dynamicClass.name))
+    }
+
+    @Test
+    fun `storing a class again replaces it`(@TempDir tempDir: File) {
+        val dynamicClass = generateContainer()
+        val cache = ContainerCache(tempDir.toPath(), "1")
+
+        cache.store(dynamicClass.name, dynamicClass.bytes)
+        cache.store(dynamicClass.name, dynamicClass.bytes)
+
+        // No temporary files are left behind
+        assertEquals(1, tempDir.resolve("1").listFiles()!!.size)
+        assertArrayEquals(dynamicClass.bytes, cache.load(dynamicClass.name))
+    }
+
+    companion object {
+
+        private fun generateContainer() =
+            DynamicClassDefiner().generateClassForMethod(listOf(Type.INT_TYPE, Type.getType(Object::class.java)))
+    }
+}
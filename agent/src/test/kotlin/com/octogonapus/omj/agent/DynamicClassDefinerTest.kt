@@ -16,498 +16,399 @@
  */
 package com.octogonapus.omj.agent
 
+import com.octogonapus.omj.agentlib.ArrayMethodTrace
+import com.octogonapus.omj.agentlib.MethodTrace
+import org.junit.jupiter.api.Assertions.assertArrayEquals
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotNull
 import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Tag
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.io.TempDir
 import org.objectweb.asm.Type
+import java.io.ByteArrayOutputStream
 import java.io.File
+import java.nio.file.Paths
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 internal class DynamicClassDefinerTest {
 
     @Test
-    fun generateBooleanContainer() {
-        val body =
-            """
-            $imports
-            final public class OMJ_Generated_Z extends MethodTrace {
-            private int boolean_counter = 0;
-            private boolean boolean_0;
-            ${writeConstructor("OMJ_Generated_Z")}
-            @Override
-            public void set_argument_boolean(final boolean value) {
-            switch (boolean_counter) {
-            case 0: boolean_0 = value;
-            }
-            boolean_counter++;
-            }
-            $getIndex
-            @Override
-            public void serialize(final OutputStream outputStream) throws IOException {
-            $appendIndex
-            $methodIdentifier
-            $className
-            $lineNumber
-            $methodName
-            $isStatic
-            ${writeNumberOfArguments(1)}
-            ${writeBoolean("boolean_0")}
-            }
-            }
-            """.trimIndent()
-        val dynamicClass = DynamicClassDefiner(null, null).generateClassCodeForMethod(
-            listOf(
-                Type.getType(Boolean::class.java)
-            ),
-            false
+    fun generateBooleanContainerForStaticMethod() {
+        val trace = newContainer(listOf(Type.BOOLEAN_TYPE), true, 1L)
+        assertArrayEquals(
+            header(isStatic = true, numberOfArguments = 1) + bytes('Z', 1),
+            serialize(trace)
         )
-        assertEquals(body, dynamicClass.body)
     }
 
     @Test
-    fun generateBooleanContainerForStaticMethod() {
-        val body =
-            """
-            $imports
-            final public class OMJ_Generated_Z_Static extends MethodTrace {
-            private int boolean_counter = 0;
-            private boolean boolean_0;
-            ${writeConstructor("OMJ_Generated_Z_Static", isStatic = true)}
-            @Override
-            public void set_argument_boolean(final boolean value) {
-            switch (boolean_counter) {
-            case 0: boolean_0 = value;
-            }
-            boolean_counter++;
-            }
-            $getIndex
-            @Override
-            public void serialize(final OutputStream outputStream) throws IOException {
-            $appendIndex
-            $methodIdentifier
-            $className
-            $lineNumber
-            $methodName
-            $isStatic
-            ${writeNumberOfArguments(1)}
-            ${writeBoolean("boolean_0")}
-            }
-            }
-            """.trimIndent()
-        val dynamicClass = DynamicClassDefiner(null, null).generateClassCodeForMethod(
-            listOf(
-                Type.getType(Boolean::class.java)
-            ),
-            true
+    fun generateIntDoubleDoubleContainerForStaticMethod() {
+        val trace = newContainer(
+            listOf(Type.INT_TYPE, Type.DOUBLE_TYPE, Type.DOUBLE_TYPE),
+            true,
+            0x01020304L,
+            1.5.toRawBits(),
+            (-2.0).toRawBits()
+        )
+        assertArrayEquals(
+            header(isStatic = true, numberOfArguments = 3) +
+                bytes('I', 4, 3, 2, 1) +
+                bytes('D') + littleEndian(1.5.toRawBits(), 8) +
+                bytes('D') + littleEndian((-2.0).toRawBits(), 8),
+            serialize(trace)
         )
-        assertEquals(body, dynamicClass.body)
     }
 
     @Test
-    fun generateIntDoubleDoubleContainer() {
-        val body =
-            """
-            $imports
-            final public class OMJ_Generated_I_D_D extends MethodTrace {
-            private int int_counter = 0;
-            private int int_0;
-            private int double_counter = 0;
-            private double double_0;
-            private double double_1;
-            ${writeConstructor("OMJ_Generated_I_D_D")}
-            @Override
-            public void set_argument_int(final int value) {
-            switch (int_counter) {
-            case 0: int_0 = value;
-            }
-            int_counter++;
-            }
-            @Override
-            public void set_argument_double(final double value) {
-            switch (double_counter) {
-            case 0: double_0 = value;
-            case 1: double_1 = value;
-            }
-            double_counter++;
-            }
-            $getIndex
-            @Override
-            public void serialize(final OutputStream outputStream) throws IOException {
-            $appendIndex
-            $methodIdentifier
-            $className
-            $lineNumber
-            $methodName
-            $isStatic
-            ${writeNumberOfArguments(3)}
-            ${writeInt("int_0")}
-            ${writeDouble("double_0")}
-            ${writeDouble("double_1")}
-            }
-            }
-            """.trimIndent()
-        val dynamicClass = DynamicClassDefiner(null, null).generateClassCodeForMethod(
-            listOf(
-                Type.getType(Int::class.java),
-                Type.getType(Double::class.java),
-                Type.getType(Double::class.java)
-            ),
-            false
+    fun generateDoubleIntDoubleContainerForStaticMethod() {
+        // The arguments must be written in order even when types of the same sort are not adjacent
+        val trace = newContainer(
+            listOf(Type.DOUBLE_TYPE, Type.INT_TYPE, Type.DOUBLE_TYPE),
+            true,
+            1.5.toRawBits(),
+            0x01020304L,
+            (-2.0).toRawBits()
+        )
+        assertArrayEquals(
+            header(isStatic = true, numberOfArguments = 3) +
+                bytes('D') + littleEndian(1.5.toRawBits(), 8) +
+                bytes('I', 4, 3, 2, 1) +
+                bytes('D') + littleEndian((-2.0).toRawBits(), 8),
+            serialize(trace)
         )
-        assertEquals(body, dynamicClass.body)
     }
 
     @Test
-    fun generateObjectContainer() {
-        val body =
-            """
-            $imports
-            final public class OMJ_Generated_L extends MethodTrace {
-            private int Object_counter = 0;
-            private Object Object_0;
-            ${writeConstructor("OMJ_Generated_L")}
-            @Override
-            public void set_argument_Object(final Object value) {
-            switch (Object_counter) {
-            case 0: Object_0 = value;
-            }
-            Object_counter++;
-            }
-            $getIndex
-            @Override
-            public void serialize(final OutputStream outputStream) throws IOException {
-            $appendIndex
-            $methodIdentifier
-            $className
-            $lineNumber
-            $methodName
-            $isStatic
-            ${writeNumberOfArguments(1)}
-            ${writeObjectName("Object_0")}
-            ${writeHashCode("Object_0")}
-            }
-            }
-            """.trimIndent()
-        val dynamicClass = DynamicClassDefiner(null, null).generateClassCodeForMethod(
-            listOf(
-                Type.getType(java.lang.Object::class.java)
-            ),
-            false
+    fun generateRemainingPrimitivesContainerForStaticMethod() {
+        val trace = newContainer(
+            listOf(Type.BYTE_TYPE, Type.CHAR_TYPE, Type.SHORT_TYPE, Type.LONG_TYPE, Type.FLOAT_TYPE),
+            true,
+            0x7FL,
+            'a'.toLong(),
+            0x0102L,
+            0x0102030405060708L,
+            1.5f.toRawBits().toLong()
+        )
+        assertArrayEquals(
+            header(isStatic = true, numberOfArguments = 5) +
+                bytes('B', 0x7F) +
+                bytes('C', 'a'.toInt(), 0) +
+                bytes('S', 2, 1) +
+                bytes('J', 8, 7, 6, 5, 4, 3, 2, 1) +
+                bytes('F') + littleEndian(1.5f.toRawBits().toLong(), 4),
+            serialize(trace)
         )
-        assertEquals(body, dynamicClass.body)
     }
 
     @Test
-    fun generateObjectObjectContainer() {
-        val body =
-            """
-            $imports
-            final public class OMJ_Generated_L_L extends MethodTrace {
-            private int Object_counter = 0;
-            private Object Object_0;
-            private Object Object_1;
-            ${writeConstructor("OMJ_Generated_L_L")}
-            @Override
-            public void set_argument_Object(final Object value) {
-            switch (Object_counter) {
-            case 0: Object_0 = value;
-            case 1: Object_1 = value;
-            }
-            Object_counter++;
-            }
-            $getIndex
-            @Override
-            public void serialize(final OutputStream outputStream) throws IOException {
-            $appendIndex
-            $methodIdentifier
-            $className
-            $lineNumber
-            $methodName
-            $isStatic
-            ${writeNumberOfArguments(2)}
-            ${writeObjectName("Object_0")}
-            ${writeHashCode("Object_0")}
-            ${writeObjectName("Object_1")}
-            ${writeHashCode("Object_1")}
-            }
-            }
-            """.trimIndent()
-        val dynamicClass = DynamicClassDefiner(null, null).generateClassCodeForMethod(
-            listOf(
-                Type.getType(java.lang.Object::class.java),
-                Type.getType(java.lang.Object::class.java)
-            ),
-            false
+    fun generateEmptyContainerForStaticMethod() {
+        assertArrayEquals(
+            header(isStatic = true, numberOfArguments = 0),
+            serialize(newContainer(listOf(), true))
         )
-        assertEquals(body, dynamicClass.body)
     }
 
     @Test
-    fun generateObjectArrayContainer() {
-        val body =
-            """
-            $imports
-            final public class OMJ_Generated_L_L extends MethodTrace {
-            private int Object_counter = 0;
-            private Object Object_0;
-            private Object Object_1;
-            ${writeConstructor("OMJ_Generated_L_L")}
-            @Override
-            public void set_argument_Object(final Object value) {
-            switch (Object_counter) {
-            case 0: Object_0 = value;
-            case 1: Object_1 = value;
-            }
-            Object_counter++;
-            }
-            $getIndex
-            @Override
-            public void serialize(final OutputStream outputStream) throws IOException {
-            $appendIndex
-            $methodIdentifier
-            $className
-            $lineNumber
-            $methodName
-            $isStatic
-            ${writeNumberOfArguments(2)}
-            ${writeObjectName("Object_0")}
-            ${writeHashCode("Object_0")}
-            ${writeObjectName("Object_1")}
-            ${writeHashCode("Object_1")}
-            }
-            }
-            """.trimIndent()
-        val dynamicClass = DynamicClassDefiner(null, null).generateClassCodeForMethod(
+    fun primitivesComeBeforeReferences() {
+        val dynamicClass = DynamicClassDefiner().generateClassForMethod(
             listOf(
-                Type.getType(java.lang.Object::class.java),
-                Type.getType("[I")
-            ),
-            false
+                Type.getType(Object::class.java),
+                Type.INT_TYPE,
+                Type.getType("[I"),
+                Type.DOUBLE_TYPE,
+                Type.getType(String::class.java)
+            )
         )
-        assertEquals(body, dynamicClass.body)
-    }
+        assertEquals("com/octogonapus/omj/agentlib/OMJ_Generated_P2_R3", dynamicClass.name)
 
-    @Test
-    fun generateObjectObjectContainerForStaticMethod() {
-        val body =
-            """
-            $imports
-            final public class OMJ_Generated_L_L_Static extends MethodTrace {
-            private int Object_counter = 0;
-            private Object Object_0;
-            private Object Object_1;
-            ${writeConstructor("OMJ_Generated_L_L_Static", isStatic = true)}
-            @Override
-            public void set_argument_Object(final Object value) {
-            switch (Object_counter) {
-            case 0: Object_0 = value;
-            case 1: Object_1 = value;
-            }
-            Object_counter++;
-            }
-            $getIndex
-            @Override
-            public void serialize(final OutputStream outputStream) throws IOException {
-            $appendIndex
-            $methodIdentifier
-            $className
-            $lineNumber
-            $methodName
-            $isStatic
-            ${writeNumberOfArguments(2)}
-            ${writeObjectName("Object_0")}
-            ${writeHashCode("Object_0")}
-            ${writeObjectName("Object_1")}
-            ${writeHashCode("Object_1")}
-            }
-            }
-            """.trimIndent()
-        val dynamicClass = DynamicClassDefiner(null, null).generateClassCodeForMethod(
+        val constructor = TestClassLoader().define(dynamicClass).constructors.single()
+        assertEquals(
             listOf(
-                Type.getType(java.lang.Object::class.java),
-                Type.getType(java.lang.Object::class.java)
+                String::class.java,
+                Boolean::class.java,
+                Long::class.java,
+                Long::class.java,
+                Object::class.java,
+                Object::class.java,
+                Object::class.java
             ),
-            true
+            constructor.parameterTypes.toList()
         )
-        assertEquals(body, dynamicClass.body)
+
+        // Constructing the container also verifies it
+        constructor.newInstance("LILDL", false, 1L, 2L, Object(), IntArray(1), "a")
     }
 
     @Test
-    fun generateStringContainer() {
-        val body =
-            """
-            $imports
-            final public class OMJ_Generated_String extends MethodTrace {
-            private int Object_counter = 0;
-            private Object Object_0;
-            ${writeConstructor("OMJ_Generated_String")}
-            @Override
-            public void set_argument_Object(final Object value) {
-            switch (Object_counter) {
-            case 0: Object_0 = value;
-            }
-            Object_counter++;
-            }
-            $getIndex
-            @Override
-            public void serialize(final OutputStream outputStream) throws IOException {
-            $appendIndex
-            $methodIdentifier
-            $className
-            $lineNumber
-            $methodName
-            $isStatic
-            ${writeNumberOfArguments(1)}
-            ${writeObjectName("Object_0")}
-            ${writeStringBytes("Object_0")}
-            }
-            }
-            """.trimIndent()
-        val dynamicClass = DynamicClassDefiner(null, null).generateClassCodeForMethod(
-            listOf(
-                Type.getType(java.lang.String::class.java)
+    fun methodsWithTheSameNumberOfPrimitivesAndReferencesShareAClass() {
+        assertEquals(
+            DynamicClassDefiner.generateClassName(
+                DynamicClassDefiner.getMethodSignatureTypes("(IZLjava/lang/String;)V", true)
             ),
-            false
+            DynamicClassDefiner.generateClassName(
+                DynamicClassDefiner.getMethodSignatureTypes("(DJ)V", false)
+            )
+        )
+        assertEquals(
+            "com/octogonapus/omj/agentlib/OMJ_Generated_P0_R0",
+            DynamicClassDefiner.generateClassName(DynamicClassDefiner.getMethodSignatureTypes("()V", true))
         )
-        assertEquals(body, dynamicClass.body)
     }
 
     @Test
-    fun generateEmptyContainer() {
-        val body =
-            """
-            $imports
-            final public class OMJ_Generated_ extends MethodTrace {
-            ${writeConstructor("OMJ_Generated_")}
-            $getIndex
-            @Override
-            public void serialize(final OutputStream outputStream) throws IOException {
-            $appendIndex
-            $methodIdentifier
-            $className
-            $lineNumber
-            $methodName
-            $isStatic
-            ${writeNumberOfArguments(0)}
-            }
-            }
-            """.trimIndent()
+    fun methodsWithTooManyPrimitivesForAConstructorUseArrays() {
+        // Each primitive takes two slots of the constructor, which can have 255 slots
+        assertTrue(
+            DynamicClassDefiner.canPackArguments(
+                DynamicClassDefiner.getMethodSignatureTypes("(" + "I".repeat(126) + ")V", true)
+            )
+        )
+
+        val descriptor = "(" + "I".repeat(130) + "Ljava/lang/String;)V"
+        val argumentTypes = DynamicClassDefiner.getMethodSignatureTypes(descriptor, false)
+        assertFalse(DynamicClassDefiner.canPackArguments(argumentTypes))
+        assertEquals(
+            "com/octogonapus/omj/agentlib/ArrayMethodTrace",
+            DynamicClassDefiner().defineClassForMethod(descriptor, false)
+        )
         assertEquals(
-            body,
-            DynamicClassDefiner(null, null).generateClassCodeForMethod(listOf(), false).body
+            Type.getConstructorDescriptor(ArrayMethodTrace::class.java.constructors.single()),
+            DynamicClassDefiner.getConstructorDescriptor(argumentTypes)
+        )
+
+        val trace = ArrayMethodTrace("I".repeat(130), true, LongArray(130) { it.toLong() }, arrayOf())
+        trace.setSiteId(siteId)
+        assertArrayEquals(
+            header(isStatic = true, numberOfArguments = 130) +
+                (0 until 130).map { bytes('I', it, 0, 0, 0) }.reduce { acc, bytes -> acc + bytes },
+            serialize(trace)
         )
     }
 
     @Test
-    fun generateAndCompileBooleanContainer(@TempDir tempDir: File) {
-        val dynamicClassDefiner = DynamicClassDefiner(null, tempDir.toPath())
-        val file = dynamicClassDefiner.writeToJarFile(
-            dynamicClassDefiner.generateClassCodeForMethod(
-                listOf(
-                    Type.getType(Boolean::class.java)
-                ),
-                false
+    fun defineClassInTheAgentLibClassLoader() {
+        val dynamicClassDefiner = DynamicClassDefiner()
+        val className = dynamicClassDefiner.defineClassForMethod("(JJJJJJJ)V", true)
+        assertEquals("com/octogonapus/omj/agentlib/OMJ_Generated_P7_R0", className)
+
+        val definedClass = Class.forName(className.replace('/', '.'), false, MethodTrace::class.java.classLoader)
+        assertEquals(MethodTrace::class.java.classLoader, definedClass.classLoader)
+
+        // Defining a class for a method with the same shape must not define a duplicate class
+        assertEquals(className, dynamicClassDefiner.defineClassForMethod("(IIIZDFC)V", true))
+    }
+
+    @Test
+    fun generatedClassesArePutIntoTheCache(@TempDir tempDir: File) {
+        val dynamicClassDefiner = DynamicClassDefiner(ContainerCache(tempDir.toPath(), "1"))
+        val className = dynamicClassDefiner.defineClassForMethod("(JJJJJJJJJ)V", false)
+
+        // A later run of the agent finds the class in the cache
+        assertNotNull(ContainerCache(tempDir.toPath(), "1").load(className))
+    }
+
+    @Test
+    fun defineClassesFromManyThreads() {
+        val dynamicClassDefiner = DynamicClassDefiner()
+        val descriptors = (20 until 28).map { numberOfReferences ->
+            "(" + "Ljava/lang/Object;".repeat(numberOfReferences) + ")V"
+        }
+
+        // Every thread needs every class, starting from a different one, so that the threads race to
+        // define the same classes and define different classes at the same time
+        val numberOfThreads = 16
+        val start = CountDownLatch(1)
+        val executor = Executors.newFixedThreadPool(numberOfThreads)
+        try {
+            val results = (0 until numberOfThreads).map { thread ->
+                executor.submit<List<String>> {
+                    start.await()
+                    descriptors.indices.map {
+                        dynamicClassDefiner.defineClassForMethod(descriptors[(thread + it) % descriptors.size], true)
+                    }
+                }
+            }
+            start.countDown()
+
+            results.forEachIndexed { thread, result ->
+                assertEquals(
+                    descriptors.indices.map {
+                        "com/octogonapus/omj/agentlib/OMJ_Generated_P0_R${20 + (thread + it) % descriptors.size}"
+                    },
+                    result.get(1, TimeUnit.MINUTES)
+                )
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        // Defining a class twice would have exited the JVM, so check that each class was defined once
+        (20 until 28).forEach {
+            Class.forName(
+                "com.octogonapus.omj.agentlib.OMJ_Generated_P0_R$it",
+                false,
+                MethodTrace::class.java.classLoader
+            )
+        }
+    }
+
+    /**
+     * Compares generating and defining containers in memory against the old approach of writing
+     * each container's source to a file, compiling it with a `javac` process, and packaging it with a
+     * `jar` process. The old approach is slow enough that it only runs on a sample of the corpus.
+     * Also reports how many container classes the corpus needs, since methods with the same number
+     * of primitive and reference arguments share one.
+     */
+    @Test
+    @Tag("performance")
+    fun compareInMemoryDefinitionWithJavacAndJar(@TempDir tempDir: File) {
+        val corpus = descriptorCorpus()
+
+        repeat(3) {
+            val classLoader = TestClassLoader()
+            val startTime = System.nanoTime()
+            val definedClasses = defineContainers(corpus, classLoader)
+            val inMemoryNanos = System.nanoTime() - startTime
+            println(
+                "in memory: %d shapes in %.1f ms (%.3f ms per shape), %d classes, %d class bytes".format(
+                    corpus.size,
+                    inMemoryNanos / 1e6,
+                    inMemoryNanos / 1e6 / corpus.size,
+                    definedClasses.size,
+                    definedClasses.sumBy { it.bytes.size }
+                )
+            )
+        }
+
+        val sample = corpus.filterIndexed { index, _ -> index % (corpus.size / 20) == 0 }
+        val javacAndJarNanos = timeJavacAndJar(sample, tempDir)
+        println(
+            "javac and jar: %d shapes in %.1f ms (%.3f ms per shape), one class per shape".format(
+                sample.size,
+                javacAndJarNanos / 1e6,
+                javacAndJarNanos / 1e6 / sample.size
             )
         )
+    }
 
-        assertTrue(tempDir.toPath().resolve("OMJ_Generated_Z.java").toFile().exists())
-        assertTrue(tempDir.toPath().resolve("OMJ_Generated_Z.class").toFile().exists())
-        assertTrue(tempDir.toPath().resolve("OMJ_Generated_Z.jar").toFile().exists())
-        assertEquals("OMJ_Generated_Z.jar", file.name)
+    private class TestClassLoader : ClassLoader(DynamicClassDefinerTest::class.java.classLoader) {
+        fun define(dynamicClass: DynamicClassDefiner.DynamicClass): Class<*> =
+            defineClass(null, dynamicClass.bytes, 0, dynamicClass.bytes.size)
     }
 
     @Suppress("SameParameterValue")
     companion object {
-        const val imports =
-            """import com.octogonapus.omj.agentlib.MethodTrace;
-            import java.io.IOException;
-            import java.io.OutputStream;"""
-
-        const val appendIndex =
-            """outputStream.write((byte) ((index >> 0) & 0xFF));
-            outputStream.write((byte) ((index >> 8) & 0xFF));
-            outputStream.write((byte) ((index >> 16) & 0xFF));
-            outputStream.write((byte) ((index >> 24) & 0xFF));
-            outputStream.write((byte) ((index >> 32) & 0xFF));
-            outputStream.write((byte) ((index >> 40) & 0xFF));
-            outputStream.write((byte) ((index >> 48) & 0xFF));
-            outputStream.write((byte) ((index >> 56) & 0xFF));"""
-
-        const val getIndex =
-            """@Override
-            public long getIndex() {
-            return index;
-            }"""
-
-        const val className =
-            """outputStream.write(className.getBytes());
-            outputStream.write(0);"""
-
-        const val lineNumber =
-            """outputStream.write((byte) ((lineNumber >> 0) & 0xFF));
-            outputStream.write((byte) ((lineNumber >> 8) & 0xFF));
-            outputStream.write((byte) ((lineNumber >> 16) & 0xFF));
-            outputStream.write((byte) ((lineNumber >> 24) & 0xFF));"""
-
-        const val methodName =
-            """outputStream.write(methodName.getBytes());
-            outputStream.write(0);"""
-
-        const val isStatic =
-            """outputStream.write(isStatic ? 1 : 0);"""
-
-        const val methodIdentifier =
-            """outputStream.write(0x2);"""
-
-        private fun writeObjectName(name: String): String =
-            """outputStream.write('L');
-            outputStream.write($name.getClass().getName().getBytes());
-            outputStream.write(0);"""
-
-        private fun writeHashCode(name: String): String =
-            """final int ${name}_hashCode = System.identityHashCode($name);
-            outputStream.write((byte) ((${name}_hashCode >> 0) & 0xFF));
-            outputStream.write((byte) ((${name}_hashCode >> 8) & 0xFF));
-            outputStream.write((byte) ((${name}_hashCode >> 16) & 0xFF));
-            outputStream.write((byte) ((${name}_hashCode >> 24) & 0xFF));"""
-
-        private fun writeStringBytes(name: String): String =
-            """final byte[] ${name}_string_bytes = ((String) $name).getBytes();
-            outputStream.write((byte) ((${name}_string_bytes.length >> 0) & 0xFF));
-            outputStream.write((byte) ((${name}_string_bytes.length >> 8) & 0xFF));
-            outputStream.write((byte) ((${name}_string_bytes.length >> 16) & 0xFF));
-            outputStream.write((byte) ((${name}_string_bytes.length >> 24) & 0xFF));
-            outputStream.write(${name}_string_bytes);"""
-
-        private fun writeNumberOfArguments(numberOfArguments: Int): String =
-            """outputStream.write($numberOfArguments);"""
-
-        private fun writeInt(name: String): String =
-            """outputStream.write('I');
-            outputStream.write((byte) (($name >> 0) & 0xFF));
-            outputStream.write((byte) (($name >> 8) & 0xFF));
-            outputStream.write((byte) (($name >> 16) & 0xFF));
-            outputStream.write((byte) (($name >> 24) & 0xFF));"""
-
-        private fun writeDouble(name: String): String =
-            """outputStream.write('D');
-            final long ${name}_l = Double.doubleToRawLongBits($name);
-            outputStream.write((byte) ((${name}_l >> 0) & 0xFF));
-            outputStream.write((byte) ((${name}_l >> 8) & 0xFF));
-            outputStream.write((byte) ((${name}_l >> 16) & 0xFF));
-            outputStream.write((byte) ((${name}_l >> 24) & 0xFF));
-            outputStream.write((byte) ((${name}_l >> 32) & 0xFF));
-            outputStream.write((byte) ((${name}_l >> 40) & 0xFF));
-            outputStream.write((byte) ((${name}_l >> 48) & 0xFF));
-            outputStream.write((byte) ((${name}_l >> 56) & 0xFF));"""
-
-        private fun writeBoolean(name: String): String =
-            """outputStream.write('Z');
-            outputStream.write($name ? 1 : 0);"""
-
-        private fun writeConstructor(className: String, isStatic: Boolean = false) =
-            """public $className() {
-            super(${if (isStatic) "true" else "false"});
-            }"""
+
+        private const val siteId = 5
+
+        private fun newContainer(
+            argumentTypes: List<Type>,
+            isStatic: Boolean,
+            vararg slots: Any
+        ): MethodTrace {
+            val dynamicClass = DynamicClassDefiner().generateClassForMethod(argumentTypes)
+            val declaredTypes = argumentTypes.joinToString(separator = "") {
+                TypeUtil.getDescriptorChar(it).toString()
+            }
+            val trace = TestClassLoader().define(dynamicClass).constructors.single()
+                .newInstance(declaredTypes, isStatic, *slots) as MethodTrace
+            trace.setSiteId(siteId)
+            return trace
+        }
+
+        private fun serialize(trace: MethodTrace) =
+            ByteArrayOutputStream().also { trace.serialize(it) }.toByteArray()
+
+        // The index is left for the trace buffer to fill in when the record is committed
+        private fun header(isStatic: Boolean, numberOfArguments: Int) =
+            ByteArray(8) +
+                bytes(0x2, siteId, if (isStatic) 1 else 0, numberOfArguments)
+
+        private fun bytes(type: Char, vararg values: Int) =
+            bytes(type.toInt(), *values)
+
+        private fun bytes(vararg values: Int) =
+            ByteArray(values.size) { values[it].toByte() }
+
+        private fun littleEndian(value: Long, numberOfBytes: Int) =
+            ByteArray(numberOfBytes) { (value shr (it * 8)).toByte() }
+
+        /**
+         * @return The argument types, including the receiver if applicable, of every method with up
+         * to three arguments of a few common types, for both static and virtual methods.
+         */
+        private fun descriptorCorpus(): List<List<Type>> {
+            val types = listOf("Z", "B", "C", "S", "I", "J", "F", "D", "Ljava/lang/String;", "[I")
+                .map { Type.getType(it) }
+            var shapes = listOf(listOf<Type>())
+            val allShapes = shapes.toMutableList()
+            repeat(3) {
+                shapes = shapes.flatMap { shape -> types.map { shape + it } }
+                allShapes += shapes
+            }
+            return allShapes.flatMap { listOf(it, listOf(Type.getType(Object::class.java)) + it) }
+        }
+
+        /**
+         * Defines a container for every shape in the corpus like [DynamicClassDefiner.defineClassForMethod]
+         * does, skipping shapes whose container is already defined.
+         *
+         * @return The containers that were defined.
+         */
+        private fun defineContainers(
+            corpus: List<List<Type>>,
+            classLoader: TestClassLoader
+        ): List<DynamicClassDefiner.DynamicClass> {
+            val dynamicClassDefiner = DynamicClassDefiner()
+            val namesOfDynamicClasses = HashSet<String>()
+            return corpus.mapNotNull { argumentTypes ->
+                if (namesOfDynamicClasses.add(DynamicClassDefiner.generateClassName(argumentTypes))) {
+                    dynamicClassDefiner.generateClassForMethod(argumentTypes).also { classLoader.define(it) }
+                } else {
+                    null
+                }
+            }
+        }
+
+        /**
+         * Runs the `javac` and `jar` processes the old approach ran for each shape. The sources
+         * only declare the container's fields and constructor, so this underestimates the old
+         * approach.
+         */
+        private fun timeJavacAndJar(sample: List<List<Type>>, tempDir: File): Long {
+            val javaBin = Paths.get(System.getProperty("java.home")).resolve("bin")
+            val startTime = System.nanoTime()
+            sample.forEachIndexed { index, argumentTypes ->
+                val className = "Shape$index"
+                val fields = argumentTypes.mapIndexed { i, type ->
+                    TypeUtil.getAdaptedClassName(type) to TypeUtil.getAdaptedClassName(type) + "_$i"
+                }
+                tempDir.resolve("$className.java").writeText(
+                    """
+                    final public class $className {
+                    ${fields.joinToString("\n") { (type, name) -> "private final $type $name;" }}
+                    public $className(${fields.joinToString { (type, name) -> "final $type $name" }}) {
+                    ${fields.joinToString("\n") { (_, name) -> "this.$name = $name;" }}
+                    }
+                    }
+                    """.trimIndent()
+                )
+                ProcessBuilder(javaBin.resolve("javac").toString(), "$className.java")
+                    .directory(tempDir)
+                    .inheritIO()
+                    .start()
+                    .waitFor()
+                ProcessBuilder(javaBin.resolve("jar").toString(), "cf", "$className.jar", "$className.class")
+                    .directory(tempDir)
+                    .inheritIO()
+                    .start()
+                    .waitFor()
+            }
+            return System.nanoTime() - startTime
+        }
     }
 }
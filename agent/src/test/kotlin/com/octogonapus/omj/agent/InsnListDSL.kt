@@ -22,6 +22,7 @@ import org.objectweb.asm.tree.IincInsnNode
 import org.objectweb.asm.tree.InsnList
 import org.objectweb.asm.tree.InsnNode
 import org.objectweb.asm.tree.IntInsnNode
+import org.objectweb.asm.tree.InvokeDynamicInsnNode
 import org.objectweb.asm.tree.JumpInsnNode
 import org.objectweb.asm.tree.LabelNode
 import org.objectweb.asm.tree.LdcInsnNode
@@ -86,6 +87,13 @@ class CheckInsns(private val insnList: InsnList) {
         }
     }
 
+    @InsnListDSL
+    fun invokeDynamic(name: String, descriptor: String) {
+        checks.add {
+            it is InvokeDynamicInsnNode && it.name == name && it.desc == descriptor
+        }
+    }
+
     @InsnListDSL
     fun type(opcode: Int, descriptor: String) {
         checks.add {
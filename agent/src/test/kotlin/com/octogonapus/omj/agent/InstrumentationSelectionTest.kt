@@ -0,0 +1,123 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class InstrumentationSelectionTest {
+
+    @Test
+    fun `everything is selected by default`() {
+        val selection = InstrumentationSelection.everything.forClass("com/example/Foo")
+
+        assertTrue(selection.selectsAllLines)
+        assertTrue(selection.selectsArrayStores)
+        assertTrue(selection.isMethodSelected("bar", "()V"))
+        assertTrue(selection.isFieldSelected("com/example/Foo", "count"))
+        assertTrue(selection.isVariableSelected("bar", "index"))
+        assertTrue(selection.isLineSelected(1))
+    }
+
+    @Test
+    fun `select methods with or without a descriptor`() {
+        val selection = InstrumentationSelection.parse(
+            listOf(
+                "# Comment",
+                "",
+                "method com/example/Foo.bar",
+                "method com/example/Foo.baz(I)V"
+            )
+        )
+
+        val foo = selection.forClass("com/example/Foo")
+        assertTrue(foo.isMethodSelected("bar", "()V"))
+        assertTrue(foo.isMethodSelected("bar", "(I)V"))
+        assertTrue(foo.isMethodSelected("baz", "(I)V"))
+        assertFalse(foo.isMethodSelected("baz", "()V"))
+        assertFalse(foo.isMethodSelected("other", "()V"))
+        assertFalse(selection.forClass("com/example/Other").isMethodSelected("bar", "()V"))
+
+        // Only methods are restricted
+        assertTrue(foo.selectsAllLines)
+        assertTrue(foo.selectsArrayStores)
+        assertTrue(foo.isVariableSelected("bar", "index"))
+    }
+
+    @Test
+    fun `select fields and variables`() {
+        val selection = InstrumentationSelection.parse(
+            listOf("field com/example/Foo.count", "variable com/example/Foo.bar index")
+        )
+
+        val foo = selection.forClass("com/example/Foo")
+        assertTrue(foo.isFieldSelected("com/example/Foo", "count"))
+        assertFalse(foo.isFieldSelected("com/example/Foo", "other"))
+        assertFalse(foo.isFieldSelected("com/example/Other", "count"))
+        assertTrue(foo.isVariableSelected("bar", "index"))
+        assertFalse(foo.isVariableSelected("bar", "other"))
+        assertFalse(foo.isVariableSelected("baz", "index"))
+        assertFalse(foo.selectsArrayStores)
+
+        // Fields of a class can be stored into from other classes
+        assertTrue(selection.forClass("com/example/Other").isFieldSelected("com/example/Foo", "count"))
+    }
+
+    @Test
+    fun `select merged line ranges`() {
+        val selection = InstrumentationSelection.parse(
+            listOf("lines com/example/Foo 10-20", "lines com/example/Foo 15-25", "lines com/example/Foo 40")
+        )
+
+        val foo = selection.forClass("com/example/Foo")
+        assertFalse(foo.selectsAllLines)
+        listOf(10, 15, 25, 40).forEach { assertTrue(foo.isLineSelected(it), it.toString()) }
+        listOf(0, 9, 26, 39, 41).forEach { assertFalse(foo.isLineSelected(it), it.toString()) }
+        assertFalse(selection.forClass("com/example/Other").isLineSelected(10))
+    }
+
+    @Test
+    fun `selections with the same entries are equal`() {
+        val selection1 = InstrumentationSelection.parse(
+            listOf("method com/example/Foo.bar", "lines com/example/Foo 1")
+        )
+        val selection2 = InstrumentationSelection.parse(
+            listOf("lines  com/example/Foo 1", "method com/example/Foo.bar")
+        )
+
+        assertEquals(selection1, selection2)
+        assertEquals(selection1.toString(), selection2.toString())
+    }
+
+    @Test
+    fun `reject invalid entries`() {
+        listOf(
+            "method com/example/Foo",
+            "method com/example/Foo.",
+            "field com/example/Foo.count extra",
+            "variable com/example/Foo.bar",
+            "lines com/example/Foo 20-10",
+            "lines com/example/Foo a",
+            "other com/example/Foo"
+        ).forEach {
+            assertThrows(IllegalArgumentException::class.java) { InstrumentationSelection.parse(listOf(it)) }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+
+internal class InstrumentedJarManifestTest {
+
+    @Test
+    fun `read a written manifest`() {
+        val manifest = InstrumentedJarManifest(
+            "run",
+            listOf("com/example/Foo", "com/example/Bar"),
+            listOf(
+                InstrumentedJarManifest.Site("com.example.Foo", 12, "bar"),
+                InstrumentedJarManifest.Site("com.example.Bar", 3, "")
+            )
+        )
+
+        val bytes = ByteArrayOutputStream().also { manifest.write(it) }.toByteArray()
+
+        assertEquals(manifest, InstrumentedJarManifest.read(ByteArrayInputStream(bytes)))
+    }
+
+    @Test
+    fun `a manifest with another format is not read`() {
+        assertThrows(IOException::class.java) {
+            InstrumentedJarManifest.read(ByteArrayInputStream(byteArrayOf(0, 0, 0, 2)))
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.tree.ClassNode
+
+internal class MethodCodeIndexTest {
+
+    @Test
+    fun `read the local variables of a method`() {
+        val methodCode = readIndex(Indexed::class.java).get(methodIndex(Indexed::class.java, "method"))
+
+        assertEquals("argument", methodCode.getLocalVariableName(1))
+        assertEquals("I", methodCode.getLocalVariableDescriptor(1))
+        assertEquals("local", methodCode.getLocalVariableName(2))
+        assertEquals("J", methodCode.getLocalVariableDescriptor(2))
+
+        // The long takes two indices
+        assertEquals(4, methodCode.maxLocals)
+    }
+
+    @Test
+    fun `a local variable that is not in the table is an error`() {
+        val methodCode = readIndex(Indexed::class.java).get(methodIndex(Indexed::class.java, "method"))
+
+        assertThrows(IllegalStateException::class.java) { methodCode.getLocalVariableName(3) }
+        assertThrows(IllegalStateException::class.java) { methodCode.getLocalVariableName(100) }
+    }
+
+    @Test
+    fun `methods without code are not indexed`() {
+        assertNull(readIndex(Abstract::class.java).get(methodIndex(Abstract::class.java, "method")))
+    }
+
+    @Test
+    fun `index the instructions that are instrumented`() {
+        val index = readIndex(Indexed::class.java)
+
+        val method = index.get(methodIndex(Indexed::class.java, "method"))
+        assertTrue(method.storesValues)
+        assertEquals(emptyList<String>(), method.methodInsnOwners)
+
+        val constant = index.get(methodIndex(Indexed::class.java, "constant"))
+        assertFalse(constant.storesValues)
+        assertFalse(constant.invokesDynamic)
+        assertEquals(emptyList<String>(), constant.methodInsnOwners)
+
+        val call = index.get(methodIndex(Indexed::class.java, "call"))
+        assertFalse(call.storesValues)
+        assertEquals(Indexed::class.java.name.replace('.', '/'), call.methodInsnOwners.first())
+    }
+
+    @Test
+    fun `reading a class file gives the same index as the class tree`() {
+        listOf(
+            Indexed::class.java,
+            Abstract::class.java,
+            MethodCodeIndex::class.java,
+            ClassHierarchy::class.java
+        ).forEach { clazz ->
+            val classNode = ClassNode()
+            ClassReader(clazz.name).accept(classNode, 0)
+            val treeIndex = MethodCodeIndex.of(classNode)
+            val readIndex = readIndex(clazz)
+
+            classNode.methods.indices.forEach {
+                assertEquals(describe(treeIndex.get(it)), describe(readIndex.get(it)))
+            }
+        }
+    }
+
+    private class Indexed {
+        fun method(argument: Int): Long {
+            val local = argument + 1L
+            return local
+        }
+
+        fun constant() = 1
+
+        fun call() = method(constant()).toString()
+    }
+
+    private abstract class Abstract {
+        abstract fun method(argument: Int)
+    }
+
+    companion object {
+
+        private fun readIndex(clazz: Class<*>) = MethodCodeIndex.read(ClassReader(clazz.name))
+
+        private fun methodIndex(clazz: Class<*>, name: String): Int {
+            val classNode = ClassNode()
+            ClassReader(clazz.name).accept(classNode, 0)
+            return classNode.methods.indexOfFirst { it.name == name }
+        }
+
+        private fun describe(methodCode: MethodCodeIndex.MethodCode?) = methodCode?.let {
+            val localVariables = (0 until it.maxLocals).map { index ->
+                try {
+                    "${it.getLocalVariableName(index)} ${it.getLocalVariableDescriptor(index)}"
+                } catch (ex: IllegalStateException) {
+                    null
+                }
+            }
+            "${it.maxLocals} ${it.firstLineNumber} $localVariables " +
+                "${it.storesValues} ${it.invokesDynamic} ${it.methodInsnOwners}"
+        }
+    }
+}
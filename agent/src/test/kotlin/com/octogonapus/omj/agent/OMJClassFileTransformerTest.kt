@@ -16,18 +16,43 @@
  */
 package com.octogonapus.omj.agent
 
+import com.octogonapus.omj.agentlib.SiteTable
 import com.octogonapus.omj.testutil.KoinTestFixture
+import io.kotest.matchers.collections.shouldContain
+import io.kotest.matchers.collections.shouldNotContain
 import io.kotest.matchers.nulls.shouldBeNull
 import io.kotest.matchers.shouldBe
 import io.mockk.every
 import io.mockk.mockk
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
 import org.koin.dsl.module
+import org.objectweb.asm.ClassReader
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Label
+import org.objectweb.asm.Opcodes.ACC_PUBLIC
+import org.objectweb.asm.Opcodes.ACC_STATIC
+import org.objectweb.asm.Opcodes.ALOAD
+import org.objectweb.asm.Opcodes.ARETURN
+import org.objectweb.asm.Opcodes.GOTO
+import org.objectweb.asm.Opcodes.IFEQ
+import org.objectweb.asm.Opcodes.ILOAD
+import org.objectweb.asm.Opcodes.V11
+import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.FrameNode
+import java.io.File
+import java.io.InputStream
 
 internal class OMJClassFileTransformerTest : KoinTestFixture() {
 
     companion object {
         private const val className = "ClassName"
+
+        // Container classes are defined in this JVM, which can only be done once per class, so
+        // the tests share the definer and use a method descriptor no other test uses
+        private val dynamicClassDefiner = DynamicClassDefiner()
+        private const val pickClassName = "com/agenttest/Picker"
+        private const val pickDescriptor = "(ZLcom/agenttest/First;Lcom/agenttest/Second;JJJJJ)Ljava/lang/Object;"
     }
 
     @Test
@@ -35,7 +60,7 @@ internal class OMJClassFileTransformerTest : KoinTestFixture() {
         val inputByteArray = byteArrayOf(1, 2, 3)
         val expectedByteArray = byteArrayOf(4, 5, 6)
         val transformer = mockk<OMJClassFileTransformer.Transformer> {
-            every { transformClassBytes(inputByteArray) } returns expectedByteArray
+            every { transformClassBytes(inputByteArray, null) } returns expectedByteArray
         }
 
         testKoin(
@@ -82,4 +107,123 @@ internal class OMJClassFileTransformerTest : KoinTestFixture() {
             byteArrayOf(1, 2, 3)
         ).shouldBeNull()
     }
+
+    @Test
+    fun `a cached class is used while the classes its frames use are the same`(@TempDir tempDir: File) {
+        val loader = HierarchyClassLoader(firstSuperName = "com/agenttest/Base", secondSuperName = "com/agenttest/Base")
+
+        val (instrumentedBytes, cached) = transformInNewRun(tempDir, "first", loader)
+        cached.shouldBe(false)
+
+        val (cachedBytes, cachedAgain) = transformInNewRun(tempDir, "second", loader)
+        cachedAgain.shouldBe(true)
+        cachedBytes.toList().shouldBe(instrumentedBytes.toList())
+    }
+
+    @Test
+    fun `a cached class is instrumented again when the classes its frames use change`(@TempDir tempDir: File) {
+        val (instrumentedBytes, _) = transformInNewRun(
+            tempDir,
+            "first",
+            HierarchyClassLoader(firstSuperName = "com/agenttest/Base", secondSuperName = "com/agenttest/Base")
+        )
+        frameTypes(instrumentedBytes).shouldContain("com/agenttest/Base")
+
+        val changedLoader =
+            HierarchyClassLoader(firstSuperName = "com/agenttest/Base", secondSuperName = "java/lang/Object")
+        val (reinstrumentedBytes, cached) = transformInNewRun(tempDir, "second", changedLoader)
+        cached.shouldBe(false)
+        frameTypes(reinstrumentedBytes).shouldNotContain("com/agenttest/Base")
+
+        // The class is cached again with the new classes
+        transformInNewRun(tempDir, "third", changedLoader).second.shouldBe(true)
+    }
+
+    /**
+     * Transforms the class with [generatePicker] like a new run of the agent would.
+     *
+     * @return The instrumented class and whether it was loaded from the cache.
+     */
+    private fun transformInNewRun(tempDir: File, runName: String, loader: ClassLoader): Pair<ByteArray, Boolean> {
+        val diagnosticsDir = tempDir.resolve("diagnostics-$runName")
+        val diagnostics = TransformDiagnostics.create(diagnosticsDir.toPath(), null)
+        testKoin(
+            module {
+                single { ClassFilter.create("com/agenttest/.*", "") }
+                single { TransformCache(tempDir.resolve("cache").toPath(), "1") }
+                single { dynamicClassDefiner }
+                single { SiteTable.create() }
+                single { ClassHierarchy() }
+                single { diagnostics }
+            }
+        )
+
+        val instrumentedBytes = OMJClassFileTransformer.Transformer().transformClassBytes(generatePicker(), loader)
+        diagnostics.close()
+
+        val cached = diagnosticsDir.resolve("classes.tsv").readLines().last().substringAfterLast('\t').toBoolean()
+        return instrumentedBytes to cached
+    }
+
+    /**
+     * @return The types in the stacks of the frames of the pick method.
+     */
+    private fun frameTypes(classBytes: ByteArray): List<Any> {
+        val classNode = ClassNode().also { ClassReader(classBytes).accept(it, ClassReader.EXPAND_FRAMES) }
+        return classNode.methods.single { it.name == "pick" }.instructions.filterIsInstance<FrameNode>()
+            .flatMap { it.stack.orEmpty() }
+    }
+
+    /**
+     * Generates a class with a method that returns one of two arguments of different types, so
+     * computing its frames needs their common superclass.
+     */
+    private fun generatePicker(): ByteArray {
+        val classWriter = ClassWriter(ClassWriter.COMPUTE_MAXS)
+        classWriter.visit(V11, ACC_PUBLIC, pickClassName, null, "java/lang/Object", null)
+
+        classWriter.visitMethod(ACC_PUBLIC or ACC_STATIC, "pick", pickDescriptor, null, null).apply {
+            val start = Label()
+            val second = Label()
+            val end = Label()
+            visitCode()
+            visitLabel(start)
+            visitLineNumber(1, start)
+            visitVarInsn(ILOAD, 0)
+            visitJumpInsn(IFEQ, second)
+            visitVarInsn(ALOAD, 1)
+            visitJumpInsn(GOTO, end)
+            visitLabel(second)
+            visitVarInsn(ALOAD, 2)
+            visitLabel(end)
+            visitInsn(ARETURN)
+            visitMaxs(0, 0)
+            visitEnd()
+        }
+
+        classWriter.visitEnd()
+        return classWriter.toByteArray()
+    }
+
+    /**
+     * Finds the class files of the arguments of the pick method, which extend the given classes.
+     */
+    private class HierarchyClassLoader(firstSuperName: String, secondSuperName: String) : ClassLoader(null) {
+
+        private val classes = mapOf(
+            "com/agenttest/Base" to makeClass("com/agenttest/Base", "java/lang/Object"),
+            "com/agenttest/First" to makeClass("com/agenttest/First", firstSuperName),
+            "com/agenttest/Second" to makeClass("com/agenttest/Second", secondSuperName)
+        )
+
+        override fun getResourceAsStream(name: String): InputStream? =
+            classes[name.removeSuffix(".class")]?.inputStream() ?: super.getResourceAsStream(name)
+
+        private fun makeClass(name: String, superName: String): ByteArray {
+            val classWriter = ClassWriter(0)
+            classWriter.visit(V11, ACC_PUBLIC, name, null, superName, null)
+            classWriter.visitEnd()
+            return classWriter.toByteArray()
+        }
+    }
 }
@@ -17,14 +17,18 @@
 package com.octogonapus.omj.agent
 
 import com.octogonapus.omj.agent.OMJClassTransformer.Companion.agentLibClassName
+import com.octogonapus.omj.agent.OMJClassTransformer.Companion.recordingContextClassName
+import com.octogonapus.omj.agentlib.SiteTable
 import com.octogonapus.omj.testutil.KoinTestFixture
 import io.mockk.every
 import io.mockk.mockk
 import org.junit.jupiter.api.Nested
+import org.junit.jupiter.api.Tag
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.params.ParameterizedTest
 import org.junit.jupiter.params.provider.ValueSource
 import org.koin.dsl.module
+import org.objectweb.asm.ClassReader
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Opcodes.AALOAD
 import org.objectweb.asm.Opcodes.AASTORE
@@ -44,6 +48,7 @@ import org.objectweb.asm.Opcodes.DUP2_X1
 import org.objectweb.asm.Opcodes.DUP_X1
 import org.objectweb.asm.Opcodes.FLOAD
 import org.objectweb.asm.Opcodes.FSTORE
+import org.objectweb.asm.Opcodes.I2L
 import org.objectweb.asm.Opcodes.IASTORE
 import org.objectweb.asm.Opcodes.ICONST_0
 import org.objectweb.asm.Opcodes.ICONST_1
@@ -60,6 +65,7 @@ import org.objectweb.asm.Opcodes.PUTFIELD
 import org.objectweb.asm.Opcodes.PUTSTATIC
 import org.objectweb.asm.Opcodes.T_BOOLEAN
 import org.objectweb.asm.Opcodes.T_INT
+import org.objectweb.asm.Type
 import org.objectweb.asm.tree.ClassNode
 import org.objectweb.asm.tree.FieldInsnNode
 import org.objectweb.asm.tree.FieldNode
@@ -75,15 +81,34 @@ import org.objectweb.asm.tree.MethodNode
 import org.objectweb.asm.tree.MultiANewArrayInsnNode
 import org.objectweb.asm.tree.TypeInsnNode
 import org.objectweb.asm.tree.VarInsnNode
+import java.io.File
+import java.util.jar.JarFile
 
 internal class OMJClassTransformerTest : KoinTestFixture() {
 
+    /**
+     * The IDs the [siteTableModule] gave out, keyed by the site's class name, line number, and
+     * name.
+     */
+    private val siteIds = mutableMapOf<Triple<String, Int, String>, Int>()
+
+    private val siteTableModule = module {
+        single {
+            mockk<SiteTable> {
+                every { registerSite(any(), any(), any()) } answers {
+                    siteIds.getOrPut(Triple(firstArg(), secondArg(), thirdArg())) { siteIds.size }
+                }
+            }
+        }
+    }
+
     @Nested
     inner class MethodCalls {
 
         @Test
         fun `visit method insn with an owner class that will be transformed`() {
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<ClassFilter> {
@@ -115,18 +140,20 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                // The recording context goes after `this`
+                getRecordingContext(1)
+
                 lineNumber(lineNumber)
 
                 // Load the preamble
-                methodPreamble(className, lineNumber, methodName)
+                methodPreamble(1, className, lineNumber, methodName)
 
                 // Emit the method call
                 method(INVOKEVIRTUAL, methodOwner, methodName, "()V", false)
@@ -136,6 +163,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         @Test
         fun `visit method insn with an owner class that will not be transformed`() {
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<ClassFilter> {
@@ -168,12 +196,11 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
                 lineNumber(lineNumber)
@@ -192,6 +219,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         @Test
         fun `visit virtual method with no args`() {
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<DynamicClassDefiner> {
@@ -213,13 +241,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(classNode)
-            transformer.transform()
+            transform(classNode)
 
             checkInsns(methodNode.instructions) {
-                startMethodTrace(dynamicClassName)
+                getRecordingContext(1)
+
+                startMethodTrace(1, dynamicClassName, "L", false)
                 receiver()
-                endMethodTrace()
+                endMethodTrace(dynamicClassName, "(Ljava/lang/String;ZLjava/lang/Object;)V")
 
                 lineNumber(lineNumber)
             }
@@ -228,6 +257,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         @Test
         fun `visit static method with no args`() {
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<DynamicClassDefiner> {
@@ -249,12 +279,13 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(classNode)
-            transformer.transform()
+            transform(classNode)
 
             checkInsns(methodNode.instructions) {
-                startMethodTrace(dynamicClassName)
-                endMethodTrace()
+                getRecordingContext(0)
+
+                startMethodTrace(0, dynamicClassName, "", true)
+                endMethodTrace(dynamicClassName, "(Ljava/lang/String;Z)V")
 
                 lineNumber(lineNumber)
             }
@@ -263,6 +294,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         @Test
         fun `visit virtual method with one int arg`() {
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<DynamicClassDefiner> {
@@ -284,15 +316,18 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(classNode)
-            transformer.transform()
+            transform(classNode)
 
             checkInsns(methodNode.instructions) {
-                startMethodTrace(dynamicClassName)
-                receiver()
+                // The recording context goes after `this` and the int
+                getRecordingContext(2)
+
+                // Primitives are widened to longs and go before the receiver
+                startMethodTrace(2, dynamicClassName, "LI", false)
                 varInsn(ILOAD, 1)
-                method(INVOKESTATIC, agentLibClassName, "methodCall_argument_int", "(I)V", false)
-                endMethodTrace()
+                insn(I2L)
+                receiver()
+                endMethodTrace(dynamicClassName, "(Ljava/lang/String;ZJLjava/lang/Object;)V")
 
                 lineNumber(lineNumber)
             }
@@ -301,6 +336,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         @Test
         fun `visit static method with one double arg`() {
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<DynamicClassDefiner> {
@@ -322,14 +358,16 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(classNode)
-            transformer.transform()
+            transform(classNode)
 
             checkInsns(methodNode.instructions) {
-                startMethodTrace(dynamicClassName)
+                // The recording context goes after the double, which takes two indices
+                getRecordingContext(2)
+
+                startMethodTrace(2, dynamicClassName, "D", true)
                 varInsn(DLOAD, 0)
-                method(INVOKESTATIC, agentLibClassName, "methodCall_argument_double", "(D)V", false)
-                endMethodTrace()
+                method(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false)
+                endMethodTrace(dynamicClassName, "(Ljava/lang/String;ZJ)V")
 
                 lineNumber(lineNumber)
             }
@@ -338,6 +376,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         @Test
         fun `visit main method`() {
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<DynamicClassDefiner> {
@@ -360,24 +399,18 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(classNode)
-            transformer.transform()
+            transform(classNode)
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(1)
+
                 // Emit a preamble right before recording the trace because the main method is the
                 // entry point, so it might not have a preamble otherwise.
-                methodPreamble(className, lineNumber, "main")
+                methodPreamble(1, className, lineNumber, "main")
 
-                startMethodTrace(dynamicClassName)
+                startMethodTrace(1, dynamicClassName, "L", true)
                 varInsn(ALOAD, 0)
-                method(
-                    INVOKESTATIC,
-                    agentLibClassName,
-                    "methodCall_argument_Object",
-                    "(Ljava/lang/Object;)V",
-                    false
-                )
-                endMethodTrace()
+                endMethodTrace(dynamicClassName, "(Ljava/lang/String;ZLjava/lang/Object;)V")
 
                 lineNumber(lineNumber)
             }
@@ -386,6 +419,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         @Test
         fun `visit instance initialization method`() {
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<ClassFilter> {
@@ -418,27 +452,29 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(classNode)
-            transformer.transform()
+            transform(classNode)
 
             checkInsns(methodNode.instructions) {
+                // Get the recording context before the superclass ctor so its preamble can use it
+                getRecordingContext(1)
+
                 lineNumber(lineNumber)
 
                 // Preamble for superclass ctor
-                methodPreamble(className, lineNumber, "<init>")
+                methodPreamble(1, className, lineNumber, "<init>")
 
                 // Superclass ctor
                 method(INVOKESPECIAL, superClassName, "<init>", "()V", false)
 
                 // Record superclass trace after `this` is initialized
-                startMethodTrace(dynamicClassName)
+                startMethodTrace(1, dynamicClassName, "L", false)
                 receiver()
-                endMethodTrace()
+                endMethodTrace(dynamicClassName, "(Ljava/lang/String;ZLjava/lang/Object;)V")
 
                 lineNumber(lineNumber2)
 
                 // Preamble for the next method like normal
-                methodPreamble(className, lineNumber2, "someMethod")
+                methodPreamble(1, className, lineNumber2, "someMethod")
             }
         }
 
@@ -447,6 +483,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
             // A class initialization method is just like a static method with no args
 
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<ClassFilter> {
@@ -474,12 +511,13 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(classNode)
-            transformer.transform()
+            transform(classNode)
 
             checkInsns(methodNode.instructions) {
-                startMethodTrace(dynamicClassName)
-                endMethodTrace()
+                getRecordingContext(0)
+
+                startMethodTrace(0, dynamicClassName, "", true)
+                endMethodTrace(dynamicClassName, "(Ljava/lang/String;Z)V")
 
                 lineNumber(lineNumber)
             }
@@ -492,6 +530,8 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         @ParameterizedTest
         @ValueSource(ints = [ISTORE, LSTORE, FSTORE, DSTORE, ASTORE])
         fun `all store insns for a local variable`(opcode: Int) {
+            testKoin(siteTableModule)
+
             val localVariableDesc = OpcodeUtil.getLoadStoreDescriptor(opcode)
             val methodNode = makeMethodNode(
                 0,
@@ -506,14 +546,18 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
+
+            // The recording context goes after the local variable
+            val recordingContextIndex = 1 + Type.getType(localVariableDesc).size
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(recordingContextIndex)
+
                 lineNumber(lineNumber)
 
                 // Dup what's on the stack that will be stored
@@ -522,13 +566,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 varInsn(opcode, 1)
 
                 // Load the context and trace the store
-                recordStore(className, lineNumber, varName, localVariableDesc)
+                recordStore(className, lineNumber, varName, localVariableDesc, recordingContextIndex)
             }
         }
 
         @ParameterizedTest
         @ValueSource(ints = [ILOAD, LLOAD, FLOAD, DLOAD, ALOAD])
         fun `all load insns for a local variable`(opcode: Int) {
+            testKoin(siteTableModule)
+
             val localVariableDesc = OpcodeUtil.getLoadStoreDescriptor(opcode)
             val methodNode = makeMethodNode(
                 0,
@@ -543,12 +589,11 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             // No instrumentation for loads
             checkInsns(methodNode.instructions) {
@@ -559,6 +604,8 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
         @Test
         fun `iinc insn`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -572,14 +619,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
                 iinc(1)
 
@@ -587,12 +635,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 varInsn(ILOAD, 1)
 
                 // Load the context and trace the store
-                recordStore(className, lineNumber, varName, "I")
+                recordStore(className, lineNumber, varName, "I", 2)
             }
         }
 
         @Test
         fun `istore into a byte`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -606,14 +656,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
 
                 // Dup what will be stored
@@ -623,12 +674,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 varInsn(ISTORE, 1)
 
                 // Load the context and trace the store
-                recordStore(className, lineNumber, varName, "B")
+                recordStore(className, lineNumber, varName, "B", 2)
             }
         }
 
         @Test
         fun `astore a string`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -642,14 +695,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
 
                 // Dup what will be stored
@@ -659,12 +713,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 varInsn(ASTORE, 1)
 
                 // Load the context and trace the store
-                recordStore(className, lineNumber, varName, "Ljava/lang/Object;")
+                recordStore(className, lineNumber, varName, "Ljava/lang/Object;", 2)
             }
         }
 
         @Test
         fun `istore after dstore`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -684,14 +740,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(4)
+
                 lineNumber(lineNumber)
 
                 // Dup what will be stored
@@ -701,7 +758,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 varInsn(DSTORE, 1)
 
                 // Load the context and trace the store
-                recordStore(className, lineNumber, varName, "D")
+                recordStore(className, lineNumber, varName, "D", 4)
 
                 // Dup what will be stored
                 insn(DUP)
@@ -710,12 +767,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 varInsn(ISTORE, 3)
 
                 // Load the context and trace the store
-                recordStore(className, lineNumber, varName2, "I")
+                recordStore(className, lineNumber, varName2, "I", 4)
             }
         }
 
         @Test
         fun `store into int array`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -738,14 +797,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
 
                 // Keep the values on the stack that IASTORE needs
@@ -755,12 +815,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 intInsn(BIPUSH, 6)
 
                 // But replace IASTORE with recording the store (which internally will do the store)
-                recordArrayStore(className, lineNumber, "[I", "I")
+                recordArrayStore(className, lineNumber, "[I", "I", 2)
             }
         }
 
         @Test
         fun `store into boolean array`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -783,26 +845,29 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
 
                 insn(ICONST_0)
                 intInsn(NEWARRAY, T_BOOLEAN)
                 insn(ICONST_0)
                 insn(ICONST_1)
-                recordBooleanOrByteArrayStore(className, lineNumber)
+                recordBooleanOrByteArrayStore(className, lineNumber, 2)
             }
         }
 
         @Test
         fun `store into new int array one-liner`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -826,14 +891,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
 
                 // Keep the values on the stack that IASTORE needs
@@ -844,18 +910,19 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 intInsn(BIPUSH, 6)
 
                 // But replace IASTORE with recording the store (which internally will do the store)
-                recordArrayStore(className, lineNumber, "[I", "I")
+                recordArrayStore(className, lineNumber, "[I", "I", 2)
 
                 // The ASTORE also gets recorded
                 insn(DUP)
                 varInsn(ASTORE, 1)
-                recordStore(className, lineNumber, varName, "Ljava/lang/Object;")
+                recordStore(className, lineNumber, varName, "Ljava/lang/Object;", 2)
             }
         }
 
         @Test
         fun `store into new object array one-liner`() {
             testKoin(
+                siteTableModule,
                 module {
                     single {
                         mockk<ClassFilter> {
@@ -900,14 +967,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
 
                 insn(ICONST_1)
@@ -919,17 +987,19 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 method(INVOKESPECIAL, "Ljava/lang/Object;", "<init>", "()V", false)
 
                 // Replace the AASTORE with recording the store (which internally will do the store)
-                recordArrayStore(className, lineNumber, "[Ljava/lang/Object;", "Ljava/lang/Object;")
+                recordArrayStore(className, lineNumber, "[Ljava/lang/Object;", "Ljava/lang/Object;", 2)
 
                 // DUP what will be stored
                 insn(DUP)
                 varInsn(ASTORE, 1)
-                recordStore(className, lineNumber, varName, "Ljava/lang/Object;")
+                recordStore(className, lineNumber, varName, "Ljava/lang/Object;", 2)
             }
         }
 
         @Test
         fun `store into 2d int array`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -971,14 +1041,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
                 insn(ICONST_1)
                 insn(ICONST_1)
@@ -987,7 +1058,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 // The ASTORE also gets recorded
                 insn(DUP)
                 varInsn(ASTORE, 1)
-                recordStore(className, lineNumber, varName, "Ljava/lang/Object;")
+                recordStore(className, lineNumber, varName, "Ljava/lang/Object;", 2)
 
                 // Keep the values on the stack that IASTORE needs
                 lineNumber(lineNumber2)
@@ -998,12 +1069,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 intInsn(BIPUSH, 6)
 
                 // But replace IASTORE with recording the store (which internally will do the store)
-                recordArrayStore(className, lineNumber2, "[I", "I")
+                recordArrayStore(className, lineNumber2, "[I", "I", 2)
             }
         }
 
         @Test
         fun `store into 3d int array`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -1051,14 +1124,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
                 insn(ICONST_1)
                 insn(ICONST_1)
@@ -1068,7 +1142,7 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 // The ASTORE also gets recorded
                 insn(DUP)
                 varInsn(ASTORE, 1)
-                recordStore(className, lineNumber, varName, "Ljava/lang/Object;")
+                recordStore(className, lineNumber, varName, "Ljava/lang/Object;", 2)
 
                 // Keep the values on the stack that IASTORE needs
                 lineNumber(lineNumber2)
@@ -1081,12 +1155,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 intInsn(BIPUSH, 6)
 
                 // But replace IASTORE with recording the store (which internally will do the store)
-                recordArrayStore(className, lineNumber2, "[I", "I")
+                recordArrayStore(className, lineNumber2, "[I", "I", 2)
             }
         }
 
         @Test
         fun `store into 3d int array one-liner`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -1140,14 +1216,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
             val classNode = makeClassNode(className, superClassName, methodNode)
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
                 lineNumber(lineNumber)
                 insn(ICONST_1)
                 typeInsn(ANEWARRAY, "[[I")
@@ -1164,16 +1241,16 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 intInsn(BIPUSH, 6)
 
                 // Replace IASTORE with recording the store (which internally will do the store)
-                recordArrayStore(className, lineNumber, "[I", "I")
+                recordArrayStore(className, lineNumber, "[I", "I", 2)
 
-                recordArrayStore(className, lineNumber, "[Ljava/lang/Object;", "Ljava/lang/Object;")
+                recordArrayStore(className, lineNumber, "[Ljava/lang/Object;", "Ljava/lang/Object;", 2)
 
-                recordArrayStore(className, lineNumber, "[Ljava/lang/Object;", "Ljava/lang/Object;")
+                recordArrayStore(className, lineNumber, "[Ljava/lang/Object;", "Ljava/lang/Object;", 2)
 
                 // Record the ASTORE. Dup what it stores.
                 insn(DUP)
                 varInsn(ASTORE, 1)
-                recordStore(className, lineNumber, varName, "Ljava/lang/Object;")
+                recordStore(className, lineNumber, varName, "Ljava/lang/Object;", 2)
             }
         }
     }
@@ -1183,6 +1260,8 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
 
         @Test
         fun `put int field`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -1201,14 +1280,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 methodNode
             )
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(1)
+
                 lineNumber(lineNumber)
 
                 // Dup what is on the stack and put it below both values for PUTFIELD
@@ -1218,12 +1298,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 field(PUTFIELD, className, varName, "I")
 
                 // Record the put
-                recordStore(className, lineNumber, "$className.$varName", "I")
+                recordStore(className, lineNumber, "$className.$varName", "I", 1)
             }
         }
 
         @Test
         fun `put long field`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -1242,14 +1324,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 methodNode
             )
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(1)
+
                 lineNumber(lineNumber)
 
                 // Dup what is on the stack and put it below both values for PUTFIELD
@@ -1259,12 +1342,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 field(PUTFIELD, className, varName, "J")
 
                 // Record the put
-                recordStore(className, lineNumber, "$className.$varName", "J")
+                recordStore(className, lineNumber, "$className.$varName", "J", 1)
             }
         }
 
         @Test
         fun `put static int field`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -1283,14 +1368,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 methodNode
             )
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(1)
+
                 lineNumber(lineNumber)
 
                 // Dup what is on the stack and put it below the value for PUTSTATIC
@@ -1300,12 +1386,14 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 field(PUTSTATIC, className, varName, "I")
 
                 // Record the put
-                recordStore(className, lineNumber, "$className.$varName", "I")
+                recordStore(className, lineNumber, "$className.$varName", "I", 1)
             }
         }
 
         @Test
         fun `put static long field`() {
+            testKoin(siteTableModule)
+
             val methodNode = makeMethodNode(
                 0,
                 methodName,
@@ -1324,14 +1412,15 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 methodNode
             )
 
-            val transformer = OMJClassTransformer(
+            transform(
                 classNode,
                 // Recording method calls would make this test larger for no reason
                 ClassTransformerOptions(recordMethodCall = false)
             )
-            transformer.transform()
 
             checkInsns(methodNode.instructions) {
+                getRecordingContext(1)
+
                 lineNumber(lineNumber)
 
                 // Dup what is on the stack and put it below the value for PUTSTATIC
@@ -1341,11 +1430,345 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
                 field(PUTSTATIC, className, varName, "J")
 
                 // Record the put
-                recordStore(className, lineNumber, "$className.$varName", "J")
+                recordStore(className, lineNumber, "$className.$varName", "J", 1)
+            }
+        }
+    }
+
+    @Nested
+    inner class SelectiveInstrumentation {
+
+        @Test
+        fun `method that is not selected is not instrumented`() {
+            testKoin(siteTableModule)
+
+            val methodNode = makeMethodNode(
+                0,
+                methodName,
+                "()V",
+                listOf(makeLocalVariable(varName, "I", 1)),
+                InsnList().apply {
+                    add(LineNumberNode(lineNumber, LabelNode()))
+                    add(VarInsnNode(ISTORE, 1))
+                }
+            )
+
+            val classNode = makeClassNode(className, superClassName, methodNode)
+
+            transform(
+                classNode,
+                ClassTransformerOptions(selection = InstrumentationSelection.parse(listOf("method $className.other")))
+            )
+
+            checkInsns(methodNode.instructions) {
+                lineNumber(lineNumber)
+                varInsn(ISTORE, 1)
+            }
+        }
+
+        @Test
+        fun `store into a variable that is not selected is not recorded`() {
+            testKoin(siteTableModule)
+
+            val methodNode = makeMethodNode(
+                0,
+                methodName,
+                "()V",
+                listOf(makeLocalVariable(varName, "I", 1), makeLocalVariable(varName2, "I", 2)),
+                InsnList().apply {
+                    add(LineNumberNode(lineNumber, LabelNode()))
+                    add(VarInsnNode(ISTORE, 1))
+                    add(VarInsnNode(ISTORE, 2))
+                }
+            )
+
+            val classNode = makeClassNode(className, superClassName, methodNode)
+
+            transform(
+                classNode,
+                ClassTransformerOptions(
+                    recordMethodCall = false,
+                    selection = InstrumentationSelection.parse(listOf("variable $className.$methodName $varName"))
+                )
+            )
+
+            checkInsns(methodNode.instructions) {
+                getRecordingContext(3)
+
+                lineNumber(lineNumber)
+
+                insn(DUP)
+                varInsn(ISTORE, 1)
+                recordStore(className, lineNumber, varName, "I", 3)
+
+                // varName2 is not selected
+                varInsn(ISTORE, 2)
+            }
+        }
+
+        @Test
+        fun `method insn on a line that is not selected has no preamble`() {
+            testKoin(
+                siteTableModule,
+                module {
+                    single {
+                        mockk<ClassFilter> {
+                            every { shouldTransform(methodOwner) } returns true
+                        }
+                    }
+                }
+            )
+
+            val methodNode = makeMethodNode(
+                0,
+                methodName,
+                "()V",
+                listOf(),
+                InsnList().apply {
+                    add(LineNumberNode(lineNumber, LabelNode()))
+                    add(MethodInsnNode(INVOKEVIRTUAL, methodOwner, methodName, "()V", false))
+                    add(LineNumberNode(lineNumber2, LabelNode()))
+                    add(MethodInsnNode(INVOKEVIRTUAL, methodOwner, methodName, "()V", false))
+                }
+            )
+
+            val classNode = makeClassNode(className, superClassName, methodNode)
+
+            transform(
+                classNode,
+                ClassTransformerOptions(
+                    recordMethodCall = false,
+                    selection = InstrumentationSelection.parse(listOf("lines $className $lineNumber"))
+                )
+            )
+
+            checkInsns(methodNode.instructions) {
+                getRecordingContext(1)
+
+                lineNumber(lineNumber)
+                methodPreamble(1, className, lineNumber, methodName)
+                method(INVOKEVIRTUAL, methodOwner, methodName, "()V", false)
+
+                // lineNumber2 is not selected
+                lineNumber(lineNumber2)
+                method(INVOKEVIRTUAL, methodOwner, methodName, "()V", false)
             }
         }
     }
 
+    @Nested
+    inner class RecordingProfiles {
+
+        @Test
+        fun `calls-only does not record stores`() {
+            testKoin(siteTableModule)
+
+            val methodNode = makeMethodNode(
+                0,
+                methodName,
+                "()V",
+                listOf(makeLocalVariable(varName, "I", 1)),
+                InsnList().apply {
+                    add(LineNumberNode(lineNumber, LabelNode()))
+                    add(VarInsnNode(ISTORE, 1))
+                    add(IincInsnNode(1, 2))
+                    add(FieldInsnNode(PUTSTATIC, className, varName, "I"))
+                    add(InsnNode(IASTORE))
+                }
+            )
+
+            val classNode = makeClassNode(className, superClassName, methodNode)
+
+            transform(
+                classNode,
+                // Recording method calls would make this test larger for no reason
+                RecordingProfile.CALLS_ONLY.options().copy(recordMethodCall = false)
+            )
+
+            checkInsns(methodNode.instructions) {
+                lineNumber(lineNumber)
+                varInsn(ISTORE, 1)
+                iinc(1)
+                field(PUTSTATIC, className, varName, "I")
+                insn(IASTORE)
+            }
+        }
+
+        @Test
+        fun `stores-only does not emit preambles`() {
+            testKoin(
+                siteTableModule,
+                module {
+                    single {
+                        mockk<ClassFilter> {
+                            every { shouldTransform(methodOwner) } returns true
+                        }
+                    }
+                }
+            )
+
+            val methodNode = makeMethodNode(
+                0,
+                methodName,
+                "()V",
+                listOf(makeLocalVariable(varName, "I", 1)),
+                InsnList().apply {
+                    add(LineNumberNode(lineNumber, LabelNode()))
+                    add(MethodInsnNode(INVOKEVIRTUAL, methodOwner, methodName, "()V", false))
+                    add(VarInsnNode(ISTORE, 1))
+                }
+            )
+
+            val classNode = makeClassNode(className, superClassName, methodNode)
+
+            transform(classNode, RecordingProfile.STORES_ONLY.options())
+
+            checkInsns(methodNode.instructions) {
+                // The recording context is only used by the store
+                getRecordingContext(2)
+
+                // No preamble
+                lineNumber(lineNumber)
+                method(INVOKEVIRTUAL, methodOwner, methodName, "()V", false)
+
+                insn(DUP)
+                varInsn(ISTORE, 1)
+                recordStore(className, lineNumber, varName, "I", 2)
+            }
+        }
+    }
+
+    @Nested
+    inner class SwitchableSites {
+
+        @Test
+        fun `stores are recorded through recording sites`() {
+            testKoin(siteTableModule)
+
+            val methodNode = makeMethodNode(
+                0,
+                methodName,
+                "()V",
+                listOf(makeLocalVariable(varName, "I", 1)),
+                InsnList().apply {
+                    add(LineNumberNode(lineNumber, LabelNode()))
+                    add(VarInsnNode(ISTORE, 1))
+                    add(InsnNode(IASTORE))
+                }
+            )
+
+            val classNode = makeClassNode(className, superClassName, methodNode)
+
+            transform(classNode, RecordingProfile.STORES_ONLY.options().copy(switchableSites = true))
+
+            checkInsns(methodNode.instructions) {
+                invokeDynamic("getRecordingContext", "()L$recordingContextClassName;")
+                varInsn(ASTORE, 2)
+
+                lineNumber(lineNumber)
+
+                insn(DUP)
+                varInsn(ISTORE, 1)
+                ldc(siteIds.getValue(Triple(className, lineNumber, varName)))
+                varInsn(ALOAD, 2)
+                invokeDynamic("store", "(IIL$recordingContextClassName;)V")
+
+                // The recording site does the array store
+                ldc(siteIds.getValue(Triple(className, lineNumber, "")))
+                varInsn(ALOAD, 2)
+                invokeDynamic("store", "([IIIIL$recordingContextClassName;)V")
+            }
+        }
+
+        @Test
+        fun `classes older than java 7 call the agent lib directly`() {
+            testKoin(siteTableModule)
+
+            val methodNode = makeMethodNode(
+                0,
+                methodName,
+                "()V",
+                listOf(makeLocalVariable(varName, "I", 1)),
+                InsnList().apply {
+                    add(LineNumberNode(lineNumber, LabelNode()))
+                    add(VarInsnNode(ISTORE, 1))
+                }
+            )
+
+            // Class files older than Java 7 can't contain invokedynamic
+            val classNode = makeClassNode(className, superClassName, methodNode).apply { version = 50 }
+
+            transform(classNode, RecordingProfile.STORES_ONLY.options().copy(switchableSites = true))
+
+            checkInsns(methodNode.instructions) {
+                getRecordingContext(2)
+
+                lineNumber(lineNumber)
+
+                insn(DUP)
+                varInsn(ISTORE, 1)
+                recordStore(className, lineNumber, varName, "I", 2)
+            }
+        }
+    }
+
+    /**
+     * Measures how many classes per second are instrumented, from class file to instrumented class
+     * file, over the classes of the ASM and Kotlin stdlib jars.
+     */
+    @Test
+    @Tag("performance")
+    fun `transformation throughput`() {
+        testKoin(
+            module {
+                single { DynamicClassDefiner() }
+                single { ClassFilter.create(".*", "") }
+                single { SiteTable.getInstance() }
+            }
+        )
+
+        val corpus = listOf(ClassReader::class.java, Unit::class.java).flatMap { readClassFiles(it) }
+
+        // Leave out the classes that can't be instrumented, e.g. classes without local variable
+        // tables
+        val classHierarchy = ClassHierarchy()
+        val instrumentableCorpus = corpus.filter { runCatching { instrument(it, classHierarchy) }.isSuccess }
+
+        repeat(5) {
+            val startTime = System.nanoTime()
+            val instrumentedBytes = instrumentableCorpus.sumBy { instrument(it, classHierarchy).size }
+            val nanos = System.nanoTime() - startTime
+            println(
+                "%d of %d classes in %.1f ms (%.0f classes per second), %d instrumented class bytes".format(
+                    instrumentableCorpus.size,
+                    corpus.size,
+                    nanos / 1e6,
+                    instrumentableCorpus.size / (nanos / 1e9),
+                    instrumentedBytes
+                )
+            )
+        }
+    }
+
+    private fun instrument(classBytes: ByteArray, classHierarchy: ClassHierarchy): ByteArray {
+        val classReader = ClassReader(classBytes)
+        val classWriter = HierarchyClassWriter(classReader, classHierarchy, javaClass.classLoader)
+        classReader.accept(OMJClassTransformer(classWriter, MethodCodeIndex.read(classReader)), 0)
+        return classWriter.toByteArray()
+    }
+
+    /**
+     * @return The bytes of each class file in the jar [clazz] was loaded from.
+     */
+    private fun readClassFiles(clazz: Class<*>) =
+        JarFile(File(clazz.protectionDomain.codeSource.location.toURI())).use { jarFile ->
+            jarFile.entries().toList()
+                .filter {
+                    it.name.endsWith(".class") && !it.name.startsWith("META-INF/") && it.name != "module-info.class"
+                }
+                .map { entry -> jarFile.getInputStream(entry).use { it.readBytes() } }
+        }
+
     private fun makeClassNode(name: String, superName: String, method: MethodNode) =
         makeClassNode(name, superName, emptyList(), method)
 
@@ -1362,6 +1785,22 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         it.version = 51
     }
 
+    /**
+     * Instruments a class like the agent does, except that the class is visited from and into trees
+     * so that the instructions of its methods can be checked. The instrumented instructions replace
+     * the instructions of the methods in [classNode].
+     */
+    private fun transform(
+        classNode: ClassNode,
+        options: ClassTransformerOptions = ClassTransformerOptions()
+    ) {
+        val instrumentedClassNode = ClassNode(ASM8)
+        classNode.accept(OMJClassTransformer(instrumentedClassNode, MethodCodeIndex.of(classNode), options))
+        classNode.methods.zip(instrumentedClassNode.methods).forEach { (methodNode, instrumentedMethodNode) ->
+            methodNode.instructions = instrumentedMethodNode.instructions
+        }
+    }
+
     private fun makeFieldNode(access: Int, name: String, desc: String) =
         FieldNode(ASM8, access, name, desc, null, null)
 
@@ -1374,72 +1813,78 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
     ) = MethodNode(ASM8, access, name, desc, null, null).also {
         it.localVariables = localVariables
         it.instructions = insnList
+        it.maxLocals = localVariables.fold(0) { maxLocals, local ->
+            maxOf(maxLocals, local.index + Type.getType(local.desc).size)
+        }
     }
 
     private fun makeLocalVariable(name: String, desc: String, index: Int) =
         LocalVariableNode(name, desc, null, LabelNode(), LabelNode(), index)
 
-    private fun CheckInsns.methodPreamble(
-        callerClass: String,
-        lineNumber: Int,
-        methodName: String
-    ) {
-        ldc(callerClass)
-        method(INVOKESTATIC, agentLibClassName, "className", "(Ljava/lang/String;)V", false)
-        ldc(lineNumber)
-        method(INVOKESTATIC, agentLibClassName, "lineNumber", "(I)V", false)
-        ldc(methodName)
+    private fun CheckInsns.getRecordingContext(recordingContextIndex: Int) {
         method(
             INVOKESTATIC,
             agentLibClassName,
-            "methodName",
-            "(Ljava/lang/String;)V",
+            "getRecordingContext",
+            "()L$recordingContextClassName;",
             false
         )
+        varInsn(ASTORE, recordingContextIndex)
+    }
+
+    private fun CheckInsns.methodPreamble(
+        recordingContextIndex: Int,
+        callerClass: String,
+        lineNumber: Int,
+        methodName: String
+    ) {
+        varInsn(ALOAD, recordingContextIndex)
+        ldc(siteIds.getValue(Triple(callerClass, lineNumber, methodName)))
+        method(INVOKEVIRTUAL, recordingContextClassName, "callSite", "(I)V", false)
     }
 
-    private fun CheckInsns.startMethodTrace(dynamicClassName: String) {
+    private fun CheckInsns.startMethodTrace(
+        recordingContextIndex: Int,
+        dynamicClassName: String,
+        declaredTypes: String,
+        isStatic: Boolean
+    ) {
+        varInsn(ALOAD, recordingContextIndex)
         type(NEW, dynamicClassName)
         insn(DUP)
-        method(INVOKESPECIAL, dynamicClassName, "<init>", "()V", false)
-        method(
-            INVOKESTATIC,
-            agentLibClassName,
-            "methodCall_start",
-            "(Lcom/octogonapus/omj/agentlib/MethodTrace;)V",
-            false
-        )
+        ldc(declaredTypes)
+        insn(if (isStatic) ICONST_1 else ICONST_0)
     }
 
     private fun CheckInsns.receiver() {
         varInsn(ALOAD, 0)
+    }
+
+    private fun CheckInsns.endMethodTrace(dynamicClassName: String, constructorDesc: String) {
+        method(INVOKESPECIAL, dynamicClassName, "<init>", constructorDesc, false)
         method(
-            INVOKESTATIC,
-            agentLibClassName,
-            "methodCall_argument_Object",
-            "(Ljava/lang/Object;)V",
+            INVOKEVIRTUAL,
+            recordingContextClassName,
+            "methodCall",
+            "(Lcom/octogonapus/omj/agentlib/MethodTrace;)V",
             false
         )
     }
 
-    private fun CheckInsns.endMethodTrace() {
-        method(INVOKESTATIC, agentLibClassName, "methodCall_end", "()V", false)
-    }
-
     private fun CheckInsns.recordStore(
         className: String,
         lineNumber: Int,
         varName: String,
-        descPrefix: String
+        descPrefix: String,
+        recordingContextIndex: Int
     ) {
-        ldc(className)
-        ldc(lineNumber)
-        ldc(varName)
+        ldc(siteIds.getValue(Triple(className, lineNumber, varName)))
+        varInsn(ALOAD, recordingContextIndex)
         method(
             INVOKESTATIC,
             agentLibClassName,
             "store",
-            "(${descPrefix}Ljava/lang/String;ILjava/lang/String;)V",
+            "(${descPrefix}IL$recordingContextClassName;)V",
             false
         )
     }
@@ -1448,30 +1893,32 @@ internal class OMJClassTransformerTest : KoinTestFixture() {
         className: String,
         lineNumber: Int,
         arrayDesc: String,
-        elemDesc: String
+        elemDesc: String,
+        recordingContextIndex: Int
     ) {
-        ldc(className)
-        ldc(lineNumber)
+        ldc(siteIds.getValue(Triple(className, lineNumber, "")))
+        varInsn(ALOAD, recordingContextIndex)
         method(
             INVOKESTATIC,
             agentLibClassName,
             "store",
-            "(${arrayDesc}I${elemDesc}Ljava/lang/String;I)V",
+            "(${arrayDesc}I${elemDesc}IL$recordingContextClassName;)V",
             false
         )
     }
 
     private fun CheckInsns.recordBooleanOrByteArrayStore(
         className: String,
-        lineNumber: Int
+        lineNumber: Int,
+        recordingContextIndex: Int
     ) {
-        ldc(className)
-        ldc(lineNumber)
+        ldc(siteIds.getValue(Triple(className, lineNumber, "")))
+        varInsn(ALOAD, recordingContextIndex)
         method(
             INVOKESTATIC,
             agentLibClassName,
             "storeBooleanOrByteArray",
-            "(Ljava/lang/Object;IBLjava/lang/String;I)V",
+            "(Ljava/lang/Object;IBIL$recordingContextClassName;)V",
             false
         )
     }
@@ -0,0 +1,59 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+
+internal class RecordingProfileTest {
+
+    @Test
+    fun `find profiles by name`() {
+        RecordingProfile.values().forEach {
+            assertEquals(it, RecordingProfile.forName(it.profileName))
+        }
+        assertThrows(IllegalArgumentException::class.java) { RecordingProfile.forName("unknown") }
+    }
+
+    @Test
+    fun `the full profile records everything`() {
+        assertEquals(ClassTransformerOptions(), RecordingProfile.FULL.options())
+    }
+
+    @Test
+    fun `profiles map to toggles`() {
+        assertEquals(
+            ClassTransformerOptions(
+                recordLocalVariableStores = false,
+                recordFieldStores = false,
+                recordArrayStores = false
+            ),
+            RecordingProfile.CALLS_ONLY.options()
+        )
+        assertEquals(
+            ClassTransformerOptions(
+                recordMethodCall = false,
+                recordCallSites = false,
+                recordLocalVariableStores = false,
+                recordArrayStores = false
+            ),
+            RecordingProfile.FIELDS_ONLY.options()
+        )
+        assertEquals(ClassTransformerOptions(recordArrayStores = false), RecordingProfile.ARRAYS_OFF.options())
+    }
+}
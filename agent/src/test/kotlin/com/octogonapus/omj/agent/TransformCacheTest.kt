@@ -0,0 +1,119 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+
+internal class TransformCacheTest {
+
+    @Test
+    fun `load a stored class`(@TempDir tempDir: File) {
+        val key = TransformCache.keyOf("configuration", byteArrayOf(1, 2, 3))
+        val cachedClass = CachedClass(
+            byteArrayOf(4, 5, 6),
+            listOf(CachedClass.Container("(IJ)V", true), CachedClass.Container("()V", false)),
+            listOf(CachedClass.Site("com.example.Foo", 12, "bar", 3, 1, 2)),
+            mapOf(
+                "com/example/Bar" to ClassHierarchy.ClassInfo(
+                    "java/lang/Number",
+                    arrayOf("java/lang/Runnable", "java/io/Serializable"),
+                    false
+                ),
+                "java/lang/Object" to ClassHierarchy.ClassInfo(null, arrayOf(), false)
+            )
+        )
+
+        TransformCache(tempDir.toPath(), "1").store(key, cachedClass)
+
+        // A new cache in the same directory is like a later run of the agent
+        val loadedClass = TransformCache(tempDir.toPath(), "1").load(key)!!
+        assertArrayEquals(cachedClass.bytes, loadedClass.bytes)
+        assertEquals(
+            listOf("(IJ)V" to true, "()V" to false),
+            loadedClass.containers.map { it.methodDescriptor to it.isStatic }
+        )
+        val site = loadedClass.sites.single()
+        assertEquals(
+            listOf("com.example.Foo", 12, "bar", 3, 1, 2),
+            listOf(site.className, site.lineNumber, site.name, site.id, site.methodIndex, site.ldcIndex)
+        )
+        assertEquals(cachedClass.hierarchy, loadedClass.hierarchy)
+    }
+
+    @Test
+    fun `a class that was never stored is not loaded`(@TempDir tempDir: File) {
+        assertNull(TransformCache(tempDir.toPath(), "1").load(TransformCache.keyOf("", byteArrayOf())))
+    }
+
+    @Test
+    fun `a class stored by another version is not loaded`(@TempDir tempDir: File) {
+        val key = TransformCache.keyOf("", byteArrayOf())
+
+        TransformCache(tempDir.toPath(), "1").store(key, CachedClass(byteArrayOf(1), listOf(), listOf(), mapOf()))
+
+        assertNull(TransformCache(tempDir.toPath(), "2").load(key))
+    }
+
+    @Test
+    fun `a disabled cache does not store or load classes`(@TempDir tempDir: File) {
+        val key = TransformCache.keyOf("", byteArrayOf())
+        TransformCache(tempDir.toPath(), "1").store(key, CachedClass(byteArrayOf(1), listOf(), listOf(), mapOf()))
+
+        val cache = TransformCache(tempDir.toPath(), "1", false)
+        assertNull(cache.load(key))
+
+        cache.store(TransformCache.keyOf("a", byteArrayOf()), CachedClass(byteArrayOf(1), listOf(), listOf(), mapOf()))
+        assertEquals(1, tempDir.walk().count { it.isFile })
+    }
+
+    @Test
+    fun `a cache without a version does not store or load classes`(@TempDir tempDir: File) {
+        val key = TransformCache.keyOf("", byteArrayOf())
+        val cache = TransformCache(tempDir.toPath(), null)
+        cache.store(key, CachedClass(byteArrayOf(1), listOf(), listOf(), mapOf()))
+        assertNull(cache.load(key))
+        assertEquals(0, tempDir.walk().count { it.isFile })
+    }
+
+    @Test
+    fun `a damaged class file is not loaded`(@TempDir tempDir: File) {
+        val key = TransformCache.keyOf("", byteArrayOf())
+        val cache = TransformCache(tempDir.toPath(), "1")
+        cache.store(key, CachedClass(byteArrayOf(1), listOf(), listOf(), mapOf()))
+
+        tempDir.walk().single { it.isFile }.writeBytes(byteArrayOf(0, 0, 0, 2, 0, 0, 1))
+
+        assertNull(cache.load(key))
+    }
+
+    @Test
+    fun `the key depends on the configuration and the class`() {
+        val key = TransformCache.keyOf("a", byteArrayOf(1, 2))
+        assertEquals(key, TransformCache.keyOf("a", byteArrayOf(1, 2)))
+        assertNotEquals(key, TransformCache.keyOf("b", byteArrayOf(1, 2)))
+        assertNotEquals(key, TransformCache.keyOf("a", byteArrayOf(1, 3)))
+
+        // The configuration and the class can't run into each other
+        assertNotEquals(TransformCache.keyOf("a", byteArrayOf(98)), TransformCache.keyOf("ab", byteArrayOf()))
+    }
+}
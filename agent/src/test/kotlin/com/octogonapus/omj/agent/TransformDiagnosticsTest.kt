@@ -0,0 +1,104 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.agent
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.objectweb.asm.ClassReader
+import java.io.File
+
+internal class TransformDiagnosticsTest {
+
+    private val classBytes = ClassReader(TransformDiagnosticsTest::class.java.name).b
+
+    @Test
+    fun `diagnostics are off without a directory`(@TempDir tempDir: File) {
+        val diagnostics = TransformDiagnostics.create(null, ".*")
+        assertFalse(diagnostics.isEnabled)
+
+        diagnostics.record("a/A", 1, classBytes, 2, 3, false)
+        diagnostics.close()
+
+        assertEquals(0, tempDir.listFiles()!!.size)
+    }
+
+    @Test
+    fun `record each class and a summary`(@TempDir tempDir: File) {
+        val diagnostics = TransformDiagnostics.create(tempDir.toPath(), null)
+        assertTrue(diagnostics.isEnabled)
+
+        diagnostics.record("a/A", 10, classBytes, 2, 1_000_000, false)
+        diagnostics.record("b/B", 20, classBytes, 3, 2_000_000, true)
+        diagnostics.close()
+
+        assertEquals(
+            listOf(
+                "class\tnanos\toriginal bytes\tinstrumented bytes\tsites\tcached",
+                "a/A\t1000000\t10\t${classBytes.size}\t2\tfalse",
+                "b/B\t2000000\t20\t${classBytes.size}\t3\ttrue"
+            ),
+            tempDir.resolve("classes.tsv").readLines()
+        )
+
+        val summary = tempDir.resolve("summary.txt").readLines()
+        assertTrue("classes: 2" in summary)
+        assertTrue("classes from the transform cache: 1" in summary)
+        assertTrue("transform time: 3 ms" in summary)
+        assertTrue("original bytes: 30" in summary)
+        assertTrue("instrumented bytes: ${classBytes.size * 2}" in summary)
+        assertTrue("sites: 5" in summary)
+    }
+
+    @Test
+    fun `dump the disassembly of the classes that match the pattern`(@TempDir tempDir: File) {
+        val diagnostics = TransformDiagnostics.create(tempDir.toPath(), "a/.*")
+
+        diagnostics.record("a/A", 10, classBytes, 2, 1, false)
+        diagnostics.record("b/B", 10, classBytes, 2, 1, false)
+        diagnostics.close()
+
+        val dumps = tempDir.resolve("dumps").listFiles()!!
+        assertEquals(listOf("a.A.txt"), dumps.map { it.name })
+        assertTrue(dumps.single().readText().contains("class com/octogonapus/omj/agent/TransformDiagnosticsTest"))
+    }
+
+    @Test
+    fun `close without recording anything starts no thread`(@TempDir tempDir: File) {
+        val diagnostics = TransformDiagnostics.create(tempDir.toPath(), null)
+
+        diagnostics.close()
+
+        assertTrue(Thread.getAllStackTraces().keys.none { it.name == "OMJ transform diagnostics" })
+        assertTrue("classes: 0" in tempDir.resolve("summary.txt").readLines())
+    }
+
+    @Test
+    fun `record after close does nothing`(@TempDir tempDir: File) {
+        val diagnostics = TransformDiagnostics.create(tempDir.toPath(), ".*")
+
+        diagnostics.record("a/A", 10, classBytes, 2, 1, false)
+        diagnostics.close()
+        diagnostics.record("b/B", 10, classBytes, 2, 1, false)
+
+        assertEquals(2, tempDir.resolve("classes.tsv").readLines().size)
+        assertTrue("classes: 1" in tempDir.resolve("summary.txt").readLines())
+        assertEquals(listOf("a.A.txt"), tempDir.resolve("dumps").listFiles()!!.map { it.name })
+    }
+}
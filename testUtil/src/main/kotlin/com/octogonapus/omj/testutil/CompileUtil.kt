@@ -45,17 +45,27 @@ object CompileUtil {
      * Runs the agent on a [jarUnderTest] and saves traces into the [traceDir]. Adds the JaCoCo
      * agent for coverage information.
      *
-     * @param jarUnderTest The filename of the Jar to run under the agent.
+     * @param jarUnderTest The filename of the Jar to run under the agent, or the absolute path of a
+     * Jar that is not an agent test.
      * @param traceDir The dir to save trace files into.
      * @param debug Whether to start the subprocess JVM for remote debugging. Adds the JDWP agent
      * on port 5006.
      * @param coverage Whether to collect code coverage using JaCoCo.
+     * @param jvmArgs Extra arguments for the subprocess JVM. These come after the agent's default
+     * system properties, so they can override them.
+     * @param attach Whether the [jarUnderTest] attaches the agent to itself instead of the agent
+     * being started with the JVM. The path of the agent jar is given in the `agent.jar` system
+     * property.
+     * @param includePackage The agent's include filter, or null to not give the agent one.
      */
     fun runAgentTest(
         jarUnderTest: String,
         traceDir: Path,
         debug: Boolean = false,
-        coverage: Boolean = true
+        coverage: Boolean = true,
+        jvmArgs: List<String> = emptyList(),
+        attach: Boolean = false,
+        includePackage: String? = "com/agenttest/[a-zA-Z0-9/]*"
     ): Tuple3<Int, String, String> {
         val jarFile = Paths.get(System.getProperty("agent-test.jar-dir"))
             .resolve(jarUnderTest)
@@ -79,6 +89,15 @@ object CompileUtil {
             listOf("-javaagent:$jacocoJar=$jacocoArgs")
         } else emptyList()
 
+        val agentJar = System.getProperty("agent.jar")
+        val agentList = if (attach) {
+            listOf("-Dagent.jar=$agentJar", "-Djdk.attach.allowAttachSelf=true")
+        } else {
+            listOf("-javaagent:$agentJar")
+        }
+
+        val includeList = if (includePackage != null) listOf("-Dagent.include-package=$includePackage") else emptyList()
+
         @Suppress("SpreadOperator")
         val process = ProcessBuilder(
             Paths.get(System.getProperty("java.home"))
@@ -88,9 +107,10 @@ object CompileUtil {
                 .toString(),
             "-Dagent-lib.jar-dir=${traceDir.toAbsolutePath()}",
             "-Dagent-lib.trace-dir=${traceDir.toAbsolutePath()}",
-            "-Dagent.include-package=com/agenttest/[a-zA-Z0-9/]*",
+            *includeList.toTypedArray(),
             "-Dagent.exclude-package=",
-            "-javaagent:${System.getProperty("agent.jar")}",
+            *jvmArgs.toTypedArray(),
+            *agentList.toTypedArray(),
             // Run debug/JaCoCo after the agent, otherwise it will instrument their instrumentation
             *debugList.toTypedArray(),
             *jacocoList.toTypedArray(),
@@ -17,12 +17,16 @@
 package com.octogonapus.omj.ui.model;
 
 import com.octogonapus.omj.util.SimpleTypeUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -34,6 +38,12 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
   private final Logger logger = LoggerFactory.getLogger(TraceIterator.class);
   private final InputStream traceStream;
 
+  /** The strings defined so far, indexed by their ID. */
+  private final List<String> strings = new ArrayList<>();
+
+  /** The sites defined so far, indexed by their ID. */
+  private final List<Site> sites = new ArrayList<>();
+
   public TraceIterator(final InputStream traceStream) {
     this.traceStream = traceStream;
     // TODO: Validate the trace header once it is added in Issue #13
@@ -74,21 +84,19 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
    * @throws IOException From reading from the trace stream.
    */
   private Trace unsafeNext() throws IOException {
-    final long index =
-        ByteBuffer.allocate(8)
-            .order(ByteOrder.LITTLE_ENDIAN)
-            .put((byte) traceStream.read())
-            .put((byte) traceStream.read())
-            .put((byte) traceStream.read())
-            .put((byte) traceStream.read())
-            .put((byte) traceStream.read())
-            .put((byte) traceStream.read())
-            .put((byte) traceStream.read())
-            .put((byte) traceStream.read())
-            .rewind()
-            .getLong();
-
-    final byte type = parseByte();
+    long index = parseIndex();
+    byte type = parseByte();
+
+    // Definitions are not traces, so skip ahead to the trace they precede
+    while (type == 0x5 || type == 0x6) {
+      if (type == 0x5) {
+        parseStringDefinition();
+      } else {
+        parseSiteDefinition();
+      }
+      index = parseIndex();
+      type = parseByte();
+    }
 
     switch (type) {
       case 0x1:
@@ -97,11 +105,28 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
         return parseMethodTrace(index);
       case 0x3:
         return parseArrayStoreTrace(index);
+      case 0x4:
+        return parseGapTrace(index);
       default:
         throw new UnsupportedOperationException("Unknown trace type: " + type);
     }
   }
 
+  private long parseIndex() throws IOException {
+    return ByteBuffer.allocate(8)
+        .order(ByteOrder.LITTLE_ENDIAN)
+        .put((byte) traceStream.read())
+        .put((byte) traceStream.read())
+        .put((byte) traceStream.read())
+        .put((byte) traceStream.read())
+        .put((byte) traceStream.read())
+        .put((byte) traceStream.read())
+        .put((byte) traceStream.read())
+        .put((byte) traceStream.read())
+        .rewind()
+        .getLong();
+  }
+
   private byte parseByte() throws IOException {
     return (byte) Integer.parseUnsignedInt(Integer.toHexString(traceStream.read()), 16);
   }
@@ -111,29 +136,15 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
   }
 
   private Trace parseStoreTrace(final long index) throws IOException {
-    // Parse class name
-    final String className = parseString();
-    logger.debug("className = {}", className);
-
-    // Parse line number
-    final int lineNumber = parseInt();
-    logger.debug("lineNumber = {}", lineNumber);
-
-    // Parse variable name
-    final String variableName = parseString();
-    logger.debug("variableName = {}", variableName);
+    // Parse the site, which has the class name, line number, and variable name
+    final Site site = parseSiteId();
 
-    return new StoreTrace(index, className, lineNumber, variableName, parseTypeValuePair());
+    return new StoreTrace(index, site.className, site.lineNumber, site.name, parseTypeValuePair());
   }
 
   private Trace parseArrayStoreTrace(final long index) throws IOException {
-    // Parse class name
-    final String className = parseString();
-    logger.debug("className = {}", className);
-
-    // Parse line number
-    final int lineNumber = parseInt();
-    logger.debug("lineNumber = {}", lineNumber);
+    // Parse the site, which has the class name and line number
+    final Site site = parseSiteId();
 
     // Parse array reference
     final String arrayRef = parseHashcode();
@@ -143,28 +154,54 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
 
     // Parse value
     return new ArrayStoreTrace(
-        index, className, lineNumber, arrayRef, arrayIndex, parseTypeValuePair());
+        index, site.className, site.lineNumber, arrayRef, arrayIndex, parseTypeValuePair());
   }
 
-  private Trace parseMethodTrace(final long index) throws IOException {
-    // Parse class name
-    final String className = parseString();
-    logger.debug("className = {}", className);
+  private Trace parseGapTrace(final long index) throws IOException {
+    // Parse the number of traces that were dropped
+    final long droppedTraces =
+        ByteBuffer.wrap(traceStream.readNBytes(8)).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    logger.debug("droppedTraces = {}", droppedTraces);
+
+    return new GapTrace(index, droppedTraces);
+  }
+
+  private void parseStringDefinition() throws IOException {
+    final int id = parseVarInt();
+    final String string = parseString();
+    logger.debug("Defined string {} = {}", id, string);
 
-    // Parse line number
-    final int lineNumber = parseInt();
-    logger.debug("lineNumber = {}", lineNumber);
+    // IDs are given out in order, so each definition is for the next ID
+    if (id != strings.size()) {
+      throw new IllegalStateException(
+          "Expected a definition for string " + strings.size() + " but got one for " + id);
+    }
+    strings.add(string);
+  }
 
-    // Parse method name
-    final String methodName = parseString();
-    logger.debug("methodName = {}", methodName);
+  private void parseSiteDefinition() throws IOException {
+    final int id = parseVarInt();
+    final var site = new Site(parseStringId(), parseInt(), parseStringId());
+    logger.debug("Defined site {} = {}", id, site);
+
+    // IDs are given out in order, so each definition is for the next ID
+    if (id != sites.size()) {
+      throw new IllegalStateException(
+          "Expected a definition for site " + sites.size() + " but got one for " + id);
+    }
+    sites.add(site);
+  }
+
+  private Trace parseMethodTrace(final long index) throws IOException {
+    // Parse the call site, which has the caller's class name and line number and the method name
+    final Site site = parseSiteId();
 
     // Parse is static
     final boolean isStatic = parseBoolean();
     logger.debug("isStatic = {}", isStatic);
 
-    // Parse number of arguments
-    final byte numArguments = parseByte();
+    // Parse number of arguments, which is unsigned because a method can have up to 255
+    final int numArguments = Byte.toUnsignedInt(parseByte());
     logger.debug("numArguments = {}", numArguments);
 
     // Parse arguments
@@ -173,7 +210,7 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
       arguments.add(parseTypeValuePair());
     }
 
-    return new MethodTrace(index, className, lineNumber, methodName, isStatic, arguments);
+    return new MethodTrace(index, site.className, site.lineNumber, site.name, isStatic, arguments);
   }
 
   private TypeValuePair parseTypeValuePair() throws IOException {
@@ -183,9 +220,12 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
       // Need to treat references specially here because SimpleTypeUtil.getLengthOfTypeForTrace
       // tries to compute the length based on the class name, which is not present until we parse
       // it right here.
-      final String classType = parseString();
+      final String classType = parseStringId();
 
-      if (classType.equals("java.lang.String")) {
+      if (classType.equals(SimpleTypeUtil.nullClassName)) {
+        // Null references have no value
+        return new TypeValuePair(classType, SimpleTypeUtil.nullClassName);
+      } else if (classType.equals("java.lang.String")) {
         // For strings, the value is the length of the string and the bytes
         final int stringLength = parseInt();
         final String stringValue = parseString(stringLength);
@@ -236,14 +276,59 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
   }
 
   /**
-   * Parses a string by reading from the {@link #traceStream} until a NULL byte is found. The NULL
-   * byte is not appended to the returned string.
+   * Parses an unsigned LEB128 varint: seven bits per byte starting from the least significant bits,
+   * with the high bit of each byte set if more bytes follow.
+   *
+   * @return The parsed int.
+   * @throws IOException From reading from the {@link #traceStream}.
+   */
+  private int parseVarInt() throws IOException {
+    int value = 0;
+    int shift = 0;
+    int read;
+    do {
+      read = traceStream.read();
+      if (read == -1) {
+        throw new EOFException("The trace stream ended in the middle of a varint.");
+      }
+      value |= (read & 0x7F) << shift;
+      shift += 7;
+    } while ((read & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * Parses the ID of a string and looks up the string it refers to. Every trace that refers to the
+   * same string gets the same instance.
+   *
+   * @return The string.
+   * @throws IOException From reading from the {@link #traceStream}.
+   */
+  private String parseStringId() throws IOException {
+    return strings.get(parseVarInt());
+  }
+
+  /**
+   * Parses the ID of a site and looks up the site it refers to.
+   *
+   * @return The site.
+   * @throws IOException From reading from the {@link #traceStream}.
+   */
+  private Site parseSiteId() throws IOException {
+    final Site site = sites.get(parseVarInt());
+    logger.debug("site = {}", site);
+    return site;
+  }
+
+  /**
+   * Parses a UTF-8 string by reading from the {@link #traceStream} until a NULL byte is found. The
+   * NULL byte is not appended to the returned string.
    *
    * @return The parsed string.
    * @throws IOException From reading from the {@link #traceStream}.
    */
   private String parseString() throws IOException {
-    final var builder = new StringBuilder();
+    final var bytes = new ByteArrayOutputStream();
 
     while (true) {
       final int read = traceStream.read();
@@ -251,29 +336,30 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
       // Look for null terminating character
       if (read == 0) {
         break;
+      } else if (read == -1) {
+        throw new EOFException("The trace stream ended in the middle of a string.");
       }
 
-      builder.append((char) read);
+      bytes.write(read);
     }
 
-    return builder.toString();
+    return bytes.toString(StandardCharsets.UTF_8);
   }
 
   /**
-   * Parses a string by reading from the {@link #traceStream} for a number of bytes.
+   * Parses a UTF-8 string by reading from the {@link #traceStream} for a number of bytes.
    *
    * @param length The number of bytes in the string.
    * @return The parsed string.
    * @throws IOException From reading from the {@link #traceStream}.
    */
   private String parseString(final int length) throws IOException {
-    final var builder = new StringBuilder();
-
-    for (int i = 0; i < length; i++) {
-      builder.append((char) traceStream.read());
+    final byte[] bytes = traceStream.readNBytes(length);
+    if (bytes.length != length) {
+      throw new EOFException("The trace stream ended in the middle of a string.");
     }
 
-    return builder.toString();
+    return new String(bytes, StandardCharsets.UTF_8);
   }
 
   /**
@@ -364,4 +450,25 @@ public final class TraceIterator implements Iterator<Trace>, AutoCloseable {
   public void close() throws Exception {
     traceStream.close();
   }
+
+  /** A site that traces were recorded at. */
+  private static final class Site {
+
+    private final String className;
+    private final int lineNumber;
+
+    /** The name of the variable stored into or the method called. Empty for array stores. */
+    private final String name;
+
+    private Site(final String className, final int lineNumber, final String name) {
+      this.className = className;
+      this.lineNumber = lineNumber;
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return className + ":" + lineNumber + " " + name;
+    }
+  }
 }
@@ -17,6 +17,7 @@
 package com.octogonapus.omj.ui.view
 
 import com.octogonapus.omj.ui.model.ArrayStoreTrace
+import com.octogonapus.omj.ui.model.GapTrace
 import com.octogonapus.omj.ui.model.MethodTrace
 import com.octogonapus.omj.ui.model.StoreTrace
 import com.octogonapus.omj.ui.model.Trace
@@ -58,6 +59,12 @@ class TraceCell : ListCell<Trace?>() {
                     text = "$index $callerClass:$callerLine$staticString" +
                         "$methodName($argumentString)"
                 }
+
+                is GapTrace -> {
+                    val (index, droppedTraces) = item
+
+                    text = "$index <$droppedTraces traces dropped>"
+                }
             }
         }
     }
@@ -0,0 +1,108 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.ui.model
+
+import com.octogonapus.omj.testutil.CompileUtil
+import io.kotest.matchers.collections.shouldHaveSize
+import io.kotest.matchers.shouldBe
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.nio.file.Paths
+import java.util.concurrent.TimeUnit
+
+internal class AheadOfTimeInstrumentationTest {
+
+    @Test
+    fun `classes instrumented ahead of time record the same traces`(@TempDir tempDir: File) {
+        val runtimeTraces = runAndReadTraces(tempDir.resolve("runtime"), jarUnderTest)
+
+        val instrumentedJar = instrument(tempDir.resolve("instrumented"))
+        // Without an include filter the agent only loads the classes instrumented ahead of time,
+        // with one it transforms the classes that were not instrumented ahead of time
+        val aheadOfTimeTraces = runAndReadTraces(tempDir.resolve("aheadOfTime"), instrumentedJar, null)
+        val mixedTraces = runAndReadTraces(tempDir.resolve("mixed"), instrumentedJar)
+
+        runtimeTraces.shouldHaveSize(4)
+        aheadOfTimeTraces.withoutHashCodes() shouldBe runtimeTraces.withoutHashCodes()
+        mixedTraces.withoutHashCodes() shouldBe runtimeTraces.withoutHashCodes()
+    }
+
+    /**
+     * Instruments the [jarUnderTest] like a user would, by running the agent jar.
+     *
+     * @return The absolute path of the instrumented jar.
+     */
+    private fun instrument(outputDir: File): String {
+        val process = ProcessBuilder(
+            Paths.get(System.getProperty("java.home")).resolve("bin").resolve("java").toString(),
+            "-jar",
+            System.getProperty("agent.jar"),
+            "--include",
+            "com/agenttest/[a-zA-Z0-9/]*",
+            "--exclude",
+            "",
+            "--output",
+            outputDir.absolutePath,
+            Paths.get(System.getProperty("agent-test.jar-dir")).resolve(jarUnderTest).toString()
+        ).inheritIO().start()
+
+        process.waitFor(1, TimeUnit.MINUTES) shouldBe true
+        process.exitValue() shouldBe 0
+        return outputDir.resolve(jarUnderTest).absolutePath
+    }
+
+    private fun runAndReadTraces(
+        traceDir: File,
+        jar: String,
+        includePackage: String? = "com/agenttest/[a-zA-Z0-9/]*"
+    ): List<Trace> {
+        traceDir.mkdirs()
+        CompileUtil.checkForAgentTestErrors(
+            CompileUtil.runAgentTest(jar, traceDir.toPath(), includePackage = includePackage)
+        )
+
+        val traceFiles = traceDir.listFiles()!!.filter { it.extension == "trace" }
+        traceFiles.shouldHaveSize(1)
+        return TraceIterator(BufferedInputStream(FileInputStream(traceFiles[0]))).use {
+            it.asSequence().toList()
+        }
+    }
+
+    /**
+     * Replaces the identity hash codes of objects, which change from run to run.
+     */
+    private fun List<Trace>.withoutHashCodes() = map { trace ->
+        when (trace) {
+            is MethodTrace -> trace.copy(arguments = trace.arguments.map { it.withoutHashCode() }.toMutableList())
+            is StoreTrace -> trace.copy(typeValuePair = trace.typeValuePair.withoutHashCode())
+            else -> trace
+        }
+    }
+
+    private fun TypeValuePair.withoutHashCode() = if (type in typesWithValues) this else copy(value = "")
+
+    companion object {
+
+        private const val jarUnderTest = "agent-test_storeTwoMethodParams.jar"
+
+        private val typesWithValues =
+            setOf("boolean", "byte", "char", "short", "int", "float", "long", "double", "java.lang.String", "null")
+    }
+}
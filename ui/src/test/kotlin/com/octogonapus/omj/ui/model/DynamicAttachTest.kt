@@ -0,0 +1,49 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.ui.model
+
+import com.octogonapus.omj.testutil.CompileUtil
+import io.kotest.matchers.collections.shouldBeEmpty
+import io.kotest.matchers.collections.shouldExist
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+
+internal class DynamicAttachTest {
+
+    @Test
+    fun `only record while attached`(@TempDir tempDir: File) {
+        CompileUtil.checkForAgentTestErrors(
+            CompileUtil.runAgentTest("agent-test_dynamicAttach.jar", tempDir.toPath(), attach = true)
+        )
+
+        val traces = tempDir.listFiles()!!.filter { it.extension == "trace" }.flatMap { traceFile ->
+            TraceIterator(BufferedInputStream(FileInputStream(traceFile))).use { it.asSequence().toList() }
+        }
+
+        traces.shouldExist { it.isStoreOf("2") }
+        traces.filter { it.isStoreOf("1") || it.isStoreOf("3") }.shouldBeEmpty()
+    }
+
+    private fun Trace.isStoreOf(value: String) =
+        this is StoreTrace &&
+            callerClass == "com.agenttest.dynamicAttach.Foo" &&
+            variableName == "stored" &&
+            typeValuePair.value == value
+}
@@ -0,0 +1,56 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.ui.model
+
+import com.octogonapus.omj.testutil.CompileUtil
+import io.kotest.matchers.collections.shouldBeEmpty
+import io.kotest.matchers.collections.shouldExist
+import io.kotest.matchers.collections.shouldHaveSize
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+
+internal class RecordingControlTest {
+
+    @Test
+    fun `pause resume flush and rotate over jmx`(@TempDir tempDir: File) {
+        CompileUtil.checkForAgentTestErrors(
+            CompileUtil.runAgentTest("agent-test_recordingControl.jar", tempDir.toPath())
+        )
+
+        // The first trace file sorts before the one it was rotated to
+        val traceFiles = tempDir.listFiles()!!.filter { it.extension == "trace" }.sortedBy { it.name }
+        traceFiles.shouldHaveSize(2)
+        val (firstTraces, secondTraces) = traceFiles.map { traceFile ->
+            TraceIterator(BufferedInputStream(FileInputStream(traceFile))).use { it.asSequence().toList() }
+        }
+
+        firstTraces.shouldExist { it.isStore("recorded") }
+        firstTraces.filter { it.isStore("paused") }.shouldBeEmpty()
+        firstTraces.shouldExist { it.isStore("resumed") }
+        firstTraces.filter { it.isStore("rotated") }.shouldBeEmpty()
+
+        // Each trace file defines the sites it uses, so the second one can be read on its own
+        secondTraces.shouldExist { it.isStore("rotated") }
+        secondTraces.filter { it.isStore("resumed") }.shouldBeEmpty()
+    }
+
+    private fun Trace.isStore(variableName: String) =
+        this is StoreTrace && callerClass == "com.agenttest.recordingControl.Main" && this.variableName == variableName
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of OMJ.
+ *
+ * OMJ is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OMJ is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OMJ.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.octogonapus.omj.ui.model
+
+import com.octogonapus.omj.testutil.CompileUtil
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+
+internal class RecordingProfileBenchmarkTest {
+
+    /**
+     * Runs the profileBenchmark agent test under each recording profile and reports how much slower
+     * its operations are than without instrumentation and how many trace bytes each operation
+     * writes. Each profile is also run with switchable recording sites that are disabled, which
+     * should be close to the baseline.
+     */
+    @Test
+    @Tag("performance")
+    fun `compare recording profiles`(@TempDir tempDir: File) {
+        // Including no classes runs the workload under the agent without instrumenting it
+        val baseline = runBenchmark(tempDir.resolve("baseline"), "-Dagent.include-package=")
+        println("baseline: %.1f ns per operation".format(baseline.nanosPerOperation))
+
+        profiles.forEach { profile ->
+            report(profile, baseline, runBenchmark(tempDir.resolve(profile), "-Dagent.profile=$profile"))
+            report(
+                "$profile disabled",
+                baseline,
+                runBenchmark(
+                    tempDir.resolve("$profile-disabled"),
+                    "-Dagent.profile=$profile",
+                    "-Dagent.switchable-sites=true",
+                    "-Dagent-lib.recording-enabled=false"
+                )
+            )
+        }
+    }
+
+    private fun report(label: String, baseline: BenchmarkResult, result: BenchmarkResult) {
+        println(
+            "%s: %.2fx slowdown, %.1f ns per operation, %.1f trace bytes per operation, %.2f traces per operation"
+                .format(
+                    label,
+                    result.nanosPerOperation / baseline.nanosPerOperation,
+                    result.nanosPerOperation,
+                    result.traceBytes.toDouble() / result.totalOperations,
+                    result.traces.toDouble() / result.totalOperations
+                )
+        )
+    }
+
+    private data class BenchmarkResult(
+        val operations: Int,
+        val nanos: Long,
+        val totalOperations: Int,
+        val traceBytes: Long,
+        val traces: Int
+    ) {
+        val nanosPerOperation = nanos.toDouble() / operations
+    }
+
+    /**
+     * Runs the benchmark a few times and keeps the fastest run.
+     */
+    private fun runBenchmark(dir: File, vararg jvmArgs: String) = (1..repetitions).map { repetition ->
+        val runDir = dir.resolve(repetition.toString()).apply { mkdirs() }
+        val resultFile = runDir.resolve("result.txt")
+        CompileUtil.checkForAgentTestErrors(
+            CompileUtil.runAgentTest(
+                "agent-test_profileBenchmark.jar",
+                runDir.toPath(),
+                coverage = false,
+                jvmArgs = jvmArgs.toList() + "-Dbenchmark.result-file=${resultFile.absolutePath}"
+            )
+        )
+
+        // The workload warms up before the timed run, and every run is traced
+        val (operations, nanos, totalOperations) = resultFile.readText().trim().split(" ")
+        val traceFiles = runDir.listFiles()!!.filter { it.extension == "trace" }
+        BenchmarkResult(
+            operations.toInt(),
+            nanos.toLong(),
+            totalOperations.toInt(),
+            traceFiles.map { it.length() }.sum(),
+            traceFiles.sumBy { traceFile ->
+                TraceIterator(BufferedInputStream(FileInputStream(traceFile))).use { it.asSequence().count() }
+            }
+        )
+    }.minBy { it.nanos }!!
+
+    companion object {
+        private const val repetitions = 3
+        private val profiles = listOf("full", "calls-only", "stores-only", "fields-only", "arrays-off")
+    }
+}
@@ -22,13 +22,19 @@ import io.kotest.matchers.collections.shouldBeStrictlyIncreasingWith
 import io.kotest.matchers.collections.shouldExist
 import io.kotest.matchers.collections.shouldExistInOrder
 import io.kotest.matchers.collections.shouldHaveSize
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.types.shouldBeSameInstanceAs
 import mu.KotlinLogging
 import org.junit.jupiter.api.Nested
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.io.TempDir
 import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.FileInputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 
 internal class TraceIteratorTest {
 
@@ -363,6 +369,30 @@ internal class TraceIteratorTest {
                 }
             )
         }
+
+        @Test
+        fun `parse method calls with too many ints for a container constructor`(@TempDir tempDir: File) {
+            val traces = generateTraces(tempDir, "agent-test_methodCallManyInts.jar")
+            val ints = (0 until 127).map { "int" to "$it" }
+
+            traces.shouldExistInOrder(
+                {
+                    it.staticMethodCall(
+                        methodName = "callMe",
+                        callerClass = "com.agenttest.methodCallManyInts.Main",
+                        args = ints
+                    )
+                },
+                {
+                    it.virtualMethodCall(
+                        receiverType = "com.agenttest.methodCallManyInts.Main",
+                        methodName = "callMe",
+                        callerClass = "com.agenttest.methodCallManyInts.Main",
+                        args = ints + ("java.lang.String" to "a")
+                    )
+                }
+            )
+        }
     }
 
     @Nested
@@ -1121,6 +1151,117 @@ internal class TraceIteratorTest {
         }
     }
 
+    @Test
+    fun `parse gap trace`() {
+        val bytes = ByteBuffer.allocate(17)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .putLong(3)
+            .put(0x4.toByte())
+            .putLong(42)
+            .array()
+
+        TraceIterator(ByteArrayInputStream(bytes)).use {
+            it.next() shouldBe GapTrace(3, 42)
+            it.hasNext() shouldBe false
+        }
+    }
+
+    @Test
+    fun `resolve string and site ids`() {
+        val bytes = TraceBytes().apply {
+            writeStringDefinition(0, "com.example.Foo")
+            writeStringDefinition(1, "x")
+            writeSiteDefinition(0, 0, 3, 1)
+            writeSiteDefinition(1, 0, 4, 1)
+            writeIntStoreTrace(0, 0, 5)
+            writeIntStoreTrace(1, 1, 6)
+        }.toByteArray()
+
+        TraceIterator(ByteArrayInputStream(bytes)).use {
+            val first = it.next() as StoreTrace
+            first shouldBe StoreTrace(0, "com.example.Foo", 3, "x", TypeValuePair("int", "5"))
+            val second = it.next() as StoreTrace
+            second shouldBe StoreTrace(1, "com.example.Foo", 4, "x", TypeValuePair("int", "6"))
+            second.callerClass shouldBeSameInstanceAs first.callerClass
+            it.hasNext() shouldBe false
+        }
+    }
+
+    @Test
+    fun `parse null references`() {
+        val bytes = TraceBytes().apply {
+            writeStringDefinition(0, "com.example.Foo")
+            writeStringDefinition(1, "x")
+            writeStringDefinition(2, "null")
+            writeSiteDefinition(0, 0, 3, 1)
+
+            // A null store, then a null argument, each followed by a trace to check that nothing
+            // after the null was read
+            writeLong(0)
+            stream.write(0x1)
+            stream.write(0)
+            stream.write('L'.toInt())
+            stream.write(2)
+            writeIntStoreTrace(1, 0, 5)
+            writeLong(2)
+            stream.write(0x2)
+            stream.write(0)
+            stream.write(1)
+            stream.write(2)
+            stream.write('L'.toInt())
+            stream.write(2)
+            stream.write('I'.toInt())
+            writeInt(6)
+            writeIntStoreTrace(3, 0, 7)
+        }.toByteArray()
+
+        TraceIterator(ByteArrayInputStream(bytes)).use {
+            it.next() shouldBe StoreTrace(0, "com.example.Foo", 3, "x", TypeValuePair("null", "null"))
+            it.next() shouldBe StoreTrace(1, "com.example.Foo", 3, "x", TypeValuePair("int", "5"))
+            it.next() shouldBe MethodTrace(
+                2,
+                "com.example.Foo",
+                3,
+                "x",
+                true,
+                mutableListOf(TypeValuePair("null", "null"), TypeValuePair("int", "6"))
+            )
+            it.next() shouldBe StoreTrace(3, "com.example.Foo", 3, "x", TypeValuePair("int", "7"))
+            it.hasNext() shouldBe false
+        }
+    }
+
+    @Test
+    fun `parse UTF-8 strings`() {
+        val value = "h\u00e9llo \u20ac \uD83D\uDE00"
+        val bytes = TraceBytes().apply {
+            writeStringDefinition(0, "com.example.\u00c9t\u00e9")
+            writeStringDefinition(1, "\u00e7a")
+            writeStringDefinition(2, "java.lang.String")
+            writeSiteDefinition(0, 0, 3, 1)
+
+            writeLong(0)
+            stream.write(0x1)
+            stream.write(0)
+            stream.write('L'.toInt())
+            stream.write(2)
+            val valueBytes = value.toByteArray(Charsets.UTF_8)
+            writeInt(valueBytes.size)
+            stream.writeBytes(valueBytes)
+        }.toByteArray()
+
+        TraceIterator(ByteArrayInputStream(bytes)).use {
+            it.next() shouldBe StoreTrace(
+                0,
+                "com.example.\u00c9t\u00e9",
+                3,
+                "\u00e7a",
+                TypeValuePair("java.lang.String", value)
+            )
+            it.hasNext() shouldBe false
+        }
+    }
+
     @Test
     fun `read past end of trace`(@TempDir tempDir: File) {
         CompileUtil.checkForAgentTestErrors(
@@ -1288,4 +1429,45 @@ internal class TraceIteratorTest {
         private fun MethodTrace.hasArgument(index: Int, type: String, value: String) =
             arguments[index].type == type && arguments[index].value == value
     }
+
+    /**
+     * Writes trace records by hand. IDs are written as single bytes, so they must be less than 128.
+     */
+    private class TraceBytes {
+
+        val stream = ByteArrayOutputStream()
+
+        fun writeLong(value: Long) =
+            stream.writeBytes(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array())
+
+        fun writeInt(value: Int) =
+            stream.writeBytes(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array())
+
+        fun writeStringDefinition(id: Int, string: String) {
+            writeLong(0)
+            stream.write(0x5)
+            stream.write(id)
+            stream.writeBytes(string.toByteArray(Charsets.UTF_8))
+            stream.write(0)
+        }
+
+        fun writeSiteDefinition(id: Int, classNameId: Int, lineNumber: Int, nameId: Int) {
+            writeLong(0)
+            stream.write(0x6)
+            stream.write(id)
+            stream.write(classNameId)
+            writeInt(lineNumber)
+            stream.write(nameId)
+        }
+
+        fun writeIntStoreTrace(index: Long, siteId: Int, value: Int) {
+            writeLong(index)
+            stream.write(0x1)
+            stream.write(siteId)
+            stream.write('I'.toInt())
+            writeInt(value)
+        }
+
+        fun toByteArray(): ByteArray = stream.toByteArray()
+    }
 }
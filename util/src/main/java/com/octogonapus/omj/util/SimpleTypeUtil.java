@@ -33,6 +33,12 @@ public final class SimpleTypeUtil {
     public String className;
   }
 
+  /**
+   * The class name traces give a null reference. No class can have this name because it is a
+   * keyword. Nothing follows the class name of a null reference in a trace.
+   */
+  public static final String nullClassName = "null";
+
   public static SimpleType getSimpleTypeFromDescriptorByte(final byte descriptor) {
     switch (descriptor) {
       case 'V':
@@ -34,5 +34,23 @@ public final class Util {
     return Paths.get(System.getProperty("agent-lib.jar-dir", cacheDir.toString()));
   }
 
+  /** The dir to keep generated method trace container classes in between runs. */
+  public static Path getContainerCacheDir() {
+    return Paths.get(
+        System.getProperty("agent.container-cache-dir", cacheDir.resolve("containers").toString()));
+  }
+
+  /** The dir to keep instrumented classes in between runs. */
+  public static Path getTransformCacheDir() {
+    return Paths.get(
+        System.getProperty("agent.transform-cache-dir", cacheDir.resolve("classes").toString()));
+  }
+
+  /** The dir to write transformation diagnostics into. */
+  public static Path getDiagnosticsDir() {
+    return Paths.get(
+        System.getProperty("agent.diagnostics-dir", cacheDir.resolve("diagnostics").toString()));
+  }
+
   public static String mainMethodDescriptor = "([Ljava/lang/String;)V";
 }